@@ -0,0 +1,152 @@
+/*
+ * Copyright 2005-2025 Sly Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.slytechs.sdk.jnetpcap.jmh;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * The capture file all benchmarks read.
+ *
+ * <p>
+ * The file is generated from the bundled {@code HTTP.cap} by repeating its
+ * records until exactly {@link #PACKETS} records are written. Each repetition
+ * is shifted in time past the previous one, keeping timestamps increasing. The
+ * content only depends on {@code HTTP.cap}, so results are comparable across
+ * machines and releases. The file is generated once into
+ * {@code java.io.tmpdir}, or the directory given by the
+ * {@code jnetpcap.jmh.dir} system property, and reused by later runs.
+ * </p>
+ *
+ * @author Mark Bednarczyk [mark@slytechs.com]
+ * @author Sly Technologies Inc.
+ */
+final class BenchmarkCapture {
+
+	/** Number of packets in the generated capture file. */
+	static final int PACKETS = 100_000;
+
+	private static final String SOURCE = "/HTTP.cap";
+	private static final int FILE_HEADER_LENGTH = 24;
+	private static final int RECORD_HEADER_LENGTH = 16;
+	private static final int MAGIC_MICROS = 0xA1B2C3D4;
+	private static final int MAGIC_NANOS = 0xA1B23C4D;
+
+	/**
+	 * Returns the generated capture file, generating it if missing.
+	 *
+	 * @return the capture file path
+	 * @throws IOException if the file could not be generated
+	 */
+	static synchronized Path path() throws IOException {
+		Path dir = Path.of(System.getProperty("jnetpcap.jmh.dir", System.getProperty("java.io.tmpdir")));
+		Path file = dir.resolve("jnetpcap-jmh-http-" + PACKETS + ".pcap");
+
+		if (Files.isRegularFile(file))
+			return file;
+
+		Files.createDirectories(dir);
+		Path tmp = Files.createTempFile(dir, "jnetpcap-jmh-", ".tmp");
+		try {
+			generate(tmp);
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+
+		return file;
+	}
+
+	private static void generate(Path file) throws IOException {
+		final byte[] source;
+		try (InputStream in = BenchmarkCapture.class.getResourceAsStream(SOURCE)) {
+			if (in == null)
+				throw new IOException("missing benchmark resource " + SOURCE);
+
+			source = in.readAllBytes();
+		}
+
+		ByteBuffer src = ByteBuffer.wrap(source).order(ByteOrder.LITTLE_ENDIAN);
+		int magic = src.getInt(0);
+		if (magic != MAGIC_MICROS && magic != MAGIC_NANOS) {
+			src.order(ByteOrder.BIG_ENDIAN);
+			magic = src.getInt(0);
+		}
+
+		if (magic != MAGIC_MICROS && magic != MAGIC_NANOS)
+			throw new IOException("not a pcap file " + SOURCE);
+
+		final long unitsPerSecond = (magic == MAGIC_NANOS) ? 1_000_000_000L : 1_000_000L;
+
+		/* Record offsets and the time span they cover */
+		int count = 0;
+		int[] offsets = new int[64];
+		for (int off = FILE_HEADER_LENGTH; off + RECORD_HEADER_LENGTH <= source.length;) {
+			int caplen = src.getInt(off + 8);
+			if (off + RECORD_HEADER_LENGTH + caplen > source.length)
+				break;
+
+			if (count == offsets.length)
+				offsets = Arrays.copyOf(offsets, count * 2);
+
+			offsets[count++] = off;
+			off += RECORD_HEADER_LENGTH + caplen;
+		}
+
+		if (count == 0)
+			throw new IOException("no records in " + SOURCE);
+
+		final long first = timestamp(src, offsets[0], unitsPerSecond);
+		final long last = timestamp(src, offsets[count - 1], unitsPerSecond);
+		final long shift = (last - first) + unitsPerSecond / 1000;
+
+		ByteBuffer hdr = ByteBuffer.allocate(RECORD_HEADER_LENGTH).order(src.order());
+
+		try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), 1024 * 1024)) {
+			out.write(source, 0, FILE_HEADER_LENGTH);
+
+			for (int i = 0; i < PACKETS; i++) {
+				int off = offsets[i % count];
+				int caplen = src.getInt(off + 8);
+				long ts = timestamp(src, off, unitsPerSecond) + (i / count) * shift;
+
+				hdr.clear();
+				hdr.putInt((int) (ts / unitsPerSecond));
+				hdr.putInt((int) (ts % unitsPerSecond));
+				hdr.putInt(caplen);
+				hdr.putInt(src.getInt(off + 12));
+
+				out.write(hdr.array());
+				out.write(source, off + RECORD_HEADER_LENGTH, caplen);
+			}
+		}
+	}
+
+	private static long timestamp(ByteBuffer src, int off, long unitsPerSecond) {
+		return Integer.toUnsignedLong(src.getInt(off)) * unitsPerSecond + Integer.toUnsignedLong(src.getInt(off + 4));
+	}
+
+	private BenchmarkCapture() {
+	}
+}
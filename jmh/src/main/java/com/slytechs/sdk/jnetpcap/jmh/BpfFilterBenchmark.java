@@ -0,0 +1,181 @@
+/*
+ * Copyright 2005-2025 Sly Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.slytechs.sdk.jnetpcap.jmh;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.slytechs.sdk.jnetpcap.PcapException;
+import com.slytechs.sdk.jnetpcap.api.BpfExecutable;
+import com.slytechs.sdk.jnetpcap.api.BpfProgram;
+import com.slytechs.sdk.jnetpcap.api.NetPcap;
+import com.slytechs.sdk.jnetpcap.api.PacketHandler.OfPacketConsumer;
+
+/**
+ * Packet rate of BPF filtering in libpcap against the in-JVM interpreter and
+ * compiled programs.
+ *
+ * <p>
+ * The {@code native*} and {@code jvm*} benchmarks read the whole
+ * {@link BenchmarkCapture} file through libpcap without dissection, filtering
+ * either with {@code pcap_setfilter} or with a {@link BpfExecutable} in the
+ * packet pipeline. The {@code run*} benchmarks run only the filter, over the
+ * records of the mapped file, isolating the cost of the program itself.
+ * </p>
+ *
+ * @author Mark Bednarczyk [mark@slytechs.com]
+ * @author Sly Technologies Inc.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@OperationsPerInvocation(BenchmarkCapture.PACKETS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = "--enable-native-access=ALL-UNNAMED")
+public class BpfFilterBenchmark {
+
+	private static final int FILE_HEADER_LENGTH = 24;
+	private static final int RECORD_HEADER_LENGTH = 16;
+
+	@Param({
+			"tcp port 80",
+			"ip and greater 200",
+			"tcp[tcpflags] & (tcp-syn|tcp-fin) != 0"
+	})
+	public String expression;
+
+	private Path file;
+	private OfPacketConsumer consumer;
+	private BpfExecutable interpreter;
+	private BpfExecutable compiled;
+
+	private Arena arena;
+	private MemorySegment mapped;
+	private long[] offsets;
+	private ValueLayout.OfInt recordInt;
+
+	@Setup(Level.Trial)
+	public void setUpTrial(Blackhole blackhole) throws Exception {
+		NetPcap.activateLicense();
+
+		file = BenchmarkCapture.path();
+		consumer = packet -> blackhole.consume(packet.captureLength());
+
+		try (NetPcap pcap = NetPcap.openOffline(file.toString(), Dissection.NONE.settings())) {
+			BpfProgram program = pcap.compileProgram(expression, true);
+			interpreter = program.interpreter();
+			compiled = program.compile();
+		}
+
+		arena = Arena.ofShared();
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena);
+		}
+
+		int magic = mapped.get(ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN), 0);
+		recordInt = ValueLayout.JAVA_INT_UNALIGNED.withOrder(
+				(magic == 0xA1B2C3D4 || magic == 0xA1B23C4D) ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+
+		offsets = new long[BenchmarkCapture.PACKETS];
+		long off = FILE_HEADER_LENGTH;
+		for (int i = 0; i < offsets.length; i++) {
+			offsets[i] = off;
+			off += RECORD_HEADER_LENGTH + mapped.get(recordInt, off + 8);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDownTrial() {
+		arena.close();
+	}
+
+	private int filterFile(BpfExecutable filter) throws PcapException {
+		try (NetPcap pcap = NetPcap.openOffline(file.toString(), Dissection.NONE.settings())) {
+			pcap.setPacketFilter(filter);
+
+			return pcap.loop(-1, consumer);
+		}
+	}
+
+	@Benchmark
+	public int jvmCompiled() throws PcapException {
+		return filterFile(compiled);
+	}
+
+	@Benchmark
+	public int jvmInterpreter() throws PcapException {
+		return filterFile(interpreter);
+	}
+
+	@Benchmark
+	public int nativeFilter() throws PcapException {
+		try (NetPcap pcap = NetPcap.openOffline(file.toString(), Dissection.NONE.settings())) {
+			pcap.setFilter(expression);
+
+			return pcap.loop(-1, consumer);
+		}
+	}
+
+	private int runAll(BpfExecutable filter) {
+		final MemorySegment segment = mapped;
+		final long[] records = offsets;
+
+		int accepted = 0;
+		for (long off : records) {
+			int caplen = segment.get(recordInt, off + 8);
+			int wirelen = segment.get(recordInt, off + 12);
+
+			if (filter.run(segment, off + RECORD_HEADER_LENGTH, caplen, wirelen) != 0)
+				accepted++;
+		}
+
+		return accepted;
+	}
+
+	@Benchmark
+	public int runCompiled() {
+		return runAll(compiled);
+	}
+
+	@Benchmark
+	public int runInterpreter() {
+		return runAll(interpreter);
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2005-2025 Sly Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.slytechs.sdk.jnetpcap.jmh;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.slytechs.sdk.jnetpcap.PcapException;
+import com.slytechs.sdk.jnetpcap.api.NetPcap;
+import com.slytechs.sdk.jnetpcap.api.PacketHandler.OfPacket;
+import com.slytechs.sdk.jnetpcap.api.PacketHandler.OfPacketConsumer;
+import com.slytechs.sdk.protocol.core.Packet;
+import com.slytechs.sdk.protocol.tcpip.ip.Ip4;
+
+/**
+ * Packet rate of the {@link NetPcap} delivery methods for each dissection mode.
+ *
+ * <p>
+ * Every invocation reads the whole {@link BenchmarkCapture} file through a
+ * freshly opened offline handle, and counts as {@link BenchmarkCapture#PACKETS}
+ * operations. Scores are therefore packets per second, or nanoseconds per
+ * packet when run with {@code -bm avgt -tu ns}.
+ * </p>
+ *
+ * @author Mark Bednarczyk [mark@slytechs.com]
+ * @author Sly Technologies Inc.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@OperationsPerInvocation(BenchmarkCapture.PACKETS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = "--enable-native-access=ALL-UNNAMED")
+public class DispatchBenchmark {
+
+	/** Packets requested per dispatch call, as a typical capture loop would. */
+	private static final int DISPATCH_COUNT = 64;
+
+	@Param
+	public Dissection dissection;
+
+	private final Ip4 ip4 = new Ip4();
+	private Path file;
+	private NetPcap pcap;
+	private OfPacketConsumer consumer;
+	private OfPacket<Blackhole> handler;
+
+	@Setup(Level.Trial)
+	public void setUpTrial(Blackhole blackhole) throws Exception {
+		NetPcap.activateLicense();
+
+		file = BenchmarkCapture.path();
+		consumer = packet -> blackhole.consume(dissection.inspect(packet, ip4));
+		handler = (bh, packet) -> bh.consume(dissection.inspect(packet, ip4));
+	}
+
+	@Setup(Level.Invocation)
+	public void open() throws PcapException {
+		pcap = NetPcap.openOffline(file.toString(), dissection.settings());
+	}
+
+	@TearDown(Level.Invocation)
+	public void close() {
+		pcap.close();
+	}
+
+	@Benchmark
+	public void dispatchConsumer() throws PcapException {
+		while (pcap.dispatch(DISPATCH_COUNT, consumer) > 0)
+			;
+	}
+
+	@Benchmark
+	public void dispatchOfPacket(Blackhole blackhole) throws PcapException {
+		while (pcap.dispatch(DISPATCH_COUNT, handler, blackhole) > 0)
+			;
+	}
+
+	@Benchmark
+	public int loopConsumer() {
+		return pcap.loop(-1, consumer);
+	}
+
+	@Benchmark
+	public int loopOfPacket(Blackhole blackhole) {
+		return pcap.loop(-1, handler, blackhole);
+	}
+
+	@Benchmark
+	public void next(Blackhole blackhole) throws PcapException {
+		for (int i = 0; i < BenchmarkCapture.PACKETS; i++) {
+			Packet packet = pcap.next();
+			blackhole.consume(dissection.inspect(packet, ip4));
+		}
+	}
+
+	@Benchmark
+	public void nextEx(Blackhole blackhole) throws PcapException, TimeoutException {
+		for (int i = 0; i < BenchmarkCapture.PACKETS; i++) {
+			Packet packet = pcap.nextEx();
+			blackhole.consume(dissection.inspect(packet, ip4));
+		}
+	}
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2005-2025 Sly Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.slytechs.sdk.jnetpcap.jmh;
+
+import com.slytechs.sdk.protocol.core.Packet;
+import com.slytechs.sdk.protocol.core.PacketSettings;
+import com.slytechs.sdk.protocol.tcpip.ip.Ip4;
+
+/**
+ * The {@link PacketSettings} dissection modes benchmarked.
+ *
+ * @author Mark Bednarczyk [mark@slytechs.com]
+ * @author Sly Technologies Inc.
+ */
+public enum Dissection {
+
+	/** No dissection, packets only carry their data and pcap header. */
+	NONE,
+
+	/** Headers are dissected when first looked up. */
+	ON_DEMAND,
+
+	/** Every packet is dissected into a type 2 descriptor before delivery. */
+	EAGER;
+
+	/**
+	 * Returns new packet settings for this mode.
+	 *
+	 * @return the packet settings
+	 */
+	public PacketSettings settings() {
+		return switch (this) {
+		case NONE -> new PacketSettings().noDissection();
+		case ON_DEMAND -> new PacketSettings().dissectOnDemand();
+		case EAGER -> new PacketSettings().dissect();
+		};
+	}
+
+	/**
+	 * Touches a packet the way a typical handler does, looking up its IPv4 header
+	 * when dissection is enabled, so that on-demand dissection is not skipped.
+	 *
+	 * @param packet the packet
+	 * @param ip4    a reusable IPv4 header
+	 * @return a value to sink into a blackhole
+	 */
+	public int inspect(Packet packet, Ip4 ip4) {
+		if (this == NONE)
+			return packet.captureLength();
+
+		return packet.hasHeader(ip4) ? packet.captureLength() : -packet.captureLength();
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2005-2025 Sly Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.slytechs.sdk.jnetpcap.jmh;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.slytechs.sdk.jnetpcap.api.CaptureFileFormat;
+import com.slytechs.sdk.jnetpcap.api.CaptureGenerator;
+import com.slytechs.sdk.jnetpcap.api.SyntheticStack;
+
+/**
+ * Write rate of {@link CaptureGenerator}, in bytes per second reported by the
+ * {@code bytes} counter, for a mixed protocol IMIX capture of about 256 MB.
+ *
+ * @author Mark Bednarczyk [mark@slytechs.com]
+ * @author Sly Technologies Inc.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "--enable-native-access=ALL-UNNAMED")
+public class GeneratorBenchmark {
+
+	private static final long FILE_SIZE = 256L * 1024 * 1024;
+
+	/** Bytes generated, reported as a rate */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Counters {
+		public long bytes;
+	}
+
+	@Param
+	public CaptureFileFormat format;
+
+	private CaptureGenerator generator;
+	private Path file;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		file = Files.createTempFile("jnetpcap-jmh-generator-", format.extension());
+		generator = new CaptureGenerator()
+				.addStack(SyntheticStack.IP4_TCP, 6)
+				.addStack(SyntheticStack.IP4_UDP, 2)
+				.addStack(SyntheticStack.IP6_TCP, 1)
+				.addStack(SyntheticStack.VLAN_IP4_TCP, 1)
+				.setFlowCount(100_000)
+				.setImix()
+				.setFormat(format);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		Files.deleteIfExists(file);
+	}
+
+	@Benchmark
+	public long generate(Counters counters) throws IOException {
+		long packets = generator.generateSize(file, FILE_SIZE);
+		counters.bytes += Files.size(file);
+
+		return packets;
+	}
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2005-2025 Sly Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.slytechs.sdk.jnetpcap.jmh;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.slytechs.sdk.jnetpcap.PcapException;
+import com.slytechs.sdk.jnetpcap.api.MappedPcapReader;
+import com.slytechs.sdk.jnetpcap.api.NetPcap;
+import com.slytechs.sdk.jnetpcap.api.PacketHandler.OfPacketConsumer;
+import com.slytechs.sdk.protocol.tcpip.ip.Ip4;
+
+/**
+ * Packet rate of the libpcap offline reader against the memory mapped
+ * {@link MappedPcapReader}, for each dissection mode.
+ *
+ * <p>
+ * Both read the whole {@link BenchmarkCapture} file per invocation, delivering
+ * through an {@link OfPacketConsumer}. The libpcap handle is reopened for each
+ * invocation, which is included in the score, the same as opening and mapping
+ * the file is for the mapped reader.
+ * </p>
+ *
+ * @author Mark Bednarczyk [mark@slytechs.com]
+ * @author Sly Technologies Inc.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@OperationsPerInvocation(BenchmarkCapture.PACKETS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = "--enable-native-access=ALL-UNNAMED")
+public class OfflineReaderBenchmark {
+
+	@Param
+	public Dissection dissection;
+
+	private final Ip4 ip4 = new Ip4();
+	private Path file;
+	private OfPacketConsumer consumer;
+
+	@Setup(Level.Trial)
+	public void setUpTrial(Blackhole blackhole) throws Exception {
+		NetPcap.activateLicense();
+
+		file = BenchmarkCapture.path();
+		consumer = packet -> blackhole.consume(dissection.inspect(packet, ip4));
+	}
+
+	@Benchmark
+	public int libpcap() throws PcapException {
+		try (NetPcap pcap = NetPcap.openOffline(file.toString(), dissection.settings())) {
+			return pcap.loop(-1, consumer);
+		}
+	}
+
+	@Benchmark
+	public int mapped() throws IOException {
+		try (MappedPcapReader reader = NetPcap.openMapped(file, dissection.settings())) {
+			return reader.loop(-1, consumer);
+		}
+	}
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2005-2025 Sly Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.slytechs.sdk.jnetpcap.jmh;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.slytechs.sdk.jnetpcap.api.NetPcap;
+import com.slytechs.sdk.jnetpcap.api.ParallelPcapReader;
+import com.slytechs.sdk.protocol.core.Packet;
+import com.slytechs.sdk.protocol.core.PacketSettings;
+import com.slytechs.sdk.protocol.tcpip.ip.Ip4;
+
+/**
+ * Scaling of {@link ParallelPcapReader} with the number of worker threads,
+ * using eager dissection.
+ *
+ * <p>
+ * The chunk size is reduced so that the {@link BenchmarkCapture} file splits
+ * into enough chunks to keep every worker busy. Compare the {@code threads=1}
+ * score against {@link OfflineReaderBenchmark#mapped()} for the cost of
+ * chunking itself.
+ * </p>
+ *
+ * @author Mark Bednarczyk [mark@slytechs.com]
+ * @author Sly Technologies Inc.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@OperationsPerInvocation(BenchmarkCapture.PACKETS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = "--enable-native-access=ALL-UNNAMED")
+public class ParallelScalingBenchmark {
+
+	/** Nominal chunk size, about 15 chunks for the benchmark file */
+	private static final long CHUNK_SIZE = 4 * 1024 * 1024;
+
+	@Param({ "1", "2", "4", "8" })
+	public int threads;
+
+	private ParallelPcapReader reader;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		NetPcap.activateLicense();
+
+		Path file = BenchmarkCapture.path();
+		reader = NetPcap.openOfflineParallel(file, new PacketSettings().dissect(), threads)
+				.setChunkSize(CHUNK_SIZE);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		reader.close();
+	}
+
+	/** Per-chunk accumulator of {@link #collect()} */
+	static final class Tally {
+		final Ip4 ip4 = new Ip4();
+		long bytes;
+
+		Tally merge(Tally other) {
+			bytes += other.bytes;
+			return this;
+		}
+	}
+
+	@Benchmark
+	public long collect() {
+		return reader.collect(
+				Tally::new,
+				(tally, packet) -> {
+					if (packet.hasHeader(tally.ip4))
+						tally.bytes += packet.captureLength();
+				},
+				Tally::merge).bytes;
+	}
+
+	@Benchmark
+	public void mapOrdered(Blackhole blackhole) {
+		reader.mapOrdered(Packet::captureLength, blackhole::consume);
+	}
+}
@@ -87,6 +87,21 @@ public class NetPcapDispatcher {
 	 */
 	private static final NetPcapForeignDowncall pcap_next_ex;
 
+	/**
+	 * The Constant pcap_file.
+	 *
+	 * @see {@code FILE *pcap_file(pcap_t *p)}
+	 * @since libpcap 0.4
+	 */
+	private static final NetPcapForeignDowncall pcap_file;
+
+	/**
+	 * Maximum packets a pull mode dispatch with a count of -1 or 0 delivers from
+	 * a live capture. Without an upcall there is no kernel buffer boundary to
+	 * stop at, so this stands in for the packets one buffer read returns.
+	 */
+	public static final int PULL_DISPATCH_LIMIT = 4096;
+
 	static {
 
 		try (var foreign = new NetPcapForeignInitializer(NetPcapDispatcher.class)) {
@@ -98,6 +113,7 @@ public class NetPcapDispatcher {
 			pcap_loop        = foreign.downcall("pcap_loop(AIAA)I");
 			pcap_next        = foreign.downcall("pcap_next(AA)A");
 			pcap_next_ex     = foreign.downcall("pcap_next_ex(AAA)I");
+			pcap_file        = foreign.downcall("pcap_file(A)A");
 		// @formatter:on
 
 		}
@@ -121,6 +137,9 @@ public class NetPcapDispatcher {
 	/** The interrupted. */
 	private boolean interrupted = false;
 
+	/** Set by breakloop, used to tell a pcap_next_ex break apart from EOF. */
+	private volatile boolean breakRequested = false;
+
 	/** The interrupt on errors. */
 	@SuppressWarnings("unused")
 	private boolean interruptOnErrors = true;
@@ -133,6 +152,9 @@ public class NetPcapDispatcher {
 
 	private final UserUpcall userUpcall;
 
+	/** True if the handle reads a savefile, where dispatch reads to EOF. */
+	private final boolean savefile;
+
 	/**
 	 * Instantiates a new standard pcap dispatcher.
 	 *
@@ -145,8 +167,18 @@ public class NetPcapDispatcher {
 		this.abi = abi;
 		this.breakDispatch = breakDispatch;
 		this.arena = Arena.ofShared();
-		this.userUpcall = new UserUpcall(abi);
+		this.userUpcall = new UserUpcall(abi, this::onNativeCallbackException);
 		this.pcapCallbackStub = foreignUpcall.virtualStubPointer(userUpcall, this.arena);
+		this.savefile = !ForeignUtils.isNullAddress(pcap_file.invokeObj(pcapHandle));
+	}
+
+	/**
+	 * Forces a dispatch or loop in progress to return, regardless of which
+	 * dispatch strategy is being used.
+	 */
+	public final void breakloop() {
+		this.breakRequested = true;
+		this.breakDispatch.run();
 	}
 
 	public UserUpcall userUpcall() {
@@ -176,12 +208,127 @@ public class NetPcapDispatcher {
 				pcapCallbackStub,
 				userData);
 
+		if (result == -2)
+			breakRequested = false;
+
+		if (interrupted)
+			handleInterrupt();
+
+		return result;
+	}
+
+	/**
+	 * Dispatches packets using a Java-side loop of {@code pcap_next_ex} downcalls
+	 * instead of a native upcall stub. Returns the same values as
+	 * {@link #dispatchRaw(int, MemorySegment)}.
+	 *
+	 * <p>
+	 * As with {@code pcap_dispatch}, a count of -1 or 0 processes a savefile to
+	 * EOF. On a live capture it returns on a read timeout or after
+	 * {@link #PULL_DISPATCH_LIMIT} packets, standing in for one buffer read.
+	 * </p>
+	 *
+	 * @param count    maximum packets to process, -1 or 0 for one buffer
+	 * @param userData the user data passed to the user callback
+	 * @return number of packets processed, -1 on error, -2 on break
+	 */
+	public final int dispatchPull(int count, MemorySegment userData) {
+
+		if (Thread.currentThread().isInterrupted()) {
+			handleInterrupt();
+
+			return -1;
+		}
+
+		int result = pull(count, userData, false);
+
+		if (interrupted)
+			handleInterrupt();
+
+		return result;
+	}
+
+	/**
+	 * Loops over packets using a Java-side loop of {@code pcap_next_ex} downcalls
+	 * instead of a native upcall stub. Returns the same values as
+	 * {@link #loopRaw(int, MemorySegment)}.
+	 *
+	 * @param count    packets to process, -1 or 0 for infinite
+	 * @param userData the user data passed to the user callback
+	 * @return 0 if count is exhausted or on EOF, -1 on error, -2 on break
+	 */
+	public final int loopPull(int count, MemorySegment userData) {
+		int result = pull(count, userData, true);
+
 		if (interrupted)
 			handleInterrupt();
 
 		return result;
 	}
 
+	private int pull(int count, MemorySegment userData, boolean loop) {
+		final MemorySegmentPair pair = this.pullPair;
+		final int limit = (count > 0) ? count : (loop || savefile) ? 0 : PULL_DISPATCH_LIMIT;
+		int processed = 0;
+		boolean retried = false;
+
+		while (limit <= 0 || processed < limit) {
+			int status = nextExRaw(pair);
+
+			switch (status) {
+			case 1: // Packet available
+				userUpcall.deliver(userData, pair.hdr, pair.pkt);
+				processed++;
+				retried = false;
+
+				if (interrupted) // The callback threw, stop as pcap_loop does on breakloop
+					return pullResult(processed, loop);
+				break;
+
+			case 0: // Timeout (live capture only), pcap_loop keeps waiting
+				if (!loop)
+					return pullResult(processed, loop);
+				break;
+
+			case -2: // EOF (offline) or breakloop called
+				if (breakRequested)
+					return pullResult(processed, loop);
+
+				/*
+				 * Without a break requested, this is EOF or a break left pending in libpcap
+				 * after an earlier call already honored it. Read once more, EOF stays EOF.
+				 */
+				if (!retried) {
+					retried = true;
+					break;
+				}
+
+				return pullResult(processed, loop);
+
+			case -1: // Error
+			default:
+				breakRequested = false;
+				return -1;
+			}
+		}
+
+		return pullResult(processed, loop);
+	}
+
+	/**
+	 * Computes the return value of a pull, honoring and clearing a requested
+	 * break on every path.
+	 */
+	private int pullResult(int processed, boolean loop) {
+		if (breakRequested) {
+			breakRequested = false;
+
+			return (loop || processed == 0) ? -2 : processed;
+		}
+
+		return loop ? 0 : processed;
+	}
+
 	public final RuntimeException getUncaughtException() {
 		return uncaughtException;
 	}
@@ -194,12 +341,15 @@ public class NetPcapDispatcher {
 	private final void handleInterrupt() throws RuntimeException {
 		interrupted = false; // Reset flag
 
-		if (uncaughtException != null) {
-			throw uncaughtException;
+		final RuntimeException e = uncaughtException;
+		if (e != null) {
+			uncaughtException = null; // Rethrown once, not again by the next dispatch
+			throw e;
 		}
 	}
 
 	public final void interrupt() {
+		this.breakRequested = true;
 		this.breakDispatch.run();
 		this.interrupted = true;
 	}
@@ -211,6 +361,9 @@ public class NetPcapDispatcher {
 				pcapCallbackStub,
 				userData);
 
+		if (result == -2)
+			breakRequested = false;
+
 		if (interrupted)
 			handleInterrupt();
 
@@ -246,6 +399,9 @@ public class NetPcapDispatcher {
 	/** The pcap header buffer. */
 	private final MemorySegment PCAP_HEADER_BUFFER = Arena.ofAuto().allocate(PcapDescriptorPadded.BYTE_SIZE);
 
+	/** Reusable header/packet pair used by the pull dispatch loop. */
+	private final MemorySegmentPair pullPair = new MemorySegmentPair();
+
 	/**
 	 * Dynamic non-pcap utility method to convert libpcap error code to a string, by
 	 * various fallback methods with an active pcap handle.
@@ -260,29 +416,41 @@ public class NetPcapDispatcher {
 	}
 
 	public void nextEx(MemorySegmentPair pair) throws PcapException, TimeoutException {
-		int result = pcap_next_ex.invokeInt(
-				pcapHandle,
-				POINTER_TO_POINTER1,
-				POINTER_TO_POINTER2);
+		int result = nextExRaw(pair);
 
 		switch (result) {
 		case 1: // Success - packet available
-			break;
+		case -2: // EOF (offline) or breakloop called
+			return;
 
 		case 0: // Timeout (live capture only)
 			throw new TimeoutException();
 
-		case -2: // EOF (offline) or breakloop called
-			pair.hdr = null;
-			pair.pkt = null;
-			return;
-
 		case -1: // Error
 		default:
 			throw new PcapException(geterr());
 		}
+	}
+
+	/**
+	 * Calls {@code pcap_next_ex} and on success binds the pair to the returned
+	 * header and packet, otherwise clears the pair.
+	 *
+	 * @param pair the pair to bind
+	 * @return the pcap_next_ex status code
+	 */
+	private int nextExRaw(MemorySegmentPair pair) {
+		int result = pcap_next_ex.invokeInt(
+				pcapHandle,
+				POINTER_TO_POINTER1,
+				POINTER_TO_POINTER2);
+
+		if (result != 1) {
+			pair.hdr = null;
+			pair.pkt = null;
+			return result;
+		}
 
-		// Only reach here on success (result == 1)
 		MemorySegment hdr = POINTER_TO_POINTER1.get(ADDRESS, 0);
 		MemorySegment pkt = POINTER_TO_POINTER2.get(ADDRESS, 0);
 
@@ -293,6 +461,8 @@ public class NetPcapDispatcher {
 
 		pair.hdr = hdr;
 		pair.pkt = pkt;
+
+		return result;
 	}
 
 	public void next(MemorySegmentPair pair) throws PcapException {
@@ -16,6 +16,7 @@
 package com.slytechs.jnet.jnetpcap.api.foreign;
 
 import java.lang.foreign.MemorySegment;
+import java.util.function.Consumer;
 
 import com.slytechs.sdk.common.foreign.ForeignUtils;
 import com.slytechs.sdk.jnetpcap.internal.PcapHeaderABI;
@@ -29,8 +30,12 @@ public class UserUpcall implements NativeUpcall {
 
 	private final PcapHeaderABI abi;
 
-	public UserUpcall(PcapHeaderABI abi) {
+	/** Receives exceptions thrown by the user callback, which can not unwind through native code */
+	private final Consumer<RuntimeException> exceptionHandler;
+
+	public UserUpcall(PcapHeaderABI abi, Consumer<RuntimeException> exceptionHandler) {
 		this.abi = abi;
+		this.exceptionHandler = exceptionHandler;
 	}
 
 	/**
@@ -50,7 +55,25 @@ public class UserUpcall implements NativeUpcall {
 
 			this.userCallback.nativeUpcall(user, header, packet);
 		} catch (RuntimeException e) {
-			e.printStackTrace();
+			exceptionHandler.accept(e);
+		}
+	}
+
+	/**
+	 * Delivers an already sized header and packet to the user callback, bypassing
+	 * the native stub. Used by pull-style dispatchers so that exceptions are
+	 * handled exactly as they are for native upcalls.
+	 *
+	 * @param user   the user data
+	 * @param header the pcap header, sized to the ABI header length
+	 * @param packet the packet data, sized to the capture length
+	 */
+	public void deliver(MemorySegment user, MemorySegment header, MemorySegment packet) {
+
+		try {
+			this.userCallback.nativeUpcall(user, header, packet);
+		} catch (RuntimeException e) {
+			exceptionHandler.accept(e);
 		}
 	}
 
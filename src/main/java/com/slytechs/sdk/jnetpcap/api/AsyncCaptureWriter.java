@@ -0,0 +1,625 @@
+/*
+ * Copyright 2005-2025 Sly Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.slytechs.sdk.jnetpcap.api;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An asynchronous capture file writer which never performs disk I/O on the
+ * capture thread.
+ *
+ * <p>
+ * {@code dispatch(count, PcapDumper)} writes each record synchronously through
+ * libpcap's stdio on the capture thread, so every disk stall is a capture
+ * stall. This writer instead appends records into large off-heap staging
+ * buffers. Full buffers are handed to a background flusher thread, which writes
+ * them with {@link FileChannel} gather writes and returns them for reuse. The
+ * capture thread only ever copies bytes into memory.
+ * </p>
+ *
+ * <p>
+ * When every staging buffer is waiting to be written, the writer is under
+ * back-pressure. By default the record is dropped and counted, so capture is
+ * never stalled. With {@link #setBlocking(boolean)} the capture thread instead
+ * waits for a buffer, trading capture stalls for a complete file.
+ * </p>
+ *
+ * <pre>{@code
+ * try (NetPcap pcap = NetPcap.openLive("eth0", 65535, true, Duration.ofMillis(100));
+ * 		AsyncCaptureWriter writer = pcap.openWriter(Path.of("out.pcapng"), CaptureFileFormat.PCAPNG)) {
+ *
+ * 	BoundHandler recorder = pcap.bind(writer);
+ * 	while (running) {
+ * 		recorder.dispatch(-1);
+ * 		writer.flush(); // Hand off partially filled buffers on idle
+ * 	}
+ * }
+ * }</pre>
+ *
+ * <p>
+ * Record appends, {@link #flush()} and {@link #close()} must be called from a
+ * single producer thread. The counters may be read from any thread.
+ * </p>
+ *
+ * @author Mark Bednarczyk [mark@slytechs.com]
+ * @author Sly Technologies Inc.
+ * @see NetPcap#openWriter(Path, CaptureFileFormat)
+ * @see NetPcap#bind(AsyncCaptureWriter)
+ */
+public final class AsyncCaptureWriter implements AutoCloseable {
+
+	/** Default size of each staging buffer. */
+	public static final long DEFAULT_BUFFER_SIZE = 4 * 1024 * 1024;
+
+	/** Default number of staging buffers. */
+	public static final int DEFAULT_BUFFER_COUNT = 8;
+
+	/** Largest staging buffer, limited by the ByteBuffer views used for writes. */
+	private static final long MAX_BUFFER_SIZE = 1L << 30;
+
+	private static final ValueLayout.OfInt U32 = ValueLayout.JAVA_INT_UNALIGNED;
+
+	private static final int PCAP_RECORD_HEADER = 16;
+	private static final int EPB_OVERHEAD = 32;
+	private static final long PARK_NANOS = 20_000;
+
+	private static final class Buffer {
+		final MemorySegment segment;
+		final ByteBuffer view;
+		long limit;
+
+		Buffer(MemorySegment segment) {
+			this.segment = segment;
+			this.view = segment.asByteBuffer().order(ByteOrder.nativeOrder());
+		}
+	}
+
+	/**
+	 * Opens a capture file for asynchronous writing, without a NetPcap handle.
+	 *
+	 * @param file     the output file, created or truncated
+	 * @param format   the file format
+	 * @param linkType the link type (DLT) of records
+	 * @param snaplen  the snapshot length recorded in the file header
+	 * @return a started writer
+	 * @throws IOException if the file can not be created
+	 */
+	public static AsyncCaptureWriter open(Path file, CaptureFileFormat format, int linkType, int snaplen)
+			throws IOException {
+		return new AsyncCaptureWriter(file, format, linkType, snaplen, false, DEFAULT_BUFFER_SIZE,
+				DEFAULT_BUFFER_COUNT);
+	}
+
+	/**
+	 * Returns the number of bytes a record takes in a file, including its record
+	 * header and any padding.
+	 *
+	 * @param format the file format
+	 * @param caplen the capture length
+	 * @return the record length in bytes
+	 */
+	static long recordLength(CaptureFileFormat format, long caplen) {
+		return (format == CaptureFileFormat.PCAP)
+				? PCAP_RECORD_HEADER + caplen
+				: EPB_OVERHEAD + ((caplen + 3) & ~3L);
+	}
+
+	private final Path path;
+	private final CaptureFileFormat format;
+	private final boolean nanoTime;
+	private final long bufferSize;
+	private final FileChannel channel;
+	private final Arena arena;
+	private final SpscQueue<Buffer> full;
+	private final SpscQueue<Buffer> free;
+	private final Thread flusher;
+
+	/* Producer owned */
+	private Buffer current;
+	private long fill;
+	private boolean blocking;
+	private boolean closed;
+
+	/* Counters, each with a single writer */
+	private final AtomicLong bytesAppended = new AtomicLong();
+	private final AtomicLong bytesWritten = new AtomicLong();
+	private final AtomicLong records = new AtomicLong();
+	private final AtomicLong drops = new AtomicLong();
+	private final AtomicLong backPressureEvents = new AtomicLong();
+	private final AtomicLong flushes = new AtomicLong();
+	private final AtomicLong flushNanosTotal = new AtomicLong();
+	private final AtomicLong flushNanosMax = new AtomicLong();
+
+	private volatile boolean running = true;
+	private volatile IOException failure;
+
+	/**
+	 * Opens a capture file and starts the flusher thread.
+	 *
+	 * @param file        the output file, created or truncated
+	 * @param format      the file format
+	 * @param linkType    the link type (DLT) of records
+	 * @param snaplen     the snapshot length recorded in the file header
+	 * @param nanoTime    if true, timestamp fractions are in nanoseconds,
+	 *                    otherwise microseconds
+	 * @param bufferSize  the size of each staging buffer in bytes
+	 * @param bufferCount the number of staging buffers
+	 * @throws IOException if the file can not be created
+	 */
+	AsyncCaptureWriter(Path file, CaptureFileFormat format, int linkType, int snaplen, boolean nanoTime,
+			long bufferSize, int bufferCount) throws IOException {
+		if (bufferSize < 4096 || bufferSize > MAX_BUFFER_SIZE)
+			throw new IllegalArgumentException("buffer size out of range: " + bufferSize);
+		if (bufferCount < 2)
+			throw new IllegalArgumentException("at least 2 buffers are required: " + bufferCount);
+
+		this.path = Objects.requireNonNull(file, "file");
+		this.format = Objects.requireNonNull(format, "format");
+		this.nanoTime = nanoTime;
+		this.bufferSize = bufferSize;
+		this.channel = FileChannel.open(file,
+				StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+
+		try {
+			writeFileHeader(linkType, snaplen);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+
+		this.arena = Arena.ofShared();
+		this.full = new SpscQueue<>(bufferCount);
+		this.free = new SpscQueue<>(bufferCount);
+
+		for (int i = 0; i < bufferCount; i++)
+			free.offer(new Buffer(arena.allocate(bufferSize, 64)));
+
+		this.flusher = Thread.ofPlatform()
+				.name("netpcap-writer-" + file.getFileName())
+				.daemon(true)
+				.start(this::flushLoop);
+	}
+
+	/**
+	 * Obtains an empty staging buffer, handling back-pressure.
+	 */
+	private Buffer acquire() {
+		Buffer b = free.poll();
+		if (b != null)
+			return b;
+
+		backPressureEvents.setOpaque(backPressureEvents.getPlain() + 1);
+
+		while (blocking && running && failure == null) {
+			LockSupport.unpark(flusher);
+			LockSupport.parkNanos(PARK_NANOS);
+
+			if ((b = free.poll()) != null)
+				return b;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Returns the average time taken by a gather write of staging buffers.
+	 *
+	 * @return the average flush latency in nanoseconds
+	 */
+	public long averageFlushNanos() {
+		long n = flushes.get();
+
+		return (n == 0) ? 0 : flushNanosTotal.get() / n;
+	}
+
+	/**
+	 * Returns the number of times the capture thread found every staging buffer
+	 * waiting to be written.
+	 *
+	 * @return the back-pressure event count
+	 */
+	public long backPressureEvents() {
+		return backPressureEvents.get();
+	}
+
+	/**
+	 * Returns the number of record bytes appended but not yet written to the
+	 * file.
+	 *
+	 * @return the bytes buffered
+	 */
+	public long bytesBuffered() {
+		return Math.max(0, bytesAppended.get() - bytesWritten.get());
+	}
+
+	/**
+	 * Returns the number of bytes written to the file, excluding file headers.
+	 *
+	 * @return the bytes written
+	 */
+	public long bytesWritten() {
+		return bytesWritten.get();
+	}
+
+	/**
+	 * Flushes all buffered records, stops the flusher thread and closes the file.
+	 *
+	 * @throws IOException if any write failed
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+
+		closed = true;
+		handOff();
+
+		running = false;
+		LockSupport.unpark(flusher);
+
+		boolean interrupted = false;
+		while (flusher.isAlive()) {
+			try {
+				flusher.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+
+		try {
+			channel.close();
+		} finally {
+			arena.close();
+
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+
+		if (failure != null)
+			throw failure;
+	}
+
+	/**
+	 * Returns the number of records dropped under back-pressure, after a write
+	 * failure, or because a record was larger than a staging buffer.
+	 *
+	 * @return the drop count
+	 */
+	public long dropCount() {
+		return drops.get();
+	}
+
+	private void drop() {
+		drops.setOpaque(drops.getPlain() + 1);
+	}
+
+	/**
+	 * Returns the file format.
+	 *
+	 * @return the format
+	 */
+	public CaptureFileFormat format() {
+		return format;
+	}
+
+	/**
+	 * Hands the current staging buffer to the flusher thread, if it holds any
+	 * records. Call periodically, for example on capture timeouts, so records do
+	 * not linger in a partially filled buffer. Does not wait for the write.
+	 */
+	public void flush() {
+		if (!closed)
+			handOff();
+	}
+
+	/**
+	 * Returns the number of gather writes performed.
+	 *
+	 * @return the flush count
+	 */
+	public long flushCount() {
+		return flushes.get();
+	}
+
+	/**
+	 * Flusher thread, gathers all full buffers and writes them in one call.
+	 */
+	private void flushLoop() {
+		final Buffer[] batch = new Buffer[free.capacity()];
+		final ByteBuffer[] views = new ByteBuffer[batch.length];
+
+		while (true) {
+			int n = 0;
+			Buffer b;
+			while (n < batch.length && (b = full.poll()) != null) {
+				batch[n] = b;
+				views[n] = b.view.clear().limit((int) b.limit);
+				n++;
+			}
+
+			if (n == 0) {
+				if (!running && full.size() == 0)
+					break;
+
+				LockSupport.parkNanos(PARK_NANOS);
+				continue;
+			}
+
+			long bytes = 0;
+			for (int i = 0; i < n; i++)
+				bytes += batch[i].limit;
+
+			if (failure == null && writeGather(views, n, bytes))
+				bytesWritten.setOpaque(bytesWritten.getPlain() + bytes);
+
+			for (int i = 0; i < n; i++) {
+				batch[i].limit = 0;
+				free.offer(batch[i]);
+				batch[i] = null;
+			}
+		}
+	}
+
+	/**
+	 * Returns the longest time taken by a gather write of staging buffers.
+	 *
+	 * @return the maximum flush latency in nanoseconds
+	 */
+	public long maxFlushNanos() {
+		return flushNanosMax.get();
+	}
+
+	/**
+	 * Returns the file being written.
+	 *
+	 * @return the path
+	 */
+	public Path path() {
+		return path;
+	}
+
+	/**
+	 * Returns the number of records appended.
+	 *
+	 * @return the record count
+	 */
+	public long recordCount() {
+		return records.get();
+	}
+
+	/**
+	 * Reserves space for a record in the current staging buffer.
+	 *
+	 * @return the offset of the reserved space, or -1 if the record is dropped
+	 */
+	private long reserve(long size) {
+		if (closed)
+			throw new IllegalStateException("writer is closed: " + path);
+
+		if (size > bufferSize || failure != null) {
+			drop();
+			return -1;
+		}
+
+		if (current != null && fill + size > bufferSize)
+			handOff();
+
+		if (current == null && (current = acquire()) == null) {
+			drop();
+			return -1;
+		}
+
+		long offset = fill;
+		fill += size;
+
+		return offset;
+	}
+
+	private void handOff() {
+		if (current == null || fill == 0)
+			return;
+
+		current.limit = fill;
+		bytesAppended.setOpaque(bytesAppended.getPlain() + fill);
+		full.offer(current);
+		LockSupport.unpark(flusher);
+
+		current = null;
+		fill = 0;
+	}
+
+	/**
+	 * Checks if timestamp fractions are in nanoseconds.
+	 *
+	 * @return true for nanoseconds, false for microseconds
+	 */
+	public boolean isNanoTime() {
+		return nanoTime;
+	}
+
+	/**
+	 * Selects whether the capture thread waits for a free staging buffer under
+	 * back-pressure, instead of dropping the record.
+	 *
+	 * @param blocking true to wait, false to drop
+	 * @return this writer for method chaining
+	 */
+	public AsyncCaptureWriter setBlocking(boolean blocking) {
+		this.blocking = blocking;
+		return this;
+	}
+
+	@Override
+	public String toString() {
+		return "AsyncCaptureWriter[%s, %s, records=%d, buffered=%d, written=%d, drops=%d, backPressure=%d]"
+				.formatted(path, format, recordCount(), bytesBuffered(), bytesWritten(), dropCount(),
+						backPressureEvents());
+	}
+
+	/**
+	 * Appends a record. Producer thread only, never blocks unless blocking mode
+	 * is selected.
+	 *
+	 * @param tvSec      timestamp seconds
+	 * @param tvFraction timestamp fraction, in micro or nanoseconds as selected by
+	 *                   {@link #isNanoTime()}
+	 * @param data       the packet data, sized to the capture length
+	 * @param wireLength the original length of the packet
+	 * @return true if the record was buffered, false if it was dropped
+	 */
+	public boolean write(long tvSec, long tvFraction, MemorySegment data, int wireLength) {
+		final long caplen = data.byteSize();
+
+		if (format == CaptureFileFormat.PCAP)
+			return writePcapRecord(tvSec, tvFraction, data, caplen, wireLength);
+		else
+			return writeEnhancedPacket(tvSec, tvFraction, data, caplen, wireLength);
+	}
+
+	private boolean writeEnhancedPacket(long tvSec, long tvFraction, MemorySegment data, long caplen,
+			int wireLength) {
+		final long padded = (caplen + 3) & ~3L;
+		final long length = EPB_OVERHEAD + padded;
+		final long offset = reserve(length);
+		if (offset < 0)
+			return false;
+
+		final long ts = tvSec * (nanoTime ? 1_000_000_000L : 1_000_000L) + tvFraction;
+		final MemorySegment seg = current.segment;
+
+		seg.set(U32, offset, MappedPcapNgReader.BT_EPB);
+		seg.set(U32, offset + 4, (int) length);
+		seg.set(U32, offset + 8, 0);
+		seg.set(U32, offset + 12, (int) (ts >>> 32));
+		seg.set(U32, offset + 16, (int) ts);
+		seg.set(U32, offset + 20, (int) caplen);
+		seg.set(U32, offset + 24, wireLength);
+		MemorySegment.copy(data, 0, seg, offset + 28, caplen);
+		if (padded != caplen)
+			seg.asSlice(offset + 28 + caplen, padded - caplen).fill((byte) 0);
+		seg.set(U32, offset + 28 + padded, (int) length);
+
+		records.setOpaque(records.getPlain() + 1);
+
+		return true;
+	}
+
+	/**
+	 * Writes the file header synchronously, before any records.
+	 */
+	private void writeFileHeader(int linkType, int snaplen) throws IOException {
+		ByteBuffer b = ByteBuffer.allocate(64).order(ByteOrder.nativeOrder());
+
+		if (format == CaptureFileFormat.PCAP) {
+			b.putInt(nanoTime ? PcapFile.MAGIC_NANO : PcapFile.MAGIC_MICRO)
+					.putShort((short) 2)
+					.putShort((short) 4)
+					.putInt(0) // thiszone
+					.putInt(0) // sigfigs
+					.putInt(snaplen)
+					.putInt(linkType);
+
+		} else {
+			b.putInt(MappedPcapNgReader.BT_SHB)
+					.putInt(28)
+					.putInt(MappedPcapNgReader.BYTE_ORDER_MAGIC)
+					.putShort((short) 1)
+					.putShort((short) 0)
+					.putLong(-1) // Section length unspecified
+					.putInt(28);
+
+			int idbLength = nanoTime ? 32 : 20;
+			b.putInt(MappedPcapNgReader.BT_IDB)
+					.putInt(idbLength)
+					.putShort((short) linkType)
+					.putShort((short) 0)
+					.putInt(snaplen);
+
+			if (nanoTime)
+				b.putShort((short) 9) // if_tsresol
+						.putShort((short) 1)
+						.put((byte) 9)
+						.put(new byte[3])
+						.putShort((short) 0) // opt_endofopt
+						.putShort((short) 0);
+
+			b.putInt(idbLength);
+		}
+
+		b.flip();
+		while (b.hasRemaining())
+			channel.write(b);
+	}
+
+	/**
+	 * Flusher thread, writes a batch of buffers completing partial writes.
+	 *
+	 * @return true if written, false if the write failed
+	 */
+	private boolean writeGather(ByteBuffer[] views, int n, long bytes) {
+		final long start = System.nanoTime();
+
+		try {
+			long written = 0;
+			while (written < bytes)
+				written += channel.write(views, 0, n);
+
+		} catch (IOException e) {
+			failure = e;
+			return false;
+		}
+
+		final long elapsed = System.nanoTime() - start;
+
+		flushes.setOpaque(flushes.getPlain() + 1);
+		flushNanosTotal.setOpaque(flushNanosTotal.getPlain() + elapsed);
+		if (elapsed > flushNanosMax.getPlain())
+			flushNanosMax.setOpaque(elapsed);
+
+		return true;
+	}
+
+	private boolean writePcapRecord(long tvSec, long tvFraction, MemorySegment data, long caplen, int wireLength) {
+		final long offset = reserve(PCAP_RECORD_HEADER + caplen);
+		if (offset < 0)
+			return false;
+
+		final MemorySegment seg = current.segment;
+
+		seg.set(U32, offset, (int) tvSec);
+		seg.set(U32, offset + 4, (int) tvFraction);
+		seg.set(U32, offset + 8, (int) caplen);
+		seg.set(U32, offset + 12, wireLength);
+		MemorySegment.copy(data, 0, seg, offset + PCAP_RECORD_HEADER, caplen);
+
+		records.setOpaque(records.getPlain() + 1);
+
+		return true;
+	}
+}
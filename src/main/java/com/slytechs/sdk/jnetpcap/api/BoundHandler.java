@@ -0,0 +1,93 @@
+/*
+ * Copyright 2005-2025 Sly Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.slytechs.sdk.jnetpcap.api;
+
+import com.slytechs.jnet.jnetpcap.api.foreign.NativeUpcall;
+import com.slytechs.sdk.jnetpcap.PcapException;
+
+/**
+ * A packet handler bound once to a {@link NetPcap} handle, which can then be
+ * dispatched repeatedly without any per-call allocation.
+ *
+ * <p>
+ * {@code NetPcap.dispatch(count, handler, user)} creates and installs a new
+ * callback on every call. In event loops which dispatch small counts at a high
+ * rate, that is one allocation per cycle. A bound handler creates its callback
+ * once, at bind time, and each {@link #dispatch(int)} or {@link #loop(int)}
+ * only installs that same callback before calling into libpcap.
+ * </p>
+ *
+ * <pre>{@code
+ * BoundHandler bound = pcap.bind(packet -> process(packet));
+ *
+ * while (running) {
+ * 	bound.dispatch(64);
+ * 	// other event loop work
+ * }
+ * }</pre>
+ *
+ * <p>
+ * A bound handler uses the dispatch mode of its NetPcap handle in effect at the
+ * time of each call and, like the handle itself, is single-threaded.
+ * </p>
+ *
+ * @author Mark Bednarczyk [mark@slytechs.com]
+ * @author Sly Technologies Inc.
+ * @see NetPcap#bind(PacketHandler.OfPacket, Object)
+ * @see NetPcap#bind(PacketHandler.OfPacketConsumer)
+ */
+public final class BoundHandler {
+
+	private final NetPcap pcap;
+	private final NativeUpcall upcall;
+
+	BoundHandler(NetPcap pcap, NativeUpcall upcall) {
+		this.pcap = pcap;
+		this.upcall = upcall;
+	}
+
+	/**
+	 * Processes packets using the bound handler.
+	 *
+	 * @param count maximum packets to process (-1 for unlimited)
+	 * @return number of packets processed, 0 on timeout, -1 on error, -2 on break
+	 * @throws PcapException if capture fails
+	 * @see NetPcap#dispatch(int, PacketHandler.OfPacket, Object)
+	 */
+	public int dispatch(int count) throws PcapException {
+		return pcap.dispatchBound(count, upcall);
+	}
+
+	/**
+	 * Processes packets in a loop using the bound handler.
+	 *
+	 * @param count packets to process (-1 for infinite)
+	 * @return number of packets processed, -1 on error, -2 on break
+	 * @see NetPcap#loop(int, PacketHandler.OfPacket, Object)
+	 */
+	public int loop(int count) {
+		return pcap.loopBound(count, upcall);
+	}
+
+	/**
+	 * Returns the NetPcap handle this handler is bound to.
+	 *
+	 * @return the pcap handle
+	 */
+	public NetPcap pcap() {
+		return pcap;
+	}
+}
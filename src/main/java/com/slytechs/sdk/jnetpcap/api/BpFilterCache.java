@@ -0,0 +1,261 @@
+/*
+ * Copyright 2005-2025 Sly Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.slytechs.sdk.jnetpcap.api;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import com.slytechs.sdk.jnetpcap.BpFilter;
+import com.slytechs.sdk.jnetpcap.PcapException;
+
+/**
+ * A bounded LRU cache of compiled BPF programs, shared between handles.
+ *
+ * <p>
+ * A compiled program depends on the filter expression, the optimize flag, the
+ * netmask, and the link type and snapshot length of the handle it was compiled
+ * on. Those form the cache key, so a program is only reused by handles it is
+ * valid for. On a hit, applying a filter costs a {@code pcap_setfilter} call
+ * instead of a {@code pcap_compile} and {@code pcap_freecode}.
+ * </p>
+ *
+ * <p>
+ * The cache is thread safe. Compilation runs under the cache lock, which also
+ * serializes {@code pcap_compile} calls for libpcap versions whose filter
+ * compiler is not reentrant. Programs evicted or invalidated while another
+ * thread is applying them are freed once that thread is done.
+ * </p>
+ *
+ * <pre>{@code
+ * BpFilterCache cache = BpFilterCache.shared();
+ * pcap.setFilterCache(cache);
+ * pcap.setFilter("tcp port 80"); // Compiled once per link type and snaplen
+ * }</pre>
+ *
+ * @author Mark Bednarczyk [mark@slytechs.com]
+ * @author Sly Technologies Inc.
+ * @see NetPcap#setFilterCache(BpFilterCache)
+ */
+public final class BpFilterCache implements AutoCloseable {
+
+	/** Default maximum number of cached programs. */
+	public static final int DEFAULT_CAPACITY = 256;
+
+	/** The netmask used when none is known, {@code PCAP_NETMASK_UNKNOWN}. */
+	public static final int NETMASK_UNKNOWN = 0xFFFFFFFF;
+
+	private static final BpFilterCache SHARED = new BpFilterCache(DEFAULT_CAPACITY);
+
+	private record Key(String expression, boolean optimize, int netmask, int datalink, int snaplen) {}
+
+	private static final class Entry {
+		final BpFilter filter;
+		int users;
+		boolean removed;
+
+		Entry(BpFilter filter) {
+			this.filter = filter;
+		}
+	}
+
+	/**
+	 * Returns the process wide cache, of {@value #DEFAULT_CAPACITY} programs.
+	 *
+	 * @return the shared cache
+	 */
+	public static BpFilterCache shared() {
+		return SHARED;
+	}
+
+	private final int capacity;
+	private final LinkedHashMap<Key, Entry> entries;
+
+	/* Guarded by this */
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * Creates a cache.
+	 *
+	 * @param capacity the maximum number of cached programs
+	 */
+	public BpFilterCache(int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("capacity must be positive: " + capacity);
+
+		this.capacity = capacity;
+		this.entries = new LinkedHashMap<>(16, 0.75f, true);
+	}
+
+	/**
+	 * Sets a filter on a handle, compiling it only if no program for the same
+	 * key is cached.
+	 *
+	 * @param pcap       the handle
+	 * @param expression the filter expression
+	 * @param optimize   true to optimize the filter
+	 * @param netmask    the netmask of the capture network, or
+	 *                   {@link #NETMASK_UNKNOWN}
+	 * @throws PcapException if compilation fails or the filter can not be set
+	 */
+	public void apply(NetPcap pcap, String expression, boolean optimize, int netmask) throws PcapException {
+		Objects.requireNonNull(expression, "expression");
+
+		Key key = new Key(expression, optimize, netmask, pcap.datalink().getAsInt(), pcap.snapshot());
+		Entry entry = acquire(pcap, key);
+
+		try {
+			pcap.setFilter(entry.filter);
+		} finally {
+			release(entry);
+		}
+	}
+
+	private synchronized Entry acquire(NetPcap pcap, Key key) throws PcapException {
+		Entry entry = entries.get(key);
+
+		if (entry != null) {
+			hits++;
+		} else {
+			misses++;
+			entry = new Entry(pcap.compile(key.expression(), key.optimize(), key.netmask()));
+			entries.put(key, entry);
+			evictEldest();
+		}
+
+		entry.users++;
+
+		return entry;
+	}
+
+	/**
+	 * Returns the maximum number of cached programs.
+	 *
+	 * @return the capacity
+	 */
+	public int capacity() {
+		return capacity;
+	}
+
+	/**
+	 * Frees all cached programs. The cache remains usable.
+	 */
+	@Override
+	public void close() {
+		invalidateAll();
+	}
+
+	/**
+	 * Returns the number of programs evicted to stay within capacity.
+	 *
+	 * @return the eviction count
+	 */
+	public synchronized long evictionCount() {
+		return evictions;
+	}
+
+	private void evictEldest() {
+		Iterator<Entry> it = entries.values().iterator();
+		while (entries.size() > capacity && it.hasNext()) {
+			Entry eldest = it.next();
+			it.remove();
+			remove(eldest);
+			evictions++;
+		}
+	}
+
+	/**
+	 * Returns the number of lookups which found a cached program.
+	 *
+	 * @return the hit count
+	 */
+	public synchronized long hitCount() {
+		return hits;
+	}
+
+	/**
+	 * Removes and frees all cached programs of a filter expression, for every
+	 * optimize flag, netmask, link type and snaplen.
+	 *
+	 * @param expression the filter expression
+	 * @return the number of programs removed
+	 */
+	public synchronized int invalidate(String expression) {
+		int count = 0;
+
+		Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Key, Entry> e = it.next();
+			if (e.getKey().expression().equals(expression)) {
+				it.remove();
+				remove(e.getValue());
+				count++;
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * Removes and frees all cached programs.
+	 */
+	public synchronized void invalidateAll() {
+		entries.values().forEach(this::remove);
+		entries.clear();
+	}
+
+	/**
+	 * Returns the number of lookups which compiled a new program.
+	 *
+	 * @return the miss count
+	 */
+	public synchronized long missCount() {
+		return misses;
+	}
+
+	private synchronized void release(Entry entry) {
+		if (--entry.users == 0 && entry.removed)
+			entry.filter.close();
+	}
+
+	/**
+	 * Marks an entry removed from the map, freeing it unless in use.
+	 */
+	private void remove(Entry entry) {
+		entry.removed = true;
+
+		if (entry.users == 0)
+			entry.filter.close();
+	}
+
+	/**
+	 * Returns the number of cached programs.
+	 *
+	 * @return the size
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "BpFilterCache[size=%d, capacity=%d, hits=%d, misses=%d, evictions=%d]"
+				.formatted(entries.size(), capacity, hits, misses, evictions);
+	}
+}
@@ -0,0 +1,608 @@
+/*
+ * Copyright 2005-2025 Sly Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.slytechs.sdk.jnetpcap.api;
+
+import static com.slytechs.sdk.jnetpcap.api.BpfProgram.*;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Compiles a validated BPF program to a hidden class implementing
+ * {@link BpfExecutable}, with one straight-line method whose branches mirror
+ * the program's jumps.
+ *
+ * <p>
+ * BPF registers and scratch memory become int locals, packet loads become
+ * big endian {@code MemorySegment} reads preceded by an explicit check against
+ * the capture length, and unsigned compares flip the sign bit of both operands.
+ * The class file targets version 49 so no stack map frames are needed; BPF
+ * programs only jump forward, so there are no loops for the verifier to merge.
+ * </p>
+ *
+ * <p>
+ * HotSpot does not JIT compile methods over 8000 bytes of bytecode, so larger
+ * programs are not compiled and run on the {@link BpfInterpreter} instead.
+ * </p>
+ *
+ * @author Mark Bednarczyk [mark@slytechs.com]
+ * @author Sly Technologies Inc.
+ */
+final class BpfCompiler {
+
+	/** HotSpot's {@code HugeMethodLimit}, above which methods stay interpreted. */
+	private static final int HUGE_METHOD_LIMIT = 8000;
+
+	private static final String CLASS_NAME = "com/slytechs/sdk/jnetpcap/api/BpfCompiledProgram";
+	private static final String EXECUTABLE = "com/slytechs/sdk/jnetpcap/api/BpfExecutable";
+	private static final String INTERPRETER = "com/slytechs/sdk/jnetpcap/api/BpfInterpreter";
+	private static final String SEGMENT = "java/lang/foreign/MemorySegment";
+	private static final String VALUE_LAYOUT = "java/lang/foreign/ValueLayout";
+	private static final String OF_INT = "Ljava/lang/foreign/ValueLayout$OfInt;";
+	private static final String OF_SHORT = "Ljava/lang/foreign/ValueLayout$OfShort;";
+	private static final String OF_BYTE = "Ljava/lang/foreign/ValueLayout$OfByte;";
+
+	/* Local variable slots of run(MemorySegment, long, int, int) */
+	private static final int BUFFER = 1;
+	private static final int OFFSET = 2;
+	private static final int CAPLEN = 4;
+	private static final int WIRELEN = 5;
+	private static final int REG_A = 6;
+	private static final int REG_X = 7;
+	private static final int MEM_BASE = 8;
+	private static final int INDEX = MEM_BASE + MEMWORDS;
+	private static final int MAX_LOCALS = INDEX + 2;
+	private static final int MAX_STACK = 8;
+
+	/* Opcodes */
+	private static final int ICONST_0 = 0x03;
+	private static final int BIPUSH = 0x10;
+	private static final int SIPUSH = 0x11;
+	private static final int LDC_W = 0x13;
+	private static final int LDC2_W = 0x14;
+	private static final int ILOAD = 0x15;
+	private static final int LLOAD = 0x16;
+	private static final int ALOAD = 0x19;
+	private static final int ALOAD_0 = 0x2A;
+	private static final int ISTORE = 0x36;
+	private static final int LSTORE = 0x37;
+	private static final int IADD = 0x60;
+	private static final int LADD = 0x61;
+	private static final int ISUB = 0x64;
+	private static final int IMUL = 0x68;
+	private static final int INEG = 0x74;
+	private static final int ISHL = 0x78;
+	private static final int IUSHR = 0x7C;
+	private static final int IAND = 0x7E;
+	private static final int LAND = 0x7F;
+	private static final int IOR = 0x80;
+	private static final int IXOR = 0x82;
+	private static final int I2L = 0x85;
+	private static final int LCMP = 0x94;
+	private static final int IFEQ = 0x99;
+	private static final int IFNE = 0x9A;
+	private static final int IFGT = 0x9D;
+	private static final int IF_ICMPEQ = 0x9F;
+	private static final int IF_ICMPNE = 0xA0;
+	private static final int IF_ICMPLT = 0xA1;
+	private static final int IF_ICMPGE = 0xA2;
+	private static final int IF_ICMPGT = 0xA3;
+	private static final int IF_ICMPLE = 0xA4;
+	private static final int GOTO = 0xA7;
+	private static final int IRETURN = 0xAC;
+	private static final int RETURN = 0xB1;
+	private static final int GETSTATIC = 0xB2;
+	private static final int INVOKESPECIAL = 0xB7;
+	private static final int INVOKESTATIC = 0xB8;
+	private static final int INVOKEINTERFACE = 0xB9;
+
+	/**
+	 * Compiles a program.
+	 *
+	 * @param program the validated program
+	 * @return the compiled program, or null if it is too large to compile
+	 */
+	static BpfExecutable compile(BpfProgram program) {
+		byte[] classFile = new BpfCompiler(program).emitClass();
+		if (classFile == null)
+			return null;
+
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(classFile, true);
+
+			return (BpfExecutable) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class))
+					.invoke();
+		} catch (Throwable e) {
+			throw new IllegalStateException("failed to define compiled BPF program", e);
+		}
+	}
+
+	private final BpfProgram program;
+	private final ConstantPool pool = new ConstantPool();
+	private final Bytes code = new Bytes();
+
+	/* Bytecode offset of each BPF instruction, and of the reject stub at [n] */
+	private final int[] starts;
+
+	/* Pending forward branches as {opcode offset, target instruction} */
+	private int[][] fixups = new int[64][];
+	private int fixupCount;
+
+	private BpfCompiler(BpfProgram program) {
+		this.program = program;
+		this.starts = new int[program.code.length + 1];
+	}
+
+	private void branch(int opcode, int target) {
+		if (fixupCount == fixups.length)
+			fixups = Arrays.copyOf(fixups, fixupCount * 2);
+
+		fixups[fixupCount++] = new int[] {
+				code.size(),
+				target
+		};
+		code.u1(opcode).u2(0);
+	}
+
+	private void emitAlu(int c, int k) {
+		final int op = c & 0xF0;
+		final boolean srcX = (c & X) != 0;
+
+		if (op == NEG) {
+			code.u1(ILOAD).u1(REG_A).u1(INEG).u1(ISTORE).u1(REG_A);
+			return;
+		}
+
+		if (srcX && (op == DIV || op == MOD)) {
+			code.u1(ILOAD).u1(REG_X);
+			branch(IFEQ, reject());
+		}
+
+		code.u1(ILOAD).u1(REG_A);
+		emitOperand(srcX, k);
+
+		switch (op) {
+		case ADD -> code.u1(IADD);
+		case SUB -> code.u1(ISUB);
+		case MUL -> code.u1(IMUL);
+		case OR -> code.u1(IOR);
+		case AND -> code.u1(IAND);
+		case XOR -> code.u1(IXOR);
+		case DIV -> invokeStatic("java/lang/Integer", "divideUnsigned", "(II)I");
+		case MOD -> invokeStatic("java/lang/Integer", "remainderUnsigned", "(II)I");
+		case LSH -> {
+			if (srcX)
+				invokeStatic(INTERPRETER, "lsh", "(II)I");
+			else
+				code.u1(ISHL);
+		}
+		case RSH -> {
+			if (srcX)
+				invokeStatic(INTERPRETER, "rsh", "(II)I");
+			else
+				code.u1(IUSHR);
+		}
+		default -> throw new AssertionError();
+		}
+
+		code.u1(ISTORE).u1(REG_A);
+	}
+
+	/**
+	 * Assembles the class file, or returns null if the method is too large.
+	 */
+	private byte[] emitClass() {
+		final byte[] init = emitInit();
+		final byte[] run = emitRun();
+		if (run.length > HUGE_METHOD_LIMIT)
+			return null;
+
+		final int thisClass = pool.classRef(CLASS_NAME);
+		final int superClass = pool.classRef("java/lang/Object");
+		final int iface = pool.classRef(EXECUTABLE);
+		final int codeName = pool.utf8("Code");
+		final int initName = pool.utf8("<init>");
+		final int initType = pool.utf8("()V");
+		final int runName = pool.utf8("run");
+		final int runType = pool.utf8("(L" + SEGMENT + ";JII)I");
+
+		Bytes out = new Bytes();
+		out.u4(0xCAFEBABE).u2(0).u2(49);
+		out.u2(pool.count()).bytes(pool.bytes.toArray());
+		out.u2(0x0030); // ACC_FINAL | ACC_SUPER
+		out.u2(thisClass).u2(superClass);
+		out.u2(1).u2(iface);
+		out.u2(0); // fields
+		out.u2(2); // methods
+		emitMethod(out, initName, initType, codeName, 1, 1, init);
+		emitMethod(out, runName, runType, codeName, MAX_STACK, MAX_LOCALS, run);
+		out.u2(0); // attributes
+
+		return out.toArray();
+	}
+
+	private byte[] emitInit() {
+		Bytes init = new Bytes();
+		init.u1(ALOAD_0)
+				.u1(INVOKESPECIAL).u2(pool.member(10, "java/lang/Object", "<init>", "()V"))
+				.u1(RETURN);
+
+		return init.toArray();
+	}
+
+	private void emitInstruction(int pc) {
+		final int c = program.code[pc];
+		final int k = program.k[pc];
+
+		switch (c & 0x07) {
+		case LD, LDX -> {
+			final int reg = ((c & 0x07) == LD) ? REG_A : REG_X;
+
+			switch (c & 0xE0) {
+			case IMM -> push(k);
+			case LEN -> code.u1(ILOAD).u1(WIRELEN);
+			case MEM -> code.u1(ILOAD).u1(MEM_BASE + k);
+			case ABS -> emitLoad(c & 0x18, k, false);
+			case IND -> emitLoad(c & 0x18, k, true);
+			default -> {
+				emitLoad(B, k, false);
+				push(0xF);
+				code.u1(IAND);
+				push(2);
+				code.u1(ISHL);
+			}
+			}
+
+			code.u1(ISTORE).u1(reg);
+		}
+		case ST -> code.u1(ILOAD).u1(REG_A).u1(ISTORE).u1(MEM_BASE + k);
+		case STX -> code.u1(ILOAD).u1(REG_X).u1(ISTORE).u1(MEM_BASE + k);
+		case ALU -> emitAlu(c, k);
+		case JMP -> emitJump(pc, c, k);
+		case RET -> {
+			switch (c & 0x18) {
+			case A -> code.u1(ILOAD).u1(REG_A);
+			case X -> code.u1(ILOAD).u1(REG_X);
+			default -> push(k);
+			}
+
+			code.u1(IRETURN);
+		}
+		default -> {
+			if (c == (MISC | TAX))
+				code.u1(ILOAD).u1(REG_A).u1(ISTORE).u1(REG_X);
+			else
+				code.u1(ILOAD).u1(REG_X).u1(ISTORE).u1(REG_A);
+		}
+		}
+	}
+
+	private void emitJump(int pc, int c, int k) {
+		final int next = pc + 1;
+		final int op = c & 0xF0;
+
+		if (op == JA) {
+			final int target = next + k;
+			if (target != next)
+				branch(GOTO, target);
+
+			return;
+		}
+
+		final int whenTrue = next + program.jt[pc];
+		final int whenFalse = next + program.jf[pc];
+
+		if (whenTrue == whenFalse) {
+			if (whenTrue != next)
+				branch(GOTO, whenTrue);
+
+			return;
+		}
+
+		final boolean srcX = (c & X) != 0;
+		final int taken;
+		final int notTaken;
+
+		switch (op) {
+		case JEQ -> {
+			code.u1(ILOAD).u1(REG_A);
+			emitOperand(srcX, k);
+			taken = IF_ICMPEQ;
+			notTaken = IF_ICMPNE;
+		}
+		case JGT, JGE -> {
+			code.u1(ILOAD).u1(REG_A);
+			push(Integer.MIN_VALUE);
+			code.u1(IXOR);
+			if (srcX) {
+				code.u1(ILOAD).u1(REG_X);
+				push(Integer.MIN_VALUE);
+				code.u1(IXOR);
+			} else {
+				push(k ^ Integer.MIN_VALUE);
+			}
+
+			taken = (op == JGT) ? IF_ICMPGT : IF_ICMPGE;
+			notTaken = (op == JGT) ? IF_ICMPLE : IF_ICMPLT;
+		}
+		default -> {
+			code.u1(ILOAD).u1(REG_A);
+			emitOperand(srcX, k);
+			code.u1(IAND);
+			taken = IFNE;
+			notTaken = IFEQ;
+		}
+		}
+
+		if (whenFalse == next) {
+			branch(taken, whenTrue);
+		} else if (whenTrue == next) {
+			branch(notTaken, whenFalse);
+		} else {
+			branch(taken, whenTrue);
+			branch(GOTO, whenFalse);
+		}
+	}
+
+	/**
+	 * Pushes an unsigned packet load at a constant offset, or at X plus a
+	 * constant offset, rejecting the packet if it would read past the capture
+	 * length.
+	 */
+	private void emitLoad(int size, int k, boolean indexed) {
+		final int width = switch (size) {
+		case W -> 4;
+		case H -> 2;
+		default -> 1;
+		};
+		final long end = Integer.toUnsignedLong(k) + width;
+
+		if (indexed) {
+			code.u1(ILOAD).u1(REG_X).u1(I2L);
+			pushLong(0xFFFFFFFFL);
+			code.u1(LAND).u1(LSTORE).u1(INDEX);
+			code.u1(LLOAD).u1(INDEX);
+			pushLong(end);
+			code.u1(LADD).u1(ILOAD).u1(CAPLEN).u1(I2L).u1(LCMP);
+			branch(IFGT, reject());
+		} else if (end > Integer.MAX_VALUE) {
+			branch(GOTO, reject());
+			return;
+		} else {
+			code.u1(ILOAD).u1(CAPLEN);
+			push((int) end);
+			branch(IF_ICMPLT, reject());
+		}
+
+		code.u1(ALOAD).u1(BUFFER);
+		switch (size) {
+		case W -> code.u1(GETSTATIC).u2(pool.member(9, INTERPRETER, "BE_INT", OF_INT));
+		case H -> code.u1(GETSTATIC).u2(pool.member(9, INTERPRETER, "BE_SHORT", OF_SHORT));
+		default -> code.u1(GETSTATIC).u2(pool.member(9, VALUE_LAYOUT, "JAVA_BYTE", OF_BYTE));
+		}
+
+		code.u1(LLOAD).u1(OFFSET);
+		if (indexed)
+			code.u1(LLOAD).u1(INDEX).u1(LADD);
+		pushLong(Integer.toUnsignedLong(k));
+		code.u1(LADD);
+
+		switch (size) {
+		case W -> invokeGet(OF_INT, "I");
+		case H -> {
+			invokeGet(OF_SHORT, "S");
+			invokeStatic("java/lang/Short", "toUnsignedInt", "(S)I");
+		}
+		default -> {
+			invokeGet(OF_BYTE, "B");
+			invokeStatic("java/lang/Byte", "toUnsignedInt", "(B)I");
+		}
+		}
+	}
+
+	static void emitMethod(Bytes out, int name, int type, int codeName, int maxStack, int maxLocals,
+			byte[] body) {
+		out.u2(0x0001); // ACC_PUBLIC
+		out.u2(name).u2(type);
+		out.u2(1);
+		out.u2(codeName).u4(12 + body.length);
+		out.u2(maxStack).u2(maxLocals);
+		out.u4(body.length).bytes(body);
+		out.u2(0); // exception table
+		out.u2(0); // attributes
+	}
+
+	private void emitOperand(boolean srcX, int k) {
+		if (srcX)
+			code.u1(ILOAD).u1(REG_X);
+		else
+			push(k);
+	}
+
+	/**
+	 * Emits the run method, or returns a body over the size limit if it does not
+	 * fit.
+	 */
+	private byte[] emitRun() {
+		/* Locals must be definitely assigned for the verifier */
+		for (int slot = REG_A; slot < INDEX; slot++)
+			code.u1(ICONST_0).u1(ISTORE).u1(slot);
+
+		final int n = program.code.length;
+		for (int pc = 0; pc < n; pc++) {
+			starts[pc] = code.size();
+			emitInstruction(pc);
+
+			if (code.size() > HUGE_METHOD_LIMIT)
+				return code.toArray();
+		}
+
+		starts[n] = code.size();
+		code.u1(ICONST_0).u1(IRETURN);
+
+		for (int i = 0; i < fixupCount; i++) {
+			final int at = fixups[i][0];
+			final int offset = starts[fixups[i][1]] - at;
+
+			code.set2(at + 1, offset);
+		}
+
+		return code.toArray();
+	}
+
+	private void invokeGet(String layout, String result) {
+		code.u1(INVOKEINTERFACE)
+				.u2(pool.member(11, SEGMENT, "get", "(" + layout + "J)" + result))
+				.u1(4)
+				.u1(0);
+	}
+
+	private void invokeStatic(String owner, String name, String descriptor) {
+		code.u1(INVOKESTATIC).u2(pool.member(10, owner, name, descriptor));
+	}
+
+	private void push(int value) {
+		if (value >= -1 && value <= 5)
+			code.u1(ICONST_0 + value);
+		else if (value == (byte) value)
+			code.u1(BIPUSH).u1(value);
+		else if (value == (short) value)
+			code.u1(SIPUSH).u2(value);
+		else
+			code.u1(LDC_W).u2(pool.integer(value));
+	}
+
+	private void pushLong(long value) {
+		code.u1(LDC2_W).u2(pool.longValue(value));
+	}
+
+	private int reject() {
+		return program.code.length;
+	}
+
+	/**
+	 * A growable big endian byte buffer.
+	 */
+	static final class Bytes {
+		private byte[] data = new byte[256];
+		private int size;
+
+		Bytes bytes(byte[] b) {
+			ensure(b.length);
+			System.arraycopy(b, 0, data, size, b.length);
+			size += b.length;
+
+			return this;
+		}
+
+		private void ensure(int n) {
+			if (size + n > data.length)
+				data = Arrays.copyOf(data, Math.max(data.length * 2, size + n));
+		}
+
+		void set2(int at, int value) {
+			data[at] = (byte) (value >>> 8);
+			data[at + 1] = (byte) value;
+		}
+
+		int size() {
+			return size;
+		}
+
+		byte[] toArray() {
+			return Arrays.copyOf(data, size);
+		}
+
+		Bytes u1(int value) {
+			ensure(1);
+			data[size++] = (byte) value;
+
+			return this;
+		}
+
+		Bytes u2(int value) {
+			return u1(value >>> 8).u1(value);
+		}
+
+		Bytes u4(int value) {
+			return u2(value >>> 16).u2(value);
+		}
+	}
+
+	/**
+	 * The class file constant pool, with entries deduplicated by content.
+	 */
+	static final class ConstantPool {
+		final Bytes bytes = new Bytes();
+		private final Map<String, Integer> indexes = new HashMap<>();
+		private int next = 1;
+
+		int classRef(String name) {
+			final int utf8 = utf8(name);
+
+			return entry("C" + name, 1, b -> b.u1(7).u2(utf8));
+		}
+
+		int count() {
+			return next;
+		}
+
+		private int entry(String key, int slots, Consumer<Bytes> writer) {
+			Integer index = indexes.get(key);
+			if (index != null)
+				return index;
+
+			writer.accept(bytes);
+
+			final int assigned = next;
+			next += slots;
+			indexes.put(key, assigned);
+
+			return assigned;
+		}
+
+		int integer(int value) {
+			return entry("I" + value, 1, b -> b.u1(3).u4(value));
+		}
+
+		int longValue(long value) {
+			return entry("J" + value, 2, b -> b.u1(5).u4((int) (value >>> 32)).u4((int) value));
+		}
+
+		/**
+		 * Adds a field (tag 9), method (10) or interface method (11) reference.
+		 */
+		int member(int tag, String owner, String name, String descriptor) {
+			final int ownerIndex = classRef(owner);
+			final int nameIndex = utf8(name);
+			final int typeIndex = utf8(descriptor);
+			final int nameAndType = entry("N" + name + ":" + descriptor, 1, b -> b.u1(12).u2(nameIndex).u2(typeIndex));
+
+			return entry(tag + owner + "." + name + ":" + descriptor, 1, b -> b.u1(tag).u2(ownerIndex).u2(nameAndType));
+		}
+
+		int utf8(String value) {
+			final byte[] utf = value.getBytes(StandardCharsets.UTF_8);
+
+			return entry("U" + value, 1, b -> b.u1(1).u2(utf.length).bytes(utf));
+		}
+	}
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2005-2025 Sly Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.slytechs.sdk.jnetpcap.api;
+
+import java.lang.foreign.MemorySegment;
+
+/**
+ * A BPF program ready to run on packets in the JVM, either interpreted or
+ * compiled to bytecode.
+ *
+ * <p>
+ * Implementations are stateless and may be shared between threads.
+ * </p>
+ *
+ * @author Mark Bednarczyk [mark@slytechs.com]
+ * @author Sly Technologies Inc.
+ * @see BpfProgram#interpreter()
+ * @see BpfProgram#compile()
+ */
+@FunctionalInterface
+public interface BpfExecutable {
+
+	/**
+	 * Runs the program on a packet whose data lies within a larger buffer.
+	 *
+	 * @param buffer        the buffer holding the packet data
+	 * @param offset        the offset of the packet data within the buffer
+	 * @param captureLength the number of packet bytes available
+	 * @param wireLength    the original length of the packet
+	 * @return the number of bytes to accept, 0 to reject the packet
+	 */
+	int run(MemorySegment buffer, long offset, int captureLength, int wireLength);
+
+	/**
+	 * Runs the program on a packet.
+	 *
+	 * @param packet     the packet data, sized to the capture length
+	 * @param wireLength the original length of the packet
+	 * @return the number of bytes to accept, 0 to reject the packet
+	 */
+	default int run(MemorySegment packet, int wireLength) {
+		return run(packet, 0, (int) packet.byteSize(), wireLength);
+	}
+
+	/**
+	 * Checks if the program accepts an untruncated packet.
+	 *
+	 * @param packet the packet data
+	 * @return true if the packet is accepted
+	 */
+	default boolean accepts(MemorySegment packet) {
+		return run(packet, (int) packet.byteSize()) != 0;
+	}
+}
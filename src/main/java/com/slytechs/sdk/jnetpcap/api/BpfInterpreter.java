@@ -0,0 +1,233 @@
+/*
+ * Copyright 2005-2025 Sly Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.slytechs.sdk.jnetpcap.api;
+
+import static com.slytechs.sdk.jnetpcap.api.BpfProgram.*;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Interprets a validated BPF program, with the semantics of libpcap's
+ * {@code bpf_filter}. Registers and scratch memory are unsigned 32-bit words,
+ * packet loads are big endian, and a load past the capture length or a
+ * division by a zero X register rejects the packet.
+ *
+ * <p>
+ * Scratch memory is reused between runs, one array per thread, so an
+ * interpreter stays safe to share while running without allocation. Programs
+ * which never touch scratch memory do not use it at all.
+ * </p>
+ *
+ * @author Mark Bednarczyk [mark@slytechs.com]
+ * @author Sly Technologies Inc.
+ */
+final class BpfInterpreter implements BpfExecutable {
+
+	static final ValueLayout.OfInt BE_INT = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+	static final ValueLayout.OfShort BE_SHORT = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+
+	private final int[] code;
+	private final int[] jt;
+	private final int[] jf;
+	private final int[] k;
+
+	/** Number of scratch words the program uses, cleared before each run */
+	private final int memWords;
+	private final ThreadLocal<int[]> scratch;
+
+	BpfInterpreter(BpfProgram program) {
+		this.code = program.code;
+		this.jt = program.jt;
+		this.jf = program.jf;
+		this.k = program.k;
+		this.memWords = memWords(program);
+		this.scratch = (memWords == 0) ? null : ThreadLocal.withInitial(() -> new int[MEMWORDS]);
+	}
+
+	/**
+	 * Returns one past the highest scratch word a program loads or stores.
+	 */
+	private static int memWords(BpfProgram program) {
+		int words = 0;
+
+		for (int pc = 0; pc < program.code.length; pc++) {
+			final int c = program.code[pc];
+			final int cls = c & 0x07;
+			final boolean uses = (cls == ST || cls == STX)
+					|| ((cls == LD || cls == LDX) && (c & 0xE0) == MEM);
+
+			if (uses)
+				words = Math.max(words, program.k[pc] + 1);
+		}
+
+		return words;
+	}
+
+	private static int load(MemorySegment buffer, long offset, int captureLength, int size, long index) {
+		if (index + size > captureLength)
+			throw Reject.INSTANCE;
+
+		final long at = offset + index;
+
+		return switch (size) {
+		case 4 -> buffer.get(BE_INT, at);
+		case 2 -> Short.toUnsignedInt(buffer.get(BE_SHORT, at));
+		default -> Byte.toUnsignedInt(buffer.get(ValueLayout.JAVA_BYTE, at));
+		};
+	}
+
+	/**
+	 * Shifts left by an unsigned count, giving 0 for counts of 32 or more as
+	 * libpcap does, rather than masking the count like Java.
+	 */
+	static int lsh(int a, int count) {
+		return ((count >>> 5) == 0) ? a << count : 0;
+	}
+
+	/**
+	 * Shifts right by an unsigned count, giving 0 for counts of 32 or more.
+	 */
+	static int rsh(int a, int count) {
+		return ((count >>> 5) == 0) ? a >>> count : 0;
+	}
+
+	@Override
+	public int run(MemorySegment buffer, long offset, int captureLength, int wireLength) {
+		try {
+			return execute(buffer, offset, captureLength, wireLength);
+		} catch (Reject e) {
+			return 0;
+		}
+	}
+
+	private int execute(MemorySegment buffer, long offset, int captureLength, int wireLength) {
+		final int[] mem = (scratch == null) ? null : scratch.get();
+		if (mem != null)
+			Arrays.fill(mem, 0, memWords, 0);
+
+		int a = 0;
+		int x = 0;
+		int pc = 0;
+
+		while (true) {
+			final int c = code[pc];
+			final int kk = k[pc];
+
+			switch (c & 0x07) {
+			case LD -> {
+				a = switch (c & 0xE0) {
+				case IMM -> kk;
+				case LEN -> wireLength;
+				case MEM -> mem[kk];
+				case ABS -> load(buffer, offset, captureLength, size(c), Integer.toUnsignedLong(kk));
+				default -> load(buffer, offset, captureLength, size(c),
+						Integer.toUnsignedLong(x) + Integer.toUnsignedLong(kk));
+				};
+			}
+			case LDX -> {
+				x = switch (c & 0xE0) {
+				case IMM -> kk;
+				case LEN -> wireLength;
+				case MEM -> mem[kk];
+				default -> (load(buffer, offset, captureLength, 1, Integer.toUnsignedLong(kk)) & 0xF) << 2;
+				};
+			}
+			case ST -> mem[kk] = a;
+			case STX -> mem[kk] = x;
+			case ALU -> {
+				final int operand = ((c & X) != 0) ? x : kk;
+				if ((c & 0xF0) == DIV || (c & 0xF0) == MOD) {
+					if (operand == 0)
+						return 0;
+				}
+
+				a = switch (c & 0xF0) {
+				case ADD -> a + operand;
+				case SUB -> a - operand;
+				case MUL -> a * operand;
+				case DIV -> Integer.divideUnsigned(a, operand);
+				case MOD -> Integer.remainderUnsigned(a, operand);
+				case OR -> a | operand;
+				case AND -> a & operand;
+				case XOR -> a ^ operand;
+				case LSH -> lsh(a, operand);
+				case RSH -> rsh(a, operand);
+				default -> -a;
+				};
+			}
+			case JMP -> {
+				final int operand = ((c & X) != 0) ? x : kk;
+				final boolean taken = switch (c & 0xF0) {
+				case JA -> {
+					pc += kk;
+					yield false;
+				}
+				case JEQ -> a == operand;
+				case JGT -> Integer.compareUnsigned(a, operand) > 0;
+				case JGE -> Integer.compareUnsigned(a, operand) >= 0;
+				default -> (a & operand) != 0;
+				};
+
+				if ((c & 0xF0) != JA)
+					pc += taken ? jt[pc] : jf[pc];
+			}
+			case RET -> {
+				return switch (c & 0x18) {
+				case A -> a;
+				case X -> x;
+				default -> kk;
+				};
+			}
+			default -> {
+				if (c == (MISC | TAX))
+					x = a;
+				else
+					a = x;
+			}
+			}
+
+			pc++;
+		}
+	}
+
+	private static int size(int code) {
+		return switch (code & 0x18) {
+		case W -> 4;
+		case H -> 2;
+		default -> 1;
+		};
+	}
+
+	@Override
+	public String toString() {
+		return "BpfInterpreter[instructions=" + code.length + "]";
+	}
+
+	/**
+	 * Unwinds to {@link #run} on an out of range packet load.
+	 */
+	private static final class Reject extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		static final Reject INSTANCE = new Reject();
+
+		private Reject() {
+			super(null, null, false, false);
+		}
+	}
+}
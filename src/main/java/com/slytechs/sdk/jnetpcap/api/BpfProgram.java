@@ -0,0 +1,323 @@
+/*
+ * Copyright 2005-2025 Sly Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.slytechs.sdk.jnetpcap.api;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.Arrays;
+
+import com.slytechs.sdk.jnetpcap.BpFilter;
+
+/**
+ * A validated classic BPF program, which can be run in the JVM without libpcap.
+ *
+ * <p>
+ * Programs are usually compiled by libpcap, with
+ * {@link NetPcap#compileProgram(String, boolean)} or from a {@link BpFilter},
+ * and copied into Java arrays. Validation follows libpcap's
+ * {@code bpf_validate}: every opcode must be known, jumps must land inside the
+ * program, scratch memory indexes must be in range, constant divisors must not
+ * be zero, constant shifts must be under 32 and the program must end with a
+ * return. A validated program can not loop or read outside the packet, as out
+ * of range loads reject the packet.
+ * </p>
+ *
+ * <p>
+ * A program runs either on the {@link #interpreter()}, or as a hidden class of
+ * straight-line bytecode generated by {@link #compile()}, which the JIT then
+ * compiles to native code like any other method.
+ * </p>
+ *
+ * <pre>{@code
+ * BpfProgram program = pcap.compileProgram("tcp port 80", true);
+ * merged.setFilter(program.compile());
+ * }</pre>
+ *
+ * @author Mark Bednarczyk [mark@slytechs.com]
+ * @author Sly Technologies Inc.
+ */
+public final class BpfProgram {
+
+	/** Maximum number of instructions, as in libpcap. */
+	public static final int MAX_INSNS = 4096;
+
+	/** Number of scratch memory words. */
+	static final int MEMWORDS = 16;
+
+	/* Instruction classes */
+	static final int LD = 0x00;
+	static final int LDX = 0x01;
+	static final int ST = 0x02;
+	static final int STX = 0x03;
+	static final int ALU = 0x04;
+	static final int JMP = 0x05;
+	static final int RET = 0x06;
+	static final int MISC = 0x07;
+
+	/* Load sizes */
+	static final int W = 0x00;
+	static final int H = 0x08;
+	static final int B = 0x10;
+
+	/* Load modes */
+	static final int IMM = 0x00;
+	static final int ABS = 0x20;
+	static final int IND = 0x40;
+	static final int MEM = 0x60;
+	static final int LEN = 0x80;
+	static final int MSH = 0xA0;
+
+	/* ALU operations */
+	static final int ADD = 0x00;
+	static final int SUB = 0x10;
+	static final int MUL = 0x20;
+	static final int DIV = 0x30;
+	static final int OR = 0x40;
+	static final int AND = 0x50;
+	static final int LSH = 0x60;
+	static final int RSH = 0x70;
+	static final int NEG = 0x80;
+	static final int MOD = 0x90;
+	static final int XOR = 0xA0;
+
+	/* Jump operations */
+	static final int JA = 0x00;
+	static final int JEQ = 0x10;
+	static final int JGT = 0x20;
+	static final int JGE = 0x30;
+	static final int JSET = 0x40;
+
+	/* Operand sources and return values */
+	static final int K = 0x00;
+	static final int X = 0x08;
+	static final int A = 0x10;
+
+	/* Miscellaneous operations */
+	static final int TAX = 0x00;
+	static final int TXA = 0x80;
+
+	private static final ValueLayout.OfShort INSN_CODE = ValueLayout.JAVA_SHORT_UNALIGNED;
+	private static final long INSN_SIZE = 8;
+
+	/**
+	 * Copies and validates the program of a libpcap compiled filter.
+	 *
+	 * @param filter the compiled filter
+	 * @return the program
+	 * @throws IllegalArgumentException if the program is invalid
+	 */
+	public static BpfProgram of(BpFilter filter) {
+		return of(filter.toArray());
+	}
+
+	/**
+	 * Validates a program of {@code struct bpf_insn} instructions, each stored in
+	 * native byte order in a long, as returned by {@link BpFilter#toArray()}.
+	 *
+	 * @param instructions the instructions
+	 * @return the program
+	 * @throws IllegalArgumentException if the program is invalid
+	 */
+	public static BpfProgram of(long[] instructions) {
+		return of(MemorySegment.ofArray(instructions));
+	}
+
+	/**
+	 * Validates a program of {@code struct bpf_insn} instructions, in native byte
+	 * order.
+	 *
+	 * @param instructions the instruction array, 8 bytes per instruction
+	 * @return the program
+	 * @throws IllegalArgumentException if the program is invalid
+	 */
+	public static BpfProgram of(MemorySegment instructions) {
+		final long count = instructions.byteSize() / INSN_SIZE;
+		if (count < 1 || count > MAX_INSNS)
+			throw new IllegalArgumentException("invalid BPF program length: " + count);
+
+		final int n = (int) count;
+		final int[] code = new int[n];
+		final int[] jt = new int[n];
+		final int[] jf = new int[n];
+		final int[] k = new int[n];
+
+		for (int i = 0; i < n; i++) {
+			final long off = i * INSN_SIZE;
+			code[i] = Short.toUnsignedInt(instructions.get(INSN_CODE, off));
+			jt[i] = Byte.toUnsignedInt(instructions.get(ValueLayout.JAVA_BYTE, off + 2));
+			jf[i] = Byte.toUnsignedInt(instructions.get(ValueLayout.JAVA_BYTE, off + 3));
+			k[i] = instructions.get(ValueLayout.JAVA_INT_UNALIGNED, off + 4);
+		}
+
+		return new BpfProgram(code, jt, jf, k);
+	}
+
+	final int[] code;
+	final int[] jt;
+	final int[] jf;
+	final int[] k;
+
+	private BpfProgram(int[] code, int[] jt, int[] jf, int[] k) {
+		this.code = code;
+		this.jt = jt;
+		this.jf = jf;
+		this.k = k;
+
+		validate();
+	}
+
+	/**
+	 * Compiles the program to a hidden class of straight-line bytecode. Programs
+	 * too large for a single method run on the interpreter instead.
+	 *
+	 * @return the compiled program
+	 */
+	public BpfExecutable compile() {
+		BpfExecutable compiled = BpfCompiler.compile(this);
+
+		return (compiled != null) ? compiled : interpreter();
+	}
+
+	/**
+	 * Checks if another program has the same instructions.
+	 *
+	 * @param obj the other object
+	 * @return true if both programs are identical
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		return (obj instanceof BpfProgram other)
+				&& Arrays.equals(code, other.code)
+				&& Arrays.equals(jt, other.jt)
+				&& Arrays.equals(jf, other.jf)
+				&& Arrays.equals(k, other.k);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * Arrays.hashCode(code) + Arrays.hashCode(k);
+	}
+
+	private IllegalArgumentException invalid(int pc, String reason) {
+		return new IllegalArgumentException("invalid BPF instruction %d (code=0x%02x, k=%d): %s"
+				.formatted(pc, code[pc], Integer.toUnsignedLong(k[pc]), reason));
+	}
+
+	/**
+	 * Returns the number of instructions.
+	 *
+	 * @return the instruction count
+	 */
+	public int instructionCount() {
+		return code.length;
+	}
+
+	/**
+	 * Returns an interpreter of the program.
+	 *
+	 * @return the interpreted program
+	 */
+	public BpfExecutable interpreter() {
+		return new BpfInterpreter(this);
+	}
+
+	@Override
+	public String toString() {
+		return "BpfProgram[instructions=" + code.length + "]";
+	}
+
+	private void validate() {
+		final int n = code.length;
+
+		for (int pc = 0; pc < n; pc++) {
+			final int c = code[pc];
+			if (c > 0xFF)
+				throw invalid(pc, "unknown opcode");
+
+			switch (c & 0x07) {
+			case LD, LDX -> {
+				final int mode = c & 0xE0;
+				final int size = c & 0x18;
+				final boolean ldx = (c & 0x07) == LDX;
+
+				switch (mode) {
+				case IMM, LEN -> {
+					if (size != W)
+						throw invalid(pc, "bad load size");
+				}
+				case MEM -> {
+					if (size != W)
+						throw invalid(pc, "bad load size");
+					if (Integer.compareUnsigned(k[pc], MEMWORDS) >= 0)
+						throw invalid(pc, "scratch memory index out of range");
+				}
+				case ABS, IND -> {
+					if (ldx || size == 0x18)
+						throw invalid(pc, "bad packet load");
+				}
+				case MSH -> {
+					if (!ldx || size != B)
+						throw invalid(pc, "bad msh load");
+				}
+				default -> throw invalid(pc, "unknown load mode");
+				}
+			}
+			case ST, STX -> {
+				if ((c & ~0x07) != 0)
+					throw invalid(pc, "unknown store");
+				if (Integer.compareUnsigned(k[pc], MEMWORDS) >= 0)
+					throw invalid(pc, "scratch memory index out of range");
+			}
+			case ALU -> {
+				final int op = c & 0xF0;
+				if (op > XOR)
+					throw invalid(pc, "unknown alu operation");
+				if (op == NEG && (c & X) != 0)
+					throw invalid(pc, "bad neg operand");
+				if ((op == DIV || op == MOD) && (c & X) == 0 && k[pc] == 0)
+					throw invalid(pc, "division by zero");
+				if ((op == LSH || op == RSH) && (c & X) == 0 && Integer.compareUnsigned(k[pc], 32) >= 0)
+					throw invalid(pc, "shift out of range");
+			}
+			case JMP -> {
+				final int op = c & 0xF0;
+				if (op > JSET)
+					throw invalid(pc, "unknown jump");
+
+				if (op == JA) {
+					if (Integer.compareUnsigned(k[pc], n - pc - 1) >= 0)
+						throw invalid(pc, "jump out of range");
+				} else if (pc + 1 + jt[pc] >= n || pc + 1 + jf[pc] >= n) {
+					throw invalid(pc, "branch out of range");
+				}
+			}
+			case RET -> {
+				final int rval = c & 0x18;
+				if ((c & ~0x1F) != 0 || rval == 0x18)
+					throw invalid(pc, "unknown return");
+			}
+			case MISC -> {
+				if (c != (MISC | TAX) && c != (MISC | TXA))
+					throw invalid(pc, "unknown misc operation");
+			}
+			default -> throw new AssertionError();
+			}
+		}
+
+		if ((code[n - 1] & 0x07) != RET)
+			throw invalid(n - 1, "program does not end with a return");
+	}
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2005-2025 Sly Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.slytechs.sdk.jnetpcap.api;
+
+/**
+ * Capture file formats written by {@link AsyncCaptureWriter}.
+ *
+ * @author Mark Bednarczyk [mark@slytechs.com]
+ * @author Sly Technologies Inc.
+ */
+public enum CaptureFileFormat {
+
+	/** Classic libpcap file format, one link type per file. */
+	PCAP(".pcap"),
+
+	/**
+	 * pcapng file format, written as one section with a single interface and
+	 * Enhanced Packet Blocks.
+	 */
+	PCAPNG(".pcapng");
+
+	private final String extension;
+
+	CaptureFileFormat(String extension) {
+		this.extension = extension;
+	}
+
+	/**
+	 * Returns the conventional file name extension, including the leading dot.
+	 *
+	 * @return the file extension
+	 */
+	public String extension() {
+		return extension;
+	}
+}
@@ -0,0 +1,513 @@
+/*
+ * Copyright 2005-2025 Sly Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.slytechs.sdk.jnetpcap.api;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.SplittableRandom;
+
+import com.slytechs.sdk.jnetpcap.constant.PcapDlt;
+
+/**
+ * Generates large synthetic capture files, for benchmarks and tests.
+ *
+ * <p>
+ * Packets belong to a configurable number of flows. Each flow has fixed
+ * addresses, ports and VLAN, and a protocol stack picked by the weights given
+ * to {@link #addStack(SyntheticStack, int)}. Packets of a flow are sent in both
+ * directions. Frame sizes follow a size distribution, fixed, uniform or IMIX,
+ * and timestamps follow a {@link TimestampPattern} at an average packet rate.
+ * All choices are drawn from a seeded generator, so the same configuration
+ * always produces the same file.
+ * </p>
+ *
+ * <p>
+ * Only headers are written per packet, over a payload pattern filled once, and
+ * records go through an {@link AsyncCaptureWriter}, so generation runs at
+ * memory copy speed and fixtures can be generated on the fly rather than
+ * committed. IPv4 header checksums are valid. TCP and UDP checksums are left
+ * zero.
+ * </p>
+ *
+ * <pre>{@code
+ * new CaptureGenerator()
+ * 		.addStack(SyntheticStack.IP4_TCP, 8)
+ * 		.addStack(SyntheticStack.VLAN_IP6_UDP, 1)
+ * 		.addStack(SyntheticStack.GRE_IP4_TCP, 1)
+ * 		.setFlowCount(100_000)
+ * 		.setImix()
+ * 		.setTimestampPattern(TimestampPattern.POISSON)
+ * 		.generateSize(Path.of("big.pcap"), 4L << 30);
+ * }</pre>
+ *
+ * @author Mark Bednarczyk [mark@slytechs.com]
+ * @author Sly Technologies Inc.
+ */
+public final class CaptureGenerator {
+
+	/** Default number of flows. */
+	public static final int DEFAULT_FLOW_COUNT = 1024;
+
+	/** Default average packet rate, in packets per second. */
+	public static final long DEFAULT_PACKET_RATE = 1_000_000;
+
+	/** Largest frame which can be generated. */
+	public static final int MAX_FRAME_SIZE = 65535;
+
+	/** Default timestamp of the first packet, 2025-01-01T00:00:00Z. */
+	public static final Instant DEFAULT_START_TIME = Instant.ofEpochSecond(1_735_689_600L);
+
+	private static final ValueLayout.OfShort U16 = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+	private static final ValueLayout.OfInt U32 = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+	private static final ValueLayout.OfLong U64 = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+
+	/** Entries in the size and stack lookup tables, a power of 2 */
+	private static final int TABLE_SIZE = 1024;
+
+	/** Classic IMIX frame sizes without FCS, 7:4:1 */
+	private static final int[] IMIX_SIZES = { 60, 590, 1514 };
+	private static final int[] IMIX_WEIGHTS = { 7, 4, 1 };
+
+	private static final int BURST_LENGTH = 32;
+	private static final int BURST_SPEEDUP = 10;
+
+	private static final int[] SERVER_PORTS = { 80, 443, 53, 8080, 22, 25, 123, 5201 };
+
+	private static final int ETHERTYPE_IPV4 = 0x0800;
+	private static final int ETHERTYPE_IPV6 = 0x86DD;
+	private static final int ETHERTYPE_VLAN = 0x8100;
+	private static final int IPPROTO_TCP = 6;
+	private static final int IPPROTO_UDP = 17;
+
+	private static final long WRITER_BUFFER_SIZE = 16 * 1024 * 1024;
+	private static final int WRITER_BUFFER_COUNT = 4;
+
+	private final Map<SyntheticStack, Integer> stacks = new EnumMap<>(SyntheticStack.class);
+	private CaptureFileFormat format = CaptureFileFormat.PCAP;
+	private int flowCount = DEFAULT_FLOW_COUNT;
+	private int[] sizeTable = sizeTable(new int[] { 1514 }, new int[] { 1 });
+	private long packetRate = DEFAULT_PACKET_RATE;
+	private TimestampPattern timestampPattern = TimestampPattern.CONSTANT;
+	private Instant startTime = DEFAULT_START_TIME;
+	private int snaplen = MAX_FRAME_SIZE;
+	private long seed;
+
+	/**
+	 * Creates a generator of 1514 byte IPv4/TCP frames over
+	 * {@value #DEFAULT_FLOW_COUNT} flows, at {@value #DEFAULT_PACKET_RATE}
+	 * packets per second.
+	 */
+	public CaptureGenerator() {
+	}
+
+	private static int[] sizeTable(int[] sizes, int[] weights) {
+		int total = 0;
+		for (int w : weights)
+			total += w;
+
+		int[] table = new int[TABLE_SIZE];
+		for (int i = 0, k = 0, acc = weights[0]; i < TABLE_SIZE; i++) {
+			while ((long) i * total >= (long) acc * TABLE_SIZE)
+				acc += weights[++k];
+
+			table[i] = sizes[k];
+		}
+
+		return table;
+	}
+
+	private static long mix64(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	private static int checksum(MemorySegment s, long offset, int length) {
+		int sum = 0;
+		for (int i = 0; i < length; i += 2)
+			sum += Short.toUnsignedInt(s.get(U16, offset + i));
+
+		sum = (sum & 0xFFFF) + (sum >>> 16);
+		sum = (sum & 0xFFFF) + (sum >>> 16);
+
+		return ~sum & 0xFFFF;
+	}
+
+	/**
+	 * Adds a protocol stack to the mix. Each flow uses one stack, picked with a
+	 * probability proportional to its weight. Without any stack added, every flow
+	 * is {@link SyntheticStack#IP4_TCP}.
+	 *
+	 * @param stack  the protocol stack
+	 * @param weight the relative weight, 0 to remove the stack
+	 * @return this generator for method chaining
+	 */
+	public CaptureGenerator addStack(SyntheticStack stack, int weight) {
+		Objects.requireNonNull(stack, "stack");
+		if (weight < 0)
+			throw new IllegalArgumentException("weight must not be negative: " + weight);
+
+		if (weight == 0)
+			stacks.remove(stack);
+		else
+			stacks.put(stack, weight);
+
+		return this;
+	}
+
+	/**
+	 * Writes a capture file of the given number of packets.
+	 *
+	 * @param file        the output file, created or truncated
+	 * @param packetCount the number of packets
+	 * @return the number of packets written
+	 * @throws IOException if the file could not be written
+	 */
+	public long generate(Path file, long packetCount) throws IOException {
+		if (packetCount < 0)
+			throw new IllegalArgumentException("packet count must not be negative: " + packetCount);
+
+		return run(file, packetCount, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Writes a capture file of about the given size. Packets are written until
+	 * the size is reached, so the file may exceed it by one record.
+	 *
+	 * @param file     the output file, created or truncated
+	 * @param fileSize the file size in bytes
+	 * @return the number of packets written
+	 * @throws IOException if the file could not be written
+	 */
+	public long generateSize(Path file, long fileSize) throws IOException {
+		if (fileSize < 0)
+			throw new IllegalArgumentException("file size must not be negative: " + fileSize);
+
+		return run(file, Long.MAX_VALUE, fileSize);
+	}
+
+	private SyntheticStack[] stackTable() {
+		Map<SyntheticStack, Integer> mix = stacks.isEmpty() ? Map.of(SyntheticStack.IP4_TCP, 1) : stacks;
+
+		SyntheticStack[] keys = mix.keySet().toArray(SyntheticStack[]::new);
+		int[] weights = new int[keys.length];
+		int[] ordinals = new int[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			weights[i] = mix.get(keys[i]);
+			ordinals[i] = i;
+		}
+
+		int[] picks = sizeTable(ordinals, weights);
+		SyntheticStack[] table = new SyntheticStack[TABLE_SIZE];
+		for (int i = 0; i < TABLE_SIZE; i++)
+			table[i] = keys[picks[i]];
+
+		return table;
+	}
+
+	private long run(Path file, long maxPackets, long maxBytes) throws IOException {
+		Objects.requireNonNull(file, "file");
+
+		final SyntheticStack[] stackTable = stackTable();
+		final int[] sizeTable = this.sizeTable;
+		final int flowCount = this.flowCount;
+		final int snaplen = this.snaplen;
+		final long flowSeed = mix64(seed);
+		final SplittableRandom random = new SplittableRandom(seed);
+		final double meanGap = 1e9 / packetRate;
+		final boolean pcapng = (format == CaptureFileFormat.PCAPNG);
+		final long recordOverhead = pcapng ? 32 : 16;
+
+		long time = startTime.getEpochSecond() * 1_000_000_000L + startTime.getNano();
+		long bytes = 0;
+		long count = 0;
+
+		try (Arena arena = Arena.ofConfined();
+				AsyncCaptureWriter writer = new AsyncCaptureWriter(file, format, PcapDlt.EN10MB.getAsInt(),
+						snaplen, true, WRITER_BUFFER_SIZE, WRITER_BUFFER_COUNT)) {
+
+			writer.setBlocking(true);
+
+			MemorySegment frame = arena.allocate(MAX_FRAME_SIZE, 64);
+			for (int i = 0; i < MAX_FRAME_SIZE; i++)
+				frame.set(ValueLayout.JAVA_BYTE, i, (byte) i);
+
+			while (count < maxPackets && bytes < maxBytes) {
+				final long flow = mix64(flowSeed + random.nextInt(flowCount) * 0x9E3779B97F4A7C15L);
+				final SyntheticStack stack = stackTable[(int) (flow >>> 54)];
+				final int length = Math.max(sizeTable[random.nextInt(TABLE_SIZE)], stack.headerLength);
+				final int caplen = Math.min(length, snaplen);
+
+				writeHeaders(frame, stack, flow, random.nextBoolean(), length, count);
+
+				writer.write(time / 1_000_000_000L, time % 1_000_000_000L, frame.asSlice(0, caplen), length);
+
+				bytes += recordOverhead + (pcapng ? (caplen + 3) & ~3 : caplen); // pcapng pads to 32 bits
+				count++;
+				time += nextGap(random, meanGap, count);
+			}
+		}
+
+		return count;
+	}
+
+	private long nextGap(SplittableRandom random, double meanGap, long count) {
+		return switch (timestampPattern) {
+		case CONSTANT -> Math.round(count * meanGap) - Math.round((count - 1) * meanGap);
+		case POISSON -> Math.round(-Math.log(1.0 - random.nextDouble()) * meanGap);
+		case BURSTY -> (count % BURST_LENGTH != 0)
+				? Math.round(meanGap / BURST_SPEEDUP)
+				: Math.round(BURST_LENGTH * meanGap - (BURST_LENGTH - 1) * meanGap / BURST_SPEEDUP);
+		};
+	}
+
+	/**
+	 * Sets the capture file format. The default is {@link CaptureFileFormat#PCAP}.
+	 *
+	 * @param format the file format
+	 * @return this generator for method chaining
+	 */
+	public CaptureGenerator setFormat(CaptureFileFormat format) {
+		this.format = Objects.requireNonNull(format, "format");
+		return this;
+	}
+
+	/**
+	 * Sets the number of distinct flows.
+	 *
+	 * @param flowCount the number of flows
+	 * @return this generator for method chaining
+	 */
+	public CaptureGenerator setFlowCount(int flowCount) {
+		if (flowCount < 1)
+			throw new IllegalArgumentException("flow count must be positive: " + flowCount);
+
+		this.flowCount = flowCount;
+		return this;
+	}
+
+	/**
+	 * Selects the classic IMIX frame size distribution, 60, 590 and 1514 bytes
+	 * in a 7:4:1 ratio.
+	 *
+	 * @return this generator for method chaining
+	 */
+	public CaptureGenerator setImix() {
+		this.sizeTable = sizeTable(IMIX_SIZES, IMIX_WEIGHTS);
+		return this;
+	}
+
+	/**
+	 * Sets the average packet rate, which spaces timestamps.
+	 *
+	 * @param packetsPerSecond the packet rate
+	 * @return this generator for method chaining
+	 */
+	public CaptureGenerator setPacketRate(long packetsPerSecond) {
+		if (packetsPerSecond < 1 || packetsPerSecond > 1_000_000_000L)
+			throw new IllegalArgumentException("packet rate out of range: " + packetsPerSecond);
+
+		this.packetRate = packetsPerSecond;
+		return this;
+	}
+
+	/**
+	 * Selects a fixed frame size. Frames are never shorter than their headers.
+	 *
+	 * @param size the frame size in bytes, excluding FCS
+	 * @return this generator for method chaining
+	 */
+	public CaptureGenerator setPacketSize(int size) {
+		return setPacketSizes(size, size);
+	}
+
+	/**
+	 * Selects frame sizes uniformly distributed over a range. Frames are never
+	 * shorter than their headers.
+	 *
+	 * @param min the smallest frame size in bytes, excluding FCS
+	 * @param max the largest frame size in bytes, excluding FCS
+	 * @return this generator for method chaining
+	 */
+	public CaptureGenerator setPacketSizes(int min, int max) {
+		if (min < 1 || max > MAX_FRAME_SIZE || min > max)
+			throw new IllegalArgumentException("invalid frame size range: " + min + "-" + max);
+
+		int[] table = new int[TABLE_SIZE];
+		for (int i = 0; i < TABLE_SIZE; i++)
+			table[i] = min + (int) ((long) i * (max - min + 1) / TABLE_SIZE);
+
+		this.sizeTable = table;
+		return this;
+	}
+
+	/**
+	 * Sets the seed all random choices are drawn from. The default is 0.
+	 *
+	 * @param seed the seed
+	 * @return this generator for method chaining
+	 */
+	public CaptureGenerator setSeed(long seed) {
+		this.seed = seed;
+		return this;
+	}
+
+	/**
+	 * Sets the snapshot length. Longer frames are truncated, keeping their
+	 * original wire length.
+	 *
+	 * @param snaplen the snapshot length
+	 * @return this generator for method chaining
+	 */
+	public CaptureGenerator setSnaplen(int snaplen) {
+		if (snaplen < 1)
+			throw new IllegalArgumentException("snaplen must be positive: " + snaplen);
+
+		this.snaplen = snaplen;
+		return this;
+	}
+
+	/**
+	 * Sets the timestamp of the first packet. The default is
+	 * {@link #DEFAULT_START_TIME}.
+	 *
+	 * @param startTime the first timestamp
+	 * @return this generator for method chaining
+	 */
+	public CaptureGenerator setStartTime(Instant startTime) {
+		this.startTime = Objects.requireNonNull(startTime, "startTime");
+		return this;
+	}
+
+	/**
+	 * Sets the spacing of timestamps. The default is
+	 * {@link TimestampPattern#CONSTANT}.
+	 *
+	 * @param pattern the timestamp pattern
+	 * @return this generator for method chaining
+	 */
+	public CaptureGenerator setTimestampPattern(TimestampPattern pattern) {
+		this.timestampPattern = Objects.requireNonNull(pattern, "pattern");
+		return this;
+	}
+
+	@Override
+	public String toString() {
+		return "CaptureGenerator[%s, stacks=%s, flows=%d, rate=%d, timestamps=%s, seed=%d]"
+				.formatted(format, stacks.isEmpty() ? Map.of(SyntheticStack.IP4_TCP, 1) : stacks,
+						flowCount, packetRate, timestampPattern, seed);
+	}
+
+	/**
+	 * Writes all headers of a frame. Addresses, ports and VLAN are derived from
+	 * the flow hash, and swapped for the reply direction.
+	 */
+	private static void writeHeaders(MemorySegment s, SyntheticStack stack, long flow, boolean reply, int length,
+			long sequence) {
+
+		final long clientMac = 0x0200_0000_0000L | (flow & 0xFFFF_FFFFL);
+		final long serverMac = 0x0200_0000_0000L | (flow >>> 32);
+		final int clientPort = 1024 + (int) ((flow >>> 8) % 64512);
+		final int serverPort = SERVER_PORTS[(int) (flow & 7)];
+		final int client4 = 0x0A00_0000 | (int) (flow & 0xFF_FFFF); // 10.0.0.0/8
+		final int server4 = 0xC0A8_0000 | (int) ((flow >>> 24) & 0xFFFF); // 192.168.0.0/16
+		final long client6 = 0xFD00_0000_0000_0000L; // fd00::/64
+		final long server6 = 0x2001_0DB8_0000_0000L; // 2001:db8::/64
+
+		writeMac(s, 0, reply ? clientMac : serverMac);
+		writeMac(s, 6, reply ? serverMac : clientMac);
+		long off = 12;
+
+		if (stack.vlan) {
+			s.set(U16, off, (short) ETHERTYPE_VLAN);
+			s.set(U16, off + 2, (short) (1 + (int) ((flow >>> 20) % 4094)));
+			off += 4;
+		}
+
+		s.set(U16, off, (short) ((stack.ipVersion == 4 || stack.tunnelProtocol != 0) ? ETHERTYPE_IPV4 : ETHERTYPE_IPV6));
+		off += 2;
+
+		if (stack.tunnelProtocol != 0) {
+			int a = 0xAC10_0000 | (int) ((flow >>> 40) & 0xFF00) | 1; // 172.16.0.0/16
+			int b = a + 1;
+			writeIp4(s, off, length - (int) off, stack.tunnelProtocol, reply ? b : a, reply ? a : b, sequence);
+			off += 20;
+
+			if (stack.tunnelProtocol == SyntheticStack.IPPROTO_GRE) {
+				s.set(U32, off, ETHERTYPE_IPV4);
+				off += 4;
+			}
+		}
+
+		final int l4Protocol = stack.tcp ? IPPROTO_TCP : IPPROTO_UDP;
+		if (stack.ipVersion == 4) {
+			writeIp4(s, off, length - (int) off, l4Protocol,
+					reply ? server4 : client4, reply ? client4 : server4, sequence);
+			off += 20;
+		} else {
+			writeIp6(s, off, length - (int) off - 40, l4Protocol,
+					reply ? server6 : client6, reply ? ~flow : flow,
+					reply ? client6 : server6, reply ? flow : ~flow);
+			off += 40;
+		}
+
+		final int srcPort = reply ? serverPort : clientPort;
+		final int dstPort = reply ? clientPort : serverPort;
+		s.set(U32, off, (srcPort << 16) | dstPort);
+
+		if (stack.tcp) {
+			s.set(U32, off + 4, (int) (flow ^ (sequence * 1460))); // seq
+			s.set(U32, off + 8, (int) (~flow ^ (sequence * 1460))); // ack
+			s.set(U32, off + 12, 0x5018_FFFF); // data offset 5, PSH|ACK, window
+			s.set(U32, off + 16, 0); // checksum, urgent pointer
+		} else {
+			s.set(U32, off + 4, (length - (int) off) << 16); // length, checksum 0
+		}
+	}
+
+	private static void writeIp4(MemorySegment s, long off, int totalLength, int protocol, int src, int dst,
+			long id) {
+		s.set(U32, off, 0x4500_0000 | totalLength);
+		s.set(U32, off + 4, ((int) id << 16) | 0x4000); // DF
+		s.set(U32, off + 8, (64 << 24) | (protocol << 16)); // TTL, checksum 0
+		s.set(U32, off + 12, src);
+		s.set(U32, off + 16, dst);
+		s.set(U16, off + 10, (short) checksum(s, off, 20));
+	}
+
+	private static void writeIp6(MemorySegment s, long off, int payloadLength, int nextHeader, long srcHigh,
+			long srcLow, long dstHigh, long dstLow) {
+		s.set(U32, off, 0x6000_0000);
+		s.set(U32, off + 4, (payloadLength << 16) | (nextHeader << 8) | 64);
+		s.set(U64, off + 8, srcHigh);
+		s.set(U64, off + 16, srcLow);
+		s.set(U64, off + 24, dstHigh);
+		s.set(U64, off + 32, dstLow);
+	}
+
+	private static void writeMac(MemorySegment s, long off, long mac) {
+		s.set(U16, off, (short) (mac >>> 32));
+		s.set(U32, off + 2, (int) mac);
+	}
+}
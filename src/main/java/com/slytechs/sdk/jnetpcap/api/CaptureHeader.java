@@ -0,0 +1,145 @@
+/*
+ * Copyright 2005-2025 Sly Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.slytechs.sdk.jnetpcap.api;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+
+import com.slytechs.sdk.jnetpcap.internal.PcapHeaderABI;
+
+/**
+ * Reads the per-packet capture header fields the packet pipeline needs,
+ * independent of where the header came from.
+ *
+ * <p>
+ * Headers delivered by libpcap use the native {@code struct pcap_pkthdr} layout
+ * described by a {@link PcapHeaderABI}. Headers read directly from a capture
+ * file use the packed 16 byte on-disk record layout instead.
+ * </p>
+ *
+ * @author Mark Bednarczyk [mark@slytechs.com]
+ * @author Sly Technologies Inc.
+ */
+interface CaptureHeader {
+
+	/**
+	 * A capture header in libpcap's native {@code struct pcap_pkthdr} layout.
+	 *
+	 * @param abi the native header ABI
+	 */
+	record Native(PcapHeaderABI abi) implements CaptureHeader {
+
+		@Override
+		public int headerLength() {
+			return abi.headerLength();
+		}
+
+		@Override
+		public int captureLength(MemorySegment header) {
+			return abi.captureLength(header);
+		}
+
+		@Override
+		public int wireLength(MemorySegment header) {
+			return abi.wireLength(header);
+		}
+
+		@Override
+		public long tvSec(MemorySegment header) {
+			return abi.tvSec(header);
+		}
+
+		@Override
+		public long tvUsec(MemorySegment header) {
+			return abi.tvUsec(header);
+		}
+	}
+
+	/**
+	 * A capture header in the packed pcap file record layout, 4 unsigned 32-bit
+	 * fields in native byte order, which may be unaligned.
+	 */
+	enum Packed implements CaptureHeader {
+		INSTANCE;
+
+		private static final ValueLayout.OfInt U32 = ValueLayout.JAVA_INT_UNALIGNED;
+
+		@Override
+		public int headerLength() {
+			return 16;
+		}
+
+		@Override
+		public int captureLength(MemorySegment header) {
+			return header.get(U32, 8);
+		}
+
+		@Override
+		public int wireLength(MemorySegment header) {
+			return header.get(U32, 12);
+		}
+
+		@Override
+		public long tvSec(MemorySegment header) {
+			return Integer.toUnsignedLong(header.get(U32, 0));
+		}
+
+		@Override
+		public long tvUsec(MemorySegment header) {
+			return Integer.toUnsignedLong(header.get(U32, 4));
+		}
+	}
+
+	/**
+	 * Length of the header in bytes.
+	 *
+	 * @return the header length
+	 */
+	int headerLength();
+
+	/**
+	 * Number of packet bytes captured.
+	 *
+	 * @param header the header
+	 * @return the capture length
+	 */
+	int captureLength(MemorySegment header);
+
+	/**
+	 * Original length of the packet on the wire.
+	 *
+	 * @param header the header
+	 * @return the wire length
+	 */
+	int wireLength(MemorySegment header);
+
+	/**
+	 * Timestamp seconds.
+	 *
+	 * @param header the header
+	 * @return the seconds
+	 */
+	long tvSec(MemorySegment header);
+
+	/**
+	 * Timestamp fraction of a second, in micro or nanoseconds depending on the
+	 * capture's timestamp precision.
+	 *
+	 * @param header the header
+	 * @return the fraction
+	 */
+	long tvUsec(MemorySegment header);
+}
@@ -0,0 +1,357 @@
+/*
+ * Copyright 2005-2025 Sly Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.slytechs.sdk.jnetpcap.api;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import com.slytechs.sdk.jnetpcap.PcapException;
+import com.slytechs.sdk.jnetpcap.PcapStat;
+
+/**
+ * Capture metrics of a single {@link NetPcap} handle.
+ *
+ * <p>
+ * Counters are updated only by the thread dispatching packets on the handle,
+ * which a handle is confined to, and are published with opaque writes. The hot
+ * path therefore never contends or issues a fence, yet any monitoring thread
+ * can read a recent value of each counter at any time. Packet and byte counts
+ * and handler exceptions are always tracked. Dissection and handler times cost
+ * two clock reads per packet and are off until enabled with
+ * {@link #setTimingEnabled(boolean)}.
+ * </p>
+ *
+ * <p>
+ * The libpcap {@code ps_recv}, {@code ps_drop} and {@code ps_ifdrop} counters
+ * are sampled on the capture thread, at most once per sample interval, between
+ * packets and at the end of every dispatch cycle. The 32-bit libpcap counters
+ * are accumulated into 64-bit totals, surviving wraparound, and the increase
+ * between the last two samples is kept as a delta. Sampling stops for handles
+ * which do not support statistics, such as offline captures.
+ * </p>
+ *
+ * <pre>{@code
+ * CaptureMetrics metrics = pcap.metrics();
+ * metrics.setTimingEnabled(true);
+ * metrics.registerMBean("eth0");
+ * }</pre>
+ *
+ * @author Mark Bednarczyk [mark@slytechs.com]
+ * @author Sly Technologies Inc.
+ * @see NetPcap#metrics()
+ */
+public final class CaptureMetrics implements CaptureMetricsMXBean {
+
+	/** JMX domain of registered capture metrics. */
+	public static final String JMX_DOMAIN = "com.slytechs.sdk.jnetpcap";
+
+	/** Default minimum interval between capture statistics samples. */
+	public static final Duration DEFAULT_SAMPLE_INTERVAL = Duration.ofSeconds(1);
+
+	/** Checks for a due sample once every 1024 packets */
+	private static final int SAMPLE_CHECK_MASK = 1023;
+
+	private static final VarHandle COUNTERS = MethodHandles.arrayElementVarHandle(long[].class);
+
+	private static final int PACKETS = 0;
+	private static final int BYTES = 1;
+	private static final int DISSECTION_NANOS = 2;
+	private static final int HANDLER_NANOS = 3;
+	private static final int EXCEPTIONS = 4;
+	private static final int RECEIVED = 5;
+	private static final int DROPPED = 6;
+	private static final int IF_DROPPED = 7;
+	private static final int RECEIVED_DELTA = 8;
+	private static final int DROPPED_DELTA = 9;
+	private static final int IF_DROPPED_DELTA = 10;
+	private static final int SAMPLES = 11;
+	private static final int COUNTER_COUNT = 12;
+
+	private final BaseNetPcap pcap;
+	private final long[] counters = new long[COUNTER_COUNT];
+	private volatile boolean timingEnabled;
+	private volatile long sampleIntervalNanos = DEFAULT_SAMPLE_INTERVAL.toNanos();
+	private volatile ObjectName objectName;
+	private DispatchTracer tracer;
+
+	/* Sampler state, confined to the capture thread */
+	private boolean statsSupported = true;
+	private long nextSampleNanos = System.nanoTime();
+	private int lastReceived;
+	private int lastDropped;
+	private int lastIfDropped;
+
+	CaptureMetrics(BaseNetPcap pcap) {
+		this.pcap = pcap;
+	}
+
+	private void add(int counter, long delta) {
+		COUNTERS.setOpaque(counters, counter, counters[counter] + delta);
+	}
+
+	/**
+	 * Called on the capture thread at the end of each dispatch cycle.
+	 */
+	void cycleEnd() {
+		maybeSample(System.nanoTime());
+	}
+
+	private long get(int counter) {
+		return (long) COUNTERS.getOpaque(counters, counter);
+	}
+
+	@Override
+	public long getByteCount() {
+		return get(BYTES);
+	}
+
+	@Override
+	public long getDissectionNanos() {
+		return get(DISSECTION_NANOS);
+	}
+
+	@Override
+	public long getDroppedCount() {
+		return get(DROPPED);
+	}
+
+	@Override
+	public long getDroppedDelta() {
+		return get(DROPPED_DELTA);
+	}
+
+	@Override
+	public long getExceptionCount() {
+		return get(EXCEPTIONS);
+	}
+
+	@Override
+	public long getHandlerNanos() {
+		return get(HANDLER_NANOS);
+	}
+
+	@Override
+	public long getInterfaceDroppedCount() {
+		return get(IF_DROPPED);
+	}
+
+	@Override
+	public long getInterfaceDroppedDelta() {
+		return get(IF_DROPPED_DELTA);
+	}
+
+	@Override
+	public long getPacketCount() {
+		return get(PACKETS);
+	}
+
+	@Override
+	public long getReceivedCount() {
+		return get(RECEIVED);
+	}
+
+	@Override
+	public long getReceivedDelta() {
+		return get(RECEIVED_DELTA);
+	}
+
+	@Override
+	public long getSampleCount() {
+		return get(SAMPLES);
+	}
+
+	@Override
+	public long getSampleIntervalMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(sampleIntervalNanos);
+	}
+
+	@Override
+	public boolean isTimingEnabled() {
+		return timingEnabled;
+	}
+
+	private void maybeSample(long now) {
+		if (!statsSupported || now - nextSampleNanos < 0)
+			return;
+
+		nextSampleNanos = now + sampleIntervalNanos;
+		sample();
+	}
+
+	/**
+	 * Counts the time spent in the packet pipeline. Called on the capture thread.
+	 *
+	 * @param nanos the dissection time
+	 */
+	void recordDissection(long nanos) {
+		add(DISSECTION_NANOS, nanos);
+	}
+
+	/**
+	 * Counts a handler exception. Called on the capture thread.
+	 */
+	void recordException() {
+		add(EXCEPTIONS, 1);
+	}
+
+	/**
+	 * Counts the time spent in a packet handler. Called on the capture thread.
+	 *
+	 * @param nanos the handler time
+	 */
+	void recordHandler(long nanos) {
+		add(HANDLER_NANOS, nanos);
+	}
+
+	/**
+	 * Counts a delivered packet. Called on the capture thread.
+	 *
+	 * @param caplen the capture length
+	 */
+	void recordPacket(long caplen) {
+		final long packets = counters[PACKETS] + 1;
+
+		COUNTERS.setOpaque(counters, PACKETS, packets);
+		add(BYTES, caplen);
+
+		if ((packets & SAMPLE_CHECK_MASK) == 0) {
+			final long now = System.nanoTime();
+
+			maybeSample(now);
+
+			if (tracer != null)
+				tracer.checkpoint(now);
+		}
+	}
+
+	/**
+	 * Registers these metrics with the platform MBean server, under the object
+	 * name {@code com.slytechs.sdk.jnetpcap:type=CaptureMetrics,name=<name>}.
+	 * They are unregistered when the handle is closed.
+	 *
+	 * @param name the name identifying the handle, such as its device name
+	 * @return the registered object name
+	 * @throws JMException if the name is invalid or already registered
+	 */
+	public ObjectName registerMBean(String name) throws JMException {
+		ObjectName on = new ObjectName(JMX_DOMAIN + ":type=CaptureMetrics,name=" + ObjectName.quote(name));
+
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+		unregisterMBean();
+		this.objectName = on;
+
+		return on;
+	}
+
+	/**
+	 * Samples the libpcap statistics counters. Called on the capture thread.
+	 */
+	private void sample() {
+		final PcapStat stat;
+		try {
+			stat = pcap.stats();
+		} catch (PcapException | RuntimeException e) {
+			statsSupported = false;
+			return;
+		}
+
+		final int received = (int) stat.recv();
+		final int dropped = (int) stat.drop();
+		final int ifDropped = (int) stat.ifdrop();
+
+		final long receivedDelta = Integer.toUnsignedLong(received - lastReceived);
+		final long droppedDelta = Integer.toUnsignedLong(dropped - lastDropped);
+		final long ifDroppedDelta = Integer.toUnsignedLong(ifDropped - lastIfDropped);
+
+		lastReceived = received;
+		lastDropped = dropped;
+		lastIfDropped = ifDropped;
+
+		add(RECEIVED, receivedDelta);
+		add(DROPPED, droppedDelta);
+		add(IF_DROPPED, ifDroppedDelta);
+		COUNTERS.setOpaque(counters, RECEIVED_DELTA, receivedDelta);
+		COUNTERS.setOpaque(counters, DROPPED_DELTA, droppedDelta);
+		COUNTERS.setOpaque(counters, IF_DROPPED_DELTA, ifDroppedDelta);
+		add(SAMPLES, 1);
+
+		if (tracer != null)
+			tracer.statsSnapshot(get(RECEIVED), get(DROPPED), get(IF_DROPPED),
+					receivedDelta, droppedDelta, ifDroppedDelta);
+	}
+
+	/**
+	 * Sets the minimum interval between capture statistics samples.
+	 *
+	 * @param interval the sample interval
+	 * @return this metrics object
+	 */
+	public CaptureMetrics setSampleInterval(Duration interval) {
+		if (interval.isNegative() || interval.isZero())
+			throw new IllegalArgumentException("sample interval must be positive: " + interval);
+
+		this.sampleIntervalNanos = interval.toNanos();
+
+		return this;
+	}
+
+	@Override
+	public void setSampleIntervalMillis(long millis) {
+		setSampleInterval(Duration.ofMillis(millis));
+	}
+
+	@Override
+	public void setTimingEnabled(boolean enabled) {
+		this.timingEnabled = enabled;
+	}
+
+	/**
+	 * Sets the tracer notified of samples and checkpointed every so many packets.
+	 */
+	void setTracer(DispatchTracer tracer) {
+		this.tracer = tracer;
+	}
+
+	@Override
+	public String toString() {
+		return "CaptureMetrics[packets=%d, bytes=%d, exceptions=%d, recv=%d, drop=%d, ifdrop=%d]"
+				.formatted(getPacketCount(), getByteCount(), getExceptionCount(),
+						getReceivedCount(), getDroppedCount(), getInterfaceDroppedCount());
+	}
+
+	/**
+	 * Unregisters these metrics from the platform MBean server, if registered.
+	 */
+	public void unregisterMBean() {
+		ObjectName on = objectName;
+		if (on == null)
+			return;
+
+		objectName = null;
+
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(on);
+		} catch (JMException e) {
+			// Already unregistered externally
+		}
+	}
+}
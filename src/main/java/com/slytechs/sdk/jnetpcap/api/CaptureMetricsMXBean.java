@@ -0,0 +1,144 @@
+/*
+ * Copyright 2005-2025 Sly Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.slytechs.sdk.jnetpcap.api;
+
+/**
+ * JMX management interface of {@link CaptureMetrics}.
+ *
+ * @author Mark Bednarczyk [mark@slytechs.com]
+ * @author Sly Technologies Inc.
+ * @see CaptureMetrics#registerMBean(String)
+ */
+public interface CaptureMetricsMXBean {
+
+	/**
+	 * Returns the number of packet data bytes delivered, counting capture
+	 * lengths.
+	 *
+	 * @return the byte count
+	 */
+	long getByteCount();
+
+	/**
+	 * Returns the total time spent in the packet pipeline, while timing is
+	 * enabled.
+	 *
+	 * @return the dissection time in nanoseconds
+	 */
+	long getDissectionNanos();
+
+	/**
+	 * Returns the number of packets the kernel or interface dropped, accumulated
+	 * from sampled {@code ps_drop} deltas.
+	 *
+	 * @return the drop count
+	 */
+	long getDroppedCount();
+
+	/**
+	 * Returns the {@code ps_drop} increase between the last two samples.
+	 *
+	 * @return the drop delta
+	 */
+	long getDroppedDelta();
+
+	/**
+	 * Returns the number of exceptions thrown by packet handlers.
+	 *
+	 * @return the exception count
+	 */
+	long getExceptionCount();
+
+	/**
+	 * Returns the total time spent in packet handlers, while timing is enabled.
+	 *
+	 * @return the handler time in nanoseconds
+	 */
+	long getHandlerNanos();
+
+	/**
+	 * Returns the number of packets dropped by the network interface,
+	 * accumulated from sampled {@code ps_ifdrop} deltas.
+	 *
+	 * @return the interface drop count
+	 */
+	long getInterfaceDroppedCount();
+
+	/**
+	 * Returns the {@code ps_ifdrop} increase between the last two samples.
+	 *
+	 * @return the interface drop delta
+	 */
+	long getInterfaceDroppedDelta();
+
+	/**
+	 * Returns the number of packets delivered to handlers.
+	 *
+	 * @return the packet count
+	 */
+	long getPacketCount();
+
+	/**
+	 * Returns the number of packets received by the kernel, accumulated from
+	 * sampled {@code ps_recv} deltas.
+	 *
+	 * @return the receive count
+	 */
+	long getReceivedCount();
+
+	/**
+	 * Returns the {@code ps_recv} increase between the last two samples.
+	 *
+	 * @return the receive delta
+	 */
+	long getReceivedDelta();
+
+	/**
+	 * Returns the number of capture statistics samples taken.
+	 *
+	 * @return the sample count
+	 */
+	long getSampleCount();
+
+	/**
+	 * Returns the minimum interval between capture statistics samples.
+	 *
+	 * @return the interval in milliseconds
+	 */
+	long getSampleIntervalMillis();
+
+	/**
+	 * Checks if dissection and handler times are measured.
+	 *
+	 * @return true if timing is enabled
+	 */
+	boolean isTimingEnabled();
+
+	/**
+	 * Sets the minimum interval between capture statistics samples.
+	 *
+	 * @param millis the interval in milliseconds
+	 */
+	void setSampleIntervalMillis(long millis);
+
+	/**
+	 * Enables or disables measuring dissection and handler times, which costs two
+	 * clock reads per packet.
+	 *
+	 * @param enabled true to enable timing
+	 */
+	void setTimingEnabled(boolean enabled);
+}
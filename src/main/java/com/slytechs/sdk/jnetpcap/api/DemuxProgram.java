@@ -0,0 +1,365 @@
+/*
+ * Copyright 2005-2025 Sly Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.slytechs.sdk.jnetpcap.api;
+
+import static com.slytechs.sdk.jnetpcap.api.BpfProgram.*;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Runs up to 64 BPF programs on each packet, evaluating the packet loads and
+ * predicates they have in common only once.
+ *
+ * <p>
+ * Programs compiled by libpcap test the same fields over and over: every
+ * {@code tcp port N} filter loads the EtherType, compares it with IPv4, loads
+ * the protocol and compares it with TCP before getting to the port. When
+ * programs are merged, every absolute load is assigned a shared load slot keyed
+ * by offset and size, and every conditional jump on a constant which directly
+ * follows such a load, and is not itself a jump target, becomes a shared
+ * predicate keyed by load, comparison and constant. Per packet, a load or
+ * predicate is computed by the first program reaching it and read back from its
+ * slot by the others, the slots being invalidated by bumping an epoch rather
+ * than by clearing.
+ * </p>
+ *
+ * <p>
+ * Not thread safe, a program belongs to the capture thread which runs it.
+ * </p>
+ *
+ * @author Mark Bednarczyk [mark@slytechs.com]
+ * @author Sly Technologies Inc.
+ */
+final class DemuxProgram {
+
+	/** Maximum number of merged programs, one bit each in the match mask. */
+	static final int MAX_PROGRAMS = Long.SIZE;
+
+	private static final int NONE = -1;
+
+	/** A program's instructions with the shared slot of each, or {@link #NONE} */
+	private record Compiled(int[] code, int[] jt, int[] jf, int[] k, int[] slot) {}
+
+	private record LoadKey(int k, int size) {}
+
+	private record PredicateKey(int load, int op, int k) {}
+
+	private final Compiled[] programs;
+	private final int predicateCount;
+	private final int sharedPredicateCount;
+
+	/* Per packet memo, valid while the stamp equals the epoch */
+	private final int[] loadStamp;
+	private final int[] loadValue;
+	private final int[] predicateStamp;
+	private final boolean[] predicateValue;
+	private final int[] mem = new int[MEMWORDS];
+	private int epoch;
+
+	/**
+	 * Merges programs.
+	 *
+	 * @param programs the programs, at most {@value #MAX_PROGRAMS}
+	 */
+	DemuxProgram(BpfProgram[] programs) {
+		if (programs.length > MAX_PROGRAMS)
+			throw new IllegalArgumentException("too many programs: " + programs.length);
+
+		final Map<LoadKey, Integer> loads = new HashMap<>();
+		final Map<PredicateKey, Integer> predicates = new HashMap<>();
+
+		this.programs = new Compiled[programs.length];
+		for (int i = 0; i < programs.length; i++)
+			this.programs[i] = merge(programs[i], loads, predicates);
+
+		/* Count the programs using each predicate */
+		final int[] users = new int[predicates.size()];
+		for (Compiled p : this.programs) {
+			final boolean[] seen = new boolean[users.length];
+			for (int pc = 0; pc < p.code().length; pc++) {
+				final int s = p.slot()[pc];
+				if ((p.code()[pc] & 0x07) == JMP && s != NONE && !seen[s]) {
+					seen[s] = true;
+					users[s]++;
+				}
+			}
+		}
+
+		this.predicateCount = predicates.size();
+		this.sharedPredicateCount = (int) Arrays.stream(users).filter(n -> n > 1).count();
+		this.loadStamp = new int[loads.size()];
+		this.loadValue = new int[loads.size()];
+		this.predicateStamp = new int[predicates.size()];
+		this.predicateValue = new boolean[predicates.size()];
+	}
+
+	/**
+	 * Runs all programs on a packet.
+	 *
+	 * @param buffer        the buffer holding the packet data
+	 * @param offset        the offset of the packet data within the buffer
+	 * @param captureLength the number of packet bytes available
+	 * @param wireLength    the original length of the packet
+	 * @return a mask with bit {@code i} set if program {@code i} accepted the
+	 *         packet
+	 */
+	long evaluate(MemorySegment buffer, long offset, int captureLength, int wireLength) {
+		if (++epoch == 0) {
+			Arrays.fill(loadStamp, 0);
+			Arrays.fill(predicateStamp, 0);
+			epoch = 1;
+		}
+
+		long mask = 0;
+		for (int i = 0; i < programs.length; i++) {
+			if (execute(programs[i], buffer, offset, captureLength, wireLength) != 0)
+				mask |= 1L << i;
+		}
+
+		return mask;
+	}
+
+	private int execute(Compiled p, MemorySegment buffer, long offset, int captureLength, int wireLength) {
+		final int[] code = p.code();
+		final int[] slot = p.slot();
+		final int[] mem = this.mem;
+		Arrays.fill(mem, 0);
+
+		int a = 0;
+		int x = 0;
+		int pc = 0;
+
+		while (true) {
+			final int c = code[pc];
+			final int kk = p.k()[pc];
+
+			switch (c & 0x07) {
+			case LD -> {
+				switch (c & 0xE0) {
+				case IMM -> a = kk;
+				case LEN -> a = wireLength;
+				case MEM -> a = mem[kk];
+				case ABS -> {
+					final long v = load(buffer, offset, captureLength, size(c), Integer.toUnsignedLong(kk), slot[pc]);
+					if (v < 0)
+						return 0;
+					a = (int) v;
+				}
+				default -> {
+					final long v = load(buffer, offset, captureLength, size(c),
+							Integer.toUnsignedLong(x) + Integer.toUnsignedLong(kk), NONE);
+					if (v < 0)
+						return 0;
+					a = (int) v;
+				}
+				}
+			}
+			case LDX -> {
+				switch (c & 0xE0) {
+				case IMM -> x = kk;
+				case LEN -> x = wireLength;
+				case MEM -> x = mem[kk];
+				default -> {
+					final long v = load(buffer, offset, captureLength, 1, Integer.toUnsignedLong(kk), slot[pc]);
+					if (v < 0)
+						return 0;
+					x = ((int) v & 0xF) << 2;
+				}
+				}
+			}
+			case ST -> mem[kk] = a;
+			case STX -> mem[kk] = x;
+			case ALU -> {
+				final int operand = ((c & X) != 0) ? x : kk;
+				final int op = c & 0xF0;
+				if ((op == DIV || op == MOD) && operand == 0)
+					return 0;
+
+				a = switch (op) {
+				case ADD -> a + operand;
+				case SUB -> a - operand;
+				case MUL -> a * operand;
+				case DIV -> Integer.divideUnsigned(a, operand);
+				case MOD -> Integer.remainderUnsigned(a, operand);
+				case OR -> a | operand;
+				case AND -> a & operand;
+				case XOR -> a ^ operand;
+				case LSH -> BpfInterpreter.lsh(a, operand);
+				case RSH -> BpfInterpreter.rsh(a, operand);
+				default -> -a;
+				};
+			}
+			case JMP -> {
+				final int op = c & 0xF0;
+				if (op == JA) {
+					pc += kk;
+				} else {
+					final int s = slot[pc];
+					final boolean taken;
+
+					if (s == NONE) {
+						taken = test(op, a, ((c & X) != 0) ? x : kk);
+					} else if (predicateStamp[s] == epoch) {
+						taken = predicateValue[s];
+					} else {
+						taken = test(op, a, kk);
+						predicateValue[s] = taken;
+						predicateStamp[s] = epoch;
+					}
+
+					pc += taken ? p.jt()[pc] : p.jf()[pc];
+				}
+			}
+			case RET -> {
+				return switch (c & 0x18) {
+				case A -> a;
+				case X -> x;
+				default -> kk;
+				};
+			}
+			default -> {
+				if (c == (MISC | TAX))
+					x = a;
+				else
+					a = x;
+			}
+			}
+
+			pc++;
+		}
+	}
+
+	private static boolean isAbsoluteLoad(int code) {
+		return (code & 0x07) == LD && (code & 0xE0) == ABS;
+	}
+
+	/**
+	 * Loads an unsigned value, through its shared slot if it has one.
+	 *
+	 * @return the value, or -1 if the load is past the capture length
+	 */
+	private long load(MemorySegment buffer, long offset, int captureLength, int size, long index, int slot) {
+		if (index + size > captureLength)
+			return -1;
+
+		if (slot != NONE && loadStamp[slot] == epoch)
+			return Integer.toUnsignedLong(loadValue[slot]);
+
+		final long at = offset + index;
+		final int value = switch (size) {
+		case 4 -> buffer.get(BpfInterpreter.BE_INT, at);
+		case 2 -> Short.toUnsignedInt(buffer.get(BpfInterpreter.BE_SHORT, at));
+		default -> Byte.toUnsignedInt(buffer.get(ValueLayout.JAVA_BYTE, at));
+		};
+
+		if (slot != NONE) {
+			loadValue[slot] = value;
+			loadStamp[slot] = epoch;
+		}
+
+		return Integer.toUnsignedLong(value);
+	}
+
+	/**
+	 * Assigns shared load and predicate slots to a program's instructions.
+	 */
+	private static Compiled merge(BpfProgram program, Map<LoadKey, Integer> loads,
+			Map<PredicateKey, Integer> predicates) {
+		final int n = program.code.length;
+		final int[] slot = new int[n];
+		Arrays.fill(slot, NONE);
+
+		/* A jump target can be reached with any value in A */
+		final boolean[] target = new boolean[n];
+		for (int pc = 0; pc < n; pc++) {
+			final int c = program.code[pc];
+			if ((c & 0x07) != JMP)
+				continue;
+
+			if ((c & 0xF0) == JA) {
+				target[pc + 1 + program.k[pc]] = true;
+			} else {
+				target[pc + 1 + program.jt[pc]] = true;
+				target[pc + 1 + program.jf[pc]] = true;
+			}
+		}
+
+		for (int pc = 0; pc < n; pc++) {
+			final int c = program.code[pc];
+			final int k = program.k[pc];
+
+			if (isAbsoluteLoad(c) || c == (LDX | B | MSH)) {
+				final int size = (c == (LDX | B | MSH)) ? 1 : size(c);
+				slot[pc] = loads.computeIfAbsent(new LoadKey(k, size), _ -> loads.size());
+
+			} else if ((c & 0x07) == JMP && (c & 0xF0) != JA && (c & X) == 0
+					&& pc > 0 && !target[pc] && isAbsoluteLoad(program.code[pc - 1])) {
+				final int load = slot[pc - 1];
+				slot[pc] = predicates.computeIfAbsent(new PredicateKey(load, c & 0xF0, k), _ -> predicates.size());
+			}
+		}
+
+		return new Compiled(program.code, program.jt, program.jf, program.k, slot);
+	}
+
+	/**
+	 * Returns the number of distinct predicates across all programs.
+	 *
+	 * @return the predicate count
+	 */
+	int predicateCount() {
+		return predicateCount;
+	}
+
+	/**
+	 * Returns the number of programs merged.
+	 *
+	 * @return the program count
+	 */
+	int programCount() {
+		return programs.length;
+	}
+
+	/**
+	 * Returns the number of predicates used by more than one program.
+	 *
+	 * @return the shared predicate count
+	 */
+	int sharedPredicateCount() {
+		return sharedPredicateCount;
+	}
+
+	private static int size(int code) {
+		return switch (code & 0x18) {
+		case W -> 4;
+		case H -> 2;
+		default -> 1;
+		};
+	}
+
+	private static boolean test(int op, int a, int operand) {
+		return switch (op) {
+		case JEQ -> a == operand;
+		case JGT -> Integer.compareUnsigned(a, operand) > 0;
+		case JGE -> Integer.compareUnsigned(a, operand) >= 0;
+		default -> (a & operand) != 0;
+		};
+	}
+}
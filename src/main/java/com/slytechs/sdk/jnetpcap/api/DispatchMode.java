@@ -0,0 +1,55 @@
+/*
+ * Copyright 2005-2025 Sly Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.slytechs.sdk.jnetpcap.api;
+
+/**
+ * Strategy used by {@link NetPcap} to move packets from libpcap into the packet
+ * pipeline during {@code dispatch()} and {@code loop()} calls.
+ *
+ * <p>
+ * Both modes have identical semantics for packet counts, return values,
+ * {@code breakloop()} and exception handling. They differ only in how control
+ * crosses the native boundary, which allows the cheaper path to be measured and
+ * selected per deployment.
+ * </p>
+ *
+ * @author Mark Bednarczyk [mark@slytechs.com]
+ * @author Sly Technologies Inc.
+ * @see NetPcap#setDispatchMode(DispatchMode)
+ */
+public enum DispatchMode {
+
+	/**
+	 * libpcap's {@code pcap_dispatch} and {@code pcap_loop} call back into Java
+	 * through a native upcall stub for every packet. This is the default.
+	 */
+	UPCALL,
+
+	/**
+	 * A Java-side loop pulls packets with {@code pcap_next_ex} downcalls, avoiding
+	 * the native-to-Java upcall transition entirely.
+	 *
+	 * <p>
+	 * Note that without an upcall there is no notion of a single kernel buffer
+	 * read. {@code dispatch()} with a count of -1 reads a savefile to end of
+	 * file, as {@code pcap_dispatch} does, and on a live capture returns on the
+	 * first read timeout or after
+	 * {@link com.slytechs.jnet.jnetpcap.api.foreign.NetPcapDispatcher#PULL_DISPATCH_LIMIT}
+	 * packets.
+	 * </p>
+	 */
+	PULL;
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright 2005-2025 Sly Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.slytechs.sdk.jnetpcap.api;
+
+import java.time.Duration;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Emits JDK Flight Recorder events for the dispatch cycles of one
+ * {@link NetPcap} handle.
+ *
+ * <p>
+ * Nothing is recorded per packet. A dispatch cycle event is committed once per
+ * {@code dispatch()} or {@code loop()} call, with its packet and byte counts
+ * taken from the handle's {@link CaptureMetrics}. Long running loops are split
+ * into segments of about one second, flagged as partial, so that events appear
+ * while the loop runs. Dissection times are only measured while the slow
+ * dissection event is enabled, and are aggregated into one event per segment
+ * holding the number of packets over the threshold and the slowest time.
+ * Enablement is checked once per cycle, so that disabled events cost nothing on
+ * the per-packet path.
+ * </p>
+ *
+ * <p>
+ * Handler exceptions, breakloop requests and capture statistics samples are
+ * rare and recorded as they happen.
+ * </p>
+ *
+ * @author Mark Bednarczyk [mark@slytechs.com]
+ * @author Sly Technologies Inc.
+ */
+final class DispatchTracer {
+
+	@Name("com.slytechs.sdk.jnetpcap.DispatchCycle")
+	@Label("Dispatch Cycle")
+	@Category({ "jNetPcap", "Capture" })
+	@Description("A dispatch() or loop() call, or a segment of a long running loop")
+	static final class DispatchCycleEvent extends Event {
+
+		@Label("Handle")
+		String handle;
+
+		@Label("Dispatch Mode")
+		String mode;
+
+		@Label("Packets")
+		long packets;
+
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+
+		@Label("Result")
+		@Description("The dispatch or loop return value, 0 for partial segments")
+		int result;
+
+		@Label("Partial")
+		@Description("True for a segment of a loop which had not yet returned")
+		boolean partial;
+	}
+
+	@Name("com.slytechs.sdk.jnetpcap.SlowDissection")
+	@Label("Slow Dissection")
+	@Category({ "jNetPcap", "Capture" })
+	@Description("Packets of a dispatch cycle whose dissection exceeded the slow dissection threshold")
+	static final class SlowDissectionEvent extends Event {
+
+		@Label("Handle")
+		String handle;
+
+		@Label("Slow Packets")
+		long slowPackets;
+
+		@Label("Slowest Dissection")
+		@Timespan
+		long maxDissection;
+
+		@Label("Threshold")
+		@Timespan
+		long threshold;
+	}
+
+	@Name("com.slytechs.sdk.jnetpcap.HandlerException")
+	@Label("Handler Exception")
+	@Category({ "jNetPcap", "Capture" })
+	@Description("An exception thrown by a packet handler")
+	static final class HandlerExceptionEvent extends Event {
+
+		@Label("Handle")
+		String handle;
+
+		@Label("Exception Class")
+		Class<?> exceptionClass;
+
+		@Label("Message")
+		String message;
+	}
+
+	@Name("com.slytechs.sdk.jnetpcap.Breakloop")
+	@Label("Breakloop")
+	@Category({ "jNetPcap", "Capture" })
+	@Description("A request to interrupt a dispatch() or loop() call")
+	static final class BreakloopEvent extends Event {
+
+		@Label("Handle")
+		String handle;
+	}
+
+	@Name("com.slytechs.sdk.jnetpcap.StatsSnapshot")
+	@Label("Capture Statistics")
+	@Category({ "jNetPcap", "Capture" })
+	@Description("A sample of the libpcap ps_recv, ps_drop and ps_ifdrop counters")
+	static final class StatsSnapshotEvent extends Event {
+
+		@Label("Handle")
+		String handle;
+
+		@Label("Received")
+		long received;
+
+		@Label("Dropped")
+		long dropped;
+
+		@Label("Interface Dropped")
+		long interfaceDropped;
+
+		@Label("Received Delta")
+		long receivedDelta;
+
+		@Label("Dropped Delta")
+		long droppedDelta;
+
+		@Label("Interface Dropped Delta")
+		long interfaceDroppedDelta;
+	}
+
+	/** Default dissection time above which a packet counts as slow, 10us. */
+	static final Duration DEFAULT_SLOW_DISSECTION_THRESHOLD = Duration.ofNanos(10_000);
+
+	private static final EventType CYCLE_TYPE = EventType.getEventType(DispatchCycleEvent.class);
+	private static final EventType SLOW_TYPE = EventType.getEventType(SlowDissectionEvent.class);
+
+	/** Length of the segments a long running loop is split into */
+	private static final long SEGMENT_NANOS = 1_000_000_000L;
+
+	private final String handle;
+	private final CaptureMetrics metrics;
+	private volatile long slowThresholdNanos = DEFAULT_SLOW_DISSECTION_THRESHOLD.toNanos();
+
+	/* Cycle state, confined to the capture thread */
+	private boolean cycleTracking;
+	private boolean slowTracking;
+	private DispatchCycleEvent cycle;
+	private String mode;
+	private long segmentStart;
+	private long startPackets;
+	private long startBytes;
+	private long slowPackets;
+	private long maxDissectionNanos;
+
+	DispatchTracer(String handle, CaptureMetrics metrics) {
+		this.handle = handle;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Starts a dispatch cycle. Called on the capture thread.
+	 *
+	 * @param dispatchMode the dispatch mode of the cycle
+	 */
+	void beginCycle(DispatchMode dispatchMode) {
+		cycleTracking = CYCLE_TYPE.isEnabled();
+		slowTracking = SLOW_TYPE.isEnabled();
+
+		if (cycleTracking || slowTracking) {
+			mode = dispatchMode.name();
+			beginSegment(System.nanoTime());
+		}
+	}
+
+	private void beginSegment(long now) {
+		segmentStart = now;
+		startPackets = metrics.getPacketCount();
+		startBytes = metrics.getByteCount();
+		slowPackets = 0;
+		maxDissectionNanos = 0;
+
+		if (cycleTracking) {
+			cycle = new DispatchCycleEvent();
+			cycle.begin();
+		}
+	}
+
+	/**
+	 * Records a breakloop request. May be called from any thread.
+	 */
+	void breakloop() {
+		BreakloopEvent event = new BreakloopEvent();
+		if (event.isEnabled()) {
+			event.handle = handle;
+			event.commit();
+		}
+	}
+
+	/**
+	 * Ends the current segment of a long running cycle, if it is due. Called on
+	 * the capture thread every so many packets.
+	 *
+	 * @param now the current {@link System#nanoTime()}
+	 */
+	void checkpoint(long now) {
+		if ((cycleTracking || slowTracking) && now - segmentStart >= SEGMENT_NANOS) {
+			commitSegment(0, true);
+			beginSegment(now);
+		}
+	}
+
+	private void commitSegment(int result, boolean partial) {
+		if (cycle != null) {
+			cycle.end();
+
+			if (cycle.shouldCommit()) {
+				cycle.handle = handle;
+				cycle.mode = mode;
+				cycle.packets = metrics.getPacketCount() - startPackets;
+				cycle.bytes = metrics.getByteCount() - startBytes;
+				cycle.result = result;
+				cycle.partial = partial;
+				cycle.commit();
+			}
+
+			cycle = null;
+		}
+
+		if (slowTracking && slowPackets > 0) {
+			SlowDissectionEvent event = new SlowDissectionEvent();
+			event.handle = handle;
+			event.slowPackets = slowPackets;
+			event.maxDissection = maxDissectionNanos;
+			event.threshold = slowThresholdNanos;
+			event.commit();
+		}
+	}
+
+	/**
+	 * Ends a dispatch cycle. Called on the capture thread.
+	 *
+	 * @param result the dispatch or loop return value
+	 */
+	void endCycle(int result) {
+		if (cycleTracking || slowTracking)
+			commitSegment(result, false);
+
+		cycleTracking = slowTracking = false;
+	}
+
+	/**
+	 * Records an exception thrown by a packet handler. Called on the capture
+	 * thread.
+	 *
+	 * @param e the exception
+	 */
+	void handlerException(Throwable e) {
+		HandlerExceptionEvent event = new HandlerExceptionEvent();
+		if (event.isEnabled()) {
+			event.handle = handle;
+			event.exceptionClass = e.getClass();
+			event.message = e.getMessage();
+			event.commit();
+		}
+	}
+
+	/**
+	 * Checks if dissection times must be measured during the current cycle.
+	 *
+	 * @return true if the slow dissection event is enabled
+	 */
+	boolean isSlowTracking() {
+		return slowTracking;
+	}
+
+	/**
+	 * Records the dissection time of a packet. Called on the capture thread while
+	 * {@link #isSlowTracking()} is true.
+	 *
+	 * @param nanos the dissection time
+	 */
+	void recordDissection(long nanos) {
+		if (nanos > slowThresholdNanos) {
+			slowPackets++;
+			if (nanos > maxDissectionNanos)
+				maxDissectionNanos = nanos;
+		}
+	}
+
+	/**
+	 * Sets the dissection time above which a packet counts as slow.
+	 *
+	 * @param threshold the threshold
+	 */
+	void setSlowThreshold(Duration threshold) {
+		if (threshold.isNegative())
+			throw new IllegalArgumentException("slow dissection threshold must not be negative: " + threshold);
+
+		this.slowThresholdNanos = threshold.toNanos();
+	}
+
+	/**
+	 * Records a capture statistics sample. Called on the capture thread.
+	 */
+	void statsSnapshot(long received, long dropped, long interfaceDropped,
+			long receivedDelta, long droppedDelta, long interfaceDroppedDelta) {
+		StatsSnapshotEvent event = new StatsSnapshotEvent();
+		if (event.isEnabled()) {
+			event.handle = handle;
+			event.received = received;
+			event.dropped = dropped;
+			event.interfaceDropped = interfaceDropped;
+			event.receivedDelta = receivedDelta;
+			event.droppedDelta = droppedDelta;
+			event.interfaceDroppedDelta = interfaceDroppedDelta;
+			event.commit();
+		}
+	}
+}
@@ -0,0 +1,361 @@
+/*
+ * Copyright 2005-2025 Sly Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.slytechs.sdk.jnetpcap.api;
+
+import java.lang.foreign.MemorySegment;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import com.slytechs.sdk.jnetpcap.PcapException;
+import com.slytechs.sdk.jnetpcap.api.PacketHandler.OfPacketConsumer;
+import com.slytechs.sdk.protocol.core.Packet;
+
+/**
+ * A pipeline stage which routes the packets of one capture handle to many
+ * subscribers, each with its own filter expression.
+ *
+ * <p>
+ * Instead of one handle, and one kernel buffer, per filter, the handle is
+ * opened once. Its native filter is set to the union of all subscribed
+ * expressions, so the kernel only copies packets at least one subscriber wants.
+ * In the JVM, each packet is then run through all subscribers' programs merged
+ * into a single structure which evaluates the packet loads and comparisons they
+ * share only once, before the packet is bound or dissected. Packets are
+ * delivered to each matching subscriber in subscription order; subscribers
+ * with identical programs share a single evaluation.
+ * </p>
+ *
+ * <p>
+ * The demultiplexer owns the handle's packet filter stage, see
+ * {@link NetPcap#setPacketFilter(BpfExecutable)}, and is used as the handler of
+ * {@code dispatch()} or {@code loop()}. Up to {@value #MAX_FILTERS} distinct
+ * filter programs may be subscribed. An empty or blank expression matches every
+ * packet, and then no native filter is set. Subscribing and unsubscribing
+ * replace the native filter, so they must be done from the capture thread or
+ * while no capture is running.
+ * </p>
+ *
+ * <pre>{@code
+ * FilterDemux demux = pcap.demux();
+ * demux.subscribe("tcp port 80", http::accept);
+ * demux.subscribe("udp port 53", dns::accept);
+ * demux.subscribe("icmp or icmp6", icmp::accept);
+ *
+ * pcap.loop(-1, demux);
+ * }</pre>
+ *
+ * @author Mark Bednarczyk [mark@slytechs.com]
+ * @author Sly Technologies Inc.
+ * @see NetPcap#demux()
+ */
+public final class FilterDemux implements OfPacketConsumer, AutoCloseable {
+
+	/** Maximum number of distinct filter programs. */
+	public static final int MAX_FILTERS = DemuxProgram.MAX_PROGRAMS;
+
+	/** The empty expression, which libpcap compiles to accept every packet */
+	private static final String ACCEPT_ALL = "";
+
+	/**
+	 * A subscriber's filter and handler.
+	 */
+	public final class Subscription implements AutoCloseable {
+
+		private final String expression;
+		private final OfPacketConsumer handler;
+		/* Written by the capture thread only, read from any thread */
+		private final AtomicLong packets = new AtomicLong();
+
+		private Subscription(String expression, OfPacketConsumer handler) {
+			this.expression = expression;
+			this.handler = handler;
+		}
+
+		/**
+		 * Unsubscribes, replacing the native filter if no other subscriber uses
+		 * this expression.
+		 *
+		 * @throws PcapException if the new union filter can not be set
+		 */
+		@Override
+		public void close() throws PcapException {
+			unsubscribe(this);
+		}
+
+		/**
+		 * Returns the filter expression.
+		 *
+		 * @return the expression
+		 */
+		public String expression() {
+			return expression;
+		}
+
+		/**
+		 * Returns the number of packets delivered to this subscriber.
+		 *
+		 * @return the packet count
+		 */
+		public long packetCount() {
+			return packets.getOpaque();
+		}
+
+		@Override
+		public String toString() {
+			return "Subscription[expression=\"%s\", packets=%d]".formatted(expression, packetCount());
+		}
+	}
+
+	/**
+	 * The merged program of a set of subscriptions, replaced as a whole when
+	 * subscriptions change.
+	 */
+	private static final class Routing {
+		final DemuxProgram program;
+		final Subscription[][] subscribers;
+		long matched;
+
+		Routing(DemuxProgram program, Subscription[][] subscribers) {
+			this.program = program;
+			this.subscribers = subscribers;
+		}
+	}
+
+	private final NetPcap pcap;
+	private final List<Subscription> subscriptions = new ArrayList<>();
+	private final Map<String, BpfProgram> programs = new HashMap<>();
+	private volatile Routing routing;
+
+	/* Capture thread only, the routing which evaluated the current packet */
+	private Routing current;
+
+	/**
+	 * Instantiates a demultiplexer and installs it as the handle's packet filter.
+	 *
+	 * @param pcap the capture handle
+	 */
+	FilterDemux(NetPcap pcap) {
+		this.pcap = Objects.requireNonNull(pcap, "pcap");
+		this.routing = new Routing(new DemuxProgram(new BpfProgram[0]), new Subscription[0][]);
+		this.current = routing;
+
+		pcap.setPacketFilter(this::evaluate);
+	}
+
+	/**
+	 * Delivers a packet to the subscribers whose filter accepted it. Capture
+	 * thread only.
+	 *
+	 * @param packet the packet
+	 */
+	@Override
+	public void accept(Packet packet) {
+		final Routing r = current;
+
+		long mask = r.matched;
+		while (mask != 0) {
+			final int i = Long.numberOfTrailingZeros(mask);
+			mask &= mask - 1;
+
+			for (Subscription s : r.subscribers[i]) {
+				s.packets.setOpaque(s.packets.getPlain() + 1);
+				s.handler.accept(packet);
+			}
+		}
+	}
+
+	/**
+	 * Unsubscribes everyone, resets the native filter to accept every packet and
+	 * removes the packet filter stage from the handle.
+	 *
+	 * @throws PcapException if the native filter can not be reset
+	 */
+	@Override
+	public synchronized void close() throws PcapException {
+		subscriptions.clear();
+		programs.clear();
+		rebuild();
+
+		pcap.setPacketFilter(null);
+		updateNativeFilter();
+	}
+
+	private int evaluate(MemorySegment buffer, long offset, int captureLength, int wireLength) {
+		final Routing r = routing;
+		current = r;
+
+		r.matched = r.program.evaluate(buffer, offset, captureLength, wireLength);
+
+		return (r.matched != 0) ? 1 : 0;
+	}
+
+	/**
+	 * Returns the number of distinct filter programs.
+	 *
+	 * @return the filter count
+	 */
+	public int filterCount() {
+		return routing.program.programCount();
+	}
+
+	/**
+	 * Returns the number of distinct predicates, comparisons of a packet field
+	 * with a constant, across all filters.
+	 *
+	 * @return the predicate count
+	 */
+	public int predicateCount() {
+		return routing.program.predicateCount();
+	}
+
+	/**
+	 * Rebuilds the merged program and routing table from the subscriptions, in
+	 * subscription order.
+	 */
+	private void rebuild() {
+		Map<BpfProgram, List<Subscription>> groups = new LinkedHashMap<>();
+		for (Subscription s : subscriptions)
+			groups.computeIfAbsent(programs.get(s.expression), _ -> new ArrayList<>()).add(s);
+
+		Subscription[][] subscribers = groups.values().stream()
+				.map(list -> list.toArray(Subscription[]::new))
+				.toArray(Subscription[][]::new);
+
+		this.routing = new Routing(
+				new DemuxProgram(groups.keySet().toArray(BpfProgram[]::new)),
+				subscribers);
+	}
+
+	/**
+	 * Forgets the program of an expression no subscription uses any more.
+	 */
+	private void releaseProgram(String expression) {
+		if (subscriptions.stream().noneMatch(s -> s.expression.equals(expression)))
+			programs.remove(expression);
+	}
+
+	/**
+	 * Returns the number of predicates evaluated once per packet on behalf of more
+	 * than one filter.
+	 *
+	 * @return the shared predicate count
+	 */
+	public int sharedPredicateCount() {
+		return routing.program.sharedPredicateCount();
+	}
+
+	/**
+	 * Subscribes a handler to the packets matching a filter expression.
+	 *
+	 * @param expression the filter expression
+	 * @param handler    the handler, called on the capture thread
+	 * @return the subscription, closed to unsubscribe
+	 * @throws PcapException         if the expression does not compile or the
+	 *                               union filter can not be set
+	 * @throws IllegalStateException if {@value #MAX_FILTERS} distinct filters are
+	 *                               already subscribed
+	 */
+	public synchronized Subscription subscribe(String expression, OfPacketConsumer handler) throws PcapException {
+		Objects.requireNonNull(expression, "expression");
+		Objects.requireNonNull(handler, "handler");
+
+		BpfProgram program = programs.get(expression);
+		if (program == null) {
+			program = pcap.compileProgram(expression.isBlank() ? ACCEPT_ALL : expression, true);
+
+			if (!programs.containsValue(program) && filterCount() >= MAX_FILTERS)
+				throw new IllegalStateException("too many distinct filters: " + MAX_FILTERS);
+
+			programs.put(expression, program);
+		}
+
+		Subscription subscription = new Subscription(expression, handler);
+		subscriptions.add(subscription);
+
+		try {
+			updateNativeFilter();
+		} catch (PcapException | RuntimeException e) {
+			subscriptions.remove(subscription);
+			releaseProgram(expression);
+			throw e;
+		}
+
+		rebuild();
+
+		return subscription;
+	}
+
+	/**
+	 * Returns the number of subscriptions.
+	 *
+	 * @return the subscriber count
+	 */
+	public synchronized int subscriberCount() {
+		return subscriptions.size();
+	}
+
+	@Override
+	public String toString() {
+		return "FilterDemux[subscribers=%d, filters=%d, predicates=%d, shared=%d]"
+				.formatted(subscriberCount(), filterCount(), predicateCount(), sharedPredicateCount());
+	}
+
+	/**
+	 * Returns the union of all subscribed expressions.
+	 *
+	 * @return the union filter expression, empty if a subscriber matches every
+	 *         packet, or null if there are no subscribers
+	 */
+	public synchronized String unionExpression() {
+		if (subscriptions.isEmpty())
+			return null;
+
+		if (subscriptions.stream().anyMatch(s -> s.expression.isBlank()))
+			return ACCEPT_ALL;
+
+		return subscriptions.stream()
+				.map(Subscription::expression)
+				.distinct()
+				.map(e -> "(" + e + ")")
+				.collect(Collectors.joining(" or "));
+	}
+
+	private synchronized void unsubscribe(Subscription subscription) throws PcapException {
+		if (!subscriptions.remove(subscription))
+			return;
+
+		releaseProgram(subscription.expression);
+		rebuild();
+		updateNativeFilter();
+	}
+
+	/**
+	 * Sets the native filter to the union of all subscribed expressions, or to
+	 * accept every packet once the last subscriber has left or if a subscriber
+	 * matches every packet.
+	 */
+	private void updateNativeFilter() throws PcapException {
+		String union = unionExpression();
+
+		pcap.setFilter((union != null) ? union : ACCEPT_ALL);
+	}
+}
@@ -0,0 +1,411 @@
+/*
+ * Copyright 2005-2025 Sly Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.slytechs.sdk.jnetpcap.api;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+
+import com.slytechs.sdk.protocol.core.Packet;
+
+/**
+ * Computes a symmetric 5-tuple flow hash directly from raw frame bytes.
+ *
+ * <p>
+ * Both directions of a flow produce the same hash, by ordering the two
+ * endpoints before mixing. Fragmented IP datagrams are hashed on addresses and
+ * protocol only, so that all fragments of a datagram land in the same place as
+ * each other. Non-IP frames are hashed on their ethertype.
+ * </p>
+ *
+ * <p>
+ * A tunnel-aware hash, see {@link #innerHash(MemorySegment, int)}, descends
+ * through IP-in-IP, GRE, VXLAN and GTP-U encapsulations and hashes the
+ * innermost 5-tuple, spreading traffic carried by a few tunnels the same way
+ * NIC RSS with inner hashing would.
+ * </p>
+ *
+ * <p>
+ * The hash is computed from frame bytes rather than from a dissected
+ * descriptor, so it can be used on the capture thread before, and independent
+ * of, protocol dissection. It reads only the bytes it needs and never
+ * allocates.
+ * </p>
+ *
+ * @author Mark Bednarczyk [mark@slytechs.com]
+ * @author Sly Technologies Inc.
+ */
+public final class FlowHash {
+
+	/** Ethernet link type. */
+	static final int DLT_EN10MB = 1;
+
+	/** Raw IP link type (BSD value). */
+	static final int DLT_RAW = 12;
+
+	/** Raw IP link type (OpenBSD value). */
+	static final int DLT_RAW_OPENBSD = 14;
+
+	/** Raw IP link type (pcap file value). */
+	static final int LINKTYPE_RAW = 101;
+
+	/** Linux cooked capture link type. */
+	static final int DLT_LINUX_SLL = 113;
+
+	/** Raw IPv4 link type. */
+	static final int DLT_IPV4 = 228;
+
+	/** Raw IPv6 link type. */
+	static final int DLT_IPV6 = 229;
+
+	static final ValueLayout.OfShort U16 = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+	static final ValueLayout.OfInt U32 = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+	static final ValueLayout.OfLong U64 = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+
+	static final int ETHERTYPE_IPV4 = 0x0800;
+	static final int ETHERTYPE_IPV6 = 0x86DD;
+	static final int ETHERTYPE_VLAN = 0x8100;
+	static final int ETHERTYPE_QINQ = 0x88A8;
+	static final int ETHERTYPE_QINQ_OLD = 0x9100;
+	static final int ETHERTYPE_MPLS = 0x8847;
+	static final int ETHERTYPE_MPLS_MCAST = 0x8848;
+	static final int ETHERTYPE_PPPOE = 0x8864;
+	static final int ETHERTYPE_TEB = 0x6558;
+
+	static final int PROTO_IPIP = 4;
+	static final int PROTO_TCP = 6;
+	static final int PROTO_UDP = 17;
+	static final int PROTO_IPV6 = 41;
+	static final int PROTO_GRE = 47;
+	static final int PROTO_SCTP = 132;
+
+	static final int PORT_VXLAN = 4789;
+	static final int PORT_GTPU = 2152;
+
+	/** Maximum number of encapsulations followed by the tunnel-aware hash. */
+	static final int MAX_TUNNEL_DEPTH = 4;
+
+	private static final long K1 = 0x9E3779B97F4A7C15L;
+	private static final long K2 = 0xC2B2AE3D27D4EB4FL;
+
+	private FlowHash() {}
+
+	/**
+	 * Final avalanche step, from MurmurHash3's fmix64.
+	 */
+	static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+
+		return h;
+	}
+
+	/**
+	 * Combines two endpoints and a protocol into a direction independent hash.
+	 */
+	static int symmetric(long endpointA, long endpointB, int protocol) {
+		long lo = Math.min(endpointA, endpointB);
+		long hi = Math.max(endpointA, endpointB);
+
+		long h = mix(lo * K1 + hi) ^ mix(protocol * K2 + hi);
+
+		return (int) (h ^ (h >>> 32));
+	}
+
+	/**
+	 * Computes the symmetric flow hash of a frame's outermost 5-tuple.
+	 *
+	 * @param frame    the frame data, sized to the capture length
+	 * @param linkType the pcap link type (DLT) of the frame
+	 * @return the flow hash
+	 */
+	public static int hash(MemorySegment frame, int linkType) {
+		return hash(frame, linkType, 0);
+	}
+
+	/**
+	 * Computes the symmetric flow hash of a packet.
+	 *
+	 * @param packet      the packet
+	 * @param linkType    the pcap link type (DLT) of the packet
+	 * @param tunnelAware if true, hash the innermost 5-tuple of tunneled packets
+	 * @return the flow hash
+	 */
+	public static int hash(Packet packet, int linkType, boolean tunnelAware) {
+		return hash(packet.view().segment(), packet.view().start(), packet.captureLength(), linkType,
+				tunnelAware ? MAX_TUNNEL_DEPTH : 0);
+	}
+
+	private static int hash(MemorySegment frame, int linkType, int tunnels) {
+		return hash(frame, 0, frame.byteSize(), linkType, tunnels);
+	}
+
+	/**
+	 * Hashes a frame in place within a larger buffer, without slicing it.
+	 */
+	private static int hash(MemorySegment buffer, long start, long length, int linkType, int tunnels) {
+		final long limit = start + length;
+
+		return switch (linkType) {
+		case DLT_EN10MB -> hashEthernet(buffer, start, limit, tunnels);
+		case DLT_RAW, DLT_RAW_OPENBSD, LINKTYPE_RAW, DLT_IPV4, DLT_IPV6 -> hashIp(buffer, start, limit, tunnels);
+		case DLT_LINUX_SLL -> (length < 16)
+				? 0
+				: hashEtherType(buffer, Short.toUnsignedInt(buffer.get(U16, start + 14)), start + 16, limit, tunnels);
+		default -> 0;
+		};
+	}
+
+	/**
+	 * Computes the symmetric flow hash of a frame's innermost 5-tuple, descending
+	 * through IP-in-IP, IPv6-in-IP, GRE, VXLAN and GTP-U encapsulations.
+	 *
+	 * @param frame    the frame data, sized to the capture length
+	 * @param linkType the pcap link type (DLT) of the frame
+	 * @return the flow hash
+	 */
+	public static int innerHash(MemorySegment frame, int linkType) {
+		return hash(frame, linkType, MAX_TUNNEL_DEPTH);
+	}
+
+	private static int hashEthernet(MemorySegment frame, long offset, long limit, int tunnels) {
+		if (offset + 14 > limit)
+			return 0;
+
+		return hashEtherType(frame, Short.toUnsignedInt(frame.get(U16, offset + 12)), offset + 14, limit, tunnels);
+	}
+
+	private static int hashEtherType(MemorySegment frame, int etherType, long offset, long limit, int tunnels) {
+
+		while (true) {
+			switch (etherType) {
+			case ETHERTYPE_VLAN, ETHERTYPE_QINQ, ETHERTYPE_QINQ_OLD:
+				if (offset + 4 > limit)
+					return etherType;
+				etherType = Short.toUnsignedInt(frame.get(U16, offset + 2));
+				offset += 4;
+				break;
+
+			case ETHERTYPE_MPLS, ETHERTYPE_MPLS_MCAST:
+				/* Skip label stack up to bottom-of-stack, then guess IP version */
+				while (true) {
+					if (offset + 4 > limit)
+						return etherType;
+					int label = frame.get(U32, offset);
+					offset += 4;
+					if ((label & 0x100) != 0)
+						break;
+				}
+				return hashIp(frame, offset, limit, tunnels);
+
+			case ETHERTYPE_PPPOE:
+				if (offset + 8 > limit)
+					return etherType;
+				int pppProtocol = Short.toUnsignedInt(frame.get(U16, offset + 6));
+				offset += 8;
+				if (pppProtocol == 0x0021)
+					return hashIp4(frame, offset, limit, tunnels);
+				if (pppProtocol == 0x0057)
+					return hashIp6(frame, offset, limit, tunnels);
+				return pppProtocol;
+
+			case ETHERTYPE_IPV4:
+				return hashIp4(frame, offset, limit, tunnels);
+
+			case ETHERTYPE_IPV6:
+				return hashIp6(frame, offset, limit, tunnels);
+
+			default:
+				return (int) mix(etherType);
+			}
+		}
+	}
+
+	private static int hashIp(MemorySegment frame, long offset, long limit, int tunnels) {
+		if (offset >= limit)
+			return 0;
+
+		int version = (frame.get(ValueLayout.JAVA_BYTE, offset) >> 4) & 0xF;
+
+		return switch (version) {
+		case 4 -> hashIp4(frame, offset, limit, tunnels);
+		case 6 -> hashIp6(frame, offset, limit, tunnels);
+		default -> 0;
+		};
+	}
+
+	private static int hashIp4(MemorySegment frame, long offset, long limit, int tunnels) {
+		if (offset + 20 > limit)
+			return 0;
+
+		int ihl = (frame.get(ValueLayout.JAVA_BYTE, offset) & 0xF) << 2;
+		int fragment = Short.toUnsignedInt(frame.get(U16, offset + 6)) & 0x3FFF; // MF + offset
+		int protocol = frame.get(ValueLayout.JAVA_BYTE, offset + 9) & 0xFF;
+		long src = Integer.toUnsignedLong(frame.get(U32, offset + 12));
+		long dst = Integer.toUnsignedLong(frame.get(U32, offset + 16));
+
+		if (fragment != 0)
+			return symmetric(src, dst, protocol);
+
+		return hashTransport(frame, src, dst, protocol, offset + ihl, limit, tunnels);
+	}
+
+	private static int hashIp6(MemorySegment frame, long offset, long limit, int tunnels) {
+		if (offset + 40 > limit)
+			return 0;
+
+		int next = frame.get(ValueLayout.JAVA_BYTE, offset + 6) & 0xFF;
+		long src = mix(frame.get(U64, offset + 8)) ^ frame.get(U64, offset + 16);
+		long dst = mix(frame.get(U64, offset + 24)) ^ frame.get(U64, offset + 32);
+
+		offset += 40;
+
+		/* Walk extension headers up to the upper layer protocol */
+		while (true) {
+			switch (next) {
+			case 0, 43, 60: // Hop-by-hop, routing, destination options
+				if (offset + 8 > limit)
+					return symmetric(src, dst, next);
+				int len = ((frame.get(ValueLayout.JAVA_BYTE, offset + 1) & 0xFF) + 1) << 3;
+				next = frame.get(ValueLayout.JAVA_BYTE, offset) & 0xFF;
+				offset += len;
+				break;
+
+			case 44: // Fragment, hash on addresses only
+				if (offset + 8 > limit)
+					return symmetric(src, dst, next);
+				return symmetric(src, dst, frame.get(ValueLayout.JAVA_BYTE, offset) & 0xFF);
+
+			default:
+				return hashTransport(frame, src, dst, next, offset, limit, tunnels);
+			}
+		}
+	}
+
+	private static int hashTransport(MemorySegment frame, long src, long dst, int protocol, long offset, long limit,
+			int tunnels) {
+
+		if (tunnels > 0) {
+			int inner = switch (protocol) {
+			case PROTO_IPIP -> hashIp4(frame, offset, limit, tunnels - 1);
+			case PROTO_IPV6 -> hashIp6(frame, offset, limit, tunnels - 1);
+			case PROTO_GRE -> hashGre(frame, offset, limit, tunnels - 1);
+			case PROTO_UDP -> hashUdpTunnel(frame, offset, limit, tunnels - 1);
+			default -> 0;
+			};
+
+			if (inner != 0)
+				return inner;
+		}
+
+		if ((protocol != PROTO_TCP && protocol != PROTO_UDP && protocol != PROTO_SCTP) || offset + 4 > limit)
+			return symmetric(src, dst, protocol);
+
+		int srcPort = Short.toUnsignedInt(frame.get(U16, offset));
+		int dstPort = Short.toUnsignedInt(frame.get(U16, offset + 2));
+
+		return symmetric(src * 31 + srcPort, dst * 31 + dstPort, protocol);
+	}
+
+	/**
+	 * Hashes the payload of a GRE header, or returns 0 if not hashable.
+	 */
+	private static int hashGre(MemorySegment frame, long offset, long limit, int tunnels) {
+		if (offset + 4 > limit)
+			return 0;
+
+		int flags = Short.toUnsignedInt(frame.get(U16, offset));
+		int etherType = Short.toUnsignedInt(frame.get(U16, offset + 2));
+
+		if ((flags & 0x7) != 0) // Only GRE version 0
+			return 0;
+
+		long payload = offset + 4;
+		if ((flags & 0x8000) != 0) // Checksum present
+			payload += 4;
+		if ((flags & 0x2000) != 0) // Key present
+			payload += 4;
+		if ((flags & 0x1000) != 0) // Sequence present
+			payload += 4;
+
+		return switch (etherType) {
+		case ETHERTYPE_IPV4 -> hashIp4(frame, payload, limit, tunnels);
+		case ETHERTYPE_IPV6 -> hashIp6(frame, payload, limit, tunnels);
+		case ETHERTYPE_TEB -> hashEthernet(frame, payload, limit, tunnels);
+		default -> 0;
+		};
+	}
+
+	/**
+	 * Hashes the payload of a VXLAN or GTP-U encapsulation, or returns 0 if the
+	 * UDP datagram is not a known tunnel.
+	 */
+	private static int hashUdpTunnel(MemorySegment frame, long offset, long limit, int tunnels) {
+		if (offset + 8 > limit)
+			return 0;
+
+		int srcPort = Short.toUnsignedInt(frame.get(U16, offset));
+		int dstPort = Short.toUnsignedInt(frame.get(U16, offset + 2));
+		long payload = offset + 8;
+
+		if (dstPort == PORT_VXLAN)
+			return hashEthernet(frame, payload + 8, limit, tunnels);
+
+		if (dstPort == PORT_GTPU || srcPort == PORT_GTPU)
+			return hashGtpu(frame, payload, limit, tunnels);
+
+		return 0;
+	}
+
+	private static int hashGtpu(MemorySegment frame, long offset, long limit, int tunnels) {
+		if (offset + 8 > limit)
+			return 0;
+
+		int flags = frame.get(ValueLayout.JAVA_BYTE, offset) & 0xFF;
+		int messageType = frame.get(ValueLayout.JAVA_BYTE, offset + 1) & 0xFF;
+
+		if ((flags >> 5) != 1 || messageType != 0xFF) // Version 1, G-PDU only
+			return 0;
+
+		long payload = offset + 8;
+
+		if ((flags & 0x07) != 0) { // E, S or PN flag adds 4 bytes
+			if (payload + 4 > limit)
+				return 0;
+
+			int nextExtension = frame.get(ValueLayout.JAVA_BYTE, payload + 3) & 0xFF;
+			payload += 4;
+
+			/* Walk extension headers, each length is in 4 byte units */
+			while ((flags & 0x04) != 0 && nextExtension != 0) {
+				if (payload + 1 > limit)
+					return 0;
+
+				int length = (frame.get(ValueLayout.JAVA_BYTE, payload) & 0xFF) << 2;
+				if (length == 0 || payload + length > limit)
+					return 0;
+
+				nextExtension = frame.get(ValueLayout.JAVA_BYTE, payload + length - 1) & 0xFF;
+				payload += length;
+			}
+		}
+
+		return hashIp(frame, payload, limit, tunnels);
+	}
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright 2005-2025 Sly Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.slytechs.sdk.jnetpcap.api;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+
+import com.slytechs.sdk.common.time.TimestampUnit;
+import com.slytechs.sdk.jnetpcap.api.PacketHandler.OfPacketConsumer;
+import com.slytechs.sdk.protocol.core.Packet;
+import com.slytechs.sdk.protocol.core.PacketSettings;
+import com.slytechs.sdk.protocol.core.descriptor.DescriptorType;
+
+/**
+ * A pipeline stage which routes packets to N shards by symmetric flow hash.
+ *
+ * <p>
+ * Each shard is a lock-free, single-producer single-consumer ring of off-heap
+ * memory reserved up front, fed by the capture thread and drained by a single
+ * consumer thread of the application's choosing. Both directions of a flow hash
+ * to the same shard and each ring is FIFO, so packets of a flow are delivered
+ * in capture order. The capture buffer is only valid for the duration of the
+ * callback, so each frame is copied into its shard's ring, and the consumer
+ * binds it to a packet the shard reuses. Routing allocates nothing per packet.
+ * When a shard's ring is full the packet is dropped and counted against that
+ * shard, the capture thread never blocks.
+ * </p>
+ *
+ * <pre>{@code
+ * try (FlowShardRouter router = pcap.shardRouter(4, FlowShardRouter.DEFAULT_RING_SIZE, true)) {
+ * 	for (int i = 0; i < router.shardCount(); i++) {
+ * 		FlowShardRouter.Shard shard = router.shard(i);
+ * 		Thread.ofPlatform().start(() -> {
+ * 			while (running) {
+ * 				Packet packet = shard.poll();
+ * 				if (packet != null)
+ * 					process(packet); // Valid until the next poll
+ * 			}
+ * 		});
+ * 	}
+ *
+ * 	pcap.loop(-1, router);
+ * }
+ * }</pre>
+ *
+ * @author Mark Bednarczyk [mark@slytechs.com]
+ * @author Sly Technologies Inc.
+ * @see NetPcap#shardRouter(int, long, boolean)
+ * @see FlowHash
+ */
+public final class FlowShardRouter implements OfPacketConsumer, AutoCloseable {
+
+	/**
+	 * A shard's ring, drained by exactly one consumer thread.
+	 */
+	public static final class Shard {
+
+		private final FrameRing ring;
+		private final PacketPipeline pipeline;
+		private final Packet packet;
+		private final MemorySegment header;
+		private boolean held;
+
+		private Shard(FrameRing ring, PacketPipeline pipeline, MemorySegment header) {
+			this.ring = ring;
+			this.pipeline = pipeline;
+			this.packet = pipeline.newPacket();
+			this.header = header;
+		}
+
+		/**
+		 * Returns the number of packets waiting in the ring. May be called from any
+		 * thread.
+		 *
+		 * @return the queue depth in packets
+		 */
+		public long depth() {
+			return ring.depth();
+		}
+
+		/**
+		 * Returns the number of packets dropped because the ring was full. May be
+		 * called from any thread.
+		 *
+		 * @return the drop count
+		 */
+		public long drops() {
+			return ring.drops();
+		}
+
+		/**
+		 * Retrieves the next packet. The packet is reused and remains valid until the
+		 * next call to {@code poll()} or {@link #release()}, call
+		 * {@code packet.persist()} to keep it longer. Consumer thread only.
+		 *
+		 * @return the next packet, or null if the ring is empty
+		 */
+		public Packet poll() {
+			release();
+
+			if (!ring.poll())
+				return null;
+
+			held = true;
+
+			MemorySegment.copy(ring.buffer(), ring.headerOffset(), header, 0, RECORD_HEADER);
+
+			return pipeline.processPacket(header, ring.buffer(), ring.dataOffset(), ring.dataLength(), packet);
+		}
+
+		/**
+		 * Returns the last polled packet's ring space to the capture thread, before
+		 * the next poll. Consumer thread only.
+		 */
+		public void release() {
+			if (held) {
+				held = false;
+				ring.release();
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "Shard[depth=%d, drops=%d]".formatted(depth(), drops());
+		}
+	}
+
+	/** Default size of each shard's ring. */
+	public static final long DEFAULT_RING_SIZE = 8 * 1024 * 1024;
+
+	/** Packed capture header stored with each frame */
+	private static final int RECORD_HEADER = 16;
+
+	private static final long MICROS_PER_SECOND = 1_000_000;
+	private static final long NANOS_PER_SECOND = 1_000_000_000;
+
+	private final Arena arena;
+	private final Shard[] shards;
+	private final MemorySegment header;
+	private final int linkType;
+	private final long unitsPerSecond;
+	private final boolean tunnelAware;
+
+	/**
+	 * Instantiates a new flow shard router.
+	 *
+	 * @param shardCount    the number of shards
+	 * @param ringSize      the size of each shard's ring in bytes
+	 * @param linkType      the pcap link type (DLT) of routed packets, where
+	 *                      polled packets are dissected from
+	 * @param timestampUnit the unit of routed packet timestamps, either
+	 *                      {@link TimestampUnit#EPOCH_MICRO} or
+	 *                      {@link TimestampUnit#EPOCH_NANO}
+	 * @param tunnelAware   if true, route tunneled packets by their innermost
+	 *                      5-tuple
+	 * @param settings      the packet settings of packets polled from the shards
+	 */
+	FlowShardRouter(int shardCount, long ringSize, int linkType, TimestampUnit timestampUnit, boolean tunnelAware,
+			PacketSettings settings) {
+		if (shardCount <= 0)
+			throw new IllegalArgumentException("shard count must be positive: " + shardCount);
+		if (ringSize <= 0)
+			throw new IllegalArgumentException("ring size must be positive: " + ringSize);
+
+		this.arena = Arena.ofShared();
+		this.shards = new Shard[shardCount];
+		this.header = arena.allocate(RECORD_HEADER, 8);
+		this.linkType = linkType;
+		this.unitsPerSecond = (timestampUnit == TimestampUnit.EPOCH_NANO) ? NANOS_PER_SECOND : MICROS_PER_SECOND;
+		this.tunnelAware = tunnelAware;
+
+		for (int i = 0; i < shardCount; i++) {
+			var pipeline = new PacketPipeline(null, CaptureHeader.Packed.INSTANCE, DescriptorType.PCAP_PACKED, settings,
+					linkType);
+			pipeline.setTimestampUnit(timestampUnit);
+
+			shards[i] = new Shard(new FrameRing(arena, ringSize, RECORD_HEADER), pipeline,
+					arena.allocate(RECORD_HEADER, 8));
+		}
+	}
+
+	/**
+	 * Copies a packet into its shard's ring. Capture thread only.
+	 *
+	 * @param packet the packet
+	 */
+	@Override
+	public void accept(Packet packet) {
+		final long timestamp = packet.timestamp();
+
+		header.set(ValueLayout.JAVA_INT_UNALIGNED, 0, (int) (timestamp / unitsPerSecond));
+		header.set(ValueLayout.JAVA_INT_UNALIGNED, 4, (int) (timestamp % unitsPerSecond));
+		header.set(ValueLayout.JAVA_INT_UNALIGNED, 8, packet.captureLength());
+		header.set(ValueLayout.JAVA_INT_UNALIGNED, 12, packet.wireLength());
+
+		shards[shardOf(packet)].ring.offer(header, packet.view().segment(), packet.view().start(),
+				packet.captureLength());
+	}
+
+	/**
+	 * Releases the ring memory. Consumers must have stopped polling, and packets
+	 * polled from the shards are no longer valid.
+	 */
+	@Override
+	public void close() {
+		arena.close();
+	}
+
+	/**
+	 * Returns the number of packets waiting in a shard's ring.
+	 *
+	 * @param shard the shard index
+	 * @return the queue depth in packets
+	 */
+	public long depth(int shard) {
+		return shards[shard].depth();
+	}
+
+	/**
+	 * Returns the total number of packets dropped because a shard's ring was full.
+	 *
+	 * @return the drop count
+	 */
+	public long dropCount() {
+		long total = 0;
+		for (Shard shard : shards)
+			total += shard.drops();
+
+		return total;
+	}
+
+	/**
+	 * Returns the number of packets dropped because a shard's ring was full.
+	 *
+	 * @param shard the shard index
+	 * @return the drop count
+	 */
+	public long drops(int shard) {
+		return shards[shard].drops();
+	}
+
+	/**
+	 * Checks if tunneled packets are routed by their innermost 5-tuple.
+	 *
+	 * @return true if tunnel aware
+	 */
+	public boolean isTunnelAware() {
+		return tunnelAware;
+	}
+
+	/**
+	 * Returns a shard. Exactly one thread may poll each shard.
+	 *
+	 * @param shard the shard index
+	 * @return the shard
+	 */
+	public Shard shard(int shard) {
+		return shards[shard];
+	}
+
+	/**
+	 * Returns the number of shards.
+	 *
+	 * @return the shard count
+	 */
+	public int shardCount() {
+		return shards.length;
+	}
+
+	/**
+	 * Returns the shard index a packet is routed to.
+	 *
+	 * @param packet the packet
+	 * @return the shard index
+	 */
+	public int shardOf(Packet packet) {
+		return Math.floorMod(FlowHash.hash(packet, linkType, tunnelAware), shards.length);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder b = new StringBuilder("FlowShardRouter[");
+		for (int i = 0; i < shards.length; i++)
+			b.append(i == 0 ? "" : ", ").append(shards[i]);
+
+		return b.append(']').toString();
+	}
+}
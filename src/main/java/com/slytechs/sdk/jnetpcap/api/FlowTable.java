@@ -0,0 +1,773 @@
+/*
+ * Copyright 2005-2025 Sly Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.slytechs.sdk.jnetpcap.api;
+
+import static com.slytechs.sdk.jnetpcap.api.HeaderIndex.*;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import com.slytechs.sdk.jnetpcap.api.PacketHandler.OfPacketConsumer;
+import com.slytechs.sdk.protocol.core.Packet;
+
+/**
+ * A pipeline stage which tracks bidirectional flows by 5-tuple in an off-heap,
+ * open addressing hash table, ending them on idle and active timeouts.
+ *
+ * <p>
+ * Both directions of a flow share one entry, keyed by protocol, addresses and
+ * ports. Tunneled packets are accounted to their innermost IP header. Each entry
+ * is a fixed size slot holding the key, packet and byte counts per direction,
+ * the first and last packet timestamps and the union of the TCP flags seen.
+ * Bytes are counted at the IP layer, as NetFlow does. The table is allocated
+ * once, sized for its flow capacity, so its memory use is fixed and packets
+ * are tracked without allocating any objects.
+ * </p>
+ *
+ * <p>
+ * Time is the packets' own timestamps, not the wall clock, so capture files
+ * age flows exactly as a live capture would. A flow ends when a packet arrives
+ * after its idle or active timeout, and in between, a few slots are swept on
+ * every packet so that silent flows end within a sweep of the table. Ended
+ * flows are reported to the listener and removed; a packet arriving after its
+ * flow ended starts a new one. {@link #expire(long)} ends all timed out flows
+ * at once, and {@link #flush()} ends all flows, such as at the end of a
+ * capture.
+ * </p>
+ *
+ * <pre>{@code
+ * try (FlowTable flows = pcap.flowTable(10_000_000, Duration.ofSeconds(30), Duration.ofMinutes(5),
+ * 		(flow, reason) -> export(flow))) {
+ *
+ * 	pcap.loop(-1, flows);
+ * }
+ * }</pre>
+ *
+ * <p>
+ * Not thread safe, a table belongs to the capture thread which feeds it.
+ * </p>
+ *
+ * @author Mark Bednarczyk [mark@slytechs.com]
+ * @author Sly Technologies Inc.
+ * @see NetPcap#flowTable(int, Duration, Duration, FlowListener)
+ */
+public final class FlowTable implements OfPacketConsumer, AutoCloseable {
+
+	/**
+	 * Why a flow ended.
+	 */
+	public enum EndReason {
+
+		/** No packet was seen for the idle timeout. */
+		IDLE_TIMEOUT,
+
+		/** The flow lasted for the active timeout. */
+		ACTIVE_TIMEOUT,
+
+		/** The table was flushed or closed. */
+		FLUSHED
+	}
+
+	/**
+	 * Receives flows as they end.
+	 */
+	@FunctionalInterface
+	public interface FlowListener {
+
+		/**
+		 * Called when a flow ends, before it is removed from the table. The flow
+		 * view is only valid for the duration of the call, and the listener must
+		 * not update the table.
+		 *
+		 * @param flow   the ended flow
+		 * @param reason why the flow ended
+		 */
+		void flowEnded(Flow flow, EndReason reason);
+	}
+
+	/**
+	 * A view of one flow's slot. The source is the endpoint which sent the
+	 * flow's first packet.
+	 */
+	public final class Flow {
+
+		private long slot;
+
+		private Flow() {}
+
+		private byte[] address(long at) {
+			final long hi = table.get(ValueLayout.JAVA_LONG, at);
+			final long lo = table.get(ValueLayout.JAVA_LONG, at + 8);
+
+			if (version() == 4)
+				return new byte[] { (byte) (lo >>> 24), (byte) (lo >>> 16), (byte) (lo >>> 8), (byte) lo };
+
+			final byte[] address = new byte[16];
+			for (int i = 0; i < 8; i++) {
+				address[i] = (byte) (hi >>> (56 - 8 * i));
+				address[i + 8] = (byte) (lo >>> (56 - 8 * i));
+			}
+
+			return address;
+		}
+
+		private boolean initiatorIsB() {
+			return (table.get(ValueLayout.JAVA_BYTE, slot + FLAGS) & INITIATOR_B) != 0;
+		}
+
+		/**
+		 * Returns the number of bytes, at the IP layer, sent by the source.
+		 *
+		 * @return the byte count
+		 */
+		public long bytes() {
+			return table.get(ValueLayout.JAVA_LONG, slot + (initiatorIsB() ? BYTES_BA : BYTES_AB));
+		}
+
+		/**
+		 * Returns the destination address, 4 bytes for IPv4 or 16 bytes for IPv6.
+		 *
+		 * @return a new array with the address
+		 */
+		public byte[] dstAddress() {
+			return address(slot + (initiatorIsB() ? ADDR_A : ADDR_B));
+		}
+
+		/**
+		 * Returns the destination port, 0 for protocols without ports.
+		 *
+		 * @return the destination port
+		 */
+		public int dstPort() {
+			final int ports = table.get(ValueLayout.JAVA_INT, slot + PORTS);
+			return initiatorIsB() ? ports >>> 16 : ports & 0xFFFF;
+		}
+
+		/**
+		 * Returns the timestamp of the first packet.
+		 *
+		 * @return the first timestamp, in the table's timestamp unit
+		 */
+		public long firstTimestamp() {
+			return table.get(ValueLayout.JAVA_LONG, slot + FIRST);
+		}
+
+		/**
+		 * Returns the timestamp of the last packet.
+		 *
+		 * @return the last timestamp, in the table's timestamp unit
+		 */
+		public long lastTimestamp() {
+			return table.get(ValueLayout.JAVA_LONG, slot + LAST);
+		}
+
+		/**
+		 * Returns the number of packets sent by the source.
+		 *
+		 * @return the packet count
+		 */
+		public long packets() {
+			return table.get(ValueLayout.JAVA_LONG, slot + (initiatorIsB() ? PACKETS_BA : PACKETS_AB));
+		}
+
+		/**
+		 * Returns the IP protocol number.
+		 *
+		 * @return the protocol
+		 */
+		public int protocol() {
+			return Byte.toUnsignedInt(table.get(ValueLayout.JAVA_BYTE, slot + PROTOCOL));
+		}
+
+		/**
+		 * Returns the number of bytes, at the IP layer, sent by the destination.
+		 *
+		 * @return the reverse byte count
+		 */
+		public long reverseBytes() {
+			return table.get(ValueLayout.JAVA_LONG, slot + (initiatorIsB() ? BYTES_AB : BYTES_BA));
+		}
+
+		/**
+		 * Returns the number of packets sent by the destination.
+		 *
+		 * @return the reverse packet count
+		 */
+		public long reversePackets() {
+			return table.get(ValueLayout.JAVA_LONG, slot + (initiatorIsB() ? PACKETS_AB : PACKETS_BA));
+		}
+
+		/**
+		 * Returns the source address, 4 bytes for IPv4 or 16 bytes for IPv6.
+		 *
+		 * @return a new array with the address
+		 */
+		public byte[] srcAddress() {
+			return address(slot + (initiatorIsB() ? ADDR_B : ADDR_A));
+		}
+
+		/**
+		 * Returns the source port, 0 for protocols without ports.
+		 *
+		 * @return the source port
+		 */
+		public int srcPort() {
+			final int ports = table.get(ValueLayout.JAVA_INT, slot + PORTS);
+			return initiatorIsB() ? ports & 0xFFFF : ports >>> 16;
+		}
+
+		/**
+		 * Returns the union of the TCP flags of all packets in both directions.
+		 *
+		 * @return the TCP flags, 0 for other protocols
+		 */
+		public int tcpFlags() {
+			return Byte.toUnsignedInt(table.get(ValueLayout.JAVA_BYTE, slot + TCP_FLAGS));
+		}
+
+		@Override
+		public String toString() {
+			return "Flow[v%d proto=%d %s:%d > %s:%d, packets=%d/%d, bytes=%d/%d, flags=0x%02x]".formatted(
+					version(), protocol(),
+					format(srcAddress()), srcPort(),
+					format(dstAddress()), dstPort(),
+					packets(), reversePackets(),
+					bytes(), reverseBytes(),
+					tcpFlags());
+		}
+
+		/**
+		 * Returns the IP version.
+		 *
+		 * @return 4 or 6
+		 */
+		public int version() {
+			return table.get(ValueLayout.JAVA_BYTE, slot + VERSION);
+		}
+	}
+
+	/* Slot layout, tag 0 marks an empty slot */
+	private static final long TAG = 0;
+	private static final long PORTS = 4;
+	private static final long ADDR_A = 8;
+	private static final long ADDR_B = 24;
+	private static final long PROTOCOL = 40;
+	private static final long VERSION = 41;
+	private static final long TCP_FLAGS = 42;
+	private static final long FLAGS = 43;
+	private static final long PACKETS_AB = 48;
+	private static final long BYTES_AB = 56;
+	private static final long PACKETS_BA = 64;
+	private static final long BYTES_BA = 72;
+	private static final long FIRST = 80;
+	private static final long LAST = 88;
+
+	/** Size of a slot in bytes. */
+	static final long SLOT_SIZE = 96;
+
+	/** The flow's first packet was sent by endpoint B */
+	private static final int INITIATOR_B = 0x01;
+
+	/** Maximum load factor, as a fraction of 1024 */
+	private static final int LOAD_FACTOR = 768;
+
+	private static final int MAX_SLOTS = 1 << 30;
+
+	/** Number of slots checked for expiry per packet */
+	private static final int SWEEP_STEP = 4;
+
+	static String format(byte[] address) {
+		if (address.length == 4)
+			return (address[0] & 0xFF) + "." + (address[1] & 0xFF) + "." + (address[2] & 0xFF) + "."
+					+ (address[3] & 0xFF);
+
+		StringBuilder b = new StringBuilder();
+		for (int i = 0; i < 16; i += 2)
+			b.append(i == 0 ? "" : ":").append(Integer.toHexString(((address[i] & 0xFF) << 8) | (address[i + 1] & 0xFF)));
+
+		return b.toString();
+	}
+
+	private final int capacity;
+	private final long mask;
+	private final long idleTimeout;
+	private final long activeTimeout;
+	private final TimeUnit timestampUnit;
+	private final int linkType;
+	private final FlowListener listener;
+	private final Arena arena;
+	private final MemorySegment table;
+	private final HeaderIndex index = new HeaderIndex();
+	private final Flow flow = new Flow();
+
+	private int size;
+	private long sweepCursor;
+	private long clock = Long.MIN_VALUE;
+	private long createdCount;
+	private long endedCount;
+	private long overflowCount;
+	private long untrackedCount;
+
+	/* Key of the current packet, in canonical order */
+	private long aHi;
+	private long aLo;
+	private long bHi;
+	private long bLo;
+	private int ports;
+	private int protocol;
+	private int version;
+	private int ipLength;
+	private int tcpFlags;
+	private boolean reverse;
+
+	/**
+	 * Instantiates a new flow table.
+	 *
+	 * @param capacity      the maximum number of concurrent flows
+	 * @param idleTimeout   the time without packets after which a flow ends
+	 * @param activeTimeout the time after its first packet at which a flow ends,
+	 *                      even if still active
+	 * @param timestampUnit the unit of the packet timestamps
+	 * @param linkType      the pcap link type (DLT) of the packets
+	 * @param listener      receives the flows as they end
+	 */
+	public FlowTable(int capacity, Duration idleTimeout, Duration activeTimeout, TimeUnit timestampUnit, int linkType,
+			FlowListener listener) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("capacity must be positive: " + capacity);
+		if (idleTimeout.isNegative() || idleTimeout.isZero())
+			throw new IllegalArgumentException("idle timeout must be positive: " + idleTimeout);
+		if (activeTimeout.isNegative() || activeTimeout.isZero())
+			throw new IllegalArgumentException("active timeout must be positive: " + activeTimeout);
+
+		final long slots = Math.max(16, Long.highestOneBit(((long) capacity * 1024 / LOAD_FACTOR) - 1) << 1);
+		if (slots > MAX_SLOTS)
+			throw new IllegalArgumentException("capacity too large: " + capacity);
+
+		this.capacity = capacity;
+		this.mask = slots - 1;
+		this.timestampUnit = Objects.requireNonNull(timestampUnit, "timestampUnit");
+		this.idleTimeout = timestampUnit.convert(idleTimeout);
+		this.activeTimeout = timestampUnit.convert(activeTimeout);
+		this.linkType = linkType;
+		this.listener = Objects.requireNonNull(listener, "listener");
+		this.arena = Arena.ofShared();
+		this.table = arena.allocate(slots * SLOT_SIZE, 64);
+	}
+
+	/**
+	 * Tracks a packet. Capture thread only.
+	 *
+	 * @param packet the packet
+	 */
+	@Override
+	public void accept(Packet packet) {
+		update(packet.view().segment(), packet.view().start(), packet.captureLength(), packet.timestamp());
+	}
+
+	/**
+	 * Returns the maximum number of concurrent flows.
+	 *
+	 * @return the capacity
+	 */
+	public int capacity() {
+		return capacity;
+	}
+
+	/**
+	 * Flushes all flows and frees the table's memory.
+	 */
+	@Override
+	public void close() {
+		if (!arena.scope().isAlive())
+			return;
+
+		flush();
+		arena.close();
+	}
+
+	/**
+	 * Returns the number of flows created.
+	 *
+	 * @return the created flow count
+	 */
+	public long createdCount() {
+		return createdCount;
+	}
+
+	private void end(long slot, EndReason reason) {
+		endedCount++;
+		flow.slot = slot;
+		listener.flowEnded(flow, reason);
+	}
+
+	/**
+	 * Returns the number of flows ended.
+	 *
+	 * @return the ended flow count
+	 */
+	public long endedCount() {
+		return endedCount;
+	}
+
+	/**
+	 * Ends all flows timed out at a point in time.
+	 *
+	 * @param now the current time, in the table's timestamp unit
+	 * @return the number of flows ended
+	 */
+	public int expire(long now) {
+		final long ended = endedCount;
+
+		/* Start on an empty slot, so no cluster wraps into the slots already swept */
+		long start = 0;
+		while (start <= mask && tag(start * SLOT_SIZE) != 0)
+			start++;
+
+		for (long n = 0; n <= mask;) {
+			final long i = (start + n) & mask;
+			final EndReason reason = expiry(i * SLOT_SIZE, now);
+			if (reason != null) {
+				end(i * SLOT_SIZE, reason);
+				remove(i);
+			} else {
+				n++;
+			}
+		}
+
+		return (int) (endedCount - ended);
+	}
+
+	private EndReason expiry(long slot, long now) {
+		if (tag(slot) == 0)
+			return null;
+
+		if (now - table.get(ValueLayout.JAVA_LONG, slot + LAST) > idleTimeout)
+			return EndReason.IDLE_TIMEOUT;
+
+		if (now - table.get(ValueLayout.JAVA_LONG, slot + FIRST) > activeTimeout)
+			return EndReason.ACTIVE_TIMEOUT;
+
+		return null;
+	}
+
+	/**
+	 * Reads the 5-tuple of the indexed frame's innermost IP header into the key
+	 * fields.
+	 *
+	 * @return false if the frame has no IP header
+	 */
+	private boolean extractKey() {
+		final int n4 = index.count(IP4);
+		final int n6 = index.count(IP6);
+		final int ip4 = (n4 > 0) ? index.offset(IP4, n4 - 1) : -1;
+		final int ip6 = (n6 > 0) ? index.offset(IP6, n6 - 1) : -1;
+		if (ip4 < 0 && ip6 < 0)
+			return false;
+
+		final int ip = Math.max(ip4, ip6);
+		long srcHi, srcLo, dstHi, dstLo;
+
+		if (ip == ip4) {
+			version = 4;
+			srcHi = dstHi = 0;
+			srcLo = index.u32(ip + 12);
+			dstLo = index.u32(ip + 16);
+			protocol = index.u8(ip + 9);
+			ipLength = index.u16(ip + 2);
+		} else {
+			version = 6;
+			srcHi = index.u64(ip + 8);
+			srcLo = index.u64(ip + 16);
+			dstHi = index.u64(ip + 24);
+			dstLo = index.u64(ip + 32);
+			protocol = index.u8(ip + 6);
+			ipLength = index.u16(ip + 4) + 40;
+		}
+
+		/* The innermost transport header, if it follows the innermost IP header */
+		int srcPort = 0, dstPort = 0;
+		tcpFlags = 0;
+
+		final int nt = index.count(TCP);
+		final int nu = index.count(UDP);
+		final int tcp = (nt > 0) ? index.offset(TCP, nt - 1) : -1;
+		final int udp = (nu > 0) ? index.offset(UDP, nu - 1) : -1;
+
+		if (tcp > ip) {
+			protocol = FlowHash.PROTO_TCP;
+			srcPort = index.u16(tcp);
+			dstPort = index.u16(tcp + 2);
+			tcpFlags = index.u8(tcp + 13);
+		} else if (udp > ip) {
+			protocol = FlowHash.PROTO_UDP;
+			srcPort = index.u16(udp);
+			dstPort = index.u16(udp + 2);
+		}
+
+		/* Canonical order, the lower endpoint first */
+		int c = Long.compareUnsigned(srcHi, dstHi);
+		if (c == 0)
+			c = Long.compareUnsigned(srcLo, dstLo);
+		if (c == 0)
+			c = Integer.compare(srcPort, dstPort);
+
+		reverse = c > 0;
+		if (reverse) {
+			aHi = dstHi;
+			aLo = dstLo;
+			bHi = srcHi;
+			bLo = srcLo;
+			ports = (dstPort << 16) | srcPort;
+		} else {
+			aHi = srcHi;
+			aLo = srcLo;
+			bHi = dstHi;
+			bLo = dstLo;
+			ports = (srcPort << 16) | dstPort;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Ends all flows.
+	 *
+	 * @return the number of flows ended
+	 */
+	public int flush() {
+		final long ended = endedCount;
+
+		for (long i = 0; i <= mask; i++) {
+			final long slot = i * SLOT_SIZE;
+			if (tag(slot) != 0) {
+				end(slot, EndReason.FLUSHED);
+				table.set(ValueLayout.JAVA_INT, slot + TAG, 0);
+			}
+		}
+
+		size = 0;
+
+		return (int) (endedCount - ended);
+	}
+
+	/**
+	 * Returns the number of flows currently tracked.
+	 *
+	 * @return the flow count
+	 */
+	public int flowCount() {
+		return size;
+	}
+
+	private int hash() {
+		long h = FlowHash.mix(aHi ^ FlowHash.mix(aLo ^ FlowHash.mix(bHi ^ FlowHash.mix(bLo
+				^ (((long) ports << 16) | (protocol << 8) | version)))));
+
+		final int tag = (int) (h ^ (h >>> 32));
+		return (tag == 0) ? 1 : tag;
+	}
+
+	private void initialize(long slot, int tag, long timestamp) {
+		table.asSlice(slot, SLOT_SIZE).fill((byte) 0);
+		table.set(ValueLayout.JAVA_INT, slot + TAG, tag);
+		table.set(ValueLayout.JAVA_INT, slot + PORTS, ports);
+		table.set(ValueLayout.JAVA_LONG, slot + ADDR_A, aHi);
+		table.set(ValueLayout.JAVA_LONG, slot + ADDR_A + 8, aLo);
+		table.set(ValueLayout.JAVA_LONG, slot + ADDR_B, bHi);
+		table.set(ValueLayout.JAVA_LONG, slot + ADDR_B + 8, bLo);
+		table.set(ValueLayout.JAVA_BYTE, slot + PROTOCOL, (byte) protocol);
+		table.set(ValueLayout.JAVA_BYTE, slot + VERSION, (byte) version);
+		table.set(ValueLayout.JAVA_BYTE, slot + FLAGS, (byte) (reverse ? INITIATOR_B : 0));
+		table.set(ValueLayout.JAVA_LONG, slot + FIRST, timestamp);
+
+		createdCount++;
+	}
+
+	private boolean keyEquals(long slot) {
+		return table.get(ValueLayout.JAVA_INT, slot + PORTS) == ports
+				&& table.get(ValueLayout.JAVA_LONG, slot + ADDR_A + 8) == aLo
+				&& table.get(ValueLayout.JAVA_LONG, slot + ADDR_B + 8) == bLo
+				&& table.get(ValueLayout.JAVA_LONG, slot + ADDR_A) == aHi
+				&& table.get(ValueLayout.JAVA_LONG, slot + ADDR_B) == bHi
+				&& table.get(ValueLayout.JAVA_BYTE, slot + PROTOCOL) == (byte) protocol
+				&& table.get(ValueLayout.JAVA_BYTE, slot + VERSION) == (byte) version;
+	}
+
+	/**
+	 * Returns the size of the table's off-heap memory.
+	 *
+	 * @return the memory size in bytes
+	 */
+	public long memorySize() {
+		return table.byteSize();
+	}
+
+	/**
+	 * Returns the number of packets not tracked because the table was full.
+	 *
+	 * @return the overflow count
+	 */
+	public long overflowCount() {
+		return overflowCount;
+	}
+
+	/**
+	 * Removes the entry of a slot, shifting back the entries after it in its
+	 * probe sequence so that no tombstones are needed.
+	 */
+	private void remove(long i) {
+		long j = i;
+
+		while (true) {
+			j = (j + 1) & mask;
+
+			final int tag = tag(j * SLOT_SIZE);
+			if (tag == 0)
+				break;
+
+			/* An entry may move back to i only if its home slot is not in (i, j] */
+			final long home = tag & mask;
+			final boolean stays = (i <= j)
+					? (i < home && home <= j)
+					: (i < home || home <= j);
+
+			if (!stays) {
+				MemorySegment.copy(table, j * SLOT_SIZE, table, i * SLOT_SIZE, SLOT_SIZE);
+				i = j;
+			}
+		}
+
+		table.set(ValueLayout.JAVA_INT, i * SLOT_SIZE + TAG, 0);
+		size--;
+	}
+
+	/**
+	 * Checks the next few slots for flows timed out at the current packet time.
+	 */
+	private void sweep() {
+		for (int n = 0; n < SWEEP_STEP; n++) {
+			final long i = sweepCursor;
+			final EndReason reason = expiry(i * SLOT_SIZE, clock);
+
+			if (reason != null) {
+				end(i * SLOT_SIZE, reason);
+				remove(i); // Check again, another entry may have moved into this slot
+			} else {
+				sweepCursor = (i + 1) & mask;
+			}
+		}
+	}
+
+	private int tag(long slot) {
+		return table.get(ValueLayout.JAVA_INT, slot + TAG);
+	}
+
+	/**
+	 * Returns the unit of the packet timestamps.
+	 *
+	 * @return the timestamp unit
+	 */
+	public TimeUnit timestampUnit() {
+		return timestampUnit;
+	}
+
+	@Override
+	public String toString() {
+		return "FlowTable[flows=%d, capacity=%d, created=%d, ended=%d, overflow=%d, untracked=%d]"
+				.formatted(size, capacity, createdCount, endedCount, overflowCount, untrackedCount);
+	}
+
+	/**
+	 * Returns the number of packets not tracked because they have no IP header.
+	 *
+	 * @return the untracked packet count
+	 */
+	public long untrackedCount() {
+		return untrackedCount;
+	}
+
+	/**
+	 * Tracks a packet. Capture thread only.
+	 *
+	 * @param buffer        the buffer holding the packet data
+	 * @param offset        the offset of the packet data within the buffer
+	 * @param captureLength the number of packet bytes available
+	 * @param timestamp     the packet timestamp, in the table's timestamp unit
+	 * @return true if the packet was accounted to a flow
+	 */
+	public boolean update(MemorySegment buffer, long offset, int captureLength, long timestamp) {
+		index.index(buffer, offset, captureLength, linkType);
+		if (!extractKey()) {
+			untrackedCount++;
+			return false;
+		}
+
+		if (timestamp > clock)
+			clock = timestamp;
+
+		final int tag = hash();
+		long i = tag & mask;
+		long slot;
+
+		while (true) {
+			slot = i * SLOT_SIZE;
+
+			final int t = tag(slot);
+			if (t == 0) {
+				if (size >= capacity) {
+					overflowCount++;
+					sweep();
+					return false;
+				}
+
+				initialize(slot, tag, timestamp);
+				size++;
+				break;
+			}
+
+			if (t == tag && keyEquals(slot)) {
+				final EndReason reason = expiry(slot, timestamp);
+				if (reason != null) {
+					end(slot, reason);
+					initialize(slot, tag, timestamp);
+				}
+				break;
+			}
+
+			i = (i + 1) & mask;
+		}
+
+		final long packets = reverse ? PACKETS_BA : PACKETS_AB;
+		final long bytes = reverse ? BYTES_BA : BYTES_AB;
+		table.set(ValueLayout.JAVA_LONG, slot + packets, table.get(ValueLayout.JAVA_LONG, slot + packets) + 1);
+		table.set(ValueLayout.JAVA_LONG, slot + bytes, table.get(ValueLayout.JAVA_LONG, slot + bytes) + ipLength);
+		table.set(ValueLayout.JAVA_LONG, slot + LAST, timestamp);
+
+		if (tcpFlags != 0) {
+			final byte flags = table.get(ValueLayout.JAVA_BYTE, slot + TCP_FLAGS);
+			table.set(ValueLayout.JAVA_BYTE, slot + TCP_FLAGS, (byte) (flags | tcpFlags));
+		}
+
+		sweep();
+
+		return true;
+	}
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright 2005-2025 Sly Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.slytechs.sdk.jnetpcap.api;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+import static java.lang.foreign.ValueLayout.*;
+
+/**
+ * A single-producer, single-consumer ring of variable length raw frames stored
+ * in off-heap memory.
+ *
+ * <p>
+ * Each record holds a copy of the pcap header followed by the packet data:
+ * </p>
+ *
+ * <pre>
+ * +----------------+----------------+----------------------+------------------+
+ * | int recordSize | int caplen     | pcap header (padded) | packet data      |
+ * +----------------+----------------+----------------------+------------------+
+ * </pre>
+ *
+ * <p>
+ * Records are 8 byte aligned and never split across the end of the ring. When a
+ * record does not fit in the remaining space at the end, a wrap marker is
+ * written and the record starts at offset 0. The producer never blocks, a full
+ * ring drops the frame and counts it.
+ * </p>
+ *
+ * @author Mark Bednarczyk [mark@slytechs.com]
+ * @author Sly Technologies Inc.
+ */
+final class FrameRing {
+
+	private static final int ALIGNMENT = 8;
+	private static final int RECORD_HEADER = 8;
+	private static final int WRAP_MARKER = -1;
+
+	private static final VarHandle HEAD;
+	private static final VarHandle TAIL;
+	private static final VarHandle DROPS;
+	private static final VarHandle HEAD_PACKETS;
+	private static final VarHandle TAIL_PACKETS;
+
+	static {
+		try {
+			var lookup = MethodHandles.lookup();
+			HEAD = lookup.findVarHandle(FrameRing.class, "head", long.class);
+			TAIL = lookup.findVarHandle(FrameRing.class, "tail", long.class);
+			DROPS = lookup.findVarHandle(FrameRing.class, "drops", long.class);
+			HEAD_PACKETS = lookup.findVarHandle(FrameRing.class, "headPackets", long.class);
+			TAIL_PACKETS = lookup.findVarHandle(FrameRing.class, "tailPackets", long.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private static long align(long value) {
+		return (value + (ALIGNMENT - 1)) & ~(ALIGNMENT - 1);
+	}
+
+	private final MemorySegment buffer;
+	private final long capacity;
+	private final long mask;
+	private final int headerLength;
+	private final long headerSpan;
+
+	/* Producer owned */
+	@SuppressWarnings("unused") // Accessed via VarHandle
+	private long head;
+	private long cachedTail;
+	@SuppressWarnings("unused") // Accessed via VarHandle
+	private long headPackets;
+	@SuppressWarnings("unused") // Accessed via VarHandle
+	private long drops;
+
+	/* Consumer owned */
+	@SuppressWarnings("unused") // Accessed via VarHandle
+	private long tail;
+	private long cachedHead;
+	private long readPosition;
+	private long readOffset;
+	private int readSize;
+	@SuppressWarnings("unused") // Accessed via VarHandle
+	private long tailPackets;
+
+	/**
+	 * Instantiates a new frame ring.
+	 *
+	 * @param arena        the arena which owns the ring memory
+	 * @param capacity     the ring capacity in bytes, rounded up to a power of 2
+	 * @param headerLength the length of the pcap header stored with each frame
+	 */
+	FrameRing(Arena arena, long capacity, int headerLength) {
+		this.capacity = Long.highestOneBit(Math.max(capacity, 4096) - 1) << 1;
+		this.mask = this.capacity - 1;
+		this.headerLength = headerLength;
+		this.headerSpan = align(headerLength);
+		this.buffer = arena.allocate(this.capacity, ALIGNMENT);
+	}
+
+	/**
+	 * Returns the ring capacity in bytes.
+	 *
+	 * @return the capacity
+	 */
+	long capacity() {
+		return capacity;
+	}
+
+	/**
+	 * Returns the approximate number of frames waiting in the ring. May be called
+	 * from any thread.
+	 *
+	 * @return the queue depth in frames
+	 */
+	long depth() {
+		long depth = (long) HEAD_PACKETS.getAcquire(this) - (long) TAIL_PACKETS.getAcquire(this);
+
+		return (depth < 0) ? 0 : depth;
+	}
+
+	/**
+	 * Returns the number of frames dropped because the ring was full. May be
+	 * called from any thread.
+	 *
+	 * @return the drop count
+	 */
+	long drops() {
+		return (long) DROPS.getOpaque(this);
+	}
+
+	/**
+	 * Copies a frame into the ring. Producer thread only.
+	 *
+	 * @param hdr  the pcap header
+	 * @param data the packet data
+	 * @return true if enqueued, false if the ring was full and the frame dropped
+	 */
+	boolean offer(MemorySegment hdr, MemorySegment data) {
+		return offer(hdr, data, 0, data.byteSize());
+	}
+
+	/**
+	 * Copies a frame which lies within a larger buffer into the ring, without
+	 * creating a slice. Producer thread only.
+	 *
+	 * @param hdr    the pcap header
+	 * @param source the buffer holding the packet data
+	 * @param start  the offset of the packet data within the buffer
+	 * @param caplen the capture length
+	 * @return true if enqueued, false if the ring was full and the frame dropped
+	 */
+	boolean offer(MemorySegment hdr, MemorySegment source, long start, long caplen) {
+		final long recordSize = align(RECORD_HEADER + headerSpan + caplen);
+		final long head = (long) HEAD.getOpaque(this);
+
+		long offset = head & mask;
+		long contiguous = capacity - offset;
+		long required = (contiguous < recordSize) ? contiguous + recordSize : recordSize;
+
+		if (recordSize > capacity || !hasRoom(head, required)) {
+			DROPS.setOpaque(this, (long) DROPS.getOpaque(this) + 1);
+			return false;
+		}
+
+		long position = head;
+		if (contiguous < recordSize) {
+			buffer.set(JAVA_INT, offset, WRAP_MARKER);
+			position += contiguous;
+			offset = 0;
+		}
+
+		buffer.set(JAVA_INT, offset, (int) recordSize);
+		buffer.set(JAVA_INT, offset + 4, (int) caplen);
+		MemorySegment.copy(hdr, 0, buffer, offset + RECORD_HEADER, headerLength);
+		MemorySegment.copy(source, start, buffer, offset + RECORD_HEADER + headerSpan, caplen);
+
+		HEAD_PACKETS.setRelease(this, (long) HEAD_PACKETS.getOpaque(this) + 1);
+		HEAD.setRelease(this, position + recordSize);
+
+		return true;
+	}
+
+	private boolean hasRoom(long head, long required) {
+		if (capacity - (head - cachedTail) >= required)
+			return true;
+
+		cachedTail = (long) TAIL.getAcquire(this);
+
+		return capacity - (head - cachedTail) >= required;
+	}
+
+	/**
+	 * Checks for the next available frame. Consumer thread only. On success the
+	 * frame remains valid until {@link #release()} is called.
+	 *
+	 * @return true if a frame is available
+	 */
+	boolean poll() {
+		final long tail = (long) TAIL.getOpaque(this);
+
+		if (tail == cachedHead) {
+			cachedHead = (long) HEAD.getAcquire(this);
+
+			if (tail == cachedHead)
+				return false;
+		}
+
+		long position = tail;
+		long offset = position & mask;
+		int size = buffer.get(JAVA_INT, offset);
+
+		if (size == WRAP_MARKER) {
+			position += capacity - offset;
+			offset = 0;
+			size = buffer.get(JAVA_INT, offset);
+		}
+
+		this.readPosition = position;
+		this.readOffset = offset;
+		this.readSize = size;
+
+		return true;
+	}
+
+	/**
+	 * Returns the ring memory, for reading the current frame without creating a
+	 * slice. Consumer thread only.
+	 *
+	 * @return the ring buffer
+	 * @see #headerOffset()
+	 * @see #dataOffset()
+	 * @see #dataLength()
+	 */
+	MemorySegment buffer() {
+		return buffer;
+	}
+
+	/**
+	 * Returns the capture length of the current frame. Consumer thread only.
+	 *
+	 * @return the data length in bytes
+	 */
+	int dataLength() {
+		return buffer.get(JAVA_INT, readOffset + 4);
+	}
+
+	/**
+	 * Returns the offset of the current frame's packet data within the ring
+	 * buffer. Consumer thread only.
+	 *
+	 * @return the data offset
+	 */
+	long dataOffset() {
+		return readOffset + RECORD_HEADER + headerSpan;
+	}
+
+	/**
+	 * Returns the offset of the current frame's pcap header within the ring
+	 * buffer. Consumer thread only.
+	 *
+	 * @return the header offset
+	 */
+	long headerOffset() {
+		return readOffset + RECORD_HEADER;
+	}
+
+	/**
+	 * Returns the pcap header of the current frame. Consumer thread only.
+	 *
+	 * @return the header segment
+	 */
+	MemorySegment header() {
+		return buffer.asSlice(readOffset + RECORD_HEADER, headerLength);
+	}
+
+	/**
+	 * Returns the packet data of the current frame. Consumer thread only.
+	 *
+	 * @return the data segment
+	 */
+	MemorySegment data() {
+		int caplen = buffer.get(JAVA_INT, readOffset + 4);
+
+		return buffer.asSlice(readOffset + RECORD_HEADER + headerSpan, caplen);
+	}
+
+	/**
+	 * Releases the current frame back to the producer. Consumer thread only.
+	 */
+	void release() {
+		TAIL_PACKETS.setRelease(this, (long) TAIL_PACKETS.getOpaque(this) + 1);
+		TAIL.setRelease(this, readPosition + readSize);
+	}
+}
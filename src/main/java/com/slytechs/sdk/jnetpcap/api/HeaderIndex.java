@@ -0,0 +1,333 @@
+/*
+ * Copyright 2005-2025 Sly Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.slytechs.sdk.jnetpcap.api;
+
+import static com.slytechs.sdk.jnetpcap.api.FlowHash.*;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.Arrays;
+
+/**
+ * The offsets of the protocol headers in a frame, by protocol and depth, found
+ * in a single walk of the frame.
+ *
+ * <p>
+ * Depth counts occurrences of the same protocol from the outside in, matching
+ * {@code Packet.hasHeader(header, depth)}: the outer IPv4 header of an IP-in-IP
+ * packet is at depth 0 and the inner one at depth 1. The walk descends through
+ * VLAN tags, IPv6 extension headers, IP-in-IP, GRE and VXLAN, and stops at the
+ * first header which does not fit in the capture length. A minimum header
+ * length is checked before a header is recorded, so fixed fields of a recorded
+ * header can be read without further checks.
+ * </p>
+ *
+ * <p>
+ * An index is reused from packet to packet and never allocates. Not thread
+ * safe.
+ * </p>
+ *
+ * @author Mark Bednarczyk [mark@slytechs.com]
+ * @author Sly Technologies Inc.
+ */
+final class HeaderIndex {
+
+	static final int ETH = 0;
+	static final int VLAN = 1;
+	static final int IP4 = 2;
+	static final int IP6 = 3;
+	static final int TCP = 4;
+	static final int UDP = 5;
+	static final int ICMP = 6;
+	static final int ICMP6 = 7;
+	static final int GRE = 8;
+	static final int VXLAN = 9;
+
+	/** Protocol names, indexed by protocol. */
+	static final String[] NAMES = {
+			"eth",
+			"vlan",
+			"ip4",
+			"ip6",
+			"tcp",
+			"udp",
+			"icmp",
+			"icmp6",
+			"gre",
+			"vxlan"
+	};
+
+	/** Maximum recorded depth of each protocol. */
+	static final int MAX_DEPTH = 4;
+
+	private static final int PROTO_ICMP = 1;
+	private static final int PROTO_ICMP6 = 58;
+
+	/**
+	 * Looks up a protocol by name.
+	 *
+	 * @param name the protocol name
+	 * @return the protocol, or -1 if unknown
+	 */
+	static int protocolOf(String name) {
+		for (int i = 0; i < NAMES.length; i++)
+			if (NAMES[i].equals(name))
+				return i;
+
+		return -1;
+	}
+
+	private final int[] offsets = new int[NAMES.length * MAX_DEPTH];
+	private final int[] counts = new int[NAMES.length];
+	private MemorySegment buffer;
+	private long base;
+	private int limit;
+
+	private void add(int protocol, long offset) {
+		final int n = counts[protocol];
+		if (n < MAX_DEPTH) {
+			offsets[protocol * MAX_DEPTH + n] = (int) offset;
+			counts[protocol] = n + 1;
+		}
+	}
+
+	/**
+	 * Returns the number of headers of a protocol.
+	 *
+	 * @param protocol the protocol
+	 * @return the header count
+	 */
+	int count(int protocol) {
+		return counts[protocol];
+	}
+
+	private void ethernet(long offset, int tunnels) {
+		if (offset + 14 > limit)
+			return;
+
+		add(ETH, offset);
+		etherType(u16(offset + 12), offset + 14, tunnels);
+	}
+
+	private void etherType(int type, long offset, int tunnels) {
+		while (type == ETHERTYPE_VLAN || type == ETHERTYPE_QINQ || type == ETHERTYPE_QINQ_OLD) {
+			if (offset + 4 > limit)
+				return;
+
+			add(VLAN, offset);
+			type = u16(offset + 2);
+			offset += 4;
+		}
+
+		if (type == ETHERTYPE_IPV4)
+			ip4(offset, tunnels);
+		else if (type == ETHERTYPE_IPV6)
+			ip6(offset, tunnels);
+	}
+
+	private void gre(long offset, int tunnels) {
+		if (offset + 4 > limit)
+			return;
+
+		add(GRE, offset);
+
+		final int flags = u16(offset);
+		final int protocol = u16(offset + 2);
+		if ((flags & 0x7) != 0 || tunnels == 0)
+			return;
+
+		long payload = offset + 4;
+		if ((flags & 0x8000) != 0) // Checksum present
+			payload += 4;
+		if ((flags & 0x2000) != 0) // Key present
+			payload += 4;
+		if ((flags & 0x1000) != 0) // Sequence present
+			payload += 4;
+
+		if (protocol == ETHERTYPE_TEB)
+			ethernet(payload, tunnels - 1);
+		else
+			etherType(protocol, payload, tunnels - 1);
+	}
+
+	/**
+	 * Indexes a frame, replacing the previous frame's headers.
+	 *
+	 * @param buffer   the buffer holding the frame
+	 * @param offset   the offset of the frame within the buffer
+	 * @param length   the capture length
+	 * @param linkType the pcap link type (DLT) of the frame
+	 */
+	void index(MemorySegment buffer, long offset, int length, int linkType) {
+		Arrays.fill(counts, 0);
+		this.buffer = buffer;
+		this.base = offset;
+		this.limit = length;
+
+		switch (linkType) {
+		case DLT_EN10MB -> ethernet(0, MAX_TUNNEL_DEPTH);
+		case DLT_RAW, DLT_RAW_OPENBSD, LINKTYPE_RAW, DLT_IPV4, DLT_IPV6 -> {
+			if (length > 0) {
+				final int version = u8(0) >> 4;
+				if (version == 4)
+					ip4(0, MAX_TUNNEL_DEPTH);
+				else if (version == 6)
+					ip6(0, MAX_TUNNEL_DEPTH);
+			}
+		}
+		case DLT_LINUX_SLL -> {
+			if (length >= 16)
+				etherType(u16(14), 16, MAX_TUNNEL_DEPTH);
+		}
+		default -> {}
+		}
+	}
+
+	private void ip4(long offset, int tunnels) {
+		if (offset + 20 > limit)
+			return;
+
+		add(IP4, offset);
+
+		final int ihl = (u8(offset) & 0xF) << 2;
+		final int fragment = u16(offset + 6) & 0x1FFF;
+		if (ihl < 20 || fragment != 0)
+			return;
+
+		transport(u8(offset + 9), offset + ihl, tunnels);
+	}
+
+	private void ip6(long offset, int tunnels) {
+		if (offset + 40 > limit)
+			return;
+
+		add(IP6, offset);
+
+		int next = u8(offset + 6);
+		offset += 40;
+
+		/* Walk extension headers up to the upper layer protocol */
+		while (true) {
+			switch (next) {
+			case 0, 43, 60 -> { // Hop-by-hop, routing, destination options
+				if (offset + 8 > limit)
+					return;
+				final int length = (u8(offset + 1) + 1) << 3;
+				next = u8(offset);
+				offset += length;
+			}
+			case 44 -> { // Fragment, only the first carries the upper layer header
+				if (offset + 8 > limit || (u16(offset + 2) & 0xFFF8) != 0)
+					return;
+				next = u8(offset);
+				offset += 8;
+			}
+			default -> {
+				transport(next, offset, tunnels);
+				return;
+			}
+			}
+		}
+	}
+
+	/**
+	 * Returns the offset of a header within the frame.
+	 *
+	 * @param protocol the protocol
+	 * @param depth    the depth, 0 for the outermost header
+	 * @return the header offset, or -1 if there is no such header
+	 */
+	int offset(int protocol, int depth) {
+		return (depth < counts[protocol]) ? offsets[protocol * MAX_DEPTH + depth] : -1;
+	}
+
+	/**
+	 * Returns the number of bytes of the frame which were captured.
+	 *
+	 * @return the capture length
+	 */
+	int limit() {
+		return limit;
+	}
+
+	private void transport(int protocol, long offset, int tunnels) {
+		switch (protocol) {
+		case PROTO_TCP -> {
+			if (offset + 20 <= limit)
+				add(TCP, offset);
+		}
+		case PROTO_UDP -> udp(offset, tunnels);
+		case PROTO_ICMP -> {
+			if (offset + 4 <= limit)
+				add(ICMP, offset);
+		}
+		case PROTO_ICMP6 -> {
+			if (offset + 4 <= limit)
+				add(ICMP6, offset);
+		}
+		case PROTO_GRE -> gre(offset, tunnels);
+		case PROTO_IPIP -> {
+			if (tunnels > 0)
+				ip4(offset, tunnels - 1);
+		}
+		case PROTO_IPV6 -> {
+			if (tunnels > 0)
+				ip6(offset, tunnels - 1);
+		}
+		default -> {}
+		}
+	}
+
+	/**
+	 * Reads an unsigned byte at an offset within the frame.
+	 */
+	int u8(long offset) {
+		return buffer.get(ValueLayout.JAVA_BYTE, base + offset) & 0xFF;
+	}
+
+	/**
+	 * Reads an unsigned big endian short at an offset within the frame.
+	 */
+	int u16(long offset) {
+		return Short.toUnsignedInt(buffer.get(U16, base + offset));
+	}
+
+	/**
+	 * Reads an unsigned big endian int at an offset within the frame.
+	 */
+	long u32(long offset) {
+		return Integer.toUnsignedLong(buffer.get(U32, base + offset));
+	}
+
+	/**
+	 * Reads a big endian long at an offset within the frame.
+	 */
+	long u64(long offset) {
+		return buffer.get(U64, base + offset);
+	}
+
+	private void udp(long offset, int tunnels) {
+		if (offset + 8 > limit)
+			return;
+
+		add(UDP, offset);
+
+		if (tunnels > 0 && u16(offset + 2) == PORT_VXLAN && offset + 16 <= limit) {
+			add(VXLAN, offset + 8);
+			ethernet(offset + 16, tunnels - 1);
+		}
+	}
+}
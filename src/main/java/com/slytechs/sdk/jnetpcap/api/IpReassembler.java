@@ -0,0 +1,687 @@
+/*
+ * Copyright 2005-2025 Sly Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.slytechs.sdk.jnetpcap.api;
+
+import static com.slytechs.sdk.jnetpcap.api.HeaderIndex.*;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import com.slytechs.sdk.jnetpcap.api.PacketHandler.OfPacketConsumer;
+import com.slytechs.sdk.protocol.core.Packet;
+
+/**
+ * A pipeline stage which reassembles fragmented IPv4 and IPv6 datagrams and
+ * passes all other packets through.
+ *
+ * <p>
+ * Fragments are keyed by source, destination, identification and protocol.
+ * Their payload is stored in fixed size chunks of one off-heap pool, reserved
+ * up front from the memory budget, and bookkept in primitive arrays, so that no
+ * objects are allocated per fragment. Data is tracked in 8 byte units; where
+ * fragments overlap the data received first is kept. When all units up to the
+ * last fragment have arrived, the link layer and IP headers of the first
+ * fragment are joined to the payload, the IP header is rewritten for an
+ * unfragmented datagram, and the result is dissected again and delivered to
+ * the handler as one packet.
+ * </p>
+ *
+ * <p>
+ * Memory is bounded under fragment floods. A datagram is dropped if it would
+ * exceed 64 KiB, and incomplete datagrams are evicted after the timeout, by
+ * packet time, or oldest first when the pool runs out of datagram slots or
+ * chunks. Only the outermost IP header is reassembled, and truncated fragments
+ * are dropped since their data is incomplete.
+ * </p>
+ *
+ * <pre>{@code
+ * try (IpReassembler reassembler = pcap.newReassembler(16 * 1024 * 1024, Duration.ofSeconds(30),
+ * 		packet -> process(packet))) {
+ *
+ * 	pcap.loop(-1, reassembler);
+ * }
+ * }</pre>
+ *
+ * <p>
+ * Not thread safe, a reassembler belongs to the capture thread which feeds it.
+ * Packet timestamps are in the handle's timestamp precision, as delivered by
+ * {@link NetPcap}.
+ * </p>
+ *
+ * @author Mark Bednarczyk [mark@slytechs.com]
+ * @author Sly Technologies Inc.
+ * @see NetPcap#newReassembler(long, Duration, PacketHandler.OfPacketConsumer)
+ */
+public final class IpReassembler implements OfPacketConsumer, AutoCloseable {
+
+	/** Size of a fragment data chunk in bytes. */
+	public static final int CHUNK_SIZE = 2048;
+
+	/** Maximum reassembled payload of a datagram in bytes. */
+	public static final int MAX_DATAGRAM = 65535;
+
+	/** Space for the link layer and IP headers of a datagram's first fragment */
+	private static final int MAX_HEADER = 256;
+
+	/** Packed capture header preceding the reassembled frame */
+	private static final int RECORD_HEADER = 16;
+
+	private static final int CHUNKS_PER_DATAGRAM = (MAX_DATAGRAM + CHUNK_SIZE - 1) / CHUNK_SIZE;
+	private static final int BITMAP_LONGS = ((MAX_DATAGRAM + 7) / 8 + 63) / 64;
+	private static final int MAX_DATAGRAMS = 1 << 20;
+	private static final int NONE = -1;
+
+	private final PacketPipeline pipeline;
+	private final Packet target;
+	private final int linkType;
+	private final long unitsPerSecond;
+	private final long timeout;
+	private final OfPacketConsumer handler;
+	private final HeaderIndex index = new HeaderIndex();
+
+	/* Off-heap pools */
+	private final Arena arena;
+	private final MemorySegment chunks;
+	private final MemorySegment headers;
+	private final MemorySegment bitmaps;
+	private final MemorySegment output;
+
+	/* Per datagram state, indexed by datagram slot */
+	private final long[] srcHi;
+	private final long[] srcLo;
+	private final long[] dstHi;
+	private final long[] dstLo;
+	private final int[] ident;
+	private final int[] protocol;
+	private final long[] firstSeen;
+	private final int[] totalLength;
+	private final int[] receivedUnits;
+	private final int[] headerLength;
+	private final int[] l3Offset;
+	private final int[] nextHeaderAt;
+	private final int[] chunkMap;
+	private final int[] bucketNext;
+	private final int[] olderNext;
+	private final int[] olderPrev;
+
+	private final int[] buckets;
+	private final int[] freeDatagrams;
+	private final int[] freeChunks;
+	private int freeDatagramCount;
+	private int freeChunkCount;
+	private int oldest = NONE;
+	private int newest = NONE;
+
+	private long fragmentCount;
+	private long reassembledCount;
+	private long timeoutCount;
+	private long evictedCount;
+	private long droppedCount;
+
+	/**
+	 * Reserves the fragment pool.
+	 *
+	 * @param pipeline      the pipeline which dissects reassembled datagrams, with
+	 *                      packed capture headers
+	 * @param linkType      the pcap link type (DLT) of the packets
+	 * @param timestampUnit the unit of the packet timestamps, which the pipeline
+	 *                      must read capture headers in
+	 * @param memoryBudget  the memory for fragment data in bytes
+	 * @param timeout       the time after its first fragment at which an
+	 *                      incomplete datagram is evicted
+	 * @param handler       receives reassembled datagrams and unfragmented packets
+	 * @throws IllegalArgumentException if the budget can not hold a maximum size
+	 *                                  datagram
+	 */
+	IpReassembler(PacketPipeline pipeline, int linkType, TimeUnit timestampUnit, long memoryBudget, Duration timeout,
+			OfPacketConsumer handler) {
+		if (memoryBudget < (long) CHUNKS_PER_DATAGRAM * CHUNK_SIZE)
+			throw new IllegalArgumentException("memory budget must hold at least one %d byte datagram: %d"
+					.formatted(MAX_DATAGRAM, memoryBudget));
+		if (timeout.isNegative() || timeout.isZero())
+			throw new IllegalArgumentException("timeout must be positive: " + timeout);
+
+		final int chunkCount = (int) Math.min(memoryBudget / CHUNK_SIZE, Integer.MAX_VALUE / CHUNKS_PER_DATAGRAM);
+		final int datagrams = Math.min(MAX_DATAGRAMS, Math.max(1, chunkCount / 4));
+
+		this.pipeline = pipeline;
+		this.target = pipeline.newPacket();
+		this.linkType = linkType;
+		this.unitsPerSecond = timestampUnit.convert(1, TimeUnit.SECONDS);
+		this.timeout = timestampUnit.convert(timeout);
+		this.handler = Objects.requireNonNull(handler, "handler");
+
+		this.arena = Arena.ofShared();
+		this.chunks = arena.allocate((long) chunkCount * CHUNK_SIZE, 64);
+		this.headers = arena.allocate((long) datagrams * MAX_HEADER, 64);
+		this.bitmaps = arena.allocate((long) datagrams * BITMAP_LONGS * Long.BYTES, 64);
+		this.output = arena.allocate(RECORD_HEADER + MAX_HEADER + MAX_DATAGRAM, 64);
+
+		this.srcHi = new long[datagrams];
+		this.srcLo = new long[datagrams];
+		this.dstHi = new long[datagrams];
+		this.dstLo = new long[datagrams];
+		this.ident = new int[datagrams];
+		this.protocol = new int[datagrams];
+		this.firstSeen = new long[datagrams];
+		this.totalLength = new int[datagrams];
+		this.receivedUnits = new int[datagrams];
+		this.headerLength = new int[datagrams];
+		this.l3Offset = new int[datagrams];
+		this.nextHeaderAt = new int[datagrams];
+		this.chunkMap = new int[datagrams * CHUNKS_PER_DATAGRAM];
+		this.bucketNext = new int[datagrams];
+		this.olderNext = new int[datagrams];
+		this.olderPrev = new int[datagrams];
+		this.buckets = new int[Integer.highestOneBit(datagrams * 2 - 1) << 1];
+		this.freeDatagrams = new int[datagrams];
+		this.freeChunks = new int[chunkCount];
+
+		Arrays.fill(chunkMap, NONE);
+		Arrays.fill(buckets, NONE);
+
+		for (int d = datagrams - 1; d >= 0; d--)
+			freeDatagrams[freeDatagramCount++] = d;
+
+		for (int c = chunkCount - 1; c >= 0; c--)
+			freeChunks[freeChunkCount++] = c;
+	}
+
+	/**
+	 * Reassembles a packet if it is a fragment, or passes it to the handler.
+	 * Capture thread only.
+	 *
+	 * @param packet the packet
+	 */
+	@Override
+	public void accept(Packet packet) {
+		if (!process(packet.view().segment(), packet.view().start(), packet.captureLength(), packet.timestamp()))
+			handler.accept(packet);
+	}
+
+	private int allocateChunk(int owner) {
+		if (freeChunkCount == 0) {
+			final int victim = (oldest != owner) ? oldest : olderNext[owner];
+			if (victim == NONE)
+				return NONE;
+
+			evictedCount++;
+			release(victim);
+		}
+
+		return freeChunks[--freeChunkCount];
+	}
+
+	private int allocateDatagram() {
+		if (freeDatagramCount == 0) {
+			evictedCount++;
+			release(oldest);
+		}
+
+		return freeDatagrams[--freeDatagramCount];
+	}
+
+	/**
+	 * Joins a complete datagram's headers and payload, rewrites the IP header
+	 * and delivers the dissected result.
+	 */
+	private void assemble(int d, long now) {
+		final int hl = headerLength[d];
+		final int payload = totalLength[d];
+		final int frameLength = hl + payload;
+		final long ip = RECORD_HEADER + l3Offset[d];
+		final boolean v6 = (protocol[d] >>> 8) == 6;
+
+		if (!v6 && frameLength - l3Offset[d] > MAX_DATAGRAM) {
+			droppedCount++;
+			release(d);
+			return;
+		}
+
+		MemorySegment.copy(headers, (long) d * MAX_HEADER, output, RECORD_HEADER, hl);
+		for (int pos = 0; pos < payload; pos += CHUNK_SIZE) {
+			final int chunk = chunkMap[d * CHUNKS_PER_DATAGRAM + pos / CHUNK_SIZE];
+			MemorySegment.copy(chunks, (long) chunk * CHUNK_SIZE, output, RECORD_HEADER + hl + pos,
+					Math.min(CHUNK_SIZE, payload - pos));
+		}
+
+		if (v6) {
+			output.set(FlowHash.U16, ip + 4, (short) (frameLength - l3Offset[d] - 40));
+			output.set(ValueLayout.JAVA_BYTE, RECORD_HEADER + nextHeaderAt[d], (byte) protocol[d]);
+
+		} else {
+			final int ihl = (output.get(ValueLayout.JAVA_BYTE, ip) & 0xF) << 2;
+			final int flags = Short.toUnsignedInt(output.get(FlowHash.U16, ip + 6)) & 0x4000; // Keep DF
+
+			output.set(FlowHash.U16, ip + 2, (short) (frameLength - l3Offset[d]));
+			output.set(FlowHash.U16, ip + 6, (short) flags);
+			output.set(FlowHash.U16, ip + 10, (short) 0);
+			output.set(FlowHash.U16, ip + 10, (short) checksum(output, ip, ihl));
+		}
+
+		output.set(ValueLayout.JAVA_INT_UNALIGNED, 0, (int) (now / unitsPerSecond));
+		output.set(ValueLayout.JAVA_INT_UNALIGNED, 4, (int) (now % unitsPerSecond));
+		output.set(ValueLayout.JAVA_INT_UNALIGNED, 8, frameLength);
+		output.set(ValueLayout.JAVA_INT_UNALIGNED, 12, frameLength);
+
+		release(d);
+		reassembledCount++;
+
+		final Packet packet = pipeline.processPacket(output.asSlice(0, RECORD_HEADER), output, RECORD_HEADER,
+				frameLength, target);
+		if (packet != null)
+			handler.accept(packet);
+	}
+
+	private int bucket(long sHi, long sLo, long dHi, long dLo, int id, int proto) {
+		final long h = FlowHash.mix(sHi ^ FlowHash.mix(sLo ^ FlowHash.mix(dHi ^ FlowHash.mix(dLo
+				^ ((long) id << 16) ^ proto))));
+
+		return (int) h & (buckets.length - 1);
+	}
+
+	/**
+	 * Returns the number of bytes of fragment data held, counting whole chunks.
+	 *
+	 * @return the bytes in use
+	 */
+	public long bytesInUse() {
+		return (long) (freeChunks.length - freeChunkCount) * CHUNK_SIZE;
+	}
+
+	private static int checksum(MemorySegment segment, long offset, int length) {
+		int sum = 0;
+		for (int i = 0; i < length; i += 2)
+			sum += Short.toUnsignedInt(segment.get(FlowHash.U16, offset + i));
+
+		while ((sum >>> 16) != 0)
+			sum = (sum & 0xFFFF) + (sum >>> 16);
+
+		return ~sum & 0xFFFF;
+	}
+
+	/**
+	 * Drops all incomplete datagrams and frees the pool memory.
+	 */
+	@Override
+	public void close() {
+		if (arena.scope().isAlive())
+			arena.close();
+	}
+
+	/**
+	 * Returns the number of incomplete datagrams held.
+	 *
+	 * @return the datagram count
+	 */
+	public int datagramCount() {
+		return freeDatagrams.length - freeDatagramCount;
+	}
+
+	/**
+	 * Returns the number of fragments and datagrams dropped as malformed,
+	 * truncated, oversized or inconsistent.
+	 *
+	 * @return the dropped count
+	 */
+	public long droppedCount() {
+		return droppedCount;
+	}
+
+	/**
+	 * Returns the number of incomplete datagrams evicted to make room for new
+	 * fragments.
+	 *
+	 * @return the evicted count
+	 */
+	public long evictedCount() {
+		return evictedCount;
+	}
+
+	/**
+	 * Evicts incomplete datagrams whose first fragment arrived more than the
+	 * timeout before a point in time.
+	 *
+	 * @param now the current time, in the packet timestamp unit
+	 * @return the number of datagrams evicted
+	 */
+	public int expire(long now) {
+		int n = 0;
+		while (oldest != NONE && now - firstSeen[oldest] > timeout) {
+			release(oldest);
+			n++;
+		}
+
+		timeoutCount += n;
+
+		return n;
+	}
+
+	/**
+	 * Returns the number of fragments received.
+	 *
+	 * @return the fragment count
+	 */
+	public long fragmentCount() {
+		return fragmentCount;
+	}
+
+	private boolean isSet(int d, int unit) {
+		final long word = bitmaps.get(ValueLayout.JAVA_LONG, ((long) d * BITMAP_LONGS + (unit >>> 6)) * Long.BYTES);
+		return (word & (1L << unit)) != 0;
+	}
+
+	private int lookup(int bucket, long sHi, long sLo, long dHi, long dLo, int id, int proto) {
+		for (int d = buckets[bucket]; d != NONE; d = bucketNext[d])
+			if (srcLo[d] == sLo && dstLo[d] == dLo && ident[d] == id && protocol[d] == proto
+					&& srcHi[d] == sHi && dstHi[d] == dHi)
+				return d;
+
+		return NONE;
+	}
+
+	/**
+	 * Returns the size of the reassembler's off-heap memory, including headers,
+	 * bitmaps and the output buffer.
+	 *
+	 * @return the memory size in bytes
+	 */
+	public long memorySize() {
+		return chunks.byteSize() + headers.byteSize() + bitmaps.byteSize() + output.byteSize();
+	}
+
+	/**
+	 * Reassembles a frame if it is an IP fragment.
+	 *
+	 * @param buffer        the buffer holding the frame
+	 * @param offset        the offset of the frame within the buffer
+	 * @param captureLength the number of frame bytes available
+	 * @param now           the frame timestamp, in the packet timestamp unit
+	 * @return false if the frame is not a fragment and should be passed through
+	 */
+	boolean process(MemorySegment buffer, long offset, int captureLength, long now) {
+		expire(now);
+
+		index.index(buffer, offset, captureLength, linkType);
+		final int ip4 = index.offset(IP4, 0);
+		final int ip6 = index.offset(IP6, 0);
+
+		final long sHi, sLo, dHi, dLo;
+		final int id, proto, fragOffset, payloadStart, payloadLength, headerEnd, nextAt;
+		final boolean more;
+
+		if (ip4 >= 0 && (ip6 < 0 || ip4 < ip6)) {
+			final int word = index.u16(ip4 + 6);
+			if ((word & 0x3FFF) == 0) // Neither MF nor an offset
+				return false;
+
+			fragmentCount++;
+
+			final int ihl = (index.u8(ip4) & 0xF) << 2;
+			final int total = index.u16(ip4 + 2);
+			if (ihl < 20 || total < ihl || ip4 + total > captureLength) {
+				droppedCount++;
+				return true;
+			}
+
+			sHi = dHi = 0;
+			sLo = index.u32(ip4 + 12);
+			dLo = index.u32(ip4 + 16);
+			id = index.u16(ip4 + 4);
+			proto = (4 << 8) | index.u8(ip4 + 9);
+			fragOffset = (word & 0x1FFF) << 3;
+			more = (word & 0x2000) != 0;
+			payloadStart = ip4 + ihl;
+			payloadLength = total - ihl;
+			headerEnd = payloadStart;
+			nextAt = NONE;
+
+		} else if (ip6 >= 0) {
+			/* Find the fragment header after any hop-by-hop, routing or destination options */
+			int at = ip6 + 6;
+			int next = index.u8(at);
+			int off = ip6 + 40;
+			while (next != 44) {
+				if ((next != 0 && next != 43 && next != 60) || off + 8 > captureLength)
+					return false;
+
+				at = off;
+				next = index.u8(off);
+				off += (index.u8(off + 1) + 1) << 3;
+			}
+
+			final int end = ip6 + 40 + index.u16(ip6 + 4);
+			if (off + 8 > captureLength || end > captureLength || end < off + 8) {
+				fragmentCount++;
+				droppedCount++;
+				return true;
+			}
+
+			final int word = index.u16(off + 2);
+			if ((word & 0xFFF9) == 0) // Atomic fragment, RFC 6946
+				return false;
+
+			fragmentCount++;
+
+			sHi = index.u64(ip6 + 8);
+			sLo = index.u64(ip6 + 16);
+			dHi = index.u64(ip6 + 24);
+			dLo = index.u64(ip6 + 32);
+			id = (int) index.u32(off + 4);
+			proto = (6 << 8) | index.u8(off);
+			fragOffset = word & 0xFFF8;
+			more = (word & 0x0001) != 0;
+			payloadStart = off + 8;
+			payloadLength = end - payloadStart;
+			headerEnd = off;
+			nextAt = at;
+
+		} else {
+			return false;
+		}
+
+		if ((more && (payloadLength & 7) != 0) || fragOffset + payloadLength > MAX_DATAGRAM) {
+			droppedCount++;
+			return true;
+		}
+
+		final int bucket = bucket(sHi, sLo, dHi, dLo, id, proto);
+		int d = lookup(bucket, sHi, sLo, dHi, dLo, id, proto);
+
+		if (d == NONE) {
+			d = allocateDatagram();
+			srcHi[d] = sHi;
+			srcLo[d] = sLo;
+			dstHi[d] = dHi;
+			dstLo[d] = dLo;
+			ident[d] = id;
+			protocol[d] = proto;
+			firstSeen[d] = now;
+			totalLength[d] = NONE;
+			receivedUnits[d] = 0;
+			headerLength[d] = NONE;
+
+			bucketNext[d] = buckets[bucket];
+			buckets[bucket] = d;
+
+			olderPrev[d] = newest;
+			olderNext[d] = NONE;
+			if (newest != NONE)
+				olderNext[newest] = d;
+			else
+				oldest = d;
+			newest = d;
+		}
+
+		/* The last fragment sets the length, which all others must agree with */
+		final int end = fragOffset + payloadLength;
+		if ((!more && totalLength[d] != NONE && totalLength[d] != end)
+				|| (more && totalLength[d] != NONE && end > totalLength[d])) {
+			droppedCount++;
+			release(d);
+			return true;
+		}
+
+		if (!more)
+			totalLength[d] = end;
+
+		if (fragOffset == 0 && headerLength[d] == NONE) {
+			final int ip = (ip4 >= 0 && (ip6 < 0 || ip4 < ip6)) ? ip4 : ip6;
+			if (headerEnd > MAX_HEADER) {
+				droppedCount++;
+				release(d);
+				return true;
+			}
+
+			MemorySegment.copy(buffer, offset, headers, (long) d * MAX_HEADER, headerEnd);
+			headerLength[d] = headerEnd;
+			l3Offset[d] = ip;
+			nextHeaderAt[d] = nextAt;
+		}
+
+		/* Copy the runs of units not yet received, keeping earlier data on overlap */
+		final int lastUnit = (end + 7) >>> 3;
+		int unit = fragOffset >>> 3;
+		while (unit < lastUnit) {
+			if (isSet(d, unit)) {
+				unit++;
+				continue;
+			}
+
+			final int first = unit;
+			while (unit < lastUnit && !isSet(d, unit))
+				set(d, unit++);
+
+			receivedUnits[d] += unit - first;
+
+			final int from = first << 3;
+			final int to = Math.min(unit << 3, end);
+			if (!write(d, buffer, offset + payloadStart + (from - fragOffset), from, to - from)) {
+				droppedCount++;
+				release(d);
+				return true;
+			}
+		}
+
+		if (totalLength[d] != NONE && headerLength[d] != NONE
+				&& receivedUnits[d] == (totalLength[d] + 7) >>> 3)
+			assemble(d, now);
+
+		return true;
+	}
+
+	/**
+	 * Returns the number of datagrams reassembled.
+	 *
+	 * @return the reassembled count
+	 */
+	public long reassembledCount() {
+		return reassembledCount;
+	}
+
+	/**
+	 * Frees a datagram's chunks and slot.
+	 */
+	private void release(int d) {
+		for (int c = 0; c < CHUNKS_PER_DATAGRAM; c++) {
+			final int i = d * CHUNKS_PER_DATAGRAM + c;
+			if (chunkMap[i] != NONE) {
+				freeChunks[freeChunkCount++] = chunkMap[i];
+				chunkMap[i] = NONE;
+			}
+		}
+
+		bitmaps.asSlice((long) d * BITMAP_LONGS * Long.BYTES, BITMAP_LONGS * Long.BYTES).fill((byte) 0);
+
+		/* Unlink from its hash bucket */
+		final int bucket = bucket(srcHi[d], srcLo[d], dstHi[d], dstLo[d], ident[d], protocol[d]);
+		if (buckets[bucket] == d) {
+			buckets[bucket] = bucketNext[d];
+		} else {
+			int p = buckets[bucket];
+			while (bucketNext[p] != d)
+				p = bucketNext[p];
+			bucketNext[p] = bucketNext[d];
+		}
+
+		/* Unlink from the age list */
+		if (olderPrev[d] != NONE)
+			olderNext[olderPrev[d]] = olderNext[d];
+		else
+			oldest = olderNext[d];
+
+		if (olderNext[d] != NONE)
+			olderPrev[olderNext[d]] = olderPrev[d];
+		else
+			newest = olderPrev[d];
+
+		olderPrev[d] = olderNext[d] = NONE;
+		freeDatagrams[freeDatagramCount++] = d;
+	}
+
+	private void set(int d, int unit) {
+		final long at = ((long) d * BITMAP_LONGS + (unit >>> 6)) * Long.BYTES;
+		bitmaps.set(ValueLayout.JAVA_LONG, at, bitmaps.get(ValueLayout.JAVA_LONG, at) | (1L << unit));
+	}
+
+	/**
+	 * Returns the number of incomplete datagrams evicted on timeout.
+	 *
+	 * @return the timeout count
+	 */
+	public long timeoutCount() {
+		return timeoutCount;
+	}
+
+	@Override
+	public String toString() {
+		return "IpReassembler[fragments=%d, reassembled=%d, pending=%d, timeouts=%d, evicted=%d, dropped=%d, bytesInUse=%d]"
+				.formatted(fragmentCount, reassembledCount, datagramCount(), timeoutCount, evictedCount, droppedCount,
+						bytesInUse());
+	}
+
+	/**
+	 * Copies fragment data into a datagram's chunks, allocating chunks as needed.
+	 *
+	 * @return false if no chunk could be allocated
+	 */
+	private boolean write(int d, MemorySegment buffer, long source, int position, int length) {
+		while (length > 0) {
+			final int slot = d * CHUNKS_PER_DATAGRAM + position / CHUNK_SIZE;
+			if (chunkMap[slot] == NONE) {
+				final int chunk = allocateChunk(d);
+				if (chunk == NONE)
+					return false;
+				chunkMap[slot] = chunk;
+			}
+
+			final int within = position % CHUNK_SIZE;
+			final int n = Math.min(length, CHUNK_SIZE - within);
+			MemorySegment.copy(buffer, source, chunks, (long) chunkMap[slot] * CHUNK_SIZE + within, n);
+
+			source += n;
+			position += n;
+			length -= n;
+		}
+
+		return true;
+	}
+}
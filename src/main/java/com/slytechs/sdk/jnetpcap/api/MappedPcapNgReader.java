@@ -0,0 +1,624 @@
+/*
+ * Copyright 2005-2025 Sly Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.slytechs.sdk.jnetpcap.api;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+import com.slytechs.sdk.common.time.TimestampUnit;
+import com.slytechs.sdk.jnetpcap.api.PacketHandler.OfPacket;
+import com.slytechs.sdk.jnetpcap.api.PacketHandler.OfPacketConsumer;
+import com.slytechs.sdk.protocol.core.Packet;
+import com.slytechs.sdk.protocol.core.PacketSettings;
+import com.slytechs.sdk.protocol.core.descriptor.DescriptorType;
+
+/**
+ * A pure Java reader for pcapng capture files which memory maps the file and
+ * binds packets directly onto the mapped pages.
+ *
+ * <p>
+ * Section Header, Interface Description, Enhanced Packet, Simple Packet and the
+ * obsolete Packet blocks are decoded. Every other block type is skipped by its
+ * length without being read. Files may contain multiple sections, in either
+ * byte order, each with any number of interfaces. Unlike libpcap, which
+ * presents a pcapng file as a single link type, the interface of the current
+ * packet is available from {@link #currentInterface()} during each handler
+ * call, with its own link type, snaplen and timestamp resolution. Packets are
+ * dissected starting at the link type of their interface, by a pipeline
+ * created for each distinct link type in the file.
+ * </p>
+ *
+ * <p>
+ * Timestamps are normalized into the packet pipeline as seconds plus a fraction
+ * in microseconds, or in nanoseconds for interfaces with a finer resolution.
+ * </p>
+ *
+ * <pre>{@code
+ * try (MappedPcapNgReader reader = NetPcap.openMappedNg("capture.pcapng", new PacketSettings().dissect())) {
+ * 	reader.loop(-1, packet -> {
+ * 		PcapNgInterface iface = reader.currentInterface();
+ * 		process(iface.linkType(), packet);
+ * 	});
+ * }
+ * }</pre>
+ *
+ * <p>
+ * Exceptions thrown by handlers propagate to the caller. A reader is not
+ * thread-safe, except for {@link #breakloop()}.
+ * </p>
+ *
+ * @author Mark Bednarczyk [mark@slytechs.com]
+ * @author Sly Technologies Inc.
+ * @see NetPcap#openMappedNg(Path, PacketSettings)
+ * @see MappedPcapReader
+ */
+public final class MappedPcapNgReader implements AutoCloseable {
+
+	/** Section Header Block type, also the pcapng file magic. */
+	static final int BT_SHB = 0x0A0D0D0A;
+
+	/** Interface Description Block type. */
+	static final int BT_IDB = 0x00000001;
+
+	/** Obsolete Packet Block type. */
+	static final int BT_PB = 0x00000002;
+
+	/** Simple Packet Block type. */
+	static final int BT_SPB = 0x00000003;
+
+	/** Enhanced Packet Block type. */
+	static final int BT_EPB = 0x00000006;
+
+	/** Section Header Block byte-order magic. */
+	static final int BYTE_ORDER_MAGIC = 0x1A2B3C4D;
+
+	private static final int OPT_ENDOFOPT = 0;
+	private static final int IF_NAME = 2;
+	private static final int IF_TSRESOL = 9;
+	private static final int IF_TSOFFSET = 14;
+
+	/** Smallest legal block, type plus both length fields. */
+	private static final int MIN_BLOCK_LENGTH = 12;
+
+	private static final ValueLayout.OfInt LE_INT = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+	private static final ValueLayout.OfInt BE_INT = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+
+	private final Path path;
+	private final Arena arena;
+	private final MemorySegment file;
+	private final long size;
+	private final PacketSettings settings;
+
+	/** One pipeline per distinct link type, kept across sections */
+	private final List<PacketPipeline> pipelines = new ArrayList<>();
+
+	/** Native order packed pcap header for the current packet */
+	private final MemorySegment scratch;
+
+	private final List<PcapNgInterface> interfaces = new ArrayList<>();
+	private final List<PacketPipeline> interfacePipelines = new ArrayList<>();
+	private ValueLayout.OfInt sectionInt;
+	private ValueLayout.OfShort sectionShort;
+	private ValueLayout.OfLong sectionLong;
+	private long position;
+	private PcapNgInterface current;
+	private PacketPipeline currentPipeline;
+	private long currentTimestamp;
+	private int currentWireLength;
+	private MemorySegment currentData;
+	private int sections;
+	private long skippedBlocks;
+	private boolean truncated;
+	private boolean closed;
+	private volatile boolean breakRequested;
+
+	/**
+	 * Opens and maps a pcapng file.
+	 *
+	 * @param path     the capture file
+	 * @param settings the packet settings
+	 * @throws IOException if the file can not be mapped or is not a pcapng file
+	 */
+	MappedPcapNgReader(Path path, PacketSettings settings) throws IOException {
+		this.path = Objects.requireNonNull(path, "path");
+		this.arena = Arena.ofShared();
+
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			this.file = channel.map(MapMode.READ_ONLY, 0, channel.size(), arena);
+		} catch (IOException | RuntimeException e) {
+			arena.close();
+			throw e;
+		}
+
+		this.size = file.byteSize();
+
+		if (size < 28 || file.get(LE_INT, 0) != BT_SHB) {
+			arena.close();
+			throw new IOException("not a pcapng file: " + path);
+		}
+
+		this.scratch = arena.allocate(PcapFile.RECORD_HEADER_LENGTH, 8);
+		this.settings = settings;
+	}
+
+	/**
+	 * Decodes blocks until the next packet block.
+	 *
+	 * @return true if a packet is available, false at end of file
+	 */
+	private boolean advance() {
+		while (true) {
+			final long remaining = size - position;
+
+			if (remaining < MIN_BLOCK_LENGTH) {
+				truncated |= (remaining > 0);
+				return false;
+			}
+
+			final int type = file.get(LE_INT, position); // SHB type is a palindrome
+			if (type == BT_SHB && !readSectionOrder(position))
+				return false;
+
+			final long length = Integer.toUnsignedLong(file.get(sectionInt, position + 4));
+			if (length < MIN_BLOCK_LENGTH || (length & 3) != 0 || length > remaining) {
+				truncated = true;
+				return false;
+			}
+
+			final long block = position;
+			position += length;
+
+			boolean isPacket = switch (type) {
+			case BT_EPB -> readEnhancedPacket(block, length);
+			case BT_SPB -> readSimplePacket(block, length);
+			case BT_PB -> readObsoletePacket(block, length);
+			case BT_IDB -> readInterface(block, length);
+			case BT_SHB -> readSection();
+			default -> {
+				skippedBlocks++;
+				yield false;
+			}
+			};
+
+			if (isPacket)
+				return true;
+		}
+	}
+
+	/**
+	 * Requests that the current {@code dispatch()} or {@code loop()} call returns
+	 * -2 before processing the next packet. May be called from any thread.
+	 */
+	public void breakloop() {
+		breakRequested = true;
+	}
+
+	private void checkOpen() {
+		if (closed)
+			throw new IllegalStateException("reader is closed: " + path);
+	}
+
+	/**
+	 * Unmaps the file. Packets bound to the mapping, unless persisted, must no
+	 * longer be accessed.
+	 */
+	@Override
+	public void close() {
+		if (closed)
+			return;
+
+		closed = true;
+		arena.close();
+	}
+
+	/**
+	 * Counts the packet blocks in the file by walking block headers only, without
+	 * binding or dissecting packets. Does not move the read position.
+	 *
+	 * @return the number of packet blocks
+	 */
+	public long countPackets() {
+		checkOpen();
+
+		ValueLayout.OfInt order = LE_INT;
+		long count = 0;
+
+		for (long p = 0; size - p >= MIN_BLOCK_LENGTH;) {
+			int type = file.get(LE_INT, p);
+
+			if (type == BT_SHB)
+				order = (file.get(LE_INT, p + 8) == BYTE_ORDER_MAGIC) ? LE_INT : BE_INT;
+
+			long length = Integer.toUnsignedLong(file.get(order, p + 4));
+			if (length < MIN_BLOCK_LENGTH || (length & 3) != 0 || length > size - p)
+				break;
+
+			if (type == BT_EPB || type == BT_SPB || type == BT_PB)
+				count++;
+
+			p += length;
+		}
+
+		return count;
+	}
+
+	/**
+	 * Returns the interface of the current packet. Valid during a handler call,
+	 * or after {@link #next()}.
+	 *
+	 * @return the current interface, or null before the first packet
+	 */
+	public PcapNgInterface currentInterface() {
+		return current;
+	}
+
+	/**
+	 * Returns the timestamp of the current packet in nanoseconds since the epoch.
+	 * Valid during a handler call, or after {@link #next()}.
+	 *
+	 * @return the epoch nanoseconds, or 0 for Simple Packet Blocks
+	 */
+	public long currentTimestamp() {
+		return (current == null) ? 0 : current.epochNanos(currentTimestamp);
+	}
+
+	/**
+	 * Processes packets using a consumer-style handler.
+	 *
+	 * @param count   maximum packets to process (-1 for all remaining packets)
+	 * @param handler the packet consumer
+	 * @return number of packets processed, 0 at end of file, -2 on break
+	 */
+	public int dispatch(int count, OfPacketConsumer handler) {
+		Objects.requireNonNull(handler, "handler");
+		checkOpen();
+
+		int processed = 0;
+		while (count <= 0 || processed < count) {
+			if (breakRequested) {
+				breakRequested = false;
+				return -2;
+			}
+
+			if (!advance())
+				break;
+
+			processed++;
+
+			Packet packet = processCurrent();
+			if (packet != null)
+				handler.accept(packet);
+		}
+
+		return processed;
+	}
+
+	/**
+	 * Processes packets using a handler with user context.
+	 *
+	 * @param <U>     the user context type
+	 * @param count   maximum packets to process (-1 for all remaining packets)
+	 * @param handler the packet handler
+	 * @param user    the user context passed to the handler
+	 * @return number of packets processed, 0 at end of file, -2 on break
+	 */
+	public <U> int dispatch(int count, OfPacket<U> handler, U user) {
+		Objects.requireNonNull(handler, "handler");
+
+		return dispatch(count, packet -> handler.handlePacket(user, packet));
+	}
+
+	/**
+	 * Returns the interfaces of the current section, in interface id order.
+	 *
+	 * @return an unmodifiable view of the interfaces
+	 */
+	public List<PcapNgInterface> interfaces() {
+		return Collections.unmodifiableList(interfaces);
+	}
+
+	/**
+	 * Checks if reading stopped on an incomplete or malformed block.
+	 *
+	 * @return true if the file is truncated
+	 */
+	public boolean isTruncated() {
+		return truncated;
+	}
+
+	/**
+	 * Processes packets in a loop using a consumer-style handler.
+	 *
+	 * @param count   packets to process (-1 for all remaining packets)
+	 * @param handler the packet consumer
+	 * @return 0 when count is reached or at end of file, -2 on break
+	 */
+	public int loop(int count, OfPacketConsumer handler) {
+		int result = dispatch(count, handler);
+
+		return (result < 0) ? result : 0;
+	}
+
+	/**
+	 * Processes packets in a loop using a handler with user context.
+	 *
+	 * @param <U>     the user context type
+	 * @param count   packets to process (-1 for all remaining packets)
+	 * @param handler the packet handler
+	 * @param user    the user context passed to the handler
+	 * @return 0 when count is reached or at end of file, -2 on break
+	 */
+	public <U> int loop(int count, OfPacket<U> handler, U user) {
+		int result = dispatch(count, handler, user);
+
+		return (result < 0) ? result : 0;
+	}
+
+	/**
+	 * Reads the next packet. The returned packet is reused by the next call.
+	 *
+	 * @return the next packet, or null at end of file
+	 */
+	public Packet next() {
+		checkOpen();
+
+		while (advance()) {
+			Packet packet = processCurrent();
+
+			if (packet != null)
+				return packet;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Returns the file offset of the next block.
+	 *
+	 * @return the read position in bytes
+	 */
+	public long position() {
+		return position;
+	}
+
+	/**
+	 * Writes the normalized packed header and runs the current packet through the
+	 * pipeline.
+	 */
+	private Packet processCurrent() {
+		final PcapNgInterface iface = current;
+		final int caplen = (int) currentData.byteSize();
+
+		scratch.set(ValueLayout.JAVA_INT, 0, (int) iface.epochSeconds(currentTimestamp));
+		scratch.set(ValueLayout.JAVA_INT, 4, (int) iface.fraction(currentTimestamp));
+		scratch.set(ValueLayout.JAVA_INT, 8, caplen);
+		scratch.set(ValueLayout.JAVA_INT, 12, currentWireLength);
+
+		currentPipeline.setTimestampUnit(iface.isNanoTime() ? TimestampUnit.EPOCH_NANO : TimestampUnit.EPOCH_MICRO);
+
+		return currentPipeline.processPacket(scratch, currentData);
+	}
+
+	/**
+	 * Returns the pipeline which dissects frames of a link type, creating it on
+	 * first use.
+	 */
+	private PacketPipeline pipelineFor(int linkType) {
+		for (PacketPipeline pipeline : pipelines)
+			if (pipeline.linkType() == linkType)
+				return pipeline;
+
+		var pipeline = new PacketPipeline(null, CaptureHeader.Packed.INSTANCE, DescriptorType.PCAP_PACKED,
+				settings, linkType);
+		pipelines.add(pipeline);
+
+		return pipeline;
+	}
+
+	/**
+	 * Binds the current packet to its data and interface.
+	 *
+	 * @return true if the packet is well formed
+	 */
+	private boolean readPacket(int interfaceId, long timestamp, long data, long caplen, long wirelen,
+			long blockEnd) {
+		if (interfaceId < 0 || interfaceId >= interfaces.size() || data + caplen > blockEnd) {
+			skippedBlocks++;
+			return false;
+		}
+
+		this.current = interfaces.get(interfaceId);
+		this.currentPipeline = interfacePipelines.get(interfaceId);
+		this.currentTimestamp = timestamp;
+		this.currentData = file.asSlice(data, caplen);
+		this.currentWireLength = (int) Math.max(wirelen, caplen);
+
+		return true;
+	}
+
+	private boolean readEnhancedPacket(long block, long length) {
+		int interfaceId = file.get(sectionInt, block + 8);
+		long timestamp = timestamp(block + 12);
+		long caplen = Integer.toUnsignedLong(file.get(sectionInt, block + 20));
+		long wirelen = Integer.toUnsignedLong(file.get(sectionInt, block + 24));
+
+		return readPacket(interfaceId, timestamp, block + 28, caplen, wirelen, block + length - 4);
+	}
+
+	private boolean readInterface(long block, long length) {
+		final long end = block + length - 4;
+		int linkType = Short.toUnsignedInt(file.get(sectionShort, block + 8));
+		int snaplen = file.get(sectionInt, block + 12);
+		int tsResolution = PcapNgInterface.DEFAULT_TS_RESOLUTION;
+		long tsOffset = 0;
+		String name = null;
+
+		for (long opt = block + 16; opt + 4 <= end;) {
+			int code = Short.toUnsignedInt(file.get(sectionShort, opt));
+			int optLength = Short.toUnsignedInt(file.get(sectionShort, opt + 2));
+			long value = opt + 4;
+
+			if (code == OPT_ENDOFOPT || value + optLength > end)
+				break;
+
+			switch (code) {
+			case IF_NAME -> name = new String(file.asSlice(value, optLength).toArray(ValueLayout.JAVA_BYTE),
+					StandardCharsets.UTF_8);
+			case IF_TSRESOL -> tsResolution = Byte.toUnsignedInt(file.get(ValueLayout.JAVA_BYTE, value));
+			case IF_TSOFFSET -> tsOffset = (optLength >= 8) ? file.get(sectionLong, value) : 0;
+			default -> {}
+			}
+
+			opt = value + ((optLength + 3) & ~3);
+		}
+
+		interfaces.add(new PcapNgInterface(interfaces.size(), linkType, snaplen, tsResolution, tsOffset, name));
+		interfacePipelines.add(pipelineFor(linkType));
+
+		return false;
+	}
+
+	private boolean readObsoletePacket(long block, long length) {
+		int interfaceId = Short.toUnsignedInt(file.get(sectionShort, block + 8));
+		long timestamp = timestamp(block + 12);
+		long caplen = Integer.toUnsignedLong(file.get(sectionInt, block + 20));
+		long wirelen = Integer.toUnsignedLong(file.get(sectionInt, block + 24));
+
+		return readPacket(interfaceId, timestamp, block + 28, caplen, wirelen, block + length - 4);
+	}
+
+	private boolean readSection() {
+		interfaces.clear();
+		interfacePipelines.clear();
+		current = null;
+		currentPipeline = null;
+		sections++;
+
+		return false;
+	}
+
+	/**
+	 * Selects the byte order of the section starting at an SHB.
+	 *
+	 * @return false if the byte-order magic is invalid
+	 */
+	private boolean readSectionOrder(long block) {
+		int magic = file.get(LE_INT, block + 8);
+		ByteOrder order;
+
+		if (magic == BYTE_ORDER_MAGIC)
+			order = ByteOrder.LITTLE_ENDIAN;
+		else if (magic == Integer.reverseBytes(BYTE_ORDER_MAGIC))
+			order = ByteOrder.BIG_ENDIAN;
+		else {
+			truncated = true;
+			return false;
+		}
+
+		this.sectionInt = ValueLayout.JAVA_INT_UNALIGNED.withOrder(order);
+		this.sectionShort = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(order);
+		this.sectionLong = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(order);
+
+		return true;
+	}
+
+	private boolean readSimplePacket(long block, long length) {
+		if (interfaces.isEmpty()) {
+			skippedBlocks++;
+			return false;
+		}
+
+		long wirelen = Integer.toUnsignedLong(file.get(sectionInt, block + 8));
+		long caplen = Math.min(wirelen, length - 16);
+		int snaplen = interfaces.get(0).snaplen();
+
+		if (snaplen > 0)
+			caplen = Math.min(caplen, Integer.toUnsignedLong(snaplen));
+
+		return readPacket(0, 0, block + 12, caplen, wirelen, block + length - 4);
+	}
+
+	/**
+	 * Restarts reading from the beginning of the file.
+	 */
+	public void rewind() {
+		checkOpen();
+
+		this.position = 0;
+		this.truncated = false;
+		this.current = null;
+		this.currentPipeline = null;
+		this.sections = 0;
+		this.interfaces.clear();
+		this.interfacePipelines.clear();
+	}
+
+	/**
+	 * Returns the number of sections read so far.
+	 *
+	 * @return the section count
+	 */
+	public int sectionCount() {
+		return sections;
+	}
+
+	/**
+	 * Returns the size of the mapped file.
+	 *
+	 * @return the size in bytes
+	 */
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of blocks skipped so far, either of an unknown type or
+	 * malformed packet blocks.
+	 *
+	 * @return the skipped block count
+	 */
+	public long skippedBlocks() {
+		return skippedBlocks;
+	}
+
+	/**
+	 * Reads a pcapng split 64-bit timestamp, high word first.
+	 */
+	private long timestamp(long offset) {
+		long high = Integer.toUnsignedLong(file.get(sectionInt, offset));
+		long low = Integer.toUnsignedLong(file.get(sectionInt, offset + 4));
+
+		return (high << 32) | low;
+	}
+
+	@Override
+	public String toString() {
+		return "MappedPcapNgReader[%s, position=%d, size=%d, sections=%d, interfaces=%d, skipped=%d]"
+				.formatted(path, position, size, sections, interfaces.size(), skippedBlocks);
+	}
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2005-2025 Sly Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.slytechs.sdk.jnetpcap.api;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Objects;
+
+import com.slytechs.sdk.jnetpcap.api.PacketHandler.OfPacket;
+import com.slytechs.sdk.jnetpcap.api.PacketHandler.OfPacketConsumer;
+import com.slytechs.sdk.protocol.core.Packet;
+import com.slytechs.sdk.protocol.core.PacketSettings;
+
+/**
+ * A pure Java reader for pcap capture files which memory maps the file and
+ * binds packets directly onto the mapped pages.
+ *
+ * <p>
+ * {@link NetPcap#openOffline(String)} reads through libpcap's stdio reader,
+ * copying every record into libpcap's buffer, and then crosses into Java with
+ * one upcall per packet. This reader walks the pcap record headers in Java
+ * instead, and each packet's scoped memory is bound to its slice of the mapping
+ * with no copy and no native transition. Packets pass through the same packet
+ * pipeline as libpcap delivered packets, so dissection and packet settings
+ * behave identically.
+ * </p>
+ *
+ * <pre>{@code
+ * try (MappedPcapReader reader = NetPcap.openMapped("capture.pcap", new PacketSettings().dissect())) {
+ * 	reader.loop(-1, packet -> process(packet));
+ * }
+ * }</pre>
+ *
+ * <p>
+ * Both byte orders and both microsecond and nanosecond pcap files are
+ * supported. pcapng files are not. Packet data remains valid until the reader
+ * is closed, however the packet objects delivered to handlers are reused and
+ * must be persisted to be retained past the handler call. A truncated record at
+ * the end of the file, as left behind by an interrupted capture, ends the file
+ * and is reported by {@link #isTruncated()}.
+ * </p>
+ *
+ * <p>
+ * Exceptions thrown by handlers propagate to the caller. A reader is not
+ * thread-safe, except for {@link #breakloop()}.
+ * </p>
+ *
+ * @author Mark Bednarczyk [mark@slytechs.com]
+ * @author Sly Technologies Inc.
+ * @see NetPcap#openMapped(Path, PacketSettings)
+ */
+public final class MappedPcapReader implements AutoCloseable {
+
+	private final PcapFile file;
+	private final PcapFile.Cursor cursor;
+	private final PacketPipeline pipeline;
+	private boolean closed;
+	private volatile boolean breakRequested;
+
+	/**
+	 * Opens and maps a pcap file.
+	 *
+	 * @param path     the capture file
+	 * @param settings the packet settings
+	 * @throws IOException if the file can not be mapped or is not a pcap file
+	 */
+	MappedPcapReader(Path path, PacketSettings settings) throws IOException {
+		this.file = PcapFile.map(Objects.requireNonNull(path, "path"));
+		this.cursor = file.cursor();
+		this.pipeline = file.newPipeline(settings);
+	}
+
+	/**
+	 * Requests that the current {@code dispatch()} or {@code loop()} call returns
+	 * -2 before processing the next packet. May be called from any thread.
+	 */
+	public void breakloop() {
+		breakRequested = true;
+	}
+
+	private void checkOpen() {
+		if (closed)
+			throw new IllegalStateException("reader is closed: " + file.path());
+	}
+
+	/**
+	 * Unmaps the file. Packets bound to the mapping, unless persisted, must no
+	 * longer be accessed.
+	 */
+	@Override
+	public void close() {
+		if (closed)
+			return;
+
+		closed = true;
+		file.close();
+	}
+
+	/**
+	 * Processes packets using a consumer-style handler.
+	 *
+	 * @param count   maximum packets to process (-1 for all remaining packets)
+	 * @param handler the packet consumer
+	 * @return number of packets processed, 0 at end of file, -2 on break
+	 */
+	public int dispatch(int count, OfPacketConsumer handler) {
+		Objects.requireNonNull(handler, "handler");
+		checkOpen();
+
+		int processed = 0;
+		while (count <= 0 || processed < count) {
+			if (breakRequested) {
+				breakRequested = false;
+				return -2;
+			}
+
+			if (!cursor.advance())
+				break;
+
+			Packet packet = pipeline.processPacket(cursor.header(), cursor.data());
+			if (packet != null) {
+				processed++;
+				handler.accept(packet);
+			}
+		}
+
+		return processed;
+	}
+
+	/**
+	 * Processes packets using a handler with user context.
+	 *
+	 * @param <U>     the user context type
+	 * @param count   maximum packets to process (-1 for all remaining packets)
+	 * @param handler the packet handler
+	 * @param user    the user context passed to the handler
+	 * @return number of packets processed, 0 at end of file, -2 on break
+	 */
+	public <U> int dispatch(int count, OfPacket<U> handler, U user) {
+		Objects.requireNonNull(handler, "handler");
+
+		return dispatch(count, packet -> handler.handlePacket(user, packet));
+	}
+
+	/**
+	 * Checks if the file uses nanosecond timestamps.
+	 *
+	 * @return true for nanosecond, false for microsecond timestamps
+	 */
+	public boolean isNanoTime() {
+		return file.isNanoTime();
+	}
+
+	/**
+	 * Checks if the file was written in the opposite byte order to this host.
+	 *
+	 * @return true if swapped
+	 */
+	public boolean isSwapped() {
+		return file.isSwapped();
+	}
+
+	/**
+	 * Checks if reading stopped on an incomplete record at the end of the file.
+	 *
+	 * @return true if the file is truncated
+	 */
+	public boolean isTruncated() {
+		return cursor.isTruncated();
+	}
+
+	/**
+	 * Returns the link type (DLT) of the packets in the file.
+	 *
+	 * @return the link type
+	 */
+	public int linkType() {
+		return file.linkType();
+	}
+
+	/**
+	 * Processes packets in a loop using a consumer-style handler.
+	 *
+	 * @param count   packets to process (-1 for all remaining packets)
+	 * @param handler the packet consumer
+	 * @return 0 when count is reached or at end of file, -2 on break
+	 */
+	public int loop(int count, OfPacketConsumer handler) {
+		int result = dispatch(count, handler);
+
+		return (result < 0) ? result : 0;
+	}
+
+	/**
+	 * Processes packets in a loop using a handler with user context.
+	 *
+	 * @param <U>     the user context type
+	 * @param count   packets to process (-1 for all remaining packets)
+	 * @param handler the packet handler
+	 * @param user    the user context passed to the handler
+	 * @return 0 when count is reached or at end of file, -2 on break
+	 */
+	public <U> int loop(int count, OfPacket<U> handler, U user) {
+		int result = dispatch(count, handler, user);
+
+		return (result < 0) ? result : 0;
+	}
+
+	/**
+	 * Reads the next packet. The returned packet is reused by the next call.
+	 *
+	 * @return the next packet, or null at end of file
+	 */
+	public Packet next() {
+		checkOpen();
+
+		while (cursor.advance()) {
+			Packet packet = pipeline.processPacket(cursor.header(), cursor.data());
+
+			if (packet != null)
+				return packet;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Returns the file offset of the next record.
+	 *
+	 * @return the read position in bytes
+	 */
+	public long position() {
+		return cursor.position();
+	}
+
+	/**
+	 * Restarts reading from the first record.
+	 */
+	public void rewind() {
+		checkOpen();
+
+		cursor.reset(PcapFile.FILE_HEADER_LENGTH);
+	}
+
+	/**
+	 * Sets a BPF program run on each record before it is bound or dissected,
+	 * dropping the packets it rejects. As with a filtered savefile in libpcap,
+	 * dispatch and loop counts include only accepted packets.
+	 *
+	 * @param filter the program, or null to accept all packets
+	 * @return this reader for method chaining
+	 * @see BpfProgram#compile()
+	 */
+	public MappedPcapReader setFilter(BpfExecutable filter) {
+		pipeline.setFilter(filter);
+		return this;
+	}
+
+	/**
+	 * Returns the size of the mapped file.
+	 *
+	 * @return the size in bytes
+	 */
+	public long size() {
+		return file.size();
+	}
+
+	/**
+	 * Returns the snapshot length recorded in the file header.
+	 *
+	 * @return the snaplen
+	 */
+	public int snaplen() {
+		return file.snaplen();
+	}
+
+	@Override
+	public String toString() {
+		return "MappedPcapReader[%s, linkType=%d, position=%d, size=%d%s%s]"
+				.formatted(file.path(), file.linkType(), cursor.position(), file.size(),
+						file.isSwapped() ? ", swapped" : "",
+						file.isNanoTime() ? ", nano" : "");
+	}
+}
@@ -0,0 +1,408 @@
+/*
+ * Copyright 2005-2025 Sly Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.slytechs.sdk.jnetpcap.api;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Objects;
+
+import com.slytechs.sdk.jnetpcap.api.PacketHandler.OfPacketConsumer;
+import com.slytechs.sdk.jnetpcap.api.PacketHandler.OfSourcePacket;
+import com.slytechs.sdk.protocol.core.Packet;
+import com.slytechs.sdk.protocol.core.PacketSettings;
+
+/**
+ * Merges several pcap capture files into a single stream of packets in
+ * timestamp order, such as captures taken on different taps of the same
+ * network.
+ *
+ * <p>
+ * Each input is memory mapped and walked with its own record cursor, as in
+ * {@link MappedPcapReader}. The next record of every input is kept in a binary
+ * min-heap of primitive arrays keyed on its timestamp in nanoseconds, so that
+ * selecting the next packet costs O(log n) in the number of inputs and nothing
+ * is allocated per packet. Memory use is bounded by the number of inputs, not
+ * by their size, since packet data is read straight out of the mappings.
+ * </p>
+ *
+ * <pre>{@code
+ * try (MergedPcapReader merged = NetPcap.openMerged(files, new PacketSettings().dissect())) {
+ * 	merged.loop(-1, (source, packet) -> process(files.get(source), packet));
+ * }
+ * }</pre>
+ *
+ * <p>
+ * Packets with equal timestamps are delivered in input order, and records
+ * within one input are never reordered, so an input which is itself out of
+ * order is merged as it stands. Microsecond and nanosecond inputs may be mixed,
+ * each packet's timestamp keeps the resolution of its input. Inputs may have
+ * different link types, each is dissected from its own and
+ * {@link #linkType(int)} reports the link type of each.
+ * </p>
+ *
+ * <p>
+ * Exceptions thrown by handlers propagate to the caller. A reader is not
+ * thread-safe, except for {@link #breakloop()}.
+ * </p>
+ *
+ * @author Mark Bednarczyk [mark@slytechs.com]
+ * @author Sly Technologies Inc.
+ * @see NetPcap#openMerged(List, PacketSettings)
+ */
+public final class MergedPcapReader implements AutoCloseable {
+
+	private final PcapFile[] files;
+	private final PcapFile.Cursor[] cursors;
+
+	/** Timestamp of each input's next record, in epoch nanoseconds */
+	private final long[] keys;
+
+	/** Min-heap of input indexes, ordered by key then index */
+	private final int[] heap;
+	private final MemorySegment scratch;
+
+	/** Pipeline of each input, dissecting from its link type in its time unit */
+	private final PacketPipeline[] pipelines;
+	private int heapSize;
+	private int currentSource = -1;
+	private boolean closed;
+	private volatile boolean breakRequested;
+
+	/**
+	 * Opens and maps the input files.
+	 *
+	 * @param paths    the capture files
+	 * @param settings the packet settings
+	 * @throws IOException if any file can not be mapped or is not a pcap file
+	 */
+	MergedPcapReader(List<Path> paths, PacketSettings settings) throws IOException {
+		if (paths.isEmpty())
+			throw new IllegalArgumentException("no input files");
+
+		final int count = paths.size();
+
+		this.files = new PcapFile[count];
+		this.cursors = new PcapFile.Cursor[count];
+		this.keys = new long[count];
+		this.heap = new int[count];
+		this.pipelines = new PacketPipeline[count];
+
+		try {
+			for (int i = 0; i < count; i++)
+				files[i] = PcapFile.map(Objects.requireNonNull(paths.get(i), "path"));
+
+		} catch (IOException | RuntimeException e) {
+			closeFiles();
+			throw e;
+		}
+
+		this.scratch = Arena.ofAuto().allocate(PcapFile.RECORD_HEADER_LENGTH, 8);
+
+		for (int i = 0; i < count; i++) {
+			pipelines[i] = files[i].newPipeline(settings);
+			cursors[i] = files[i].cursor();
+		}
+
+		fillHeap();
+	}
+
+	/**
+	 * Returns the number of inputs which still have packets to deliver.
+	 *
+	 * @return the active source count
+	 */
+	public int activeSources() {
+		return heapSize;
+	}
+
+	/**
+	 * Requests that the current {@code dispatch()} or {@code loop()} call returns
+	 * -2 before processing the next packet. May be called from any thread.
+	 */
+	public void breakloop() {
+		breakRequested = true;
+	}
+
+	private void checkOpen() {
+		if (closed)
+			throw new IllegalStateException("reader is closed");
+	}
+
+	/**
+	 * Unmaps all input files. Packets bound to the mappings, unless persisted,
+	 * must no longer be accessed.
+	 */
+	@Override
+	public void close() {
+		if (closed)
+			return;
+
+		closed = true;
+		closeFiles();
+	}
+
+	private void closeFiles() {
+		for (PcapFile file : files)
+			if (file != null)
+				file.close();
+	}
+
+	/**
+	 * Returns the index of the input the most recently delivered packet was read
+	 * from.
+	 *
+	 * @return the source index, or -1 if no packet has been delivered
+	 */
+	public int currentSource() {
+		return currentSource;
+	}
+
+	/**
+	 * Processes packets in timestamp order using a consumer-style handler.
+	 * {@link #currentSource()} identifies each packet's input.
+	 *
+	 * @param count   maximum packets to process (-1 for all remaining packets)
+	 * @param handler the packet consumer
+	 * @return number of packets processed, 0 at end of all inputs, -2 on break
+	 */
+	public int dispatch(int count, OfPacketConsumer handler) {
+		Objects.requireNonNull(handler, "handler");
+
+		return dispatch(count, (_, packet) -> handler.accept(packet));
+	}
+
+	/**
+	 * Processes packets in timestamp order using a handler which receives each
+	 * packet's source index.
+	 *
+	 * @param count   maximum packets to process (-1 for all remaining packets)
+	 * @param handler the packet handler
+	 * @return number of packets processed, 0 at end of all inputs, -2 on break
+	 */
+	public int dispatch(int count, OfSourcePacket handler) {
+		Objects.requireNonNull(handler, "handler");
+		checkOpen();
+
+		int processed = 0;
+		while (count <= 0 || processed < count) {
+			if (breakRequested) {
+				breakRequested = false;
+				return -2;
+			}
+
+			if (heapSize == 0)
+				break;
+
+			final int source = heap[0];
+			Packet packet = processHead(source);
+			if (packet != null) {
+				processed++;
+				handler.handlePacket(source, packet);
+			}
+		}
+
+		return processed;
+	}
+
+	private void fillHeap() {
+		heapSize = 0;
+
+		for (int i = 0; i < cursors.length; i++) {
+			if (cursors[i].step()) {
+				keys[i] = cursors[i].timestampNanos();
+				heap[heapSize++] = i;
+			}
+		}
+
+		for (int i = (heapSize >>> 1) - 1; i >= 0; i--)
+			siftDown(i);
+	}
+
+	/**
+	 * Checks if reading of an input stopped on an incomplete record at the end of
+	 * its file.
+	 *
+	 * @param source the source index
+	 * @return true if the input is truncated
+	 */
+	public boolean isTruncated(int source) {
+		return cursors[source].isTruncated();
+	}
+
+	private boolean less(int a, int b) {
+		final long ka = keys[a];
+		final long kb = keys[b];
+
+		return ka < kb || (ka == kb && a < b);
+	}
+
+	/**
+	 * Returns the link type (DLT) of an input.
+	 *
+	 * @param source the source index
+	 * @return the link type
+	 */
+	public int linkType(int source) {
+		return files[source].linkType();
+	}
+
+	/**
+	 * Processes packets in a loop using a consumer-style handler.
+	 *
+	 * @param count   packets to process (-1 for all remaining packets)
+	 * @param handler the packet consumer
+	 * @return 0 when count is reached or at end of all inputs, -2 on break
+	 */
+	public int loop(int count, OfPacketConsumer handler) {
+		int result = dispatch(count, handler);
+
+		return (result < 0) ? result : 0;
+	}
+
+	/**
+	 * Processes packets in a loop using a handler which receives each packet's
+	 * source index.
+	 *
+	 * @param count   packets to process (-1 for all remaining packets)
+	 * @param handler the packet handler
+	 * @return 0 when count is reached or at end of all inputs, -2 on break
+	 */
+	public int loop(int count, OfSourcePacket handler) {
+		int result = dispatch(count, handler);
+
+		return (result < 0) ? result : 0;
+	}
+
+	/**
+	 * Reads the next packet in timestamp order. The returned packet is reused by
+	 * the next call, and {@link #currentSource()} identifies its input.
+	 *
+	 * @return the next packet, or null at end of all inputs
+	 */
+	public Packet next() {
+		checkOpen();
+
+		while (heapSize > 0) {
+			Packet packet = processHead(heap[0]);
+
+			if (packet != null)
+				return packet;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Runs the record at the top of the heap through the pipeline, then replaces
+	 * it with the next record of the same input.
+	 */
+	private Packet processHead(int source) {
+		final PcapFile.Cursor cursor = cursors[source];
+
+		cursor.copyHeader(scratch);
+		currentSource = source;
+
+		Packet packet = pipelines[source].processPacket(scratch, files[source].segment(),
+				cursor.dataOffset(), cursor.captureLength());
+
+		if (cursor.step())
+			keys[source] = cursor.timestampNanos();
+		else
+			heap[0] = heap[--heapSize];
+
+		if (heapSize > 0)
+			siftDown(0);
+
+		return packet;
+	}
+
+	/**
+	 * Restarts all inputs from their first record.
+	 */
+	public void rewind() {
+		checkOpen();
+
+		for (PcapFile.Cursor cursor : cursors)
+			cursor.reset(PcapFile.FILE_HEADER_LENGTH);
+
+		currentSource = -1;
+		fillHeap();
+	}
+
+	/**
+	 * Sets a BPF program run on each record before it is bound or dissected,
+	 * dropping the packets it rejects. The program is shared by all inputs, which
+	 * should have the link type it was compiled for. Dispatch and loop counts
+	 * include only accepted packets.
+	 *
+	 * @param filter the program, or null to accept all packets
+	 * @return this reader for method chaining
+	 * @see BpfProgram#compile()
+	 */
+	public MergedPcapReader setFilter(BpfExecutable filter) {
+		for (PacketPipeline pipeline : pipelines)
+			pipeline.setFilter(filter);
+
+		return this;
+	}
+
+	private void siftDown(int index) {
+		final int source = heap[index];
+
+		int i = index;
+		int child;
+		while ((child = (i << 1) + 1) < heapSize) {
+			if (child + 1 < heapSize && less(heap[child + 1], heap[child]))
+				child++;
+
+			if (!less(heap[child], source))
+				break;
+
+			heap[i] = heap[child];
+			i = child;
+		}
+
+		heap[i] = source;
+	}
+
+	/**
+	 * Returns the number of inputs.
+	 *
+	 * @return the source count
+	 */
+	public int sourceCount() {
+		return files.length;
+	}
+
+	/**
+	 * Returns the path of an input.
+	 *
+	 * @param source the source index
+	 * @return the capture file path
+	 */
+	public Path source(int source) {
+		return files[source].path();
+	}
+
+	@Override
+	public String toString() {
+		return "MergedPcapReader[sources=%d, active=%d]"
+				.formatted(files.length, heapSize);
+	}
+}
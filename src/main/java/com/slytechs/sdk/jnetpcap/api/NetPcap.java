@@ -16,8 +16,10 @@
 package com.slytechs.sdk.jnetpcap.api;
 
 import java.io.File;
+import java.io.IOException;
 import java.lang.Thread.UncaughtExceptionHandler;
 import java.lang.foreign.MemorySegment;
+import java.nio.file.Path;
 import java.time.Duration;
 import java.util.List;
 import java.util.Objects;
@@ -25,26 +27,32 @@ import java.util.Optional;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.function.Consumer;
+import java.util.function.IntFunction;
 
 import com.slytechs.jnet.jnetpcap.api.foreign.MemorySegmentPair;
+import com.slytechs.jnet.jnetpcap.api.foreign.NativeUpcall;
 import com.slytechs.jnet.jnetpcap.api.foreign.NetPcapDispatcher;
 import com.slytechs.sdk.common.license.LicenseException;
 import com.slytechs.sdk.common.memory.MemoryUnit;
+import com.slytechs.sdk.common.time.TimestampUnit;
 import com.slytechs.sdk.common.util.Named;
 import com.slytechs.sdk.jnetpcap.BpFilter;
 import com.slytechs.sdk.jnetpcap.Pcap;
 import com.slytechs.sdk.jnetpcap.PcapException;
 import com.slytechs.sdk.jnetpcap.PcapIf;
 import com.slytechs.sdk.jnetpcap.api.PacketHandler.OfPacket;
+import com.slytechs.sdk.jnetpcap.api.PacketHandler.OfPacketBatch;
 import com.slytechs.sdk.jnetpcap.api.PacketHandler.OfPacketConsumer;
 import com.slytechs.sdk.jnetpcap.constant.PcapDirection;
 import com.slytechs.sdk.jnetpcap.constant.PcapDlt;
 import com.slytechs.sdk.jnetpcap.constant.PcapSrc;
 import com.slytechs.sdk.jnetpcap.constant.PcapTStampPrecision;
 import com.slytechs.sdk.jnetpcap.constant.PcapTstampType;
+import com.slytechs.sdk.jnetpcap.internal.PcapHeaderABI;
 import com.slytechs.sdk.jnetpcap.util.PcapVersionException;
 import com.slytechs.sdk.protocol.core.Packet;
 import com.slytechs.sdk.protocol.core.PacketSettings;
+import com.slytechs.sdk.protocol.core.descriptor.DescriptorType;
 import com.slytechs.sdk.protocol.core.stack.ProtocolStack;
 import com.slytechs.sdk.protocol.tcpip.ethernet.Ethernet;
 import com.slytechs.sdk.protocol.tcpip.ip.Ip4;
@@ -118,6 +126,9 @@ public final class NetPcap extends BaseNetPcap implements Named, AutoCloseable {
 
 	public static final String VERSION = Pcap.VERSION;
 
+	/** Adapts consumer-style handlers to the user context handler signature */
+	private static final OfPacket<OfPacketConsumer> CONSUMER = OfPacketConsumer::accept;
+
 	public static void main(String[] args) throws PcapException {
 		final String FILENAME = "pcaps/HTTP.cap";
 
@@ -624,20 +635,178 @@ public final class NetPcap extends BaseNetPcap implements Named, AutoCloseable {
 	 */
 	public static NetPcap openOffline(String fname, PacketSettings settings) throws PcapException {
 		Pcap pcap = Pcap.openOffline(fname);
-		return new NetPcap(pcap, settings, true);
+		NetPcap netPcap = new NetPcap(pcap, settings, true);
+		netPcap.offline = true;
+
+		return netPcap;
+	}
+
+	/**
+	 * Opens a capture file for reading with timestamp precision. Timestamps are
+	 * scaled to the requested precision, whatever the precision of the file.
+	 *
+	 * @param fname     the filename
+	 * @param precision the timestamp precision
+	 * @return an activated NetPcap handle
+	 * @throws PcapException if file cannot be opened
+	 */
+	public static NetPcap openOfflineWithTstampPrecision(String fname, PcapTStampPrecision precision)
+			throws PcapException {
+		return openOfflineWithTstampPrecision(fname, precision, new PacketSettings());
+	}
+
+	/**
+	 * Opens a capture file for reading with timestamp precision and custom stack.
+	 *
+	 * @param fname     the filename
+	 * @param precision the timestamp precision
+	 * @param settings  the packet settings
+	 * @return an activated NetPcap handle
+	 * @throws PcapException if file cannot be opened
+	 */
+	public static NetPcap openOfflineWithTstampPrecision(String fname, PcapTStampPrecision precision,
+			PacketSettings settings) throws PcapException {
+		Pcap pcap = Pcap.openOfflineWithTstampPrecision(fname, precision);
+		NetPcap netPcap = new NetPcap(pcap, settings, true);
+		netPcap.offline = true;
+
+		return netPcap;
+	}
+
+	/**
+	 * Opens a pcap file for pure Java reading through a memory mapping, bypassing
+	 * libpcap.
+	 *
+	 * @param fname the filename
+	 * @return a mapped pcap reader
+	 * @throws IOException if the file cannot be mapped or is not a pcap file
+	 * @see MappedPcapReader
+	 */
+	public static MappedPcapReader openMapped(String fname) throws IOException {
+		return openMapped(Path.of(fname), new PacketSettings());
+	}
+
+	/**
+	 * Opens a pcap file for pure Java reading through a memory mapping, bypassing
+	 * libpcap.
+	 *
+	 * @param fname    the filename
+	 * @param settings the packet settings
+	 * @return a mapped pcap reader
+	 * @throws IOException if the file cannot be mapped or is not a pcap file
+	 * @see MappedPcapReader
+	 */
+	public static MappedPcapReader openMapped(String fname, PacketSettings settings) throws IOException {
+		return openMapped(Path.of(fname), settings);
+	}
+
+	/**
+	 * Opens a pcap file for pure Java reading through a memory mapping, bypassing
+	 * libpcap.
+	 *
+	 * @param file     the capture file
+	 * @param settings the packet settings
+	 * @return a mapped pcap reader
+	 * @throws IOException if the file cannot be mapped or is not a pcap file
+	 * @see MappedPcapReader
+	 */
+	public static MappedPcapReader openMapped(Path file, PacketSettings settings) throws IOException {
+		return new MappedPcapReader(file, Objects.requireNonNull(settings, "settings"));
+	}
+
+	/**
+	 * Opens a pcapng file for pure Java reading through a memory mapping,
+	 * bypassing libpcap.
+	 *
+	 * @param fname    the filename
+	 * @param settings the packet settings
+	 * @return a mapped pcapng reader
+	 * @throws IOException if the file cannot be mapped or is not a pcapng file
+	 * @see MappedPcapNgReader
+	 */
+	public static MappedPcapNgReader openMappedNg(String fname, PacketSettings settings) throws IOException {
+		return openMappedNg(Path.of(fname), settings);
+	}
+
+	/**
+	 * Opens a pcapng file for pure Java reading through a memory mapping,
+	 * bypassing libpcap.
+	 *
+	 * @param file     the capture file
+	 * @param settings the packet settings
+	 * @return a mapped pcapng reader
+	 * @throws IOException if the file cannot be mapped or is not a pcapng file
+	 * @see MappedPcapNgReader
+	 */
+	public static MappedPcapNgReader openMappedNg(Path file, PacketSettings settings) throws IOException {
+		return new MappedPcapNgReader(file, Objects.requireNonNull(settings, "settings"));
+	}
+
+	/**
+	 * Opens several pcap files and merges their packets into a single stream in
+	 * timestamp order.
+	 *
+	 * @param files    the capture files, in source index order
+	 * @param settings the packet settings
+	 * @return a merged pcap reader
+	 * @throws IOException if any file cannot be mapped or is not a pcap file
+	 * @see MergedPcapReader
+	 */
+	public static MergedPcapReader openMerged(List<Path> files, PacketSettings settings) throws IOException {
+		return new MergedPcapReader(List.copyOf(files), Objects.requireNonNull(settings, "settings"));
+	}
+
+	/**
+	 * Opens a pcap file for parallel, pure Java processing on multiple cores.
+	 *
+	 * @param fname       the filename
+	 * @param settings    the packet settings
+	 * @param parallelism the number of processing threads
+	 * @return a parallel pcap reader
+	 * @throws IOException if the file cannot be mapped or is not a pcap file
+	 * @see ParallelPcapReader
+	 */
+	public static ParallelPcapReader openOfflineParallel(String fname, PacketSettings settings, int parallelism)
+			throws IOException {
+		return openOfflineParallel(Path.of(fname), settings, parallelism);
+	}
+
+	/**
+	 * Opens a pcap file for parallel, pure Java processing on multiple cores.
+	 *
+	 * @param file        the capture file
+	 * @param settings    the packet settings
+	 * @param parallelism the number of processing threads
+	 * @return a parallel pcap reader
+	 * @throws IOException if the file cannot be mapped or is not a pcap file
+	 * @see ParallelPcapReader
+	 */
+	public static ParallelPcapReader openOfflineParallel(Path file, PacketSettings settings, int parallelism)
+			throws IOException {
+		return new ParallelPcapReader(file, Objects.requireNonNull(settings, "settings"), parallelism);
 	}
 
 	private final PacketSettings settings;
 	private PacketPipeline pipeline;
 	private boolean activated;
+	private boolean offline;
+	private PacketBatch batch;
+	private int batchCapacity = PacketBatch.DEFAULT_CAPACITY;
+	private DispatchMode dispatchMode = DispatchMode.UPCALL;
 	private final NetPcapDispatcher dispatcher;
 	private final MemorySegmentPair userPair = new MemorySegmentPair();
 	private final MemorySegment pcapHandle;
+	private final CaptureMetrics metrics;
+	private final DispatchTracer tracer;
+	private BpFilterCache filterCache;
 
 	private NetPcap(Pcap pcap, PacketSettings settings, boolean activated) {
 		super(pcap);
 		this.settings = Objects.requireNonNull(settings, "stack");
 		this.pcapHandle = pcap.handle();
+		this.metrics = new CaptureMetrics(this);
+		this.tracer = new DispatchTracer(pcap.getName(), metrics);
+		this.metrics.setTracer(tracer);
 
 		this.activated = activated;
 		this.dispatcher = new NetPcapDispatcher(
@@ -651,10 +820,13 @@ public final class NetPcap extends BaseNetPcap implements Named, AutoCloseable {
 	}
 
 	/**
-	 * 
+	 * Creates the packet pipeline once the handle is activated, reading capture
+	 * header timestamps in the handle's precision.
 	 */
 	private void configurePipeline() {
 		this.pipeline = new PacketPipeline(pcapApi, pcapApi.getPcapHeaderABI(), settings);
+		this.pipeline.setTimestampUnit(timestampUnit());
+		this.batch = null;
 	}
 
 	@Override
@@ -664,6 +836,395 @@ public final class NetPcap extends BaseNetPcap implements Named, AutoCloseable {
 		configurePipeline();
 	}
 
+	/**
+	 * Binds a packet handler with user context to this handle. The returned
+	 * handler can be dispatched repeatedly without allocating or re-creating a
+	 * callback on each call.
+	 *
+	 * @param <U>     the user context type
+	 * @param handler the packet handler
+	 * @param user    user context passed to handler
+	 * @return the bound handler
+	 */
+	public <U> BoundHandler bind(OfPacket<U> handler, U user) {
+		Objects.requireNonNull(handler, "handler");
+
+		return new BoundHandler(this, (MemorySegment _, MemorySegment h, MemorySegment p) -> deliver(h, p, handler, user));
+	}
+
+	/**
+	 * Binds a consumer-style packet handler to this handle. The returned handler
+	 * can be dispatched repeatedly without allocating or re-creating a callback on
+	 * each call.
+	 *
+	 * @param handler the packet consumer
+	 * @return the bound handler
+	 */
+	public BoundHandler bind(OfPacketConsumer handler) {
+		Objects.requireNonNull(handler, "handler");
+
+		return new BoundHandler(this, (MemorySegment _, MemorySegment h, MemorySegment p) -> deliver(h, p, CONSUMER, handler));
+	}
+
+	/**
+	 * Binds an asynchronous capture writer to this handle. Each dispatched packet
+	 * is appended to the writer as a raw record, without dissection and without
+	 * any disk I/O on the capture thread.
+	 *
+	 * @param writer the capture writer
+	 * @return the bound handler
+	 * @see AsyncCaptureWriter
+	 */
+	public BoundHandler bind(AsyncCaptureWriter writer) {
+		Objects.requireNonNull(writer, "writer");
+
+		final PcapHeaderABI abi = pcapApi.getPcapHeaderABI();
+		final boolean nano = isNanoPrecision();
+		final long multiplier = (writer.isNanoTime() && !nano) ? 1000 : 1;
+		final long divisor = (nano && !writer.isNanoTime()) ? 1000 : 1;
+
+		return new BoundHandler(this, (MemorySegment _, MemorySegment h, MemorySegment p) -> {
+			if (writer.write(abi.tvSec(h), abi.tvUsec(h) * multiplier / divisor, p, abi.wireLength(h)))
+				metrics.recordPacket(p.byteSize());
+		});
+	}
+
+	/**
+	 * Binds a rotating recorder to this handle. Each dispatched packet is appended
+	 * to the recorder's current file as a raw record, without dissection.
+	 *
+	 * @param recorder the rotating recorder
+	 * @return the bound handler
+	 * @see RotatingRecorder
+	 */
+	public BoundHandler bind(RotatingRecorder recorder) {
+		Objects.requireNonNull(recorder, "recorder");
+
+		final PcapHeaderABI abi = pcapApi.getPcapHeaderABI();
+		final boolean nano = isNanoPrecision();
+		final long multiplier = (recorder.isNanoTime() && !nano) ? 1000 : 1;
+		final long divisor = (nano && !recorder.isNanoTime()) ? 1000 : 1;
+
+		return new BoundHandler(this, (MemorySegment _, MemorySegment h, MemorySegment p) -> {
+			if (recorder.record(abi.tvSec(h), abi.tvUsec(h) * multiplier / divisor, p, abi.wireLength(h)))
+				metrics.recordPacket(p.byteSize());
+		});
+	}
+
+	/**
+	 * Binds a consumer-style packet handler which receives packets copied into
+	 * slots of a slab pool. Within the handler, {@link PacketSlabPool#persist}
+	 * retains a packet without any further copy or allocation.
+	 *
+	 * @param pool    a slab pool created by this handle
+	 * @param handler the packet consumer
+	 * @return the bound handler
+	 * @throws IllegalArgumentException if the pool was created by another handle
+	 * @see #newSlabPool(long)
+	 */
+	public BoundHandler bind(PacketSlabPool pool, OfPacketConsumer handler) {
+		Objects.requireNonNull(pool, "pool");
+		Objects.requireNonNull(handler, "handler");
+
+		if (!pool.isBoundTo(pipeline))
+			throw new IllegalArgumentException("slab pool was not created by this handle");
+
+		return new BoundHandler(this, (MemorySegment _, MemorySegment h, MemorySegment p) -> pool.deliver(h, p,
+				metrics, handler));
+	}
+
+	/**
+	 * Creates a multi-core pipeline fed by this handle, using the default ring
+	 * size.
+	 *
+	 * @param workers        the number of worker threads
+	 * @param handlerFactory creates the packet handler for each worker index, each
+	 *                       handler is only invoked on its own worker thread
+	 * @return a started parallel pipeline
+	 * @throws PcapException if the link type of this handle can not be determined
+	 * @see ParallelPipeline
+	 */
+	public ParallelPipeline parallel(int workers, IntFunction<? extends OfPacketConsumer> handlerFactory)
+			throws PcapException {
+		return parallel(workers, ParallelPipeline.DEFAULT_RING_SIZE, handlerFactory);
+	}
+
+	/**
+	 * Creates a multi-core pipeline fed by this handle. The calling thread becomes
+	 * the capture thread when it calls {@code dispatch()} or {@code loop()} on the
+	 * returned pipeline, while dissection and handlers run on the worker threads.
+	 *
+	 * @param workers        the number of worker threads
+	 * @param ringSize       the size in bytes of each worker's frame ring
+	 * @param handlerFactory creates the packet handler for each worker index, each
+	 *                       handler is only invoked on its own worker thread
+	 * @return a started parallel pipeline
+	 * @throws PcapException if the link type of this handle can not be determined
+	 * @see ParallelPipeline
+	 */
+	public ParallelPipeline parallel(int workers, long ringSize,
+			IntFunction<? extends OfPacketConsumer> handlerFactory) throws PcapException {
+		Objects.requireNonNull(handlerFactory, "handlerFactory");
+
+		return new ParallelPipeline(this, pcapApi.getPcapHeaderABI(), settings, datalink().getAsInt(),
+				workers, ringSize, handlerFactory);
+	}
+
+	/**
+	 * Creates a demultiplexer which routes the packets of this handle to many
+	 * subscribers, each with its own filter expression, capturing every packet
+	 * only once. The demultiplexer replaces the native filter with the union of
+	 * its subscribers' filters and installs itself as the packet filter stage.
+	 * Pass it to {@code dispatch()} or {@code loop()} as the packet handler.
+	 *
+	 * @return a new filter demultiplexer
+	 * @see FilterDemux
+	 */
+	public FilterDemux demux() {
+		return new FilterDemux(this);
+	}
+
+	/**
+	 * Creates a flow table tracking the packets of this handle. Pass the returned
+	 * table to {@code dispatch()} or {@code loop()} as the packet handler, and
+	 * close it to end the remaining flows and free its memory.
+	 *
+	 * @param capacity      the maximum number of concurrent flows
+	 * @param idleTimeout   the time without packets after which a flow ends
+	 * @param activeTimeout the time after its first packet at which a flow ends,
+	 *                      even if still active
+	 * @param listener      receives the flows as they end
+	 * @return a new flow table, timed by packet timestamps in the handle's
+	 *         timestamp precision
+	 * @throws PcapException if the link type of this handle can not be determined
+	 * @see FlowTable
+	 */
+	public FlowTable flowTable(int capacity, Duration idleTimeout, Duration activeTimeout,
+			FlowTable.FlowListener listener) throws PcapException {
+		return new FlowTable(capacity, idleTimeout, activeTimeout, timestampTimeUnit(), datalink().getAsInt(),
+				listener);
+	}
+
+	/**
+	 * Creates a flow sharding stage for packets captured by this handle. Pass the
+	 * returned router to {@code dispatch()} or {@code loop()} as the packet
+	 * handler, drain each shard from its own consumer thread, and close the router
+	 * to free its rings.
+	 *
+	 * @param shards      the number of shards
+	 * @param ringSize    the size of each shard's ring in bytes
+	 * @param tunnelAware if true, route tunneled packets by their innermost
+	 *                    5-tuple
+	 * @return a new flow shard router
+	 * @throws PcapException if the link type of this handle can not be determined
+	 * @see FlowShardRouter
+	 */
+	public FlowShardRouter shardRouter(int shards, long ringSize, boolean tunnelAware) throws PcapException {
+		return new FlowShardRouter(shards, ringSize, datalink().getAsInt(), timestampUnit(), tunnelAware, settings);
+	}
+
+	/**
+	 * Opens an asynchronous capture writer for packets captured by this handle,
+	 * using the default staging buffers.
+	 *
+	 * @param file   the output file, created or truncated
+	 * @param format the file format
+	 * @return a started writer
+	 * @throws IOException   if the file can not be created
+	 * @throws PcapException if the link type, snaplen or timestamp precision of
+	 *                       this handle can not be determined
+	 * @see #bind(AsyncCaptureWriter)
+	 */
+	public AsyncCaptureWriter openWriter(Path file, CaptureFileFormat format) throws IOException, PcapException {
+		return openWriter(file, format, AsyncCaptureWriter.DEFAULT_BUFFER_SIZE, AsyncCaptureWriter.DEFAULT_BUFFER_COUNT);
+	}
+
+	/**
+	 * Opens an asynchronous capture writer for packets captured by this handle.
+	 * The file records timestamps in this handle's timestamp precision.
+	 *
+	 * @param file        the output file, created or truncated
+	 * @param format      the file format
+	 * @param bufferSize  the size of each staging buffer in bytes
+	 * @param bufferCount the number of staging buffers
+	 * @return a started writer
+	 * @throws IOException   if the file can not be created
+	 * @throws PcapException if the link type, snaplen or timestamp precision of
+	 *                       this handle can not be determined
+	 * @see #bind(AsyncCaptureWriter)
+	 */
+	public AsyncCaptureWriter openWriter(Path file, CaptureFileFormat format, long bufferSize, int bufferCount)
+			throws IOException, PcapException {
+		return new AsyncCaptureWriter(file, format, datalink().getAsInt(), snapshot(),
+				getTstampPrecision() == PcapTStampPrecision.NANO, bufferSize, bufferCount);
+	}
+
+	/**
+	 * Opens a rotating recorder for packets captured by this handle. The files
+	 * record timestamps in this handle's timestamp precision.
+	 *
+	 * @param directory the target directory, which must exist
+	 * @param prefix    the file name prefix
+	 * @param format    the file format
+	 * @return a recorder with its first file open
+	 * @throws IOException   if the first file can not be created
+	 * @throws PcapException if the link type, snaplen or timestamp precision of
+	 *                       this handle can not be determined
+	 * @see #bind(RotatingRecorder)
+	 */
+	public RotatingRecorder openRecorder(Path directory, String prefix, CaptureFileFormat format)
+			throws IOException, PcapException {
+		return new RotatingRecorder(directory, prefix, format, datalink().getAsInt(), snapshot(),
+				getTstampPrecision() == PcapTStampPrecision.NANO);
+	}
+
+	/**
+	 * Creates a deduplicator for packets captured by this handle, hashing
+	 * {@link PacketDeduplicator#DEFAULT_WINDOW_LENGTH} bytes from the network
+	 * header. Install it with {@link #setDeduplicator(PacketDeduplicator)}, on
+	 * this handle or on the handles capturing the other mirror directions.
+	 *
+	 * @param capacity the number of packets remembered, at least the packet rate
+	 *                 times the window
+	 * @param window   the time within which a copy is a duplicate
+	 * @return a new deduplicator
+	 * @throws PcapException if the link type of this handle can not be determined
+	 * @see PacketDeduplicator
+	 */
+	public PacketDeduplicator newDeduplicator(int capacity, Duration window) throws PcapException {
+		return new PacketDeduplicator(capacity, window, datalink().getAsInt(), 0,
+				PacketDeduplicator.DEFAULT_WINDOW_LENGTH);
+	}
+
+	/**
+	 * Creates an IP fragment reassembler for packets captured by this handle,
+	 * which reserves its entire memory budget up front. Pass the returned
+	 * reassembler to {@code dispatch()} or {@code loop()} as the packet handler;
+	 * it delivers reassembled datagrams, dissected again, and all unfragmented
+	 * packets to the downstream handler.
+	 *
+	 * @param memoryBudget the memory for fragment data in bytes
+	 * @param timeout      the time after its first fragment at which an
+	 *                     incomplete datagram is evicted
+	 * @param handler      the downstream packet handler
+	 * @return a new reassembler
+	 * @throws PcapException            if the link type of this handle can not be
+	 *                                  determined
+	 * @throws IllegalArgumentException if the budget can not hold a maximum size
+	 *                                  datagram
+	 * @see IpReassembler
+	 */
+	public IpReassembler newReassembler(long memoryBudget, Duration timeout, OfPacketConsumer handler)
+			throws PcapException {
+		final int linkType = datalink().getAsInt();
+		var reassembly = new PacketPipeline(null, CaptureHeader.Packed.INSTANCE, DescriptorType.PCAP_PACKED, settings,
+				linkType);
+		reassembly.setTimestampUnit(timestampUnit());
+
+		return new IpReassembler(reassembly, linkType, timestampTimeUnit(), memoryBudget, timeout, handler);
+	}
+
+	/**
+	 * Creates a TCP stream reassembler for packets captured by this handle, which
+	 * reserves its connection table and entire memory budget up front. Pass the
+	 * returned reassembler to {@code dispatch()} or {@code loop()} as the packet
+	 * handler, and close it to deliver the remaining data and free its memory.
+	 *
+	 * @param capacity     the maximum number of concurrent connections
+	 * @param memoryBudget the memory for out of order segment data in bytes
+	 * @param streamLimit  the maximum out of order data held per stream in bytes
+	 * @param idleTimeout  the time without segments after which a connection
+	 *                     closes
+	 * @param handler      receives the reconstructed streams
+	 * @return a new reassembler, timed by packet timestamps in the handle's
+	 *         timestamp precision
+	 * @throws PcapException            if the link type of this handle can not be
+	 *                                  determined
+	 * @throws IllegalArgumentException if the budget can not hold one chunk
+	 * @see TcpReassembler
+	 */
+	public TcpReassembler newTcpReassembler(int capacity, long memoryBudget, int streamLimit, Duration idleTimeout,
+			TcpReassembler.StreamHandler handler) throws PcapException {
+		return new TcpReassembler(capacity, memoryBudget, streamLimit, idleTimeout, timestampTimeUnit(),
+				datalink().getAsInt(), handler);
+	}
+
+	/**
+	 * Creates a slab pool for persisting packets captured by this handle, which
+	 * reserves its entire memory budget up front.
+	 *
+	 * @param budget the memory budget in bytes
+	 * @return a new slab pool
+	 * @throws IllegalArgumentException if the budget is too small for any slot
+	 * @throws IllegalStateException    if the handle is not activated
+	 * @see #bind(PacketSlabPool, PacketHandler.OfPacketConsumer)
+	 */
+	public PacketSlabPool newSlabPool(long budget) {
+		if (pipeline == null)
+			throw new IllegalStateException("handle is not activated");
+
+		return new PacketSlabPool(pipeline, pcapApi.getPcapHeaderABI().headerLength(), budget);
+	}
+
+	/**
+	 * Creates a replay engine which transmits the packets of this offline handle
+	 * on a target handle, paced by their recorded timestamps by default.
+	 *
+	 * @param target the handle to transmit packets on
+	 * @return a new replay engine
+	 * @throws IllegalStateException if this handle is not an offline capture
+	 * @throws PcapException         if the timestamp precision of this handle can
+	 *                               not be determined
+	 * @see ReplayEngine
+	 */
+	public ReplayEngine replayTo(NetPcap target) throws PcapException {
+		if (!offline)
+			throw new IllegalStateException("replay source must be an offline capture");
+
+		return new ReplayEngine(this, target, pcapApi.getPcapHeaderABI(),
+				getTstampPrecision() == PcapTStampPrecision.NANO);
+	}
+
+	/**
+	 * Checks if capture header timestamp fractions are in nanoseconds. Handles
+	 * whose precision can not be queried deliver microseconds.
+	 */
+	private boolean isNanoPrecision() {
+		try {
+			return getTstampPrecision() == PcapTStampPrecision.NANO;
+		} catch (PcapException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the time unit of packet timestamps, for components which measure
+	 * timeouts in packet time.
+	 */
+	private TimeUnit timestampTimeUnit() {
+		return isNanoPrecision() ? TimeUnit.NANOSECONDS : TimeUnit.MICROSECONDS;
+	}
+
+	/**
+	 * Returns the unit of capture header timestamps, which follows the handle's
+	 * timestamp precision.
+	 */
+	TimestampUnit timestampUnit() {
+		return isNanoPrecision() ? TimestampUnit.EPOCH_NANO : TimestampUnit.EPOCH_MICRO;
+	}
+
+	int dispatchBound(int count, NativeUpcall upcall) {
+		dispatcher.userUpcall().setUserCallback(upcall);
+
+		return dispatchCycle(count);
+	}
+
+	int loopBound(int count, NativeUpcall upcall) {
+		dispatcher.userUpcall().setUserCallback(upcall);
+
+		return loopCycle(count);
+	}
+
 	/**
 	 * Processes packets using the specified handler with user context.
 	 * 
@@ -682,14 +1243,9 @@ public final class NetPcap extends BaseNetPcap implements Named, AutoCloseable {
 	 */
 	public <U> int dispatch(int count, OfPacket<U> handler, U user) throws PcapException {
 
-		dispatcher.userUpcall().setUserCallback((MemorySegment _, MemorySegment h, MemorySegment p) -> {
-			Packet packet = pipeline.processPacket(h, p);
-
-			if (packet != null)
-				handler.handlePacket(user, packet);
-		});
+		dispatcher.userUpcall().setUserCallback((MemorySegment _, MemorySegment h, MemorySegment p) -> deliver(h, p, handler, user));
 
-		return dispatcher.dispatchRaw(count, MemorySegment.NULL);
+		return dispatchCycle(count);
 	}
 
 	/**
@@ -702,20 +1258,211 @@ public final class NetPcap extends BaseNetPcap implements Named, AutoCloseable {
 	 */
 	public int dispatch(int count, OfPacketConsumer handler) throws PcapException {
 
+		dispatcher.userUpcall().setUserCallback((MemorySegment _, MemorySegment h, MemorySegment p) -> deliver(h, p, CONSUMER, handler));
+
+		return dispatchCycle(count);
+	}
+
+	/**
+	 * Processes a packet through the pipeline and hands it to the handler,
+	 * updating this handle's metrics.
+	 */
+	private <U> void deliver(MemorySegment h, MemorySegment p, OfPacket<U> handler, U user) {
+		final CaptureMetrics metrics = this.metrics;
+		final boolean metricsTiming = metrics.isTimingEnabled();
+		final boolean slowTracking = tracer.isSlowTracking();
+		final boolean timing = metricsTiming || slowTracking;
+		final long start = timing ? System.nanoTime() : 0;
+
+		Packet packet = pipeline.processPacket(h, p);
+
+		final long dissected = timing ? System.nanoTime() : 0;
+		if (metricsTiming)
+			metrics.recordDissection(dissected - start);
+		if (slowTracking)
+			tracer.recordDissection(dissected - start);
+
+		if (packet == null)
+			return;
+
+		metrics.recordPacket(p.byteSize());
+
+		try {
+			handler.handlePacket(user, packet);
+		} catch (RuntimeException | Error e) {
+			metrics.recordException();
+			tracer.handlerException(e);
+			throw e;
+		} finally {
+			if (metricsTiming)
+				metrics.recordHandler(System.nanoTime() - dissected);
+		}
+	}
+
+	/**
+	 * Runs a single dispatch cycle using the currently selected dispatch mode. The
+	 * user callback must already be installed.
+	 */
+	private int dispatchCycle(int count) {
+		int result = -1;
+		tracer.beginCycle(dispatchMode);
+
+		try {
+			result = (dispatchMode == DispatchMode.PULL)
+					? dispatcher.dispatchPull(count, MemorySegment.NULL)
+					: dispatcher.dispatchRaw(count, MemorySegment.NULL);
+
+			return result;
+		} finally {
+			metrics.cycleEnd();
+			tracer.endCycle(result);
+		}
+	}
+
+	/**
+	 * Runs a loop using the currently selected dispatch mode. The user callback
+	 * must already be installed.
+	 */
+	private int loopCycle(int count) {
+		int result = -1;
+		tracer.beginCycle(dispatchMode);
+
+		try {
+			result = (dispatchMode == DispatchMode.PULL)
+					? dispatcher.loopPull(count, MemorySegment.NULL)
+					: dispatcher.loopRaw(count, MemorySegment.NULL);
+
+			return result;
+		} finally {
+			metrics.cycleEnd();
+			tracer.endCycle(result);
+		}
+	}
+
+	/**
+	 * Processes up to one batch of packets and delivers them to the handler in a
+	 * single call.
+	 * 
+	 * <p>
+	 * Packets received during a single {@code pcap_dispatch} cycle are copied into
+	 * a reusable, pre-allocated {@link PacketBatch} and dissected as configured by
+	 * the packet settings. The batch is handed to the handler once after the cycle
+	 * completes. The count is clamped to the batch capacity, see
+	 * {@link #setBatchCapacity(int)}.
+	 * </p>
+	 *
+	 * @param count   maximum packets to process (-1 for up to batch capacity)
+	 * @param handler the batch handler
+	 * @return number of packets processed, 0 on timeout or EOF, -1 on error, -2 on
+	 *         break
+	 * @throws PcapException if capture fails
+	 */
+	public int dispatchBatch(int count, OfPacketBatch handler) throws PcapException {
+		PacketBatch batch = packetBatch();
+		PacketPipeline pipeline = this.pipeline;
+
+		if (count <= 0 || count > batch.capacity())
+			count = batch.capacity();
+
 		dispatcher.userUpcall().setUserCallback((MemorySegment _, MemorySegment h, MemorySegment p) -> {
-			Packet packet = pipeline.processPacket(h, p);
+			int size = batch.size();
+
+			if (!batch.offer(pipeline, h, p)) {
+				drainBatch(batch, handler);
+				size = batch.size();
+				batch.offer(pipeline, h, p);
+			}
 
-			if (packet != null)
-				handler.accept(packet);
+			/* Count only packets which passed the pipeline into the batch */
+			if (batch.size() > size)
+				metrics.recordPacket(p.byteSize());
 		});
 
-		return pcapApi.dispatch(count, (Void _, MemorySegment h, MemorySegment p) -> {
-			Packet packet = pipeline.processPacket(h, p);
+		int result = dispatchCycle(count);
+
+		drainBatch(batch, handler);
+
+		return result;
+	}
+
+	/**
+	 * Processes packets in a loop, delivering them to the handler in batches.
+	 * 
+	 * <p>
+	 * The loop performs repeated {@link #dispatchBatch(int, OfPacketBatch)} cycles
+	 * until the specified count is reached, end of file is reached on an offline
+	 * capture, an error occurs or {@link #breakloop()} is called. Read timeouts on
+	 * live captures do not terminate the loop.
+	 * </p>
+	 *
+	 * @param count   packets to process (-1 for infinite)
+	 * @param handler the batch handler
+	 * @return 0 if count is exhausted or on EOF, -1 on error, -2 on break
+	 * @throws PcapException if capture fails
+	 */
+	public int loopBatch(int count, OfPacketBatch handler) throws PcapException {
+		int remaining = count;
+
+		while (count <= 0 || remaining > 0) {
+			int result = dispatchBatch(count <= 0 ? -1 : remaining, handler);
+
+			if (result < 0)
+				return result;
+
+			if (result == 0 && offline)
+				break;
+
+			remaining -= result;
+		}
+
+		return 0;
+	}
+
+	private void drainBatch(PacketBatch batch, OfPacketBatch handler) {
+		if (batch.isEmpty())
+			return;
+
+		final boolean timing = metrics.isTimingEnabled();
+		final long start = timing ? System.nanoTime() : 0;
+
+		try {
+			handler.handleBatch(batch);
+		} catch (RuntimeException | Error e) {
+			metrics.recordException();
+			tracer.handlerException(e);
+			throw e;
+		} finally {
+			if (timing)
+				metrics.recordHandler(System.nanoTime() - start);
+
+			batch.clear();
+		}
+	}
+
+	private PacketBatch packetBatch() {
+		if (batch == null)
+			batch = new PacketBatch(pipeline, batchCapacity, PacketBatch.DEFAULT_BUFFER_SIZE);
+
+		return batch;
+	}
+
+	/**
+	 * Sets the maximum number of packets delivered in a single batch by
+	 * {@link #dispatchBatch(int, OfPacketBatch)} and
+	 * {@link #loopBatch(int, OfPacketBatch)}.
+	 *
+	 * @param capacity the batch capacity
+	 * @return this NetPcap for method chaining
+	 * @throws IllegalArgumentException if capacity is not positive
+	 */
+	public NetPcap setBatchCapacity(int capacity) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("batch capacity must be positive: " + capacity);
 
-			if (packet != null)
-				handler.accept(packet);
+		this.batchCapacity = capacity;
+		this.batch = null;
 
-		}, null);
+		return this;
 	}
 
 	/**
@@ -733,14 +1480,9 @@ public final class NetPcap extends BaseNetPcap implements Named, AutoCloseable {
 	 * @return number of packets processed, -1 on error, -2 on break
 	 */
 	public <U> int loop(int count, OfPacket<U> handler, U user) {
-		dispatcher.userUpcall().setUserCallback((MemorySegment _, MemorySegment h, MemorySegment p) -> {
-			Packet packet = pipeline.processPacket(h, p);
+		dispatcher.userUpcall().setUserCallback((MemorySegment _, MemorySegment h, MemorySegment p) -> deliver(h, p, handler, user));
 
-			if (packet != null)
-				handler.handlePacket(user, packet);
-		});
-
-		return dispatcher.loopRaw(count, MemorySegment.NULL);
+		return loopCycle(count);
 	}
 
 	/**
@@ -751,14 +1493,19 @@ public final class NetPcap extends BaseNetPcap implements Named, AutoCloseable {
 	 * @return number of packets processed, -1 on error, -2 on break
 	 */
 	public int loop(int count, OfPacketConsumer handler) {
-		dispatcher.userUpcall().setUserCallback((MemorySegment _, MemorySegment h, MemorySegment p) -> {
-			Packet packet = pipeline.processPacket(h, p);
+		dispatcher.userUpcall().setUserCallback((MemorySegment _, MemorySegment h, MemorySegment p) -> deliver(h, p, CONSUMER, handler));
 
-			if (packet != null)
-				handler.accept(packet);
-		});
+		return loopCycle(count);
+	}
 
-		return dispatcher.loopRaw(count, MemorySegment.NULL);
+	/**
+	 * Returns the capture metrics of this handle, which may be read from any
+	 * thread while a capture runs.
+	 *
+	 * @return the capture metrics
+	 */
+	public CaptureMetrics metrics() {
+		return metrics;
 	}
 
 	@Override
@@ -766,6 +1513,63 @@ public final class NetPcap extends BaseNetPcap implements Named, AutoCloseable {
 		return super.getName();
 	}
 
+	/**
+	 * Closes the handle and unregisters its metrics MBean, if registered.
+	 */
+	@Override
+	public void close() {
+		metrics.unregisterMBean();
+		super.close();
+	}
+
+	/**
+	 * Forces a {@code dispatch()} or {@code loop()} call to return, in either
+	 * dispatch mode.
+	 * 
+	 * @see Pcap#breakloop()
+	 */
+	@Override
+	public void breakloop() {
+		tracer.breakloop();
+		dispatcher.breakloop();
+	}
+
+	/**
+	 * Returns the strategy used to deliver packets during {@code dispatch()} and
+	 * {@code loop()} calls.
+	 *
+	 * @return the dispatch mode
+	 */
+	public DispatchMode getDispatchMode() {
+		return dispatchMode;
+	}
+
+	/**
+	 * Selects the strategy used to deliver packets during {@code dispatch()} and
+	 * {@code loop()} calls. The default is {@link DispatchMode#UPCALL}.
+	 *
+	 * @param mode the dispatch mode
+	 * @return this NetPcap for method chaining
+	 */
+	public NetPcap setDispatchMode(DispatchMode mode) {
+		this.dispatchMode = Objects.requireNonNull(mode, "mode");
+		return this;
+	}
+
+	/**
+	 * Sets the dissection time above which a packet counts towards the
+	 * {@code com.slytechs.sdk.jnetpcap.SlowDissection} flight recorder event. The
+	 * default is 10 microseconds. Dissection times are only measured while that
+	 * event is enabled in a recording.
+	 *
+	 * @param threshold the slow dissection threshold
+	 * @return this NetPcap for method chaining
+	 */
+	public NetPcap setSlowDissectionThreshold(Duration threshold) {
+		tracer.setSlowThreshold(Objects.requireNonNull(threshold, "threshold"));
+		return this;
+	}
+
 	/**
 	 * Retrieves the next packet without blocking.
 	 * 
@@ -786,13 +1590,17 @@ public final class NetPcap extends BaseNetPcap implements Named, AutoCloseable {
 	 */
 	@Override
 	public Packet next() throws PcapException {
-		dispatcher.next(userPair);
-		if (userPair.pkt == null)
-			return null;
-
-		Packet packet = pipeline.processPacket(userPair.hdr, userPair.pkt);
-
-		return packet;
+		while (true) {
+			dispatcher.next(userPair);
+			if (userPair.pkt == null)
+				return null;
+
+			Packet packet = pipeline.processPacket(userPair.hdr, userPair.pkt);
+			if (packet != null) {
+				metrics.recordPacket(userPair.pkt.byteSize());
+				return packet;
+			}
+		}
 	}
 
 	/**
@@ -810,13 +1618,17 @@ public final class NetPcap extends BaseNetPcap implements Named, AutoCloseable {
 	 */
 	@Override
 	public Packet nextEx() throws PcapException, TimeoutException {
-		dispatcher.nextEx(userPair);
-		if (userPair.pkt == null)
-			return null;
-
-		Packet packet = pipeline.processPacket(userPair.hdr, userPair.pkt);
-
-		return packet;
+		while (true) {
+			dispatcher.nextEx(userPair);
+			if (userPair.pkt == null)
+				return null;
+
+			Packet packet = pipeline.processPacket(userPair.hdr, userPair.pkt);
+			if (packet != null) {
+				metrics.recordPacket(userPair.pkt.byteSize());
+				return packet;
+			}
+		}
 	}
 
 	/**
@@ -941,6 +1753,58 @@ public final class NetPcap extends BaseNetPcap implements Named, AutoCloseable {
 		return this;
 	}
 
+	/**
+	 * Sets a deduplicator run in the JVM on each packet which passes the packet
+	 * filter, before it is bound or dissected. Duplicates are dropped, and are
+	 * neither passed to handlers nor returned by {@code next()}; the
+	 * deduplicator counts them.
+	 *
+	 * @param deduplicator the deduplicator, or null to keep duplicates
+	 * @return this NetPcap for method chaining
+	 * @throws IllegalStateException if the handle is not activated
+	 * @see #newDeduplicator(int, Duration)
+	 */
+	public NetPcap setDeduplicator(PacketDeduplicator deduplicator) {
+		if (pipeline == null)
+			throw new IllegalStateException("handle is not activated");
+
+		pipeline.setDeduplicator(deduplicator);
+		return this;
+	}
+
+	/**
+	 * Compiles a header field predicate for this handle's link type. Unlike a BPF
+	 * program, a predicate reads fields by protocol and tunnel depth, such as
+	 * {@code "ip4.ttl < 5 && tcp.isSyn && depth(ip4) == 1"}.
+	 *
+	 * @param expression the predicate expression
+	 * @return the compiled predicate
+	 * @throws PcapException            if the link type of this handle can not be
+	 *                                  determined
+	 * @throws IllegalArgumentException if the expression is invalid
+	 * @see PacketPredicate
+	 * @see #setPacketFilter(BpfExecutable)
+	 */
+	public PacketPredicate compilePredicate(String expression) throws PcapException {
+		return PacketPredicate.compile(expression, datalink().getAsInt());
+	}
+
+	/**
+	 * Compiles a filter expression for this handle's link type and snaplen into
+	 * a program which runs in the JVM, freeing the native program.
+	 *
+	 * @param expression the filter expression
+	 * @param optimize   true to optimize the filter
+	 * @return the validated program
+	 * @throws PcapException if filter compilation fails
+	 * @see #setPacketFilter(BpfExecutable)
+	 */
+	public BpfProgram compileProgram(String expression, boolean optimize) throws PcapException {
+		try (BpFilter filter = compile(expression, optimize, BpFilterCache.NETMASK_UNKNOWN)) {
+			return BpfProgram.of(filter);
+		}
+	}
+
 	/**
 	 * {@inheritDoc}
 	 * 
@@ -983,12 +1847,49 @@ public final class NetPcap extends BaseNetPcap implements Named, AutoCloseable {
 	 * @throws PcapException if filter compilation or application fails
 	 */
 	public NetPcap setFilter(String expression, boolean optimize) throws PcapException {
-		try (BpFilter filter = compile(expression, optimize)) {
+		return setFilter(expression, optimize, BpFilterCache.NETMASK_UNKNOWN);
+	}
+
+	/**
+	 * Sets a BPF filter compiled for a netmask, which qualifies
+	 * {@code ip broadcast} expressions. If a filter cache is set, a cached program
+	 * is reused instead of compiling the expression again.
+	 *
+	 * @param expression the filter expression
+	 * @param optimize   true to optimize the filter
+	 * @param netmask    the netmask of the capture network, or
+	 *                   {@link BpFilterCache#NETMASK_UNKNOWN}
+	 * @return this NetPcap for method chaining
+	 * @throws PcapException if filter compilation or application fails
+	 * @see #setFilterCache(BpFilterCache)
+	 */
+	public NetPcap setFilter(String expression, boolean optimize, int netmask) throws PcapException {
+		BpFilterCache cache = this.filterCache;
+		if (cache != null) {
+			cache.apply(this, expression, optimize, netmask);
+			return this;
+		}
+
+		try (BpFilter filter = compile(expression, optimize, netmask)) {
 			super.setFilter(filter);
 		}
 		return this;
 	}
 
+	/**
+	 * Sets the cache of compiled filter programs used by the
+	 * {@code setFilter(String...)} methods. By default no cache is used and every
+	 * call compiles and frees its program.
+	 *
+	 * @param cache the filter cache, such as {@link BpFilterCache#shared()}, or
+	 *              null for none
+	 * @return this NetPcap for method chaining
+	 */
+	public NetPcap setFilterCache(BpFilterCache cache) {
+		this.filterCache = cache;
+		return this;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 * 
@@ -1011,6 +1912,28 @@ public final class NetPcap extends BaseNetPcap implements Named, AutoCloseable {
 		return this;
 	}
 
+	/**
+	 * Sets a BPF program run in the JVM on each packet libpcap delivers, before
+	 * it is bound or dissected. Packets the program rejects are dropped, and are
+	 * neither passed to handlers nor returned by {@code next()}. Unlike
+	 * {@link #setFilter(String)} the program runs after libpcap, so it can refine
+	 * a coarser native filter or filter capture files read without one.
+	 *
+	 * @param filter the program, such as {@link BpfProgram#compile()} or a
+	 *               {@link PacketPredicate}, or null to accept all packets
+	 * @return this NetPcap for method chaining
+	 * @throws IllegalStateException if the handle is not activated
+	 * @see #compileProgram(String, boolean)
+	 * @see #compilePredicate(String)
+	 */
+	public NetPcap setPacketFilter(BpfExecutable filter) {
+		if (pipeline == null)
+			throw new IllegalStateException("handle is not activated");
+
+		pipeline.setFilter(filter);
+		return this;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 * 
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2005-2025 Sly Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.slytechs.sdk.jnetpcap.api;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+
+import com.slytechs.sdk.protocol.core.Packet;
+
+/**
+ * A reusable, pre-allocated batch of packets delivered to a
+ * {@link PacketHandler.OfPacketBatch} handler.
+ *
+ * <p>
+ * libpcap only guarantees packet data and headers to be valid for the duration
+ * of a single callback, therefore each packet's header and data are copied into
+ * a contiguous off-heap buffer owned by the batch. Each packet slot in the batch
+ * is a pre-allocated {@link Packet} view which is rebound to its record within
+ * the buffer. No objects are allocated per packet.
+ * </p>
+ *
+ * <p>
+ * A batch and all of its packets are only valid until the handler returns. Use
+ * {@code Packet.persist()} to retain individual packets beyond the batch scope.
+ * </p>
+ *
+ * @author Mark Bednarczyk [mark@slytechs.com]
+ * @author Sly Technologies Inc.
+ */
+public final class PacketBatch {
+
+	/** Default number of packets in a batch. */
+	public static final int DEFAULT_CAPACITY = 256;
+
+	/** Default size of the off-heap record buffer backing a batch. */
+	public static final int DEFAULT_BUFFER_SIZE = 4 * 1024 * 1024;
+
+	/** Record alignment within the buffer. */
+	private static final int ALIGNMENT = 8;
+
+	private static long align(long offset) {
+		return (offset + (ALIGNMENT - 1)) & ~(ALIGNMENT - 1);
+	}
+
+	private final Packet[] packets;
+	private final MemorySegment buffer;
+	private int size;
+	private long bufferOffset;
+
+	/**
+	 * Instantiates a new packet batch.
+	 *
+	 * @param pipeline   the pipeline used to create packet slots
+	 * @param capacity   the maximum number of packets in the batch
+	 * @param bufferSize the size of the record buffer in bytes
+	 */
+	PacketBatch(PacketPipeline pipeline, int capacity, int bufferSize) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("batch capacity must be positive: " + capacity);
+
+		this.packets = new Packet[capacity];
+		for (int i = 0; i < capacity; i++)
+			packets[i] = pipeline.newPacket();
+
+		this.buffer = Arena.ofAuto().allocate(bufferSize, ALIGNMENT);
+	}
+
+	/**
+	 * Returns the maximum number of packets this batch can hold.
+	 *
+	 * @return the batch capacity
+	 */
+	public int capacity() {
+		return packets.length;
+	}
+
+	/**
+	 * Resets the batch so its slots and buffer can be reused.
+	 */
+	void clear() {
+		size = 0;
+		bufferOffset = 0;
+	}
+
+	/**
+	 * Returns the packet at the specified index.
+	 *
+	 * @param index the packet index, from 0 to {@code size() - 1}
+	 * @return the packet
+	 * @throws IndexOutOfBoundsException if index is outside of the batch
+	 */
+	public Packet get(int index) {
+		if (index >= size)
+			throw new IndexOutOfBoundsException(index);
+
+		return packets[index];
+	}
+
+	/**
+	 * Checks if the batch contains no packets.
+	 *
+	 * @return true if empty
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Copies a packet into the batch and processes it through the pipeline.
+	 *
+	 * @param pipeline the pipeline
+	 * @param hdr      the pcap header
+	 * @param data     the packet data
+	 * @return false if the batch is full and must be drained first, otherwise true
+	 * @throws IllegalStateException if the record is larger than the entire batch
+	 *                               buffer
+	 */
+	boolean offer(PacketPipeline pipeline, MemorySegment hdr, MemorySegment data) {
+		long hdrOffset = align(bufferOffset);
+		long dataOffset = align(hdrOffset + hdr.byteSize());
+		long end = dataOffset + data.byteSize();
+
+		if (end > buffer.byteSize()) {
+			if (bufferOffset == 0)
+				throw new IllegalStateException("packet of %d bytes exceeds batch buffer size of %d bytes"
+						.formatted(data.byteSize(), buffer.byteSize()));
+
+			return false;
+		}
+
+		if (size == packets.length)
+			return false;
+
+		MemorySegment hdrCopy = buffer.asSlice(hdrOffset, hdr.byteSize());
+		MemorySegment dataCopy = buffer.asSlice(dataOffset, data.byteSize());
+		MemorySegment.copy(hdr, 0, hdrCopy, 0, hdr.byteSize());
+		MemorySegment.copy(data, 0, dataCopy, 0, data.byteSize());
+
+		Packet packet = pipeline.processPacket(hdrCopy, dataCopy, packets[size]);
+		if (packet != null) {
+			size++;
+			bufferOffset = end;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Returns the number of packets in this batch.
+	 *
+	 * @return the number of packets
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns a string representation of the batch state.
+	 */
+	@Override
+	public String toString() {
+		return "PacketBatch[size=%d, capacity=%d, buffered=%d]"
+				.formatted(size, packets.length, bufferOffset);
+	}
+}
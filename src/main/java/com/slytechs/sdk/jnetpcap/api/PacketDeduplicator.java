@@ -0,0 +1,357 @@
+/*
+ * Copyright 2005-2025 Sly Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.slytechs.sdk.jnetpcap.api;
+
+import static com.slytechs.sdk.jnetpcap.api.FlowHash.*;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Suppresses duplicate packets, such as the second copy of each frame which
+ * SPAN and mirror ports deliver when both ingress and egress are mirrored.
+ *
+ * <p>
+ * A packet is a duplicate if a packet with the same content was seen within the
+ * time window. Content is a window of bytes, starting at an offset from the
+ * network header, or from the frame start if there is none, so copies which
+ * differ in their link layer headers still match. The IP TTL or hop limit, the
+ * IPv4 header checksum and the TCP or UDP checksum are ignored, since routed
+ * copies differ in those. Each packet's window is hashed to 64 bits, and the
+ * hash and time are kept in a fixed size, open addressing set. Time is
+ * bucketed at a quarter of the window, so a packet is a duplicate if its copy
+ * arrived within the window, give or take a bucket.
+ * </p>
+ *
+ * <p>
+ * The set is lock free, so one deduplicator may be shared by the handles
+ * capturing the two mirror directions on their own threads. Lookups are best
+ * effort: copies arriving at the same instant on two threads may both pass,
+ * and when all probed slots hold live entries the oldest is displaced. Hash
+ * collisions suppress distinct packets with a probability of about the packet
+ * rate times the window over 2<sup>48</sup>.
+ * </p>
+ *
+ * <pre>{@code
+ * pcap.setDeduplicator(pcap.newDeduplicator(1 << 20, Duration.ofMillis(50)));
+ * pcap.loop(-1, handler);
+ * }</pre>
+ *
+ * @author Mark Bednarczyk [mark@slytechs.com]
+ * @author Sly Technologies Inc.
+ * @see NetPcap#setDeduplicator(PacketDeduplicator)
+ */
+public final class PacketDeduplicator {
+
+	/** Default number of bytes hashed, covering the IP and transport headers. */
+	public static final int DEFAULT_WINDOW_LENGTH = 128;
+
+	/** Time buckets per window */
+	private static final int BUCKETS = 4;
+
+	/** Slots probed per lookup */
+	private static final int PROBES = 8;
+
+	private static final int MAX_CAPACITY = 1 << 28;
+	private static final long EPOCH_MASK = 0xFFFF;
+	private static final long GOLDEN = 0x9E3779B97F4A7C15L;
+
+	/**
+	 * Zeroes the bytes of a field which fall within a big endian word.
+	 *
+	 * @param word     the word
+	 * @param position the frame offset of the word
+	 * @param at       the frame offset of the field, or -1 if absent
+	 * @param length   the field length
+	 * @return the word with the field's bytes zeroed
+	 */
+	private static long ignore(long word, long position, int at, int length) {
+		if (at < 0)
+			return word;
+
+		final long from = Math.max(at, position);
+		final long to = Math.min(at + length, position + Long.BYTES);
+
+		for (long i = from; i < to; i++)
+			word &= ~(0xFFL << (56 - 8 * (i - position)));
+
+		return word;
+	}
+
+	private final int capacity;
+	private final long windowNanos;
+	private final long bucketNanos;
+	private final int linkType;
+	private final int windowOffset;
+	private final int windowLength;
+	private final int mask;
+	private final AtomicLongArray slots;
+
+	private final LongAdder packetCount = new LongAdder();
+	private final LongAdder suppressedCount = new LongAdder();
+	private final LongAdder displacedCount = new LongAdder();
+
+	/**
+	 * Instantiates a new deduplicator.
+	 *
+	 * @param capacity     the number of packets remembered, at least the packet
+	 *                     rate times the window
+	 * @param window       the time within which a copy is a duplicate
+	 * @param linkType     the pcap link type (DLT) of the packets
+	 * @param windowOffset the offset of the hashed bytes from the network header
+	 * @param windowLength the number of bytes hashed
+	 */
+	public PacketDeduplicator(int capacity, Duration window, int linkType, int windowOffset, int windowLength) {
+		if (capacity <= 0 || capacity > MAX_CAPACITY)
+			throw new IllegalArgumentException("capacity must be positive and at most %d: %d"
+					.formatted(MAX_CAPACITY, capacity));
+		if (window.isNegative() || window.isZero())
+			throw new IllegalArgumentException("window must be positive: " + window);
+		if (windowOffset < 0)
+			throw new IllegalArgumentException("window offset must not be negative: " + windowOffset);
+		if (windowLength <= 0)
+			throw new IllegalArgumentException("window length must be positive: " + windowLength);
+
+		final int size = Integer.highestOneBit(capacity * 2 - 1) << 1; // Half full at capacity
+
+		this.capacity = capacity;
+		this.windowNanos = window.toNanos();
+		this.bucketNanos = Math.max(1, windowNanos / BUCKETS);
+		this.linkType = linkType;
+		this.windowOffset = windowOffset;
+		this.windowLength = windowLength;
+		this.mask = size - 1;
+		this.slots = new AtomicLongArray(size);
+	}
+
+	/**
+	 * Returns the number of packets remembered at half the set's load.
+	 *
+	 * @return the capacity
+	 */
+	public int capacity() {
+		return capacity;
+	}
+
+	/**
+	 * Forgets all packets seen.
+	 */
+	public void clear() {
+		for (int i = 0; i <= mask; i++)
+			slots.set(i, 0);
+	}
+
+	/**
+	 * Returns the number of entries displaced before their window ended, because
+	 * all of their probed slots were live.
+	 *
+	 * @return the displaced entry count
+	 */
+	public long displacedCount() {
+		return displacedCount.sum();
+	}
+
+	/**
+	 * Hashes a packet's window, ignoring the fields which differ between mirror
+	 * copies.
+	 *
+	 * @return the hash, or 0 if the window is empty
+	 */
+	private long hash(MemorySegment buffer, long offset, int captureLength) {
+		final int network = networkOffset(buffer, offset, captureLength);
+		final long start = Math.max(network, 0) + (long) windowOffset;
+		final long end = Math.min(start + windowLength, captureLength);
+		if (start >= end)
+			return 0;
+
+		/* Fields ignored, as frame offsets, or -1 if absent */
+		int ttl = -1;
+		int checksum = -1;
+		int l4Checksum = -1;
+
+		final int version = (network >= 0 && network < captureLength) ? u8(buffer, offset, network) >>> 4 : 0;
+
+		if (version == 4 && network + 20 <= captureLength) {
+			final int ihl = (u8(buffer, offset, network) & 0xF) << 2;
+			final int protocol = u8(buffer, offset, network + 9);
+			final boolean first = (u16(buffer, offset, network + 6) & 0x1FFF) == 0;
+
+			ttl = network + 8;
+			checksum = network + 10;
+			if (first && protocol == PROTO_TCP)
+				l4Checksum = network + ihl + 16;
+			else if (first && protocol == PROTO_UDP)
+				l4Checksum = network + ihl + 6;
+
+		} else if (version == 6 && network + 40 <= captureLength) {
+			final int next = u8(buffer, offset, network + 6);
+
+			ttl = network + 7;
+			if (next == PROTO_TCP)
+				l4Checksum = network + 40 + 16;
+			else if (next == PROTO_UDP)
+				l4Checksum = network + 40 + 6;
+		}
+
+		long h = GOLDEN * (end - start);
+
+		for (long p = start; p < end; p += Long.BYTES) {
+			long word = 0;
+			if (p + Long.BYTES <= end) {
+				word = buffer.get(U64, offset + p);
+			} else {
+				for (long i = p; i < end; i++)
+					word |= (long) u8(buffer, offset, i) << (56 - 8 * (i - p));
+			}
+
+			word = ignore(word, p, ttl, 1);
+			word = ignore(word, p, checksum, 2);
+			word = ignore(word, p, l4Checksum, 2);
+
+			h = mix(h + word);
+		}
+
+		return (h == 0) ? 1 : h;
+	}
+
+	/**
+	 * Checks if a packet is a duplicate of one seen within the window, and
+	 * remembers it if not. May be called from any thread.
+	 *
+	 * @param buffer        the buffer holding the packet data
+	 * @param offset        the offset of the packet data within the buffer
+	 * @param captureLength the number of packet bytes available
+	 * @param nanos         the packet timestamp in nanoseconds
+	 * @return true if the packet is a duplicate
+	 */
+	public boolean isDuplicate(MemorySegment buffer, long offset, int captureLength, long nanos) {
+		packetCount.increment();
+
+		final long h = hash(buffer, offset, captureLength);
+		if (h == 0)
+			return false;
+
+		final long epoch = (nanos / bucketNanos) & EPOCH_MASK;
+		final long fingerprint = ((h & ~EPOCH_MASK) == 0) ? EPOCH_MASK + 1 : h & ~EPOCH_MASK;
+		final long entry = fingerprint | epoch;
+
+		int victim = -1;
+		long victimEntry = 0;
+
+		for (int i = 0; i < PROBES; i++) {
+			final int at = (int) (h + i) & mask;
+			final long v = slots.get(at);
+
+			final boolean live = (v != 0) && Math.abs((short) (epoch - (v & EPOCH_MASK))) <= BUCKETS;
+			if (live && (v & ~EPOCH_MASK) == fingerprint) {
+				suppressedCount.increment();
+				return true;
+			}
+
+			if (!live && victim < 0) {
+				victim = at;
+				victimEntry = v;
+			}
+		}
+
+		if (victim >= 0) {
+			slots.compareAndSet(victim, victimEntry, entry);
+		} else {
+			displacedCount.increment();
+			slots.set((int) h & mask, entry);
+		}
+
+		return false;
+	}
+
+	/**
+	 * Finds the network header of a frame.
+	 *
+	 * @return the offset of the IP header, or -1 if there is none
+	 */
+	private int networkOffset(MemorySegment buffer, long offset, int captureLength) {
+		int at;
+		int type;
+
+		switch (linkType) {
+		case DLT_EN10MB -> at = 12;
+		case DLT_LINUX_SLL -> at = 14;
+		case DLT_RAW, DLT_RAW_OPENBSD, LINKTYPE_RAW, DLT_IPV4, DLT_IPV6 -> {
+			return (captureLength > 0) ? 0 : -1;
+		}
+		default -> {
+			return -1;
+		}
+		}
+
+		while (at + 2 <= captureLength) {
+			type = u16(buffer, offset, at);
+			if (type == ETHERTYPE_IPV4 || type == ETHERTYPE_IPV6)
+				return at + 2;
+			if (type != ETHERTYPE_VLAN && type != ETHERTYPE_QINQ && type != ETHERTYPE_QINQ_OLD)
+				return -1;
+
+			at += 4;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Returns the number of packets checked.
+	 *
+	 * @return the packet count
+	 */
+	public long packetCount() {
+		return packetCount.sum();
+	}
+
+	/**
+	 * Returns the number of packets suppressed as duplicates.
+	 *
+	 * @return the suppressed packet count
+	 */
+	public long suppressedCount() {
+		return suppressedCount.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "PacketDeduplicator[window=%dns, bytes=%d+%d, capacity=%d, packets=%d, suppressed=%d, displaced=%d]"
+				.formatted(windowNanos, windowOffset, windowLength, capacity, packetCount(), suppressedCount(),
+						displacedCount());
+	}
+
+	private static int u16(MemorySegment buffer, long offset, long at) {
+		return Short.toUnsignedInt(buffer.get(U16, offset + at));
+	}
+
+	private static int u8(MemorySegment buffer, long offset, long at) {
+		return buffer.get(ValueLayout.JAVA_BYTE, offset + at) & 0xFF;
+	}
+
+	/**
+	 * Returns the time within which a copy is a duplicate.
+	 *
+	 * @return the window
+	 */
+	public Duration window() {
+		return Duration.ofNanos(windowNanos);
+	}
+}
@@ -61,4 +61,37 @@ public interface PacketHandler {
 		@Override
 		void accept(Packet packet);
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Provides batched packet handling. Packets are collected into a reusable
+	 * {@link PacketBatch} during a dispatch cycle and handed to the handler at
+	 * once, allowing tight processing loops over many packets per call.
+	 */
+	@FunctionalInterface
+	interface OfPacketBatch extends PacketHandler {
+
+		/**
+		 * Handles a batch of packets. The batch and its packets are only valid until
+		 * this method returns.
+		 *
+		 * @param batch the packet batch
+		 */
+		void handleBatch(PacketBatch batch);
+	}
+
+	/**
+	 * Provides packet handling for sources which merge several inputs into one
+	 * stream, identifying the input each packet came from.
+	 */
+	@FunctionalInterface
+	interface OfSourcePacket extends PacketHandler {
+
+		/**
+		 * Handles a packet from one of several merged sources.
+		 *
+		 * @param source the index of the input the packet was read from
+		 * @param packet the packet
+		 */
+		void handlePacket(int source, Packet packet);
+	}
+}
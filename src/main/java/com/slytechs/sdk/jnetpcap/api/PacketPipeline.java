@@ -20,6 +20,7 @@ import java.lang.foreign.MemorySegment;
 import com.slytechs.sdk.common.memory.Memory;
 import com.slytechs.sdk.common.time.TimestampUnit;
 import com.slytechs.sdk.jnetpcap.Pcap;
+import com.slytechs.sdk.jnetpcap.constant.PcapDlt;
 import com.slytechs.sdk.jnetpcap.internal.PcapHeaderABI;
 import com.slytechs.sdk.protocol.core.Packet;
 import com.slytechs.sdk.protocol.core.PacketSettings;
@@ -38,21 +39,61 @@ class PacketPipeline {
 	private final Pcap pcap;
 	private final PacketSettings settings;
 	private final Packet packet;
-	private final PcapHeaderABI abi;
+	private final CaptureHeader header;
+	private final DescriptorType headerDescriptor;
 	private final PacketDissector dissector;
+	private final int linkType;
+	private BpfExecutable filter;
+	private PacketDeduplicator deduplicator;
 	private TimestampUnit timestampUnit = TimestampUnit.EPOCH_MICRO;
 
 	public PacketPipeline(Pcap pcap, PcapHeaderABI abi, PacketSettings settings) {
+		this(pcap, new CaptureHeader.Native(abi), DescriptorType.PCAP_PADDED, settings);
+	}
+
+	/**
+	 * Instantiates a pipeline for capture headers which do not come from libpcap,
+	 * such as records read directly from a capture file.
+	 *
+	 * @param pcap             the pcap handle, or null if there is none
+	 * @param header           reads the capture header fields
+	 * @param headerDescriptor the descriptor type matching the capture header
+	 *                         layout, used when packets are not dissected
+	 * @param settings         the packet settings
+	 */
+	PacketPipeline(Pcap pcap, CaptureHeader header, DescriptorType headerDescriptor, PacketSettings settings) {
+		this(pcap, header, headerDescriptor, settings, PcapDlt.EN10MB.getAsInt());
+	}
+
+	/**
+	 * Instantiates a pipeline for capture headers which do not come from libpcap,
+	 * whose frames start with the header of a link type other than Ethernet.
+	 *
+	 * @param pcap             the pcap handle, or null if there is none
+	 * @param header           reads the capture header fields
+	 * @param headerDescriptor the descriptor type matching the capture header
+	 *                         layout, used when packets are not dissected
+	 * @param settings         the packet settings
+	 * @param linkType         the pcap link type (DLT) of the frames, where
+	 *                         dissection starts
+	 */
+	PacketPipeline(Pcap pcap, CaptureHeader header, DescriptorType headerDescriptor, PacketSettings settings,
+			int linkType) {
 		this.pcap = pcap;
-		this.abi = abi;
+		this.header = header;
+		this.headerDescriptor = headerDescriptor;
 		this.settings = settings;
+		this.linkType = linkType;
 		this.packet = createPacket(settings);
-		this.dissector = createDissector(settings);
+		this.dissector = createDissector(settings, linkType);
 	}
 
-	private PacketDissector createDissector(PacketSettings settings) {
+	private PacketDissector createDissector(PacketSettings settings, int linkType) {
 		if (settings.isDissectionEnabled() && settings.isEagerDissection()) {
-			return new Type2PacketDissector();
+			var dissector = new Type2PacketDissector();
+			dissector.setDatalink(linkType);
+
+			return dissector;
 		}
 
 		return null;
@@ -63,7 +104,7 @@ class PacketPipeline {
 			return Packet.ofHybridType(DescriptorType.TYPE2);
 
 		} else {
-			var pkt = Packet.ofScopedType(DescriptorType.PCAP_PADDED);
+			var pkt = Packet.ofScopedType(headerDescriptor);
 			var desc = ((AbstractPacketDescriptor) pkt.descriptor());
 
 			if (settings.isOnDemandDissection())
@@ -82,10 +123,10 @@ class PacketPipeline {
 				.isFixed()
 				: "Invalid packet structure, expecting a FixedMemory pre-bound to descriptor";
 
-		int caplen = abi.captureLength(pcapHdr);
-		int wirelen = abi.wireLength(pcapHdr);
-		long tvSec = abi.tvSec(pcapHdr);
-		long tvUsec = abi.tvUsec(pcapHdr);
+		int caplen = header.captureLength(pcapHdr);
+		int wirelen = header.wireLength(pcapHdr);
+		long tvSec = header.tvSec(pcapHdr);
+		long tvUsec = header.tvUsec(pcapHdr);
 		long timestamp = timestampUnit.ofSecond(tvSec, tvUsec);
 
 		// Raw native packet memory we need to dissect
@@ -95,7 +136,67 @@ class PacketPipeline {
 		dissector.writeDescriptor(packet.descriptor());
 	}
 
-	private Packet rebindPacket(MemorySegment pcapHdr, MemorySegment data) {
+	/**
+	 * Returns the pcap link type (DLT) of the frames, where dissection starts.
+	 *
+	 * @return the link type
+	 */
+	int linkType() {
+		return linkType;
+	}
+
+	/**
+	 * Creates a new packet with the same structure as the pipeline's own reusable
+	 * packet. Used by consumers, such as {@link PacketBatch}, which need more than
+	 * one packet bound at the same time.
+	 *
+	 * @return a new unbound packet
+	 */
+	Packet newPacket() {
+		return createPacket(settings);
+	}
+
+	/**
+	 * Returns a packet's capture timestamp in nanoseconds.
+	 */
+	private long nanos(MemorySegment pcapHdr) {
+		final long fraction = header.tvUsec(pcapHdr);
+
+		return header.tvSec(pcapHdr) * 1_000_000_000L
+				+ ((timestampUnit == TimestampUnit.EPOCH_NANO) ? fraction : fraction * 1000);
+	}
+
+	/**
+	 * Sets a deduplicator run on each packet which passes the filter, before it
+	 * is bound or dissected. Duplicate packets are dropped.
+	 *
+	 * @param deduplicator the deduplicator, or null to keep duplicates
+	 */
+	void setDeduplicator(PacketDeduplicator deduplicator) {
+		this.deduplicator = deduplicator;
+	}
+
+	/**
+	 * Sets a BPF program run on each packet before it is bound or dissected.
+	 * Packets the program rejects are dropped.
+	 *
+	 * @param filter the program, or null to accept all packets
+	 */
+	void setFilter(BpfExecutable filter) {
+		this.filter = filter;
+	}
+
+	/**
+	 * Sets the unit of the capture header timestamp fraction, which is
+	 * microseconds by default.
+	 *
+	 * @param timestampUnit the timestamp unit
+	 */
+	void setTimestampUnit(TimestampUnit timestampUnit) {
+		this.timestampUnit = timestampUnit;
+	}
+
+	private Packet rebindPacket(MemorySegment pcapHdr, MemorySegment data, Packet packet) {
 		// Binding to pre-allocated/bound ScopedMemory to data offset + length
 		packet.boundMemory()
 				.asScopedMemory()
@@ -108,11 +209,91 @@ class PacketPipeline {
 		packet.descriptor()
 				.boundMemory()
 				.asScopedMemory()
-				.bind(pcapHdr, 0, abi.headerLength());
+				.bind(pcapHdr, 0, header.headerLength());
 	}
 
 	public Packet processPacket(MemorySegment pcapHdr, MemorySegment data) {
-		Packet packet = rebindPacket(pcapHdr, data);
+		return processPacket(pcapHdr, data, packet);
+	}
+
+	/**
+	 * Processes a packet whose data lies within a larger buffer, such as a mapped
+	 * capture file, binding the packet to that region without creating a slice.
+	 *
+	 * @param pcapHdr the capture header
+	 * @param buffer  the buffer holding the packet data
+	 * @param offset  the offset of the packet data within the buffer
+	 * @param length  the capture length
+	 * @return the processed packet, or null if the packet was dropped
+	 */
+	Packet processPacket(MemorySegment pcapHdr, MemorySegment buffer, long offset, long length) {
+		return processPacket(pcapHdr, buffer, offset, length, packet);
+	}
+
+	/**
+	 * Processes a packet whose data lies within a larger buffer into the supplied
+	 * target packet instead of the pipeline's own reusable packet.
+	 *
+	 * @param pcapHdr the capture header
+	 * @param buffer  the buffer holding the packet data
+	 * @param offset  the offset of the packet data within the buffer
+	 * @param length  the capture length
+	 * @param target  the packet to bind and dissect into
+	 * @return the processed packet, or null if the packet was dropped
+	 */
+	Packet processPacket(MemorySegment pcapHdr, MemorySegment buffer, long offset, long length, Packet target) {
+		if (filter != null && filter.run(buffer, offset, (int) length, header.wireLength(pcapHdr)) == 0)
+			return null;
+
+		if (deduplicator != null && deduplicator.isDuplicate(buffer, offset, (int) length, nanos(pcapHdr)))
+			return null;
+
+		return bindPacket(pcapHdr, buffer, offset, length, target);
+	}
+
+	/**
+	 * Binds and dissects a packet whose data lies within a larger buffer, without
+	 * running the filter or deduplicator. Used to move a packet which already
+	 * passed the pipeline into other memory.
+	 *
+	 * @param pcapHdr the capture header
+	 * @param buffer  the buffer holding the packet data
+	 * @param offset  the offset of the packet data within the buffer
+	 * @param length  the capture length
+	 * @param target  the packet to bind and dissect into
+	 * @return the target packet
+	 */
+	Packet bindPacket(MemorySegment pcapHdr, MemorySegment buffer, long offset, long length, Packet target) {
+		target.boundMemory()
+				.asScopedMemory()
+				.bind(buffer, offset, length);
+
+		if (dissector == null)
+			rebindPcapHeader(pcapHdr, target);
+		else
+			dissectPacket(pcapHdr, target);
+
+		return target;
+	}
+
+	/**
+	 * Processes a packet into the supplied target packet instead of the pipeline's
+	 * own reusable packet.
+	 *
+	 * @param pcapHdr the pcap header
+	 * @param data    the packet data
+	 * @param target  the packet to bind and dissect into
+	 * @return the processed packet, or null if the packet was dropped
+	 */
+	Packet processPacket(MemorySegment pcapHdr, MemorySegment data, Packet target) {
+		if (filter != null && filter.run(data, 0, header.captureLength(pcapHdr), header.wireLength(pcapHdr)) == 0)
+			return null;
+
+		if (deduplicator != null
+				&& deduplicator.isDuplicate(data, 0, header.captureLength(pcapHdr), nanos(pcapHdr)))
+			return null;
+
+		Packet packet = rebindPacket(pcapHdr, data, target);
 
 		if (dissector == null)
 			rebindPcapHeader(pcapHdr, packet);
@@ -0,0 +1,884 @@
+/*
+ * Copyright 2005-2025 Sly Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.slytechs.sdk.jnetpcap.api;
+
+import static com.slytechs.sdk.jnetpcap.api.HeaderIndex.*;
+
+import java.lang.foreign.MemorySegment;
+import java.util.Objects;
+
+import com.slytechs.sdk.protocol.core.Packet;
+
+/**
+ * A predicate over protocol header fields, compiled from a small expression
+ * language, which runs as a packet filter stage.
+ *
+ * <p>
+ * Unlike BPF, a predicate addresses fields by protocol and tunnel depth rather
+ * than by offset, so the same expression matches whatever VLAN tags, IPv6
+ * extension headers or tunnels precede the header:
+ * </p>
+ *
+ * <pre>{@code
+ * ip4.ttl < 5 && tcp.isSyn && depth(ip4) == 1
+ * ip4[1].protocol == 17 || (tcp.mss != 0 && tcp.mss < 536)
+ * vlan.id == 100 && !ip6 && tcp.flags & 0x12 == 0x12
+ * }</pre>
+ *
+ * <ul>
+ * <li>{@code proto} is true if the packet has the header, {@code proto[n]} if
+ * it has one at depth {@code n}, counting from 0 for the outermost header</li>
+ * <li>{@code proto.field} and {@code proto[n].field} are field values, compared
+ * with a decimal, hexadecimal or dotted quad constant using {@code ==},
+ * {@code !=}, {@code <}, {@code <=}, {@code >} or {@code >=}, optionally after
+ * a {@code & mask}. Flag fields and masked fields are also predicates on their
+ * own</li>
+ * <li>{@code depth(proto)} is the depth of the innermost header of a protocol,
+ * or -1 if there is none</li>
+ * <li>predicates combine with {@code &&}, {@code ||}, {@code !} and parentheses,
+ * or with {@code and}, {@code or} and {@code not}</li>
+ * </ul>
+ *
+ * <p>
+ * Protocols are {@code eth}, {@code vlan}, {@code ip4}, {@code ip6},
+ * {@code tcp}, {@code udp}, {@code icmp}, {@code icmp6}, {@code gre} and
+ * {@code vxlan}; see {@link #fields()} for their fields. A comparison with a
+ * field of an absent header is false, so {@code tcp.dstPort != 80} does not
+ * match UDP packets.
+ * </p>
+ *
+ * <p>
+ * The expression is parsed into a tree of small final node classes, which is
+ * then compiled to a hidden class with a single method, whose branches
+ * short-circuit as the expression does and which reads the fields it compares
+ * directly from the frame. Expressions too large to compile run on the tree.
+ * Per packet, the headers are located in a single walk of the frame, into an
+ * index reused by each thread. No objects are allocated per packet. A
+ * predicate may be shared between threads.
+ * </p>
+ *
+ * <pre>{@code
+ * pcap.setPacketFilter(pcap.compilePredicate("ip4.ttl < 5 && tcp.isSyn"));
+ * }</pre>
+ *
+ * @author Mark Bednarczyk [mark@slytechs.com]
+ * @author Sly Technologies Inc.
+ * @see NetPcap#compilePredicate(String)
+ * @see NetPcap#setPacketFilter(BpfExecutable)
+ */
+public final class PacketPredicate implements BpfExecutable {
+
+	/** Value of a field whose header is absent */
+	static final long ABSENT = Long.MIN_VALUE;
+
+	/** Returned for accepted packets, libpcap's maximum snaplen as its filters do */
+	private static final int ACCEPT = 262144;
+
+	static final int NO_OPTION = -1;
+	private static final int ALL_OPTIONS = 256;
+
+	/**
+	 * The fields of each protocol, read as unsigned big endian values.
+	 */
+	enum Field {
+		ETH_TYPE(ETH, "type", 12, 2),
+
+		VLAN_ID(VLAN, "id", 0, 2, 0, 0xFFF),
+		VLAN_PCP(VLAN, "pcp", 0, 2, 13, 0x7),
+		VLAN_TYPE(VLAN, "type", 2, 2),
+
+		IP4_VERSION(IP4, "version", 0, 1, 4, 0xF),
+		IP4_HDR_LEN(IP4, "hdrLen", 0, 1, 0, 0xF, 4, false, NO_OPTION),
+		IP4_TOS(IP4, "tos", 1, 1),
+		IP4_LEN(IP4, "len", 2, 2),
+		IP4_ID(IP4, "id", 4, 2),
+		IP4_DF(IP4, "df", 6, 2, 14, true),
+		IP4_MF(IP4, "mf", 6, 2, 13, true),
+		IP4_FRAG_OFFSET(IP4, "fragOffset", 6, 2, 0, 0x1FFF),
+		IP4_TTL(IP4, "ttl", 8, 1),
+		IP4_PROTOCOL(IP4, "protocol", 9, 1),
+		IP4_CHECKSUM(IP4, "checksum", 10, 2),
+		IP4_SRC(IP4, "src", 12, 4),
+		IP4_DST(IP4, "dst", 16, 4),
+
+		IP6_VERSION(IP6, "version", 0, 1, 4, 0xF),
+		IP6_TRAFFIC_CLASS(IP6, "trafficClass", 0, 4, 20, 0xFF),
+		IP6_FLOW_LABEL(IP6, "flowLabel", 0, 4, 0, 0xFFFFF),
+		IP6_PAYLOAD_LENGTH(IP6, "payloadLength", 4, 2),
+		IP6_NEXT(IP6, "next", 6, 1),
+		IP6_HOP_LIMIT(IP6, "hopLimit", 7, 1),
+
+		TCP_SRC_PORT(TCP, "srcPort", 0, 2),
+		TCP_DST_PORT(TCP, "dstPort", 2, 2),
+		TCP_SEQ(TCP, "seq", 4, 4),
+		TCP_ACK(TCP, "ack", 8, 4),
+		TCP_HDR_LEN(TCP, "hdrLen", 12, 1, 4, 0xF, 4, false, NO_OPTION),
+		TCP_FLAGS(TCP, "flags", 13, 1),
+		TCP_IS_FIN(TCP, "isFin", 13, 1, 0, true),
+		TCP_IS_SYN(TCP, "isSyn", 13, 1, 1, true),
+		TCP_IS_RST(TCP, "isRst", 13, 1, 2, true),
+		TCP_IS_PSH(TCP, "isPsh", 13, 1, 3, true),
+		TCP_IS_ACK(TCP, "isAck", 13, 1, 4, true),
+		TCP_IS_URG(TCP, "isUrg", 13, 1, 5, true),
+		TCP_IS_ECE(TCP, "isEce", 13, 1, 6, true),
+		TCP_IS_CWR(TCP, "isCwr", 13, 1, 7, true),
+		TCP_WINDOW(TCP, "window", 14, 2),
+		TCP_CHECKSUM(TCP, "checksum", 16, 2),
+		TCP_URGENT(TCP, "urgent", 18, 2),
+		TCP_OPTIONS_LENGTH(TCP, "optionsLength", 0, 0, 0, 0, 1, false, ALL_OPTIONS),
+		TCP_MSS(TCP, "mss", 0, 2, 0, 0xFFFF, 1, false, 2),
+		TCP_WSCALE(TCP, "wscale", 0, 1, 0, 0xFF, 1, false, 3),
+		TCP_SACK_PERMITTED(TCP, "sackPermitted", 0, 0, 0, 1, 1, true, 4),
+		TCP_TIMESTAMPS(TCP, "timestamps", 0, 0, 0, 1, 1, true, 8),
+
+		UDP_SRC_PORT(UDP, "srcPort", 0, 2),
+		UDP_DST_PORT(UDP, "dstPort", 2, 2),
+		UDP_LENGTH(UDP, "length", 4, 2),
+		UDP_CHECKSUM(UDP, "checksum", 6, 2),
+
+		ICMP_TYPE(ICMP, "type", 0, 1),
+		ICMP_CODE(ICMP, "code", 1, 1),
+
+		ICMP6_TYPE(ICMP6, "type", 0, 1),
+		ICMP6_CODE(ICMP6, "code", 1, 1),
+
+		GRE_PROTOCOL(GRE, "protocol", 2, 2),
+
+		VXLAN_VNI(VXLAN, "vni", 4, 4, 8, 0xFFFFFF);
+
+		private static final Field[] FIELDS = values();
+
+		/**
+		 * Looks up a field of a protocol by name.
+		 *
+		 * @return the field, or null if the protocol has no such field
+		 */
+		static Field of(int protocol, String name) {
+			for (Field f : FIELDS)
+				if (f.protocol == protocol && f.fieldName.equals(name))
+					return f;
+
+			return null;
+		}
+
+		final int protocol;
+		final String fieldName;
+		final int offset;
+		final int size;
+		final int shift;
+		final long mask;
+		final int scale;
+		final boolean flag;
+		final int option;
+
+		/** A whole field */
+		Field(int protocol, String name, int offset, int size) {
+			this(protocol, name, offset, size, 0, widthMask(size));
+		}
+
+		/** A single bit flag */
+		Field(int protocol, String name, int offset, int size, int bit, boolean flag) {
+			this(protocol, name, offset, size, bit, 1, 1, flag, NO_OPTION);
+		}
+
+		/** A bit field */
+		Field(int protocol, String name, int offset, int size, int shift, long mask) {
+			this(protocol, name, offset, size, shift, mask, 1, false, NO_OPTION);
+		}
+
+		Field(int protocol, String name, int offset, int size, int shift, long mask, int scale, boolean flag,
+				int option) {
+			this.protocol = protocol;
+			this.fieldName = name;
+			this.offset = offset;
+			this.size = size;
+			this.shift = shift;
+			this.mask = mask;
+			this.scale = scale;
+			this.flag = flag;
+			this.option = option;
+		}
+
+		/**
+		 * Returns the mask of a field's full width.
+		 */
+		static long widthMask(int size) {
+			return (size == 4) ? 0xFFFFFFFFL : (1L << (size * 8)) - 1;
+		}
+
+		long read(HeaderIndex index, int header) {
+			if (option != NO_OPTION)
+				return readOption(index, header);
+
+			final long raw = switch (size) {
+			case 1 -> index.u8(header + offset);
+			case 2 -> index.u16(header + offset);
+			default -> index.u32(header + offset);
+			};
+
+			return ((raw >>> shift) & mask) * scale;
+		}
+
+		/**
+		 * Reads a TCP option, walking the options up to the captured end of the
+		 * header.
+		 */
+		private long readOption(HeaderIndex index, int header) {
+			final int headerLength = (index.u8(header + 12) >> 4) << 2;
+			if (option == ALL_OPTIONS)
+				return Math.max(0, headerLength - 20);
+
+			final int end = Math.min(header + headerLength, index.limit());
+			int off = header + 20;
+
+			while (off < end) {
+				final int kind = index.u8(off);
+				if (kind == 0) // End of option list
+					break;
+
+				if (kind == 1) { // No-operation
+					off++;
+					continue;
+				}
+
+				if (off + 2 > end)
+					break;
+
+				final int length = index.u8(off + 1);
+				if (length < 2 || off + length > end)
+					break;
+
+				if (kind == option) {
+					if (length < 2 + size)
+						break;
+
+					return switch (size) {
+					case 0 -> 1;
+					case 1 -> index.u8(off + 2);
+					default -> index.u16(off + 2);
+					};
+				}
+
+				off += length;
+			}
+
+			return flag ? 0 : ABSENT;
+		}
+	}
+
+	/* The parsed tree, predicates and values */
+
+	abstract static class Node {
+		abstract boolean test(HeaderIndex index);
+	}
+
+	abstract static class Value {
+		abstract long get(HeaderIndex index);
+	}
+
+	static final class And extends Node {
+		final Node left;
+		final Node right;
+
+		And(Node left, Node right) {
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		boolean test(HeaderIndex index) {
+			return left.test(index) && right.test(index);
+		}
+	}
+
+	static final class Or extends Node {
+		final Node left;
+		final Node right;
+
+		Or(Node left, Node right) {
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		boolean test(HeaderIndex index) {
+			return left.test(index) || right.test(index);
+		}
+	}
+
+	static final class Not extends Node {
+		final Node node;
+
+		Not(Node node) {
+			this.node = node;
+		}
+
+		@Override
+		boolean test(HeaderIndex index) {
+			return !node.test(index);
+		}
+	}
+
+	static final class Constant extends Node {
+		final boolean value;
+
+		Constant(boolean value) {
+			this.value = value;
+		}
+
+		@Override
+		boolean test(HeaderIndex index) {
+			return value;
+		}
+	}
+
+	static final class Present extends Node {
+		final int protocol;
+		final int depth;
+
+		Present(int protocol, int depth) {
+			this.protocol = protocol;
+			this.depth = depth;
+		}
+
+		@Override
+		boolean test(HeaderIndex index) {
+			return index.count(protocol) > depth;
+		}
+	}
+
+	static final class IsSet extends Node {
+		final Value value;
+
+		IsSet(Value value) {
+			this.value = value;
+		}
+
+		@Override
+		boolean test(HeaderIndex index) {
+			final long v = value.get(index);
+			return v != ABSENT && v != 0;
+		}
+	}
+
+	/** A comparison of a value with a constant */
+	abstract static class Comparison extends Node {
+		final Value value;
+		final long k;
+
+		Comparison(Value value, long k) {
+			this.value = value;
+			this.k = k;
+		}
+	}
+
+	static final class Eq extends Comparison {
+		Eq(Value value, long k) {
+			super(value, k);
+		}
+
+		@Override
+		boolean test(HeaderIndex index) {
+			return value.get(index) == k;
+		}
+	}
+
+	static final class Ne extends Comparison {
+		Ne(Value value, long k) {
+			super(value, k);
+		}
+
+		@Override
+		boolean test(HeaderIndex index) {
+			final long v = value.get(index);
+			return v != ABSENT && v != k;
+		}
+	}
+
+	static final class Lt extends Comparison {
+		Lt(Value value, long k) {
+			super(value, k);
+		}
+
+		@Override
+		boolean test(HeaderIndex index) {
+			final long v = value.get(index);
+			return v != ABSENT && v < k;
+		}
+	}
+
+	static final class Le extends Comparison {
+		Le(Value value, long k) {
+			super(value, k);
+		}
+
+		@Override
+		boolean test(HeaderIndex index) {
+			final long v = value.get(index);
+			return v != ABSENT && v <= k;
+		}
+	}
+
+	static final class Gt extends Comparison {
+		Gt(Value value, long k) {
+			super(value, k);
+		}
+
+		@Override
+		boolean test(HeaderIndex index) {
+			return value.get(index) > k;
+		}
+	}
+
+	static final class Ge extends Comparison {
+		Ge(Value value, long k) {
+			super(value, k);
+		}
+
+		@Override
+		boolean test(HeaderIndex index) {
+			final long v = value.get(index);
+			return v != ABSENT && v >= k;
+		}
+	}
+
+	static final class FieldValue extends Value {
+		final Field field;
+		final int depth;
+
+		FieldValue(Field field, int depth) {
+			this.field = field;
+			this.depth = depth;
+		}
+
+		@Override
+		long get(HeaderIndex index) {
+			final int header = index.offset(field.protocol, depth);
+			return (header < 0) ? ABSENT : field.read(index, header);
+		}
+	}
+
+	static final class Masked extends Value {
+		final Value value;
+		final long mask;
+
+		Masked(Value value, long mask) {
+			this.value = value;
+			this.mask = mask;
+		}
+
+		@Override
+		long get(HeaderIndex index) {
+			final long v = value.get(index);
+			return (v == ABSENT) ? ABSENT : v & mask;
+		}
+	}
+
+	static final class Depth extends Value {
+		final int protocol;
+
+		Depth(int protocol) {
+			this.protocol = protocol;
+		}
+
+		@Override
+		long get(HeaderIndex index) {
+			return index.count(protocol) - 1;
+		}
+	}
+
+	/**
+	 * Recursive descent parser, compiling as it parses.
+	 */
+	private static final class Parser {
+		private final String text;
+		private int pos;
+
+		Parser(String text) {
+			this.text = text;
+		}
+
+		private boolean accept(String token) {
+			skipSpace();
+			if (!text.startsWith(token, pos))
+				return false;
+
+			pos += token.length();
+			return true;
+		}
+
+		private boolean acceptWord(String word) {
+			skipSpace();
+			final int end = pos + word.length();
+			if (!text.startsWith(word, pos) || (end < text.length() && isIdentifierPart(text.charAt(end))))
+				return false;
+
+			pos = end;
+			return true;
+		}
+
+		private Node and() {
+			Node node = unary();
+			while (accept("&&") || acceptWord("and"))
+				node = new And(node, unary());
+
+			return node;
+		}
+
+		private IllegalArgumentException error(String message, int at) {
+			return new IllegalArgumentException("%s at position %d of \"%s\"".formatted(message, at, text));
+		}
+
+		private void expect(String token) {
+			if (!accept(token))
+				throw error("expected '" + token + "'", pos);
+		}
+
+		private String identifier() {
+			skipSpace();
+			final int start = pos;
+			if (pos < text.length() && Character.isLetter(text.charAt(pos)))
+				while (pos < text.length() && isIdentifierPart(text.charAt(pos)))
+					pos++;
+
+			if (pos == start)
+				throw error("expected a protocol, field or depth()", start);
+
+			return text.substring(start, pos);
+		}
+
+		private static boolean isIdentifierPart(char c) {
+			return Character.isLetterOrDigit(c) || c == '_';
+		}
+
+		private boolean isMask() {
+			skipSpace();
+			return text.startsWith("&", pos) && !text.startsWith("&&", pos);
+		}
+
+		private long number() {
+			skipSpace();
+			final int start = pos;
+			if (pos < text.length() && text.charAt(pos) == '-')
+				pos++;
+			while (pos < text.length() && (isIdentifierPart(text.charAt(pos)) || text.charAt(pos) == '.'))
+				pos++;
+
+			final String s = text.substring(start, pos);
+			try {
+				if (s.indexOf('.') >= 0)
+					return parseAddress(s);
+
+				if (s.startsWith("0x") || s.startsWith("0X"))
+					return Long.parseLong(s.substring(2), 16);
+
+				return Long.parseLong(s);
+			} catch (NumberFormatException e) {
+				throw error("expected a number, found '" + s + "'", start);
+			}
+		}
+
+		private Node or() {
+			Node node = and();
+			while (accept("||") || acceptWord("or"))
+				node = new Or(node, and());
+
+			return node;
+		}
+
+		Node parse() {
+			final Node node = or();
+
+			skipSpace();
+			if (pos < text.length())
+				throw error("unexpected '" + text.charAt(pos) + "'", pos);
+
+			return node;
+		}
+
+		private static long parseAddress(String s) {
+			final String[] parts = s.split("\\.", -1);
+			if (parts.length != 4)
+				throw new NumberFormatException(s);
+
+			long address = 0;
+			for (String part : parts) {
+				final int octet = Integer.parseInt(part);
+				if (octet < 0 || octet > 255)
+					throw new NumberFormatException(s);
+
+				address = (address << 8) | octet;
+			}
+
+			return address;
+		}
+
+		private int protocol() {
+			final int start = pos;
+			final String name = identifier();
+			final int protocol = protocolOf(name);
+			if (protocol < 0)
+				throw error("unknown protocol '" + name + "'", start);
+
+			return protocol;
+		}
+
+		private void skipSpace() {
+			while (pos < text.length() && Character.isWhitespace(text.charAt(pos)))
+				pos++;
+		}
+
+		private Node term() {
+			skipSpace();
+			final int start = pos;
+
+			if (acceptWord("true"))
+				return new Constant(true);
+			if (acceptWord("false"))
+				return new Constant(false);
+
+			Value value;
+			boolean flag = false;
+
+			if (acceptWord("depth")) {
+				expect("(");
+				value = new Depth(protocol());
+				expect(")");
+
+			} else {
+				final int protocol = protocol();
+
+				int depth = 0;
+				if (accept("[")) {
+					final int at = pos;
+					final long n = number();
+					if (n < 0 || n >= MAX_DEPTH)
+						throw error("depth must be between 0 and " + (MAX_DEPTH - 1), at);
+					depth = (int) n;
+					expect("]");
+				}
+
+				if (!accept("."))
+					return new Present(protocol, depth);
+
+				skipSpace();
+				final int at = pos;
+				final String name = identifier();
+				final Field field = Field.of(protocol, name);
+				if (field == null)
+					throw error("unknown field '" + NAMES[protocol] + "." + name + "'", at);
+
+				value = new FieldValue(field, depth);
+				flag = field.flag;
+			}
+
+			if (isMask()) {
+				pos++;
+				value = new Masked(value, number());
+				flag = true;
+			}
+
+			if (accept("=="))
+				return new Eq(value, number());
+			if (accept("!="))
+				return new Ne(value, number());
+			if (accept("<="))
+				return new Le(value, number());
+			if (accept("<"))
+				return new Lt(value, number());
+			if (accept(">="))
+				return new Ge(value, number());
+			if (accept(">"))
+				return new Gt(value, number());
+
+			if (!flag)
+				throw error("expected a comparison after '" + text.substring(start, pos).trim() + "'", pos);
+
+			return new IsSet(value);
+		}
+
+		private Node unary() {
+			if (accept("!") || acceptWord("not"))
+				return new Not(unary());
+
+			if (accept("(")) {
+				final Node node = or();
+				expect(")");
+				return node;
+			}
+
+			return term();
+		}
+	}
+
+	/** The header index of the thread which first ran the predicate */
+	private record Owner(Thread thread, HeaderIndex index) {}
+
+	/**
+	 * Compiles a predicate for Ethernet frames.
+	 *
+	 * @param expression the predicate expression
+	 * @return the compiled predicate
+	 * @throws IllegalArgumentException if the expression is invalid
+	 */
+	public static PacketPredicate compile(String expression) {
+		return compile(expression, FlowHash.DLT_EN10MB);
+	}
+
+	/**
+	 * Compiles a predicate for frames of a link type.
+	 *
+	 * @param expression the predicate expression
+	 * @param linkType   the pcap link type (DLT) of the frames
+	 * @return the compiled predicate
+	 * @throws IllegalArgumentException if the expression is invalid
+	 */
+	public static PacketPredicate compile(String expression, int linkType) {
+		final Node tree = parse(expression);
+		final Node compiled = PredicateCompiler.compile(tree);
+
+		return new PacketPredicate(expression, linkType, (compiled != null) ? compiled : tree);
+	}
+
+	/**
+	 * Returns the names of all fields, as {@code protocol.field}.
+	 *
+	 * @return the field names
+	 */
+	public static String[] fields() {
+		final Field[] fields = Field.values();
+		final String[] names = new String[fields.length];
+		for (int i = 0; i < fields.length; i++)
+			names[i] = NAMES[fields[i].protocol] + "." + fields[i].fieldName;
+
+		return names;
+	}
+
+	/**
+	 * Parses a predicate which runs on its tree, as predicates too large to
+	 * compile do.
+	 *
+	 * @param expression the predicate expression
+	 * @param linkType   the pcap link type (DLT) of the frames
+	 * @return the predicate
+	 * @throws IllegalArgumentException if the expression is invalid
+	 */
+	static PacketPredicate interpret(String expression, int linkType) {
+		return new PacketPredicate(expression, linkType, parse(expression));
+	}
+
+	private static Node parse(String expression) {
+		Objects.requireNonNull(expression, "expression");
+
+		return new Parser(expression).parse();
+	}
+
+	/**
+	 * Reads a field by its ordinal, as compiled predicates do for TCP options.
+	 */
+	static long readField(HeaderIndex index, int header, int field) {
+		return Field.FIELDS[field].read(index, header);
+	}
+
+	private final String expression;
+	private final int linkType;
+	private final Node root;
+	private final ThreadLocal<HeaderIndex> indexes = ThreadLocal.withInitial(HeaderIndex::new);
+	private Owner owner;
+
+	private PacketPredicate(String expression, int linkType, Node root) {
+		this.expression = expression;
+		this.linkType = linkType;
+		this.root = root;
+	}
+
+	/**
+	 * Returns the expression the predicate was compiled from.
+	 *
+	 * @return the expression
+	 */
+	public String expression() {
+		return expression;
+	}
+
+	/**
+	 * Returns the calling thread's header index, without a thread local lookup
+	 * for the thread which first ran the predicate, usually the only one.
+	 */
+	private HeaderIndex index() {
+		final Owner o = owner;
+		final Thread thread = Thread.currentThread();
+		if (o != null && o.thread == thread)
+			return o.index;
+
+		final HeaderIndex index = indexes.get();
+		if (o == null)
+			owner = new Owner(thread, index);
+
+		return index;
+	}
+
+	/**
+	 * Checks if the predicate runs as a compiled class rather than on its tree.
+	 *
+	 * @return true if compiled
+	 */
+	boolean isCompiled() {
+		return root.getClass().isHidden();
+	}
+
+	/**
+	 * Returns the link type the predicate was compiled for.
+	 *
+	 * @return the pcap link type (DLT)
+	 */
+	public int linkType() {
+		return linkType;
+	}
+
+	/**
+	 * Evaluates the predicate on a packet.
+	 *
+	 * @param buffer        the buffer holding the packet data
+	 * @param offset        the offset of the packet data within the buffer
+	 * @param captureLength the number of packet bytes available
+	 * @param wireLength    the original length of the packet
+	 * @return a non-zero value if the predicate is true, 0 otherwise
+	 */
+	@Override
+	public int run(MemorySegment buffer, long offset, int captureLength, int wireLength) {
+		final HeaderIndex index = index();
+		index.index(buffer, offset, captureLength, linkType);
+
+		return root.test(index) ? ACCEPT : 0;
+	}
+
+	/**
+	 * Evaluates the predicate on a packet.
+	 *
+	 * @param packet the packet
+	 * @return true if the predicate is true
+	 */
+	public boolean test(Packet packet) {
+		return run(packet.view().segment(), packet.view().start(), packet.captureLength(),
+				packet.captureLength()) != 0;
+	}
+
+	@Override
+	public String toString() {
+		return "PacketPredicate[\"" + expression + "\"]";
+	}
+}
@@ -0,0 +1,552 @@
+/*
+ * Copyright 2005-2025 Sly Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.slytechs.sdk.jnetpcap.api;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.slytechs.sdk.jnetpcap.api.PacketHandler.OfPacketConsumer;
+import com.slytechs.sdk.protocol.core.Packet;
+
+/**
+ * A size-classed, off-heap slab pool for persisted packets, bound to the
+ * capture of one {@link NetPcap} handle.
+ *
+ * <p>
+ * {@code Packet.persist()} allocates a new fixed memory packet for every call,
+ * which in queueing workloads shows up as allocation and pool contention. This
+ * pool reserves its entire memory budget up front as one slab per size class.
+ * Each slot of a slab holds the capture header followed by the packet data, and
+ * is paired with a pre-allocated {@link Packet} bound to that slot. A bound
+ * handler delivers packets in the capture buffer, as usual. Only when the
+ * handler calls {@link #persist(Packet)} is the packet copied into a free slot
+ * of the smallest size class which fits it, and bound and dissected there, so
+ * packets which are not persisted cost nothing.
+ * </p>
+ *
+ * <pre>{@code
+ * PacketSlabPool pool = pcap.newSlabPool(64 * 1024 * 1024);
+ *
+ * pcap.bind(pool, packet -> {
+ * 	if (isInteresting(packet))
+ * 		queue.offer(pool.persist(packet));
+ * }).loop(-1);
+ *
+ * // Consumer thread
+ * Packet p = queue.poll();
+ * process(p);
+ * pool.recycle(p);
+ * }</pre>
+ *
+ * <p>
+ * Free slots are kept in a lock-free stack per size class. The capture thread
+ * takes slots in batches into a small cache of its own, so taking a slot is
+ * normally a pointer bump. Packets may be recycled from any thread, and every
+ * recycled slot goes straight back to its shared stack, where the capture
+ * thread finds it on its next refill.
+ * </p>
+ *
+ * <p>
+ * When no slot is available, {@link #persist(Packet)} returns null and the
+ * failure is counted by {@link #exhaustedCount()}. With eager dissection the
+ * packet descriptor is held by each slot's packet rather than in the slot
+ * itself, otherwise the capture header in the slot serves as the descriptor.
+ * </p>
+ *
+ * @author Mark Bednarczyk [mark@slytechs.com]
+ * @author Sly Technologies Inc.
+ * @see NetPcap#newSlabPool(long)
+ * @see NetPcap#bind(PacketSlabPool, PacketHandler.OfPacketConsumer)
+ */
+public final class PacketSlabPool implements AutoCloseable {
+
+	/** Capture thread stacks of free slot indexes, one per size class */
+	private static final class Cache {
+		final int[][] slots = new int[SIZE_CLASSES.length][CACHE_BATCH];
+		final int[] counts = new int[SIZE_CLASSES.length];
+	}
+
+	/** Packet data capacity of each size class, in bytes. */
+	private static final int[] SIZE_CLASSES = {
+			128,
+			256,
+			512,
+			2048,
+			9216,
+			65536,
+			PcapFile.MAXIMUM_SNAPLEN
+	};
+
+	/** Space reserved at the start of each slot for the capture header. */
+	private static final int HEADER_SPACE = 32;
+
+	/** Slab alignment, a cache line. */
+	private static final int ALIGNMENT = 64;
+
+	/** Number of slots moved from the shared stack to the cache at once */
+	private static final int CACHE_BATCH = 32;
+
+	private static final long INDEX_MASK = 0xFFFF_FFFFL;
+
+	/** Upper bound on slots, keeping per slot arrays and stack indexes in range */
+	private static final int MAX_SLOTS = Integer.MAX_VALUE - 8;
+
+	private final PacketPipeline pipeline;
+	private final int headerLength;
+	private final long budget;
+	private final Arena arena;
+	private final MemorySegment[] slabs;
+	private final int[] slotSizes;
+
+	/** First slot index of each size class, with the total slot count at the end */
+	private final int[] classBase;
+	private final MemorySegment[] headers;
+	private final Packet[] packets;
+
+	/** Next links of the shared free stacks, indexed by slot */
+	private final int[] next;
+
+	/** Shared free stack heads per size class, a 32-bit tag over slot index + 1 */
+	private final AtomicLong[] heads;
+	private final AtomicIntegerArray retainedSlots;
+	private final Cache cache = new Cache();
+	private final LongAdder[] classInUse;
+	private final LongAdder persistCount = new LongAdder();
+	private final LongAdder recycleCount = new LongAdder();
+	private final LongAdder exhaustedCount = new LongAdder();
+
+	/* State of the packet currently being delivered, confined to the capture thread */
+	private Packet currentPacket;
+	private MemorySegment currentHeader;
+	private MemorySegment currentData;
+	private int currentSlot = -1;
+
+	/**
+	 * Reserves the pool memory, divided evenly between the size classes.
+	 *
+	 * @param pipeline     the capture pipeline which dissects pooled packets
+	 * @param headerLength the length of the capture header copied into each slot
+	 * @param budget       the total memory budget in bytes
+	 * @throws IllegalArgumentException if the budget is too small to hold a single
+	 *                                  slot, or the capture header does not fit
+	 *                                  the space reserved for it
+	 */
+	PacketSlabPool(PacketPipeline pipeline, int headerLength, long budget) {
+		if (headerLength <= 0 || headerLength > HEADER_SPACE)
+			throw new IllegalArgumentException("capture header length must be positive and at most %d: %d"
+					.formatted(HEADER_SPACE, headerLength));
+		if (budget <= 0)
+			throw new IllegalArgumentException("memory budget must be positive: " + budget);
+
+		final int classCount = SIZE_CLASSES.length;
+		final long share = budget / classCount;
+
+		this.pipeline = pipeline;
+		this.headerLength = headerLength;
+		this.budget = budget;
+		this.slotSizes = new int[classCount];
+		this.classBase = new int[classCount + 1];
+
+		long total = 0;
+		for (int c = 0; c < classCount; c++) {
+			slotSizes[c] = HEADER_SPACE + SIZE_CLASSES[c];
+			total += share / slotSizes[c];
+		}
+
+		if (total == 0)
+			throw new IllegalArgumentException("memory budget of %d bytes is too small for any slot"
+					.formatted(budget));
+
+		if (total > MAX_SLOTS)
+			throw new IllegalArgumentException("memory budget of %d bytes exceeds %d slots"
+					.formatted(budget, MAX_SLOTS));
+
+		for (int c = 0; c < classCount; c++)
+			classBase[c + 1] = classBase[c] + (int) (share / slotSizes[c]);
+
+		final int slotCount = classBase[classCount];
+
+		this.arena = Arena.ofShared();
+		this.slabs = new MemorySegment[classCount];
+		this.headers = new MemorySegment[slotCount];
+		this.packets = new Packet[slotCount];
+		this.next = new int[slotCount];
+		this.heads = new AtomicLong[classCount];
+		this.retainedSlots = new AtomicIntegerArray(slotCount);
+		this.classInUse = new LongAdder[classCount];
+
+		for (int c = 0; c < classCount; c++) {
+			final int count = classBase[c + 1] - classBase[c];
+
+			slabs[c] = (count == 0)
+					? MemorySegment.NULL
+					: arena.allocate((long) count * slotSizes[c], ALIGNMENT);
+			heads[c] = new AtomicLong();
+			classInUse[c] = new LongAdder();
+
+			for (int i = count - 1; i >= 0; i--) {
+				final int slot = classBase[c] + i;
+
+				headers[slot] = slabs[c].asSlice((long) i * slotSizes[c], headerLength);
+				push(c, slot);
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of bytes reserved for slots.
+	 *
+	 * @return the allocated size in bytes
+	 */
+	public long allocatedBytes() {
+		long total = 0;
+		for (MemorySegment slab : slabs)
+			total += slab.byteSize();
+
+		return total;
+	}
+
+	/**
+	 * Returns the configured memory budget.
+	 *
+	 * @return the budget in bytes
+	 */
+	public long budget() {
+		return budget;
+	}
+
+	/**
+	 * Returns the number of bytes held by persisted packets which have not been
+	 * recycled, counting whole slots.
+	 *
+	 * @return the bytes in use
+	 */
+	public long bytesInUse() {
+		long total = 0;
+		for (int c = 0; c < classInUse.length; c++)
+			total += classInUse[c].sum() * slotSizes[c];
+
+		return total;
+	}
+
+	private int classFor(long caplen) {
+		for (int c = 0; c < SIZE_CLASSES.length; c++)
+			if (caplen <= SIZE_CLASSES[c])
+				return c;
+
+		return SIZE_CLASSES.length;
+	}
+
+	private int classOf(int slot) {
+		int c = 0;
+		while (slot >= classBase[c + 1])
+			c++;
+
+		return c;
+	}
+
+	/**
+	 * Releases the pool memory. Pooled packets, whether recycled or not, must no
+	 * longer be accessed.
+	 */
+	@Override
+	public void close() {
+		arena.close();
+	}
+
+	/**
+	 * Delivers a packet to the handler, keeping its capture header and data
+	 * available to {@link #persist(Packet)} for the duration of the call. Called
+	 * from a bound handler's upcall on the capture thread.
+	 *
+	 * @param hdr     the capture header
+	 * @param data    the packet data
+	 * @param metrics the metrics counting delivered packets
+	 * @param handler the packet handler
+	 */
+	void deliver(MemorySegment hdr, MemorySegment data, CaptureMetrics metrics, OfPacketConsumer handler) {
+		final Packet packet = pipeline.processPacket(hdr, data);
+		if (packet == null)
+			return;
+
+		metrics.recordPacket(data.byteSize());
+
+		currentPacket = packet;
+		currentHeader = hdr;
+		currentData = data;
+
+		try {
+			handler.accept(packet);
+
+		} finally {
+			currentPacket = null;
+			currentHeader = null;
+			currentData = null;
+			currentSlot = -1;
+		}
+	}
+
+	/**
+	 * Returns the number of persist requests which failed because no slot was
+	 * available.
+	 *
+	 * @return the exhausted count
+	 */
+	public long exhaustedCount() {
+		return exhaustedCount.sum();
+	}
+
+	/**
+	 * Returns the number of persisted packets which have not been recycled.
+	 *
+	 * @return the packets in use
+	 */
+	public long inUse() {
+		long total = 0;
+		for (LongAdder count : classInUse)
+			total += count.sum();
+
+		return total;
+	}
+
+	/**
+	 * Returns the number of persisted packets in a size class which have not been
+	 * recycled.
+	 *
+	 * @param sizeClass the size class index
+	 * @return the packets in use
+	 */
+	public long inUse(int sizeClass) {
+		return classInUse[sizeClass].sum();
+	}
+
+	boolean isBoundTo(PacketPipeline pipeline) {
+		return this.pipeline == pipeline;
+	}
+
+	/**
+	 * Returns the fraction of the allocated slot memory held by persisted packets.
+	 *
+	 * @return the occupancy, from 0.0 to 1.0
+	 */
+	public double occupancy() {
+		return (double) bytesInUse() / allocatedBytes();
+	}
+
+	/**
+	 * Persists the packet currently being delivered by a handler bound to this
+	 * pool, copying it into a free slot and binding the slot's packet to it.
+	 * Persisting the same delivery again returns the same packet. Must be called
+	 * on the capture thread, from within the handler.
+	 *
+	 * @param packet the packet passed to the bound handler
+	 * @return the persisted packet, to be returned with {@link #recycle(Packet)},
+	 *         or null if the pool is exhausted
+	 * @throws IllegalArgumentException if the packet is not the one being
+	 *                                  delivered by a bound handler
+	 */
+	public Packet persist(Packet packet) {
+		if (packet == null || packet != currentPacket && (currentSlot < 0 || packet != packets[currentSlot]))
+			throw new IllegalArgumentException("packet is not being delivered by a handler bound to this pool");
+
+		if (currentSlot >= 0)
+			return packets[currentSlot];
+
+		final long caplen = currentData.byteSize();
+		final int slot = take(classFor(caplen));
+		if (slot < 0) {
+			exhaustedCount.increment();
+			return null;
+		}
+
+		final int c = classOf(slot);
+		final MemorySegment header = headers[slot];
+		final long offset = (long) (slot - classBase[c]) * slotSizes[c] + HEADER_SPACE;
+
+		MemorySegment.copy(currentHeader, 0, header, 0, headerLength);
+		MemorySegment.copy(currentData, 0, slabs[c], offset, caplen);
+
+		if (packets[slot] == null)
+			packets[slot] = pipeline.newPacket();
+
+		pipeline.bindPacket(header, slabs[c], offset, caplen, packets[slot]);
+
+		retainedSlots.set(slot, 1);
+		classInUse[c].increment();
+		persistCount.increment();
+		currentSlot = slot;
+
+		return packets[slot];
+	}
+
+	/**
+	 * Returns the number of packets persisted into the pool.
+	 *
+	 * @return the persist count
+	 */
+	public long persistCount() {
+		return persistCount.sum();
+	}
+
+	private int pop(int sizeClass) {
+		final AtomicLong head = heads[sizeClass];
+
+		long h;
+		int slot;
+		do {
+			h = head.get();
+			slot = (int) h - 1;
+			if (slot < 0)
+				return -1;
+
+		} while (!head.compareAndSet(h, (((h >>> 32) + 1) << 32) | (next[slot] & INDEX_MASK)));
+
+		return slot;
+	}
+
+	private void push(int sizeClass, int slot) {
+		final AtomicLong head = heads[sizeClass];
+
+		long h;
+		do {
+			h = head.get();
+			next[slot] = (int) h;
+
+		} while (!head.compareAndSet(h, (((h >>> 32) + 1) << 32) | (slot + 1)));
+	}
+
+	/**
+	 * Returns a persisted packet to the pool. May be called from any thread.
+	 *
+	 * @param packet a packet returned by {@link #persist(Packet)}
+	 * @throws IllegalArgumentException if the packet does not belong to this pool
+	 * @throws IllegalStateException    if the packet was already recycled
+	 */
+	public void recycle(Packet packet) {
+		final int slot = slotOf(packet);
+		if (slot < 0 || packets[slot] != packet)
+			throw new IllegalArgumentException("packet does not belong to this pool");
+
+		if (!retainedSlots.compareAndSet(slot, 1, 0))
+			throw new IllegalStateException("packet already recycled");
+
+		classInUse[classOf(slot)].decrement();
+		recycleCount.increment();
+
+		push(classOf(slot), slot);
+	}
+
+	/**
+	 * Returns the number of persisted packets returned to the pool.
+	 *
+	 * @return the recycle count
+	 */
+	public long recycleCount() {
+		return recycleCount.sum();
+	}
+
+	private int refill(int sizeClass) {
+		int n = 0;
+		for (; n < CACHE_BATCH; n++) {
+			final int slot = pop(sizeClass);
+			if (slot < 0)
+				break;
+
+			cache.slots[sizeClass][cache.counts[sizeClass]++] = slot;
+		}
+
+		return n;
+	}
+
+	/**
+	 * Returns the packet data capacity of a size class.
+	 *
+	 * @param sizeClass the size class index
+	 * @return the capacity in bytes
+	 */
+	public int sizeClassCapacity(int sizeClass) {
+		return SIZE_CLASSES[sizeClass];
+	}
+
+	/**
+	 * Returns the number of size classes.
+	 *
+	 * @return the size class count
+	 */
+	public int sizeClassCount() {
+		return SIZE_CLASSES.length;
+	}
+
+	/**
+	 * Returns the total number of slots in the pool.
+	 *
+	 * @return the slot count
+	 */
+	public int slotCount() {
+		return classBase[SIZE_CLASSES.length];
+	}
+
+	/**
+	 * Returns the number of slots in a size class.
+	 *
+	 * @param sizeClass the size class index
+	 * @return the slot count
+	 */
+	public int slotCount(int sizeClass) {
+		return classBase[sizeClass + 1] - classBase[sizeClass];
+	}
+
+	/**
+	 * Finds the slot a packet's data is bound to, from its address.
+	 */
+	private int slotOf(Packet packet) {
+		final MemorySegment bound = packet.view().segment();
+		final long address = bound.address() + packet.view().start();
+
+		for (int c = 0; c < slabs.length; c++) {
+			final long base = slabs[c].address();
+
+			if (address >= base && address < base + slabs[c].byteSize())
+				return classBase[c] + (int) ((address - base) / slotSizes[c]);
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Takes a free slot of the given size class or, when that class is exhausted,
+	 * of the next larger class with a free slot.
+	 */
+	private int take(int sizeClass) {
+		for (int c = sizeClass; c < SIZE_CLASSES.length; c++) {
+			if (cache.counts[c] == 0 && refill(c) == 0)
+				continue;
+
+			return cache.slots[c][--cache.counts[c]];
+		}
+
+		return -1;
+	}
+
+	@Override
+	public String toString() {
+		return "PacketSlabPool[budget=%d, slots=%d, inUse=%d, exhausted=%d]"
+				.formatted(budget, slotCount(), inUse(), exhaustedCount());
+	}
+}
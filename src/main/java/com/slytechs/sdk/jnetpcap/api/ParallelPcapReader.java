@@ -0,0 +1,405 @@
+/*
+ * Copyright 2005-2025 Sly Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.slytechs.sdk.jnetpcap.api;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import com.slytechs.sdk.jnetpcap.api.PacketHandler.OfPacketConsumer;
+import com.slytechs.sdk.protocol.core.Packet;
+import com.slytechs.sdk.protocol.core.PacketSettings;
+
+/**
+ * Processes a pcap file on multiple cores by splitting the memory mapped file
+ * into record aligned chunks.
+ *
+ * <p>
+ * The file is divided into chunks of roughly {@link #setChunkSize(long)} bytes.
+ * pcap files carry no sync markers, so each nominal split point is moved
+ * forward to the next record boundary, recognized by a chain of plausible
+ * record headers. Chunks are processed as tasks on a dedicated fork-join pool.
+ * Each pool thread owns its own packet pipeline, and packets are bound directly
+ * onto the mapped file as with {@link MappedPcapReader}.
+ * </p>
+ *
+ * <p>
+ * Two processing styles are offered:
+ * </p>
+ * <ul>
+ * <li><b>Unordered</b>, {@link #collect(Supplier, BiConsumer, BinaryOperator)}
+ * and {@link #forEach(OfPacketConsumer)}. Chunks are processed concurrently.
+ * Packets within a chunk are seen in file order, and partial results are
+ * combined in chunk order, so the result is deterministic for an associative
+ * combiner.</li>
+ * <li><b>Ordered merge</b>, {@link #mapOrdered(Function, Consumer)} and
+ * {@link #forEachOrdered(OfPacketConsumer)}. Packets are dissected and mapped
+ * in parallel, and the mapped results are delivered to a sink on the calling
+ * thread in exact file order. At most a small window of chunks is in flight,
+ * which bounds memory use.</li>
+ * </ul>
+ *
+ * <pre>{@code
+ * try (ParallelPcapReader reader = NetPcap.openOfflineParallel("big.pcap", new PacketSettings().dissect(), 8)) {
+ * 	long totalBytes = reader.collect(
+ * 			() -> new long[1],
+ * 			(sum, packet) -> sum[0] += packet.captureLength(),
+ * 			(a, b) -> new long[] { a[0] + b[0] })[0];
+ * }
+ * }</pre>
+ *
+ * @author Mark Bednarczyk [mark@slytechs.com]
+ * @author Sly Technologies Inc.
+ * @see NetPcap#openOfflineParallel(Path, PacketSettings, int)
+ */
+public final class ParallelPcapReader implements AutoCloseable {
+
+	/** Default nominal chunk size in bytes. */
+	public static final long DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+
+	/** Number of ordered chunks in flight per pool thread. */
+	private static final int ORDERED_WINDOW_PER_THREAD = 2;
+
+	private final PcapFile file;
+	private final PacketSettings settings;
+	private final ForkJoinPool pool;
+	private final ThreadLocal<PacketPipeline> pipelines;
+	private final LongAdder misaligned = new LongAdder();
+	private long chunkSize = DEFAULT_CHUNK_SIZE;
+	private long[] boundaries;
+	private volatile BpfExecutable filter;
+	private boolean closed;
+
+	/**
+	 * Opens and maps a pcap file for parallel processing.
+	 *
+	 * @param path        the capture file
+	 * @param settings    the packet settings used by every pool thread
+	 * @param parallelism the number of pool threads
+	 * @throws IOException if the file can not be mapped or is not a pcap file
+	 */
+	ParallelPcapReader(Path path, PacketSettings settings, int parallelism) throws IOException {
+		if (parallelism <= 0)
+			throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+
+		this.file = PcapFile.map(Objects.requireNonNull(path, "path"));
+		this.settings = settings;
+		this.pipelines = ThreadLocal.withInitial(() -> file.newPipeline(this.settings));
+		this.pool = new ForkJoinPool(parallelism, p -> {
+			ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+			t.setName("netpcap-offline-" + t.getPoolIndex());
+			t.setDaemon(true);
+			return t;
+		}, null, false);
+	}
+
+	/**
+	 * Computes chunk boundaries, record aligned, for the current chunk size.
+	 */
+	private long[] boundaries() {
+		if (boundaries != null)
+			return boundaries;
+
+		final long size = file.size();
+		List<Long> list = new ArrayList<>();
+		list.add((long) PcapFile.FILE_HEADER_LENGTH);
+
+		long last = PcapFile.FILE_HEADER_LENGTH;
+		for (long nominal = last + chunkSize; nominal < size; nominal += chunkSize) {
+			if (nominal <= last)
+				continue;
+
+			long boundary = file.resync(nominal);
+			if (boundary >= size)
+				break;
+
+			list.add(boundary);
+			last = boundary;
+		}
+
+		list.add(size);
+
+		return boundaries = list.stream().mapToLong(Long::longValue).toArray();
+	}
+
+	/**
+	 * Returns the number of chunks the file is split into at the current chunk
+	 * size.
+	 *
+	 * @return the chunk count
+	 */
+	public int chunkCount() {
+		checkOpen();
+
+		return boundaries().length - 1;
+	}
+
+	private void checkOpen() {
+		if (closed)
+			throw new IllegalStateException("reader is closed: " + file.path());
+	}
+
+	/**
+	 * Shuts down the pool threads and unmaps the file.
+	 */
+	@Override
+	public void close() {
+		if (closed)
+			return;
+
+		closed = true;
+		pool.shutdownNow();
+		pool.close();
+		file.close();
+	}
+
+	/**
+	 * Aggregates all packets in the file, processing chunks concurrently. A new
+	 * container is created for every chunk, filled with that chunk's packets in
+	 * file order, and the containers are then combined in chunk order.
+	 *
+	 * @param <A>         the container type
+	 * @param supplier    creates a new, empty container for a chunk
+	 * @param accumulator adds a packet to a container, the packet is only valid for
+	 *                    the duration of the call
+	 * @param combiner    combines two containers, the first covering earlier
+	 *                    packets
+	 * @return the combined container
+	 */
+	public <A> A collect(Supplier<A> supplier, BiConsumer<A, ? super Packet> accumulator, BinaryOperator<A> combiner) {
+		Objects.requireNonNull(supplier, "supplier");
+		Objects.requireNonNull(accumulator, "accumulator");
+		Objects.requireNonNull(combiner, "combiner");
+		checkOpen();
+
+		final int chunks = chunkCount();
+		List<ForkJoinTask<A>> tasks = new ArrayList<>(chunks);
+
+		try {
+			for (int i = 0; i < chunks; i++) {
+				final int chunk = i;
+				tasks.add(pool.submit(() -> {
+					A container = supplier.get();
+					processChunk(chunk, packet -> accumulator.accept(container, packet));
+
+					return container;
+				}));
+			}
+
+			A result = tasks.get(0).join();
+			for (int i = 1; i < chunks; i++)
+				result = combiner.apply(result, tasks.get(i).join());
+
+			return result;
+
+		} finally {
+			tasks.forEach(t -> t.cancel(false));
+		}
+	}
+
+	/**
+	 * Processes all packets in the file, calling the handler concurrently from
+	 * multiple pool threads. The handler must be thread-safe.
+	 *
+	 * @param handler the packet consumer
+	 * @return the number of packets processed
+	 */
+	public long forEach(OfPacketConsumer handler) {
+		Objects.requireNonNull(handler, "handler");
+
+		return collect(
+				() -> new long[1],
+				(count, packet) -> {
+					handler.accept(packet);
+					count[0]++;
+				},
+				(a, b) -> {
+					a[0] += b[0];
+					return a;
+				})[0];
+	}
+
+	/**
+	 * Delivers every packet in the file to the handler on the calling thread, in
+	 * exact file order, while dissection runs in parallel. Each packet delivered
+	 * is a persisted copy, which the handler may retain and should recycle when
+	 * done.
+	 *
+	 * @param handler the packet consumer
+	 */
+	public void forEachOrdered(OfPacketConsumer handler) {
+		Objects.requireNonNull(handler, "handler");
+
+		mapOrdered(Packet::persist, handler);
+	}
+
+	/**
+	 * Returns the link type (DLT) of the packets in the file.
+	 *
+	 * @return the link type
+	 */
+	public int linkType() {
+		return file.linkType();
+	}
+
+	/**
+	 * Returns the number of chunks whose last record did not end exactly at the
+	 * next chunk's start, meaning a record boundary was misidentified. Expected to
+	 * be 0 for any well formed file.
+	 *
+	 * @return the misaligned chunk count
+	 */
+	public long misalignedChunks() {
+		return misaligned.sum();
+	}
+
+	/**
+	 * Maps every packet in the file in parallel, and delivers the mapped results to
+	 * the sink on the calling thread in exact file order. Null results are
+	 * skipped.
+	 *
+	 * @param <R>    the result type
+	 * @param mapper maps a packet to a result on a pool thread, the packet is only
+	 *               valid for the duration of the call
+	 * @param sink   receives the results in file order, on the calling thread
+	 */
+	public <R> void mapOrdered(Function<? super Packet, ? extends R> mapper, Consumer<? super R> sink) {
+		Objects.requireNonNull(mapper, "mapper");
+		Objects.requireNonNull(sink, "sink");
+		checkOpen();
+
+		final int chunks = chunkCount();
+		final int window = pool.getParallelism() * ORDERED_WINDOW_PER_THREAD;
+		ArrayDeque<ForkJoinTask<List<R>>> inFlight = new ArrayDeque<>(window);
+		int next = 0;
+
+		try {
+			while (next < chunks || !inFlight.isEmpty()) {
+				while (next < chunks && inFlight.size() < window)
+					inFlight.add(submitMapped(next++, mapper));
+
+				List<R> results = inFlight.poll().join();
+
+				results.forEach(sink);
+			}
+
+		} finally {
+			inFlight.forEach(t -> t.cancel(false));
+		}
+	}
+
+	/**
+	 * Returns the number of pool threads.
+	 *
+	 * @return the parallelism
+	 */
+	public int parallelism() {
+		return pool.getParallelism();
+	}
+
+	/**
+	 * Runs a chunk on the current thread using its own pipeline.
+	 */
+	private void processChunk(int chunk, Consumer<Packet> action) {
+		final long[] b = boundaries;
+		final PacketPipeline pipeline = pipelines.get();
+		pipeline.setFilter(filter);
+
+		final PcapFile.Cursor cursor = file.cursor(b[chunk], b[chunk + 1]);
+
+		while (cursor.advance()) {
+			Packet packet = pipeline.processPacket(cursor.header(), cursor.data());
+
+			if (packet != null)
+				action.accept(packet);
+		}
+
+		if (!cursor.isAligned())
+			misaligned.increment();
+	}
+
+	/**
+	 * Sets the nominal chunk size. Smaller chunks balance load better, larger
+	 * chunks reduce per-chunk overhead.
+	 *
+	 * @param chunkSize the chunk size in bytes
+	 * @return this reader for method chaining
+	 */
+	public ParallelPcapReader setChunkSize(long chunkSize) {
+		if (chunkSize <= 0)
+			throw new IllegalArgumentException("chunk size must be positive: " + chunkSize);
+
+		this.chunkSize = chunkSize;
+		this.boundaries = null;
+		return this;
+	}
+
+	/**
+	 * Sets a BPF program each pool thread runs on its records before they are
+	 * bound or dissected, dropping the packets it rejects. Takes effect from the
+	 * next chunk processed.
+	 *
+	 * @param filter the program, or null to accept all packets
+	 * @return this reader for method chaining
+	 * @see BpfProgram#compile()
+	 */
+	public ParallelPcapReader setFilter(BpfExecutable filter) {
+		this.filter = filter;
+		return this;
+	}
+
+	/**
+	 * Returns the size of the mapped file.
+	 *
+	 * @return the size in bytes
+	 */
+	public long size() {
+		return file.size();
+	}
+
+	private <R> ForkJoinTask<List<R>> submitMapped(int chunk, Function<? super Packet, ? extends R> mapper) {
+		return pool.submit(() -> {
+			List<R> results = new ArrayList<>();
+
+			processChunk(chunk, packet -> {
+				R r = mapper.apply(packet);
+
+				if (r != null)
+					results.add(r);
+			});
+
+			return results;
+		});
+	}
+
+	@Override
+	public String toString() {
+		return "ParallelPcapReader[%s, parallelism=%d, chunkSize=%d]"
+				.formatted(file.path(), pool.getParallelism(), chunkSize);
+	}
+}
@@ -0,0 +1,412 @@
+/*
+ * Copyright 2005-2025 Sly Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.slytechs.sdk.jnetpcap.api;
+
+import java.lang.Thread.UncaughtExceptionHandler;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntFunction;
+
+import com.slytechs.sdk.jnetpcap.PcapException;
+import com.slytechs.sdk.jnetpcap.api.PacketHandler.OfPacketConsumer;
+import com.slytechs.sdk.jnetpcap.internal.PcapHeaderABI;
+import com.slytechs.sdk.protocol.core.Packet;
+import com.slytechs.sdk.protocol.core.PacketSettings;
+import com.slytechs.sdk.protocol.core.descriptor.DescriptorType;
+
+/**
+ * A multi-core packet pipeline with one capture thread and N worker threads.
+ *
+ * <p>
+ * The capture thread, the thread calling {@link #dispatch(int)} or
+ * {@link #loop(int)}, does no dissection. It computes a symmetric flow hash from
+ * the raw frame and copies the frame into the off-heap ring of the selected
+ * worker. Each worker owns its own packet pipeline and handler, dissects frames
+ * as configured by the packet settings and invokes its handler.
+ * </p>
+ *
+ * <p>
+ * Both directions of a 5-tuple flow always land on the same worker, and frames
+ * of a flow are processed in capture order. When a worker's ring is full, the
+ * frame is dropped and counted instead of stalling the capture thread.
+ * </p>
+ *
+ * <pre>{@code
+ * try (NetPcap pcap = NetPcap.openLive("eth0", 65535, true, Duration.ofMillis(100));
+ * 		ParallelPipeline parallel = pcap.parallel(4, worker -> {
+ * 			Ip4 ip4 = new Ip4(); // Worker confined header
+ * 			return packet -> {
+ * 				if (packet.hasHeader(ip4))
+ * 					process(ip4);
+ * 			};
+ * 		})) {
+ *
+ * 	parallel.loop(-1);
+ * }
+ * }</pre>
+ *
+ * @author Mark Bednarczyk [mark@slytechs.com]
+ * @author Sly Technologies Inc.
+ * @see NetPcap#parallel(int, IntFunction)
+ */
+public final class ParallelPipeline implements AutoCloseable {
+
+	/** Default size of each worker's frame ring. */
+	public static final long DEFAULT_RING_SIZE = 8 * 1024 * 1024;
+
+	private static final int SPIN_LIMIT = 256;
+	private static final int YIELD_LIMIT = 512;
+	private static final long PARK_NANOS = 50_000;
+
+	private final class Worker implements Runnable {
+
+		private final int index;
+		private final FrameRing ring;
+		private final PacketPipeline pipeline;
+		private final OfPacketConsumer handler;
+		private long packets;
+		private long exceptions;
+
+		Worker(int index, FrameRing ring, PacketPipeline pipeline, OfPacketConsumer handler) {
+			this.index = index;
+			this.ring = ring;
+			this.pipeline = pipeline;
+			this.handler = handler;
+		}
+
+		private void process() {
+			try {
+				Packet packet = pipeline.processPacket(ring.header(), ring.data());
+
+				if (packet != null)
+					handler.accept(packet);
+
+			} catch (RuntimeException e) {
+				exceptions++;
+				onWorkerException(e);
+
+			} finally {
+				ring.release();
+				packets++;
+			}
+		}
+
+		@Override
+		public void run() {
+			int idle = 0;
+
+			while (true) {
+				if (ring.poll()) {
+					process();
+					idle = 0;
+					continue;
+				}
+
+				/* Drain everything enqueued before close before exiting */
+				if (!running)
+					break;
+
+				if (idle < SPIN_LIMIT)
+					Thread.onSpinWait();
+				else if (idle < YIELD_LIMIT)
+					Thread.yield();
+				else
+					LockSupport.parkNanos(PARK_NANOS);
+
+				idle++;
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "Worker[%d, packets=%d, depth=%d, drops=%d, exceptions=%d]"
+					.formatted(index, packets, ring.depth(), ring.drops(), exceptions);
+		}
+	}
+
+	private final NetPcap pcap;
+	private final Arena arena;
+	private final FrameRing[] rings;
+	private final Worker[] workers;
+	private final Thread[] threads;
+	private final BoundHandler capture;
+	private final int linkType;
+	private final AtomicReference<RuntimeException> workerException = new AtomicReference<>();
+	private boolean tunnelAware;
+	private volatile boolean running = true;
+	private volatile UncaughtExceptionHandler exceptionHandler;
+
+	/**
+	 * Instantiates and starts a new parallel pipeline.
+	 *
+	 * @param pcap           the capture handle
+	 * @param abi            the pcap header ABI
+	 * @param settings       the packet settings used by every worker
+	 * @param linkType       the link type of captured frames, where workers start
+	 *                       dissection
+	 * @param workerCount    the number of worker threads
+	 * @param ringSize       the size of each worker's frame ring in bytes
+	 * @param handlerFactory creates a handler for each worker index
+	 */
+	ParallelPipeline(NetPcap pcap, PcapHeaderABI abi, PacketSettings settings, int linkType,
+			int workerCount, long ringSize, IntFunction<? extends OfPacketConsumer> handlerFactory) {
+		if (workerCount <= 0)
+			throw new IllegalArgumentException("worker count must be positive: " + workerCount);
+
+		this.pcap = pcap;
+		this.linkType = linkType;
+		this.arena = Arena.ofShared();
+		this.rings = new FrameRing[workerCount];
+		this.workers = new Worker[workerCount];
+		this.threads = new Thread[workerCount];
+
+		for (int i = 0; i < workerCount; i++) {
+			OfPacketConsumer handler = Objects.requireNonNull(handlerFactory.apply(i), "handler");
+
+			rings[i] = new FrameRing(arena, ringSize, abi.headerLength());
+			workers[i] = new Worker(i, rings[i], newWorkerPipeline(pcap, abi, settings, linkType), handler);
+			threads[i] = Thread.ofPlatform()
+					.name("netpcap-worker-" + i)
+					.daemon(true)
+					.unstarted(workers[i]);
+		}
+
+		final CaptureMetrics metrics = pcap.metrics();
+
+		this.capture = new BoundHandler(pcap, (MemorySegment _, MemorySegment h, MemorySegment p) -> {
+			metrics.recordPacket(p.byteSize());
+			enqueue(h, p);
+		});
+
+		for (Thread t : threads)
+			t.start();
+	}
+
+	/**
+	 * Stops all workers after they drain their rings and releases ring memory.
+	 * The underlying NetPcap handle is not closed.
+	 *
+	 * @throws RuntimeException the first worker exception not yet rethrown, when
+	 *                          no uncaught exception handler is set
+	 */
+	@Override
+	public void close() {
+		if (!running)
+			return;
+
+		running = false;
+
+		boolean interrupted = false;
+		for (Thread t : threads) {
+			LockSupport.unpark(t);
+
+			while (t.isAlive()) {
+				try {
+					t.join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+
+		arena.close();
+
+		if (interrupted)
+			Thread.currentThread().interrupt();
+
+		rethrowWorkerException();
+	}
+
+	/**
+	 * Returns the number of frames waiting in a worker's ring.
+	 *
+	 * @param worker the worker index
+	 * @return the queue depth in frames
+	 */
+	public long depth(int worker) {
+		return rings[worker].depth();
+	}
+
+	/**
+	 * Captures packets and distributes them to the workers.
+	 *
+	 * @param count maximum packets to process (-1 for unlimited)
+	 * @return number of packets captured, 0 on timeout, -1 on error, -2 on break
+	 * @throws PcapException    if capture fails
+	 * @throws RuntimeException the first worker exception not yet rethrown, when
+	 *                          no uncaught exception handler is set
+	 * @see NetPcap#dispatch(int, PacketHandler.OfPacketConsumer)
+	 */
+	public int dispatch(int count) throws PcapException {
+		checkOpen();
+
+		int result = capture.dispatch(count);
+		rethrowWorkerException();
+
+		return result;
+	}
+
+	/**
+	 * Returns the total number of frames dropped because a worker's ring was full.
+	 *
+	 * @return the drop count
+	 */
+	public long dropCount() {
+		long total = 0;
+		for (FrameRing ring : rings)
+			total += ring.drops();
+
+		return total;
+	}
+
+	/**
+	 * Returns the number of frames dropped because a worker's ring was full.
+	 *
+	 * @param worker the worker index
+	 * @return the drop count
+	 */
+	public long drops(int worker) {
+		return rings[worker].drops();
+	}
+
+	private void checkOpen() {
+		if (!running)
+			throw new IllegalStateException("parallel pipeline is closed");
+	}
+
+	/**
+	 * Capture thread side, hashes and copies a raw frame into a worker's ring.
+	 */
+	private void enqueue(MemorySegment hdr, MemorySegment data) {
+		int hash = tunnelAware
+				? FlowHash.innerHash(data, linkType)
+				: FlowHash.hash(data, linkType);
+
+		rings[Math.floorMod(hash, rings.length)].offer(hdr, data);
+	}
+
+	/**
+	 * Captures packets in a loop and distributes them to the workers.
+	 *
+	 * @param count packets to process (-1 for infinite)
+	 * @return number of packets captured, -1 on error, -2 on break
+	 * @throws RuntimeException the first worker exception not yet rethrown, when
+	 *                          no uncaught exception handler is set
+	 * @see NetPcap#loop(int, PacketHandler.OfPacketConsumer)
+	 */
+	public int loop(int count) {
+		checkOpen();
+
+		int result = capture.loop(count);
+		rethrowWorkerException();
+
+		return result;
+	}
+
+	/**
+	 * Creates a worker's pipeline, dissecting from the handle's link type and
+	 * reading timestamps in the handle's precision.
+	 */
+	private static PacketPipeline newWorkerPipeline(NetPcap pcap, PcapHeaderABI abi, PacketSettings settings,
+			int linkType) {
+		var pipeline = new PacketPipeline(pcap.pcapApi, new CaptureHeader.Native(abi), DescriptorType.PCAP_PADDED,
+				settings, linkType);
+		pipeline.setTimestampUnit(pcap.timestampUnit());
+
+		return pipeline;
+	}
+
+	/**
+	 * Worker thread side, hands the exception to the uncaught exception handler,
+	 * or records the first one for the capture thread to rethrow.
+	 */
+	private void onWorkerException(RuntimeException e) {
+		UncaughtExceptionHandler handler = this.exceptionHandler;
+
+		if (handler != null)
+			handler.uncaughtException(Thread.currentThread(), e);
+		else
+			workerException.compareAndSet(null, e);
+	}
+
+	/**
+	 * Returns the capture handle feeding this pipeline.
+	 *
+	 * @return the pcap handle
+	 */
+	public NetPcap pcap() {
+		return pcap;
+	}
+
+	/**
+	 * Rethrows, on the capture thread, the first exception recorded by a worker.
+	 */
+	private void rethrowWorkerException() {
+		RuntimeException e = workerException.getAndSet(null);
+
+		if (e != null)
+			throw e;
+	}
+
+	/**
+	 * Sets the handler invoked on the worker thread when a worker's packet handler
+	 * throws. The worker continues in either case. Without a handler, the first
+	 * exception is recorded and rethrown by the next call to {@link #dispatch},
+	 * {@link #loop} or {@link #close}, and later ones are only counted.
+	 *
+	 * @param exceptionHandler the exception handler
+	 * @return this pipeline for method chaining
+	 */
+	public ParallelPipeline setUncaughtExceptionHandler(UncaughtExceptionHandler exceptionHandler) {
+		this.exceptionHandler = exceptionHandler;
+		return this;
+	}
+
+	/**
+	 * Selects whether tunneled frames are distributed by their innermost 5-tuple
+	 * instead of the outer tunnel endpoints. Must be set from the capture thread,
+	 * or before capture starts.
+	 *
+	 * @param tunnelAware if true, hash the innermost 5-tuple
+	 * @return this pipeline for method chaining
+	 * @see FlowHash#innerHash(MemorySegment, int)
+	 */
+	public ParallelPipeline setTunnelAware(boolean tunnelAware) {
+		this.tunnelAware = tunnelAware;
+		return this;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder b = new StringBuilder("ParallelPipeline[");
+		for (int i = 0; i < workers.length; i++)
+			b.append(i == 0 ? "" : ", ").append(workers[i]);
+
+		return b.append(']').toString();
+	}
+
+	/**
+	 * Returns the number of worker threads.
+	 *
+	 * @return the worker count
+	 */
+	public int workerCount() {
+		return workers.length;
+	}
+}
@@ -0,0 +1,466 @@
+/*
+ * Copyright 2005-2025 Sly Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.slytechs.sdk.jnetpcap.api;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import com.slytechs.sdk.common.time.TimestampUnit;
+import com.slytechs.sdk.protocol.core.PacketSettings;
+import com.slytechs.sdk.protocol.core.descriptor.DescriptorType;
+
+/**
+ * A memory mapped pcap file, shared by the pure Java offline readers.
+ *
+ * <p>
+ * Parses the file header and hands out {@link Cursor}s which walk the records
+ * of a byte range of the file. Any number of cursors may read the same file
+ * concurrently, each cursor is confined to one thread.
+ * </p>
+ *
+ * @author Mark Bednarczyk [mark@slytechs.com]
+ * @author Sly Technologies Inc.
+ */
+final class PcapFile implements AutoCloseable {
+
+	/**
+	 * Walks the records of a byte range of the file. Confined to one thread.
+	 */
+	final class Cursor {
+
+		/** Native order copy of the current record header, used for swapped files */
+		private final MemorySegment scratch;
+		private final long end;
+		private long position;
+		private long record;
+		private long caplen;
+		private MemorySegment header;
+		private MemorySegment data;
+		private boolean truncated;
+
+		private Cursor(long start, long end) {
+			this.position = start;
+			this.end = end;
+			this.scratch = swapped ? arena.allocate(RECORD_HEADER_LENGTH, 8) : null;
+		}
+
+		/**
+		 * Advances to the next record in the range.
+		 *
+		 * @return true if a complete record is available, false at end of range
+		 */
+		boolean advance() {
+			if (!step())
+				return false;
+
+			if (swapped) {
+				copyHeader(scratch);
+				header = scratch;
+			} else {
+				header = segment.asSlice(record, RECORD_HEADER_LENGTH);
+			}
+
+			data = segment.asSlice(record + RECORD_HEADER_LENGTH, caplen);
+
+			return true;
+		}
+
+		/**
+		 * Returns the capture length of the current record.
+		 *
+		 * @return the capture length
+		 */
+		long captureLength() {
+			return caplen;
+		}
+
+		/**
+		 * Copies the current record header into a buffer, in native byte order.
+		 *
+		 * @param dst the destination, at least {@value #RECORD_HEADER_LENGTH} bytes
+		 */
+		void copyHeader(MemorySegment dst) {
+			for (int i = 0; i < RECORD_HEADER_LENGTH; i += 4)
+				dst.set(ValueLayout.JAVA_INT_UNALIGNED, i, segment.get(fileInt, record + i));
+		}
+
+		/**
+		 * Returns the file offset of the current record's packet data, within
+		 * {@link PcapFile#segment()}.
+		 *
+		 * @return the data offset
+		 */
+		long dataOffset() {
+			return record + RECORD_HEADER_LENGTH;
+		}
+
+		/**
+		 * Advances to the next record without creating header or data slices. The
+		 * record is accessed through {@link #dataOffset()},
+		 * {@link #captureLength()}, {@link #copyHeader(MemorySegment)} and
+		 * {@link #timestampNanos()}.
+		 *
+		 * @return true if a complete record is available, false at end of range
+		 */
+		boolean step() {
+			if (position >= end)
+				return false;
+
+			final long remaining = size - position;
+
+			if (remaining < RECORD_HEADER_LENGTH) {
+				truncated = true;
+				return false;
+			}
+
+			final long length = Integer.toUnsignedLong(segment.get(fileInt, position + 8));
+			if (length > remaining - RECORD_HEADER_LENGTH) {
+				truncated = true;
+				return false;
+			}
+
+			record = position;
+			caplen = length;
+			position += RECORD_HEADER_LENGTH + length;
+
+			return true;
+		}
+
+		/**
+		 * Returns the timestamp of the current record in nanoseconds since the
+		 * epoch.
+		 *
+		 * @return the epoch nanoseconds
+		 */
+		long timestampNanos() {
+			long sec = Integer.toUnsignedLong(segment.get(fileInt, record));
+			long fraction = Integer.toUnsignedLong(segment.get(fileInt, record + 4));
+
+			return sec * 1_000_000_000L + (nanoTime ? fraction : fraction * 1_000L);
+		}
+
+		/**
+		 * Returns the current record data.
+		 *
+		 * @return the packet data
+		 */
+		MemorySegment data() {
+			return data;
+		}
+
+		/**
+		 * Returns the current record header, in native byte order.
+		 *
+		 * @return the packed record header
+		 */
+		MemorySegment header() {
+			return header;
+		}
+
+		/**
+		 * Checks if the last record of the range ended exactly at the end of the
+		 * range. Only meaningful once {@link #advance()} has returned false.
+		 *
+		 * @return true if aligned or truncated at end of file, false if the last
+		 *         record overran the range
+		 */
+		boolean isAligned() {
+			return truncated || position == end;
+		}
+
+		/**
+		 * Checks if reading stopped on an incomplete record at the end of the file.
+		 *
+		 * @return true if truncated
+		 */
+		boolean isTruncated() {
+			return truncated;
+		}
+
+		/**
+		 * Returns the file offset of the next record.
+		 *
+		 * @return the position
+		 */
+		long position() {
+			return position;
+		}
+
+		/**
+		 * Moves the cursor to a record boundary.
+		 *
+		 * @param position the file offset of a record
+		 */
+		void reset(long position) {
+			this.position = position;
+			this.truncated = false;
+		}
+	}
+
+	/** Pcap file magic number for microsecond timestamps. */
+	static final int MAGIC_MICRO = 0xA1B2C3D4;
+
+	/** Pcap file magic number for nanosecond timestamps. */
+	static final int MAGIC_NANO = 0xA1B23C4D;
+
+	/** Length of the pcap file header. */
+	static final int FILE_HEADER_LENGTH = 24;
+
+	/** Length of each pcap record header. */
+	static final int RECORD_HEADER_LENGTH = 16;
+
+	/** Largest capture length libpcap accepts for any link type. */
+	static final int MAXIMUM_SNAPLEN = 262144;
+
+	/** Largest wire length accepted at a resync point, above any link's frames. */
+	private static final long MAXIMUM_WIRELEN = 1024 * 1024;
+
+	/** Number of consecutive valid records required to accept a resync point. */
+	private static final int RESYNC_DEPTH = 8;
+
+	private static final int LINKTYPE_MASK = 0x0FFFFFFF;
+
+	/**
+	 * Maps a pcap file.
+	 *
+	 * @param path the capture file
+	 * @return the mapped file
+	 * @throws IOException if the file can not be mapped or is not a pcap file
+	 */
+	static PcapFile map(Path path) throws IOException {
+		Arena arena = Arena.ofShared();
+
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			return new PcapFile(path, arena, channel.map(MapMode.READ_ONLY, 0, channel.size(), arena));
+
+		} catch (IOException | RuntimeException e) {
+			arena.close();
+			throw e;
+		}
+	}
+
+	private final Path path;
+	private final Arena arena;
+	private final MemorySegment segment;
+	private final long size;
+	private final ValueLayout.OfInt fileInt;
+	private final boolean swapped;
+	private final boolean nanoTime;
+	private final int snaplen;
+	private final int linkType;
+	private final long maxCaplen;
+
+	private PcapFile(Path path, Arena arena, MemorySegment segment) throws IOException {
+		this.path = path;
+		this.arena = arena;
+		this.segment = segment;
+		this.size = segment.byteSize();
+
+		if (size < FILE_HEADER_LENGTH)
+			throw new IOException("not a pcap file, too short: " + path);
+
+		int magic = segment.get(ValueLayout.JAVA_INT_UNALIGNED, 0);
+		ByteOrder order = ByteOrder.nativeOrder();
+
+		if (magic == Integer.reverseBytes(MAGIC_MICRO) || magic == Integer.reverseBytes(MAGIC_NANO)) {
+			magic = Integer.reverseBytes(magic);
+			order = (order == ByteOrder.BIG_ENDIAN) ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+
+		} else if (magic != MAGIC_MICRO && magic != MAGIC_NANO) {
+			throw new IOException("not a pcap file, bad magic 0x%08X: %s".formatted(magic, path));
+		}
+
+		this.fileInt = ValueLayout.JAVA_INT_UNALIGNED.withOrder(order);
+		this.swapped = (order != ByteOrder.nativeOrder());
+		this.nanoTime = (magic == MAGIC_NANO);
+		this.snaplen = segment.get(fileInt, 16);
+		this.linkType = segment.get(fileInt, 20) & LINKTYPE_MASK;
+		this.maxCaplen = Math.max(Integer.toUnsignedLong(snaplen), MAXIMUM_SNAPLEN);
+	}
+
+	/**
+	 * Unmaps the file. Invalidates every cursor and every packet bound to the
+	 * mapping.
+	 */
+	@Override
+	public void close() {
+		arena.close();
+	}
+
+	/**
+	 * Creates a cursor over the records of the whole file.
+	 *
+	 * @return a new cursor
+	 */
+	Cursor cursor() {
+		return new Cursor(FILE_HEADER_LENGTH, size);
+	}
+
+	/**
+	 * Creates a cursor over the records of a byte range. Both offsets must be
+	 * record boundaries, see {@link #resync(long)}.
+	 *
+	 * @param start file offset of the first record
+	 * @param end   file offset just past the last record
+	 * @return a new cursor
+	 */
+	Cursor cursor(long start, long end) {
+		return new Cursor(start, end);
+	}
+
+	/**
+	 * Checks if a record header chain starts at an offset. A chain of
+	 * {@value #RESYNC_DEPTH} plausible headers, or fewer ending exactly at end of
+	 * file, is required. Empty records are rejected, so a run of zero bytes is
+	 * never taken for a chain.
+	 */
+	private boolean isRecordChain(long offset) {
+		final long fractionLimit = nanoTime ? 1_000_000_000L : 1_000_000L;
+		long p = offset;
+
+		for (int i = 0; i < RESYNC_DEPTH; i++) {
+			if (p == size)
+				return true;
+
+			if (size - p < RECORD_HEADER_LENGTH)
+				return false;
+
+			long fraction = Integer.toUnsignedLong(segment.get(fileInt, p + 4));
+			long caplen = Integer.toUnsignedLong(segment.get(fileInt, p + 8));
+			long wirelen = Integer.toUnsignedLong(segment.get(fileInt, p + 12));
+
+			if (fraction >= fractionLimit || caplen == 0 || caplen > wirelen || caplen > maxCaplen
+					|| wirelen > MAXIMUM_WIRELEN)
+				return false;
+
+			p += RECORD_HEADER_LENGTH + caplen;
+
+			if (p > size)
+				return i > 0; // Truncated final record
+		}
+
+		return true;
+	}
+
+	/**
+	 * Checks if the file uses nanosecond timestamps.
+	 *
+	 * @return true for nanosecond timestamps
+	 */
+	boolean isNanoTime() {
+		return nanoTime;
+	}
+
+	/**
+	 * Checks if the file byte order is opposite to this host's.
+	 *
+	 * @return true if swapped
+	 */
+	boolean isSwapped() {
+		return swapped;
+	}
+
+	/**
+	 * Returns the link type (DLT) of the file.
+	 *
+	 * @return the link type
+	 */
+	int linkType() {
+		return linkType;
+	}
+
+	/**
+	 * Creates a packet pipeline for the records of this file, dissecting from the
+	 * file's link type.
+	 *
+	 * @param settings the packet settings
+	 * @return a new pipeline
+	 */
+	PacketPipeline newPipeline(PacketSettings settings) {
+		var pipeline = new PacketPipeline(null, CaptureHeader.Packed.INSTANCE, DescriptorType.PCAP_PACKED, settings,
+				linkType);
+
+		if (nanoTime)
+			pipeline.setTimestampUnit(TimestampUnit.EPOCH_NANO);
+
+		return pipeline;
+	}
+
+	/**
+	 * Returns the file path.
+	 *
+	 * @return the path
+	 */
+	Path path() {
+		return path;
+	}
+
+	/**
+	 * Finds the first record boundary at or after an arbitrary file offset.
+	 *
+	 * <p>
+	 * pcap files have no sync markers, so a boundary is recognized by a chain of
+	 * record headers whose timestamp fraction, capture and wire lengths are
+	 * plausible and whose lengths link each header exactly to the next. The
+	 * result is deterministic for a given offset, so adjacent chunks computed
+	 * from the same nominal split points never overlap or leave gaps.
+	 * </p>
+	 *
+	 * @param offset the offset to search from
+	 * @return the offset of the next record boundary, or the file size if none
+	 */
+	long resync(long offset) {
+		for (long p = Math.max(offset, FILE_HEADER_LENGTH); p < size; p++)
+			if (isRecordChain(p))
+				return p;
+
+		return size;
+	}
+
+	/**
+	 * Returns the mapped file contents.
+	 *
+	 * @return the file segment
+	 */
+	MemorySegment segment() {
+		return segment;
+	}
+
+	/**
+	 * Returns the file size.
+	 *
+	 * @return the size in bytes
+	 */
+	long size() {
+		return size;
+	}
+
+	/**
+	 * Returns the snapshot length recorded in the file header.
+	 *
+	 * @return the snaplen
+	 */
+	int snaplen() {
+		return snaplen;
+	}
+}
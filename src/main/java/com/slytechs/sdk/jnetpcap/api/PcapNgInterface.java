@@ -0,0 +1,129 @@
+/*
+ * Copyright 2005-2025 Sly Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.slytechs.sdk.jnetpcap.api;
+
+/**
+ * A capture interface described by a pcapng Interface Description Block.
+ *
+ * <p>
+ * pcapng timestamps are 64-bit counts of interface specific units since the
+ * epoch. The {@code tsResolution} is the raw {@code if_tsresol} option value,
+ * where a clear most significant bit means units of 10<sup>-n</sup> seconds and
+ * a set bit means units of 2<sup>-n</sup> seconds. The default is microseconds.
+ * </p>
+ *
+ * @param id           the interface index within its section
+ * @param linkType     the link type (DLT) of packets on this interface
+ * @param snaplen      the snapshot length, 0 for unlimited
+ * @param tsResolution the raw {@code if_tsresol} option value
+ * @param tsOffset     the {@code if_tsoffset} option value, in seconds
+ * @param name         the {@code if_name} option value, or null
+ * @author Mark Bednarczyk [mark@slytechs.com]
+ * @author Sly Technologies Inc.
+ */
+public record PcapNgInterface(int id, int linkType, int snaplen, int tsResolution, long tsOffset, String name) {
+
+	/** Default {@code if_tsresol} value, microseconds. */
+	public static final int DEFAULT_TS_RESOLUTION = 6;
+
+	/** 10^0 through 10^18, the largest power of 10 that fits in a long */
+	private static final long[] POWERS_OF_10 = new long[19];
+
+	static {
+		POWERS_OF_10[0] = 1;
+		for (int i = 1; i < POWERS_OF_10.length; i++)
+			POWERS_OF_10[i] = POWERS_OF_10[i - 1] * 10;
+	}
+
+	private static final int MAX_DECIMAL_EXPONENT = POWERS_OF_10.length - 1;
+
+	private boolean isBinary() {
+		return (tsResolution & 0x80) != 0;
+	}
+
+	private int exponent() {
+		int exp = tsResolution & 0x7F;
+
+		return isBinary() ? Math.min(exp, 63) : Math.min(exp, MAX_DECIMAL_EXPONENT);
+	}
+
+	/**
+	 * Converts a raw timestamp to whole seconds since the epoch.
+	 *
+	 * @param timestamp the raw 64-bit timestamp from a packet block
+	 * @return the epoch seconds
+	 */
+	public long epochSeconds(long timestamp) {
+		long seconds = isBinary()
+				? timestamp >>> exponent()
+				: Long.divideUnsigned(timestamp, POWERS_OF_10[exponent()]);
+
+		return seconds + tsOffset;
+	}
+
+	/**
+	 * Converts a raw timestamp to nanoseconds since the epoch.
+	 *
+	 * @param timestamp the raw 64-bit timestamp from a packet block
+	 * @return the epoch nanoseconds
+	 */
+	public long epochNanos(long timestamp) {
+		long fraction = fraction(timestamp);
+
+		return epochSeconds(timestamp) * 1_000_000_000L + (isNanoTime() ? fraction : fraction * 1_000L);
+	}
+
+	/**
+	 * Converts a raw timestamp to the fraction of a second, in microseconds or
+	 * nanoseconds as reported by {@link #isNanoTime()}. Finer resolutions are
+	 * truncated to nanoseconds.
+	 *
+	 * @param timestamp the raw 64-bit timestamp from a packet block
+	 * @return the fraction of a second
+	 */
+	public long fraction(long timestamp) {
+		final int exp = exponent();
+
+		if (isBinary()) {
+			if (exp == 0)
+				return 0;
+
+			long units = timestamp & ((1L << exp) - 1);
+			long scale = isNanoTime() ? 1_000_000_000L : 1_000_000L;
+
+			return Math.unsignedMultiplyHigh(units << (64 - exp), scale);
+		}
+
+		long units = Long.remainderUnsigned(timestamp, POWERS_OF_10[exp]);
+
+		if (exp <= 6)
+			return units * POWERS_OF_10[6 - exp];
+		else if (exp <= 9)
+			return units * POWERS_OF_10[9 - exp];
+		else
+			return units / POWERS_OF_10[exp - 9];
+	}
+
+	/**
+	 * Checks if timestamp fractions are reported in nanoseconds, which is the
+	 * case for any resolution finer than a microsecond.
+	 *
+	 * @return true for nanoseconds, false for microseconds
+	 */
+	public boolean isNanoTime() {
+		return isBinary() ? exponent() >= 20 : exponent() > 6;
+	}
+}
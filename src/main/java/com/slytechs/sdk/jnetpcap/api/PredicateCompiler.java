@@ -0,0 +1,416 @@
+/*
+ * Copyright 2005-2025 Sly Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.slytechs.sdk.jnetpcap.api;
+
+import static com.slytechs.sdk.jnetpcap.api.PacketPredicate.*;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+
+import com.slytechs.sdk.jnetpcap.api.BpfCompiler.Bytes;
+import com.slytechs.sdk.jnetpcap.api.BpfCompiler.ConstantPool;
+
+/**
+ * Compiles a parsed {@link PacketPredicate} to a hidden class extending its
+ * tree's node type, with one method whose branches mirror the expression's
+ * short-circuit operators.
+ *
+ * <p>
+ * Each comparison locates its header in the index, jumps to the comparison's
+ * outcome for an absent header, reads the field from the frame with the
+ * index's unsigned big endian reads, and compares it with the constant as a
+ * long. TCP options are walked by {@link PacketPredicate#readField}, as the
+ * tree does. Like {@link BpfCompiler}, the class file targets version 49, so no
+ * stack map frames are needed; the stack is empty at every branch target.
+ * </p>
+ *
+ * <p>
+ * Expressions compiling to over 8000 bytes of bytecode, which HotSpot would
+ * not JIT compile, are not compiled and run on the tree instead.
+ * </p>
+ *
+ * @author Mark Bednarczyk [mark@slytechs.com]
+ * @author Sly Technologies Inc.
+ */
+final class PredicateCompiler {
+
+	/** HotSpot's {@code HugeMethodLimit}, above which methods stay interpreted. */
+	private static final int HUGE_METHOD_LIMIT = 8000;
+
+	private static final String CLASS_NAME = "com/slytechs/sdk/jnetpcap/api/PacketPredicateCompiled";
+	private static final String NODE = "com/slytechs/sdk/jnetpcap/api/PacketPredicate$Node";
+	private static final String PREDICATE = "com/slytechs/sdk/jnetpcap/api/PacketPredicate";
+	private static final String HEADER_INDEX = "com/slytechs/sdk/jnetpcap/api/HeaderIndex";
+
+	/* Local variable slots of test(HeaderIndex), temporaries follow */
+	private static final int INDEX = 1;
+	private static final int FIRST_TEMP = 2;
+	private static final int MAX_STACK = 8;
+
+	/* Opcodes */
+	private static final int ICONST_0 = 0x03;
+	private static final int ICONST_1 = 0x04;
+	private static final int LCONST_0 = 0x09;
+	private static final int BIPUSH = 0x10;
+	private static final int SIPUSH = 0x11;
+	private static final int LDC_W = 0x13;
+	private static final int LDC2_W = 0x14;
+	private static final int ILOAD = 0x15;
+	private static final int LLOAD = 0x16;
+	private static final int ALOAD = 0x19;
+	private static final int ALOAD_0 = 0x2A;
+	private static final int ISTORE = 0x36;
+	private static final int LSTORE = 0x37;
+	private static final int IADD = 0x60;
+	private static final int ISUB = 0x64;
+	private static final int LMUL = 0x69;
+	private static final int LUSHR = 0x7D;
+	private static final int LAND = 0x7F;
+	private static final int I2L = 0x85;
+	private static final int LCMP = 0x94;
+	private static final int IFEQ = 0x99;
+	private static final int IFNE = 0x9A;
+	private static final int IFLT = 0x9B;
+	private static final int IFGE = 0x9C;
+	private static final int IFGT = 0x9D;
+	private static final int IFLE = 0x9E;
+	private static final int IF_ICMPGT = 0xA3;
+	private static final int GOTO = 0xA7;
+	private static final int IRETURN = 0xAC;
+	private static final int RETURN = 0xB1;
+	private static final int INVOKEVIRTUAL = 0xB6;
+	private static final int INVOKESPECIAL = 0xB7;
+	private static final int INVOKESTATIC = 0xB8;
+
+	/**
+	 * Compiles a predicate's tree.
+	 *
+	 * @param root the root of the parsed tree
+	 * @return the compiled node, or null if it is too large to compile
+	 */
+	static Node compile(Node root) {
+		byte[] classFile = new PredicateCompiler(root).emitClass();
+		if (classFile == null)
+			return null;
+
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(classFile, true);
+
+			return (Node) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class))
+					.invoke();
+		} catch (Throwable e) {
+			throw new IllegalStateException("failed to define compiled packet predicate", e);
+		}
+	}
+
+	private final Node root;
+	private final ConstantPool pool = new ConstantPool();
+	private final Bytes code = new Bytes();
+
+	/* Bytecode offset of each label, or -1 until placed */
+	private int[] labels = new int[16];
+	private int labelCount;
+
+	/* Pending forward branches as {opcode offset, label} */
+	private int[][] fixups = new int[64][];
+	private int fixupCount;
+
+	private int maxLocals = FIRST_TEMP;
+
+	private PredicateCompiler(Node root) {
+		this.root = root;
+	}
+
+	private void branch(int opcode, int label) {
+		if (fixupCount == fixups.length)
+			fixups = Arrays.copyOf(fixups, fixupCount * 2);
+
+		fixups[fixupCount++] = new int[] {
+				code.size(),
+				label
+		};
+		code.u1(opcode).u2(0);
+	}
+
+	/**
+	 * Assembles the class file, or returns null if the method is too large.
+	 */
+	private byte[] emitClass() {
+		final byte[] init = emitInit();
+		final byte[] test = emitTest();
+		if (test == null)
+			return null;
+
+		final int thisClass = pool.classRef(CLASS_NAME);
+		final int superClass = pool.classRef(NODE);
+		final int codeName = pool.utf8("Code");
+		final int initName = pool.utf8("<init>");
+		final int initType = pool.utf8("()V");
+		final int testName = pool.utf8("test");
+		final int testType = pool.utf8("(L" + HEADER_INDEX + ";)Z");
+
+		Bytes out = new Bytes();
+		out.u4(0xCAFEBABE).u2(0).u2(49);
+		out.u2(pool.count()).bytes(pool.bytes.toArray());
+		out.u2(0x0030); // ACC_FINAL | ACC_SUPER
+		out.u2(thisClass).u2(superClass);
+		out.u2(0); // interfaces
+		out.u2(0); // fields
+		out.u2(2); // methods
+		BpfCompiler.emitMethod(out, initName, initType, codeName, 1, 1, init);
+		BpfCompiler.emitMethod(out, testName, testType, codeName, MAX_STACK, maxLocals, test);
+		out.u2(0); // attributes
+
+		return out.toArray();
+	}
+
+	/**
+	 * Emits a comparison of a value with a constant. An absent header fails
+	 * every comparison, except equality with the absent value itself, as on the
+	 * tree.
+	 */
+	private void emitComparison(Comparison comparison, int whenTrue, int whenFalse) {
+		final int absent = (comparison instanceof Eq && comparison.k == ABSENT) ? whenTrue : whenFalse;
+		final int v = emitValue(comparison.value, absent);
+
+		code.u1(LLOAD).u1(v);
+		pushLong(comparison.k);
+		code.u1(LCMP);
+
+		final int taken = switch (comparison) {
+		case Eq _ -> IFEQ;
+		case Ne _ -> IFNE;
+		case Lt _ -> IFLT;
+		case Le _ -> IFLE;
+		case Gt _ -> IFGT;
+		case Ge _ -> IFGE;
+		default -> throw new AssertionError();
+		};
+
+		branch(taken, whenTrue);
+		branch(GOTO, whenFalse);
+	}
+
+	/**
+	 * Emits a predicate as jumps to one of two labels.
+	 */
+	private void emitCondition(Node node, int whenTrue, int whenFalse) {
+		switch (node) {
+		case And and -> {
+			final int right = newLabel();
+			emitCondition(and.left, right, whenFalse);
+			place(right);
+			emitCondition(and.right, whenTrue, whenFalse);
+		}
+		case Or or -> {
+			final int right = newLabel();
+			emitCondition(or.left, whenTrue, right);
+			place(right);
+			emitCondition(or.right, whenTrue, whenFalse);
+		}
+		case Not not -> emitCondition(not.node, whenFalse, whenTrue);
+		case Constant constant -> branch(GOTO, constant.value ? whenTrue : whenFalse);
+		case Present present -> {
+			code.u1(ALOAD).u1(INDEX);
+			push(present.protocol);
+			invokeIndex("count", "(I)I");
+			push(present.depth);
+			branch(IF_ICMPGT, whenTrue);
+			branch(GOTO, whenFalse);
+		}
+		case IsSet isSet -> {
+			final int v = emitValue(isSet.value, whenFalse);
+
+			code.u1(LLOAD).u1(v).u1(LCONST_0).u1(LCMP);
+			branch(IFNE, whenTrue);
+			branch(GOTO, whenFalse);
+		}
+		case Comparison comparison -> emitComparison(comparison, whenTrue, whenFalse);
+		default -> throw new AssertionError();
+		}
+	}
+
+	/**
+	 * Stores a header field's value, jumping to a label if the header is absent.
+	 */
+	private void emitField(FieldValue value, int result, int absent) {
+		final Field field = value.field;
+		final int header = newLocal(1);
+
+		code.u1(ALOAD).u1(INDEX);
+		push(field.protocol);
+		push(value.depth);
+		invokeIndex("offset", "(II)I");
+		code.u1(ISTORE).u1(header);
+		code.u1(ILOAD).u1(header);
+		branch(IFLT, absent);
+
+		if (field.option != NO_OPTION) {
+			code.u1(ALOAD).u1(INDEX).u1(ILOAD).u1(header);
+			push(field.ordinal());
+			code.u1(INVOKESTATIC).u2(pool.member(10, PREDICATE, "readField", "(L" + HEADER_INDEX + ";II)J"));
+			code.u1(LSTORE).u1(result);
+
+			code.u1(LLOAD).u1(result);
+			pushLong(ABSENT);
+			code.u1(LCMP);
+			branch(IFEQ, absent);
+			return;
+		}
+
+		code.u1(ALOAD).u1(INDEX).u1(ILOAD).u1(header);
+		push(field.offset);
+		code.u1(IADD).u1(I2L);
+
+		switch (field.size) {
+		case 1 -> invokeIndex("u8", "(J)I");
+		case 2 -> invokeIndex("u16", "(J)I");
+		default -> invokeIndex("u32", "(J)J");
+		}
+		if (field.size < 4)
+			code.u1(I2L);
+
+		if (field.shift != 0) {
+			push(field.shift);
+			code.u1(LUSHR);
+		}
+		if (field.mask != Field.widthMask(field.size)) {
+			pushLong(field.mask);
+			code.u1(LAND);
+		}
+		if (field.scale != 1) {
+			pushLong(field.scale);
+			code.u1(LMUL);
+		}
+
+		code.u1(LSTORE).u1(result);
+	}
+
+	private byte[] emitInit() {
+		Bytes init = new Bytes();
+		init.u1(ALOAD_0)
+				.u1(INVOKESPECIAL).u2(pool.member(10, NODE, "<init>", "()V"))
+				.u1(RETURN);
+
+		return init.toArray();
+	}
+
+	/**
+	 * Emits the test method, or returns null if it does not fit.
+	 */
+	private byte[] emitTest() {
+		final int whenTrue = newLabel();
+		final int whenFalse = newLabel();
+
+		emitCondition(root, whenTrue, whenFalse);
+
+		place(whenTrue);
+		code.u1(ICONST_1).u1(IRETURN);
+		place(whenFalse);
+		code.u1(ICONST_0).u1(IRETURN);
+
+		if (code.size() > HUGE_METHOD_LIMIT || maxLocals > 0xFF)
+			return null;
+
+		for (int i = 0; i < fixupCount; i++) {
+			final int at = fixups[i][0];
+			final int offset = labels[fixups[i][1]] - at;
+
+			code.set2(at + 1, offset);
+		}
+
+		return code.toArray();
+	}
+
+	/**
+	 * Stores a value in a new long local, jumping to a label instead if the
+	 * value's header is absent.
+	 *
+	 * @return the local slot
+	 */
+	private int emitValue(Value value, int absent) {
+		switch (value) {
+		case FieldValue field -> {
+			final int result = newLocal(2);
+			emitField(field, result, absent);
+
+			return result;
+		}
+		case Masked masked -> {
+			final int result = emitValue(masked.value, absent);
+
+			code.u1(LLOAD).u1(result);
+			pushLong(masked.mask);
+			code.u1(LAND).u1(LSTORE).u1(result);
+
+			return result;
+		}
+		case Depth depth -> {
+			final int result = newLocal(2);
+
+			code.u1(ALOAD).u1(INDEX);
+			push(depth.protocol);
+			invokeIndex("count", "(I)I");
+			code.u1(ICONST_1).u1(ISUB).u1(I2L).u1(LSTORE).u1(result);
+
+			return result;
+		}
+		default -> throw new AssertionError();
+		}
+	}
+
+	private void invokeIndex(String name, String descriptor) {
+		code.u1(INVOKEVIRTUAL).u2(pool.member(10, HEADER_INDEX, name, descriptor));
+	}
+
+	private int newLabel() {
+		if (labelCount == labels.length)
+			labels = Arrays.copyOf(labels, labelCount * 2);
+
+		labels[labelCount] = -1;
+		return labelCount++;
+	}
+
+	/**
+	 * Allocates local variable slots, never reused, so each keeps one type.
+	 */
+	private int newLocal(int slots) {
+		final int slot = maxLocals;
+		maxLocals += slots;
+
+		return slot;
+	}
+
+	private void place(int label) {
+		labels[label] = code.size();
+	}
+
+	private void push(int value) {
+		if (value >= -1 && value <= 5)
+			code.u1(ICONST_0 + value);
+		else if (value == (byte) value)
+			code.u1(BIPUSH).u1(value);
+		else if (value == (short) value)
+			code.u1(SIPUSH).u2(value);
+		else
+			code.u1(LDC_W).u2(pool.integer(value));
+	}
+
+	private void pushLong(long value) {
+		code.u1(LDC2_W).u2(pool.longValue(value));
+	}
+}
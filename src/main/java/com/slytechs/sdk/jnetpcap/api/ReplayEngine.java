@@ -0,0 +1,413 @@
+/*
+ * Copyright 2005-2025 Sly Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.slytechs.sdk.jnetpcap.api;
+
+import java.lang.foreign.MemorySegment;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.locks.LockSupport;
+
+import com.slytechs.sdk.jnetpcap.PcapException;
+import com.slytechs.sdk.jnetpcap.internal.PcapHeaderABI;
+
+/**
+ * Replays the packets of an offline capture onto a live handle, paced by their
+ * recorded timestamps or at a fixed rate.
+ *
+ * <p>
+ * Records are read from the source handle through a raw upcall, without
+ * dissection, and transmitted from libpcap's buffer with
+ * {@code pcap_sendpacket} or, optionally, {@code pcap_inject}. Each packet is
+ * assigned an absolute deadline relative to the start of the replay, so pacing
+ * errors do not accumulate over the run. Until the deadline the replay thread
+ * parks, and spins once the remaining time falls below the spin threshold,
+ * which holds inter-packet gaps of a few microseconds that
+ * {@code LockSupport.parkNanos} alone can not.
+ * </p>
+ *
+ * <pre>{@code
+ * try (NetPcap file = NetPcap.openOffline("capture.pcap");
+ * 		NetPcap eth0 = NetPcap.openLive("eth0", 65535, false, Duration.ofSeconds(1))) {
+ *
+ * 	ReplayEngine replay = file.replayTo(eth0)
+ * 			.setSpeed(2.0);
+ *
+ * 	replay.replay(-1);
+ * 	System.out.printf("%.0f pps, avg error %d ns%n",
+ * 			replay.achievedPacketRate(), replay.averagePacingErrorNanos());
+ * }
+ * }</pre>
+ *
+ * <p>
+ * The pacing error of a packet is how late it was released compared to its
+ * deadline. A packet which can not be sent on time, because the target or the
+ * source fell behind, is sent immediately and the schedule is not shifted, so
+ * later packets catch up. Out of order timestamps in the source never schedule
+ * a packet before its predecessor.
+ * </p>
+ *
+ * <p>
+ * A replay engine runs on the thread calling {@link #replay(int)} and is not
+ * thread-safe, except for {@link #stop()}.
+ * </p>
+ *
+ * @author Mark Bednarczyk [mark@slytechs.com]
+ * @author Sly Technologies Inc.
+ * @see NetPcap#replayTo(NetPcap)
+ */
+public final class ReplayEngine {
+
+	/** Default remaining time below which the pacing clock spins, 100us. */
+	public static final long DEFAULT_SPIN_THRESHOLD_NANOS = 100_000;
+
+	private static final double NANOS_PER_SECOND = 1_000_000_000.0;
+
+	private final NetPcap source;
+	private final NetPcap target;
+	private final PcapHeaderABI abi;
+	private final long fractionScale;
+	private final BoundHandler bound;
+
+	private ReplayMode mode = ReplayMode.RECORDED;
+	private double speed = 1.0;
+	private long packetRate;
+	private long bitRate;
+	private boolean inject;
+	private long spinThresholdNanos = DEFAULT_SPIN_THRESHOLD_NANOS;
+
+	/* Replay state and statistics, reset by each replay() call */
+	private long startNanos;
+	private long endNanos;
+	private long firstTimestamp;
+	private long lastDeadline;
+	private long scheduledBits;
+	private long packetCount;
+	private long byteCount;
+	private long pacingErrorSum;
+	private long maxPacingError;
+	private PcapException failure;
+
+	/**
+	 * Creates a replay engine.
+	 *
+	 * @param source   the offline handle to read packets from
+	 * @param target   the handle to transmit packets on
+	 * @param abi      the capture header layout of the source
+	 * @param nanoTime true if the source reports nanosecond timestamps
+	 */
+	ReplayEngine(NetPcap source, NetPcap target, PcapHeaderABI abi, boolean nanoTime) {
+		this.source = source;
+		this.target = Objects.requireNonNull(target, "target");
+		this.abi = abi;
+		this.fractionScale = nanoTime ? 1 : 1000;
+		this.bound = new BoundHandler(source, this::transmit);
+	}
+
+	/**
+	 * Returns the packet data rate achieved by the last replay.
+	 *
+	 * @return bits per second
+	 */
+	public double achievedBitRate() {
+		long elapsed = elapsedNanos();
+
+		return (elapsed == 0) ? 0 : byteCount * 8 * NANOS_PER_SECOND / elapsed;
+	}
+
+	/**
+	 * Returns the packet rate achieved by the last replay.
+	 *
+	 * @return packets per second
+	 */
+	public double achievedPacketRate() {
+		long elapsed = elapsedNanos();
+
+		return (elapsed == 0) ? 0 : packetCount * NANOS_PER_SECOND / elapsed;
+	}
+
+	/**
+	 * Returns the average pacing error of the packets of the last replay.
+	 *
+	 * @return the average delay past each deadline, in nanoseconds
+	 */
+	public long averagePacingErrorNanos() {
+		return (packetCount == 0) ? 0 : pacingErrorSum / packetCount;
+	}
+
+	/**
+	 * Returns the number of packet data bytes transmitted by the last replay.
+	 *
+	 * @return the byte count
+	 */
+	public long byteCount() {
+		return byteCount;
+	}
+
+	private long deadline(MemorySegment hdr, long caplen) {
+		final long deadline = switch (mode) {
+		case TOP_SPEED -> startNanos;
+
+		case RECORDED -> {
+			long timestamp = abi.tvSec(hdr) * 1_000_000_000L + abi.tvUsec(hdr) * fractionScale;
+			if (packetCount == 0)
+				firstTimestamp = timestamp;
+
+			yield startNanos + (long) ((timestamp - firstTimestamp) / speed);
+		}
+
+		case PACKET_RATE -> startNanos + (long) (packetCount * NANOS_PER_SECOND / packetRate);
+
+		case BIT_RATE -> {
+			long at = startNanos + (long) (scheduledBits * NANOS_PER_SECOND / bitRate);
+			scheduledBits += caplen * 8;
+
+			yield at;
+		}
+		};
+
+		return Math.max(deadline, lastDeadline);
+	}
+
+	/**
+	 * Returns the time from the first packet sent to the end of the last replay.
+	 *
+	 * @return the elapsed time in nanoseconds
+	 */
+	public long elapsedNanos() {
+		return (packetCount == 0) ? 0 : endNanos - startNanos;
+	}
+
+	/**
+	 * Returns the largest pacing error of the last replay.
+	 *
+	 * @return the maximum delay past a deadline, in nanoseconds
+	 */
+	public long maxPacingErrorNanos() {
+		return maxPacingError;
+	}
+
+	/**
+	 * Returns the pacing mode.
+	 *
+	 * @return the mode
+	 */
+	public ReplayMode mode() {
+		return mode;
+	}
+
+	/**
+	 * Returns the number of packets transmitted by the last replay.
+	 *
+	 * @return the packet count
+	 */
+	public long packetCount() {
+		return packetCount;
+	}
+
+	/**
+	 * Replays packets from the source, returning once the count is reached, at
+	 * end of file or when stopped. Statistics are reset at the start of each
+	 * call. A subsequent call continues from the source's current position.
+	 *
+	 * @param count packets to replay (-1 for all remaining packets)
+	 * @return 0 when count is reached or at end of file, -1 on a source read
+	 *         error, -2 if stopped
+	 * @throws PcapException if transmitting a packet fails, which ends the replay
+	 */
+	public int replay(int count) throws PcapException {
+		startNanos = endNanos = 0;
+		firstTimestamp = lastDeadline = scheduledBits = 0;
+		packetCount = byteCount = 0;
+		pacingErrorSum = maxPacingError = 0;
+		failure = null;
+
+		int result = bound.loop(count);
+		endNanos = System.nanoTime();
+
+		if (failure != null)
+			throw failure;
+
+		return result;
+	}
+
+	/**
+	 * Sets the pacing to a fixed packet data rate and switches to
+	 * {@link ReplayMode#BIT_RATE}.
+	 *
+	 * @param bitsPerSecond the rate in bits per second
+	 * @return this replay engine
+	 */
+	public ReplayEngine setBitRate(long bitsPerSecond) {
+		if (bitsPerSecond <= 0)
+			throw new IllegalArgumentException("bit rate must be positive: " + bitsPerSecond);
+
+		this.bitRate = bitsPerSecond;
+		this.mode = ReplayMode.BIT_RATE;
+
+		return this;
+	}
+
+	/**
+	 * Selects {@code pcap_inject} instead of {@code pcap_sendpacket} for
+	 * transmitting packets.
+	 *
+	 * @param inject true to use pcap_inject
+	 * @return this replay engine
+	 */
+	public ReplayEngine setInject(boolean inject) {
+		this.inject = inject;
+
+		return this;
+	}
+
+	/**
+	 * Sets the pacing mode. {@link ReplayMode#PACKET_RATE} and
+	 * {@link ReplayMode#BIT_RATE} require their rate to be set first.
+	 *
+	 * @param mode the pacing mode
+	 * @return this replay engine
+	 */
+	public ReplayEngine setMode(ReplayMode mode) {
+		Objects.requireNonNull(mode, "mode");
+
+		if ((mode == ReplayMode.PACKET_RATE && packetRate == 0) || (mode == ReplayMode.BIT_RATE && bitRate == 0))
+			throw new IllegalStateException("no rate set for " + mode);
+
+		this.mode = mode;
+
+		return this;
+	}
+
+	/**
+	 * Sets the pacing to a fixed packet rate and switches to
+	 * {@link ReplayMode#PACKET_RATE}.
+	 *
+	 * @param packetsPerSecond the rate in packets per second
+	 * @return this replay engine
+	 */
+	public ReplayEngine setPacketRate(long packetsPerSecond) {
+		if (packetsPerSecond <= 0)
+			throw new IllegalArgumentException("packet rate must be positive: " + packetsPerSecond);
+
+		this.packetRate = packetsPerSecond;
+		this.mode = ReplayMode.PACKET_RATE;
+
+		return this;
+	}
+
+	/**
+	 * Sets the speed multiplier applied to recorded timing and switches to
+	 * {@link ReplayMode#RECORDED}. A speed of 2.0 replays twice as fast as
+	 * recorded.
+	 *
+	 * @param speed the speed multiplier
+	 * @return this replay engine
+	 */
+	public ReplayEngine setSpeed(double speed) {
+		if (!(speed > 0) || Double.isInfinite(speed))
+			throw new IllegalArgumentException("speed must be a positive finite number: " + speed);
+
+		this.speed = speed;
+		this.mode = ReplayMode.RECORDED;
+
+		return this;
+	}
+
+	/**
+	 * Sets the remaining time to a deadline below which the pacing clock spins
+	 * instead of parking. Larger values trade CPU for tighter gaps.
+	 *
+	 * @param threshold the spin threshold
+	 * @return this replay engine
+	 */
+	public ReplayEngine setSpinThreshold(Duration threshold) {
+		if (threshold.isNegative())
+			throw new IllegalArgumentException("spin threshold must not be negative: " + threshold);
+
+		this.spinThresholdNanos = threshold.toNanos();
+
+		return this;
+	}
+
+	/**
+	 * Requests that the current replay returns -2 before sending the next packet.
+	 * May be called from any thread.
+	 */
+	public void stop() {
+		source.breakloop();
+	}
+
+	@Override
+	public String toString() {
+		return "ReplayEngine[mode=%s, packets=%d, bytes=%d, pps=%.0f, avgError=%dns, maxError=%dns]"
+				.formatted(mode, packetCount, byteCount, achievedPacketRate(),
+						averagePacingErrorNanos(), maxPacingError);
+	}
+
+	private void transmit(MemorySegment user, MemorySegment hdr, MemorySegment data) {
+		if (failure != null)
+			return;
+
+		final int caplen = (int) data.byteSize();
+
+		if (packetCount == 0)
+			startNanos = System.nanoTime();
+
+		if (mode != ReplayMode.TOP_SPEED) {
+			final long deadline = deadline(hdr, caplen);
+			lastDeadline = deadline;
+
+			final long error = waitUntil(deadline) - deadline;
+			pacingErrorSum += error;
+			if (error > maxPacingError)
+				maxPacingError = error;
+		}
+
+		try {
+			if (inject)
+				target.inject(data, caplen);
+			else
+				target.sendPacket(data, caplen);
+
+		} catch (PcapException e) {
+			failure = e;
+			source.breakloop();
+			return;
+		}
+
+		packetCount++;
+		byteCount += caplen;
+	}
+
+	/**
+	 * Parks, then spins, until the deadline.
+	 *
+	 * @return the time the wait ended
+	 */
+	private long waitUntil(long deadline) {
+		long now;
+		while ((now = System.nanoTime()) < deadline) {
+			final long remaining = deadline - now;
+
+			if (remaining > spinThresholdNanos)
+				LockSupport.parkNanos(remaining - spinThresholdNanos);
+			else
+				Thread.onSpinWait();
+		}
+
+		return now;
+	}
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2005-2025 Sly Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.slytechs.sdk.jnetpcap.api;
+
+/**
+ * Pacing applied by a {@link ReplayEngine} to the packets it transmits.
+ *
+ * @author Mark Bednarczyk [mark@slytechs.com]
+ * @author Sly Technologies Inc.
+ * @see ReplayEngine#setMode(ReplayMode)
+ */
+public enum ReplayMode {
+
+	/**
+	 * Packets are sent at their recorded timing relative to the first packet,
+	 * divided by the speed multiplier. This is the default.
+	 */
+	RECORDED,
+
+	/** Packets are sent back to back, as fast as the target accepts them. */
+	TOP_SPEED,
+
+	/** Packets are sent at a fixed number of packets per second. */
+	PACKET_RATE,
+
+	/** Packets are sent at a fixed rate of packet data bits per second. */
+	BIT_RATE;
+}
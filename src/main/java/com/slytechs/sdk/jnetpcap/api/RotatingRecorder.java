@@ -0,0 +1,521 @@
+/*
+ * Copyright 2005-2025 Sly Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.slytechs.sdk.jnetpcap.api;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.foreign.MemorySegment;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A recording sink which splits a capture into a sequence of files, rotating by
+ * file size, wall-clock time, packet-time interval and packet count, with an
+ * optional retention budget.
+ *
+ * <p>
+ * Each file is written by an {@link AsyncCaptureWriter}, so recording never
+ * performs disk I/O on the capture thread. Rotation does not either: the next
+ * file is opened ahead of time on a background thread, and the finished file is
+ * flushed and closed on that same thread. At rotation the capture thread only
+ * swaps writers. If the pre-opened file is not ready yet, which requires
+ * rotations faster than a file can be created, the capture thread waits for it
+ * and the stall is counted.
+ * </p>
+ *
+ * <p>
+ * Records are written from the raw pcap header fields, with no re-encoding or
+ * dissection. Files are named {@code <prefix>-<sequence><extension>} in the
+ * target directory. When a retention budget is set, the oldest finished files
+ * are deleted on the background thread whenever the total size or file count
+ * exceeds it.
+ * </p>
+ *
+ * <pre>{@code
+ * try (NetPcap pcap = NetPcap.openLive("eth0", 65535, true, Duration.ofMillis(100));
+ * 		RotatingRecorder recorder = pcap.openRecorder(Path.of("/var/capture"), "probe", CaptureFileFormat.PCAPNG)) {
+ *
+ * 	recorder.setMaxFileSize(1L << 30)
+ * 			.setMaxFileDuration(Duration.ofMinutes(5))
+ * 			.setRetention(500L << 30, 1000);
+ *
+ * 	BoundHandler sink = pcap.bind(recorder);
+ * 	while (running) {
+ * 		sink.dispatch(-1);
+ * 		recorder.flush();
+ * 	}
+ * }
+ * }</pre>
+ *
+ * <p>
+ * Recording, {@link #flush()} and {@link #close()} must be called from a single
+ * capture thread. Rotation settings should be configured before recording
+ * starts.
+ * </p>
+ *
+ * @author Mark Bednarczyk [mark@slytechs.com]
+ * @author Sly Technologies Inc.
+ * @see NetPcap#openRecorder(Path, String, CaptureFileFormat)
+ * @see NetPcap#bind(RotatingRecorder)
+ */
+public final class RotatingRecorder implements AutoCloseable {
+
+	private record FinishedFile(Path path, long size) {}
+
+	private final Path directory;
+	private final String prefix;
+	private final CaptureFileFormat format;
+	private final int linkType;
+	private final int snaplen;
+	private final boolean nanoTime;
+	private final ExecutorService background;
+
+	/* Rotation limits, 0 for unlimited */
+	private long maxFileSize;
+	private long maxFileNanos;
+	private long packetInterval;
+	private long maxPacketCount;
+
+	/* Retention budget, background thread reads, 0 for unlimited */
+	private volatile long retentionBytes;
+	private volatile int retentionFiles;
+
+	/* Capture thread state */
+	private AsyncCaptureWriter current;
+	private CompletableFuture<AsyncCaptureWriter> next;
+	private int sequence;
+	private long fileBytes;
+	private long filePackets;
+	private long fileOpenedNanos;
+	private long fileSlot = Long.MIN_VALUE;
+	private boolean closed;
+
+	/* Background thread state */
+	private final ArrayDeque<FinishedFile> finished = new ArrayDeque<>();
+	private long finishedBytes;
+
+	private final AtomicLong rotations = new AtomicLong();
+	private final AtomicLong rotationStalls = new AtomicLong();
+	private final AtomicLong closedDrops = new AtomicLong();
+	private final AtomicLong deletedFiles = new AtomicLong();
+	private final List<IOException> failures = new ArrayList<>();
+
+	/**
+	 * Creates the first file and pre-opens the second.
+	 *
+	 * @param directory the target directory, which must exist
+	 * @param prefix    the file name prefix
+	 * @param format    the file format
+	 * @param linkType  the link type (DLT) of records
+	 * @param snaplen   the snapshot length recorded in each file header
+	 * @param nanoTime  if true, timestamp fractions are in nanoseconds,
+	 *                  otherwise microseconds
+	 * @throws IOException if the first file can not be created
+	 */
+	RotatingRecorder(Path directory, String prefix, CaptureFileFormat format, int linkType, int snaplen,
+			boolean nanoTime) throws IOException {
+		this.directory = Objects.requireNonNull(directory, "directory");
+		this.prefix = Objects.requireNonNull(prefix, "prefix");
+		this.format = Objects.requireNonNull(format, "format");
+		this.linkType = linkType;
+		this.snaplen = snaplen;
+		this.nanoTime = nanoTime;
+		this.background = Executors.newSingleThreadExecutor(Thread.ofPlatform()
+				.name("netpcap-recorder-" + prefix)
+				.daemon(true)
+				.factory());
+
+		try {
+			this.current = openFile(++sequence);
+		} catch (IOException e) {
+			background.shutdown();
+			throw e;
+		}
+
+		this.fileOpenedNanos = System.nanoTime();
+		preOpen();
+	}
+
+	/**
+	 * Checks every limit which applies before appending a record.
+	 */
+	private boolean shouldRotate(long tvSec, long recordSize) {
+		if (filePackets == 0)
+			return false;
+
+		if (maxPacketCount > 0 && filePackets >= maxPacketCount)
+			return true;
+
+		if (maxFileSize > 0 && fileBytes + recordSize > maxFileSize)
+			return true;
+
+		if (packetInterval > 0 && (tvSec / packetInterval) != fileSlot)
+			return true;
+
+		return maxFileNanos > 0 && System.nanoTime() - fileOpenedNanos >= maxFileNanos;
+	}
+
+	/**
+	 * Flushes the last file, deletes the unused pre-opened file, applies the
+	 * retention budget and stops the background thread.
+	 *
+	 * @throws IOException if any file operation failed during recording
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+
+		closed = true;
+
+		final AsyncCaptureWriter last = current;
+		final CompletableFuture<AsyncCaptureWriter> unused = next;
+		current = null;
+
+		background.execute(() -> finish(last));
+		background.execute(() -> discard(unused));
+		background.shutdown();
+
+		boolean interrupted = false;
+		while (true) {
+			try {
+				if (background.awaitTermination(1, TimeUnit.SECONDS))
+					break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+
+		if (interrupted)
+			Thread.currentThread().interrupt();
+
+		synchronized (failures) {
+			if (!failures.isEmpty()) {
+				IOException e = failures.get(0);
+				failures.stream().skip(1).forEach(e::addSuppressed);
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Returns the file currently being written.
+	 *
+	 * @return the current file, or null once closed
+	 */
+	public Path currentFile() {
+		AsyncCaptureWriter w = current;
+
+		return (w == null) ? null : w.path();
+	}
+
+	/**
+	 * Returns the number of finished files deleted by the retention budget.
+	 *
+	 * @return the deleted file count
+	 */
+	public long deletedFiles() {
+		return deletedFiles.get();
+	}
+
+	/**
+	 * Background thread, closes and deletes a pre-opened file which was never
+	 * used.
+	 */
+	private void discard(CompletableFuture<AsyncCaptureWriter> unused) {
+		try {
+			AsyncCaptureWriter w = unused.join();
+			w.close();
+			Files.deleteIfExists(w.path());
+
+		} catch (IOException e) {
+			recordFailure(e);
+		} catch (RuntimeException e) {
+			// Pre-open failed, the failure was already recorded
+		}
+	}
+
+	/**
+	 * Returns the number of records dropped by the writers, under back-pressure
+	 * or after a write failure.
+	 *
+	 * @return the drop count
+	 */
+	public long dropCount() {
+		AsyncCaptureWriter w = current;
+
+		return closedDrops.get() + ((w == null) ? 0 : w.dropCount());
+	}
+
+	/**
+	 * Background thread, flushes and closes a finished file and applies the
+	 * retention budget.
+	 */
+	private void finish(AsyncCaptureWriter writer) {
+		try {
+			writer.close();
+		} catch (IOException e) {
+			recordFailure(e);
+		}
+
+		closedDrops.addAndGet(writer.dropCount());
+
+		try {
+			long size = Files.size(writer.path());
+			finished.add(new FinishedFile(writer.path(), size));
+			finishedBytes += size;
+
+		} catch (IOException e) {
+			recordFailure(e);
+		}
+
+		enforceRetention();
+	}
+
+	/**
+	 * Hands off buffered records of the current file to its writer and applies
+	 * the wall-clock rotation limit. Call periodically, for example on capture
+	 * timeouts, so idle periods still rotate on time.
+	 */
+	public void flush() {
+		if (closed)
+			return;
+
+		if (maxFileNanos > 0 && filePackets > 0 && System.nanoTime() - fileOpenedNanos >= maxFileNanos)
+			rotate();
+
+		current.flush();
+	}
+
+	/**
+	 * Background thread, deletes the oldest finished files until the budget is
+	 * met.
+	 */
+	private void enforceRetention() {
+		final long maxBytes = retentionBytes;
+		final int maxFiles = retentionFiles;
+
+		while (!finished.isEmpty()
+				&& ((maxBytes > 0 && finishedBytes > maxBytes) || (maxFiles > 0 && finished.size() > maxFiles))) {
+			FinishedFile oldest = finished.poll();
+			finishedBytes -= oldest.size();
+
+			try {
+				Files.deleteIfExists(oldest.path());
+				deletedFiles.incrementAndGet();
+			} catch (IOException e) {
+				recordFailure(e);
+			}
+		}
+	}
+
+	/**
+	 * Checks if timestamp fractions are in nanoseconds.
+	 *
+	 * @return true for nanoseconds, false for microseconds
+	 */
+	public boolean isNanoTime() {
+		return nanoTime;
+	}
+
+	private AsyncCaptureWriter openFile(int sequence) throws IOException {
+		Path file = directory.resolve("%s-%06d%s".formatted(prefix, sequence, format.extension()));
+
+		return new AsyncCaptureWriter(file, format, linkType, snaplen, nanoTime, AsyncCaptureWriter.DEFAULT_BUFFER_SIZE,
+				AsyncCaptureWriter.DEFAULT_BUFFER_COUNT);
+	}
+
+	/**
+	 * Opens the following file on the background thread.
+	 */
+	private void preOpen() {
+		final int seq = ++sequence;
+
+		next = CompletableFuture.supplyAsync(() -> {
+			try {
+				return openFile(seq);
+			} catch (IOException e) {
+				recordFailure(e);
+				throw new UncheckedIOException(e);
+			}
+		}, background);
+	}
+
+	/**
+	 * Appends a record to the current file, rotating first if any limit has been
+	 * reached. Capture thread only.
+	 *
+	 * @param tvSec      timestamp seconds
+	 * @param tvFraction timestamp fraction, in micro or nanoseconds as selected by
+	 *                   {@link #isNanoTime()}
+	 * @param data       the packet data, sized to the capture length
+	 * @param wireLength the original length of the packet
+	 * @return true if the record was buffered, false if it was dropped
+	 */
+	public boolean record(long tvSec, long tvFraction, MemorySegment data, int wireLength) {
+		if (closed)
+			throw new IllegalStateException("recorder is closed");
+
+		final long recordSize = AsyncCaptureWriter.recordLength(format, data.byteSize());
+
+		if (shouldRotate(tvSec, recordSize))
+			rotate();
+
+		if (filePackets == 0 && packetInterval > 0)
+			fileSlot = tvSec / packetInterval;
+
+		if (!current.write(tvSec, tvFraction, data, wireLength))
+			return false;
+
+		fileBytes += recordSize;
+		filePackets++;
+
+		return true;
+	}
+
+	private void recordFailure(IOException e) {
+		synchronized (failures) {
+			failures.add(e);
+		}
+	}
+
+	/**
+	 * Capture thread, swaps in the pre-opened writer and hands the finished one
+	 * to the background thread.
+	 */
+	private void rotate() {
+		if (!next.isDone())
+			rotationStalls.incrementAndGet();
+
+		final AsyncCaptureWriter following;
+		try {
+			following = next.join();
+		} catch (RuntimeException e) {
+			// Pre-open failed, keep writing to the current file and try again
+			preOpen();
+			return;
+		}
+
+		final AsyncCaptureWriter done = current;
+		current = following;
+		background.execute(() -> finish(done));
+		preOpen();
+
+		fileBytes = 0;
+		filePackets = 0;
+		fileOpenedNanos = System.nanoTime();
+		rotations.incrementAndGet();
+	}
+
+	/**
+	 * Returns the number of rotations performed.
+	 *
+	 * @return the rotation count
+	 */
+	public long rotationCount() {
+		return rotations.get();
+	}
+
+	/**
+	 * Returns the number of rotations where the capture thread had to wait for
+	 * the next file to be opened.
+	 *
+	 * @return the rotation stall count
+	 */
+	public long rotationStalls() {
+		return rotationStalls.get();
+	}
+
+	/**
+	 * Rotates after the current file has been open for a wall-clock duration.
+	 *
+	 * @param duration the maximum file duration, or null for unlimited
+	 * @return this recorder for method chaining
+	 */
+	public RotatingRecorder setMaxFileDuration(Duration duration) {
+		this.maxFileNanos = (duration == null) ? 0 : duration.toNanos();
+		return this;
+	}
+
+	/**
+	 * Rotates before a record would grow the current file past a size.
+	 *
+	 * @param bytes the maximum file size in bytes, or 0 for unlimited
+	 * @return this recorder for method chaining
+	 */
+	public RotatingRecorder setMaxFileSize(long bytes) {
+		this.maxFileSize = bytes;
+		return this;
+	}
+
+	/**
+	 * Rotates after a number of packets.
+	 *
+	 * @param count the maximum packets per file, or 0 for unlimited
+	 * @return this recorder for method chaining
+	 */
+	public RotatingRecorder setMaxPacketCount(long count) {
+		this.maxPacketCount = count;
+		return this;
+	}
+
+	/**
+	 * Rotates when packet timestamps cross an interval boundary, for example
+	 * every 5 minutes of capture time aligned to the epoch. Unlike a wall-clock
+	 * duration this is reproducible when re-recording an offline capture.
+	 *
+	 * @param interval the packet time interval, whole seconds, or null for
+	 *                 unlimited
+	 * @return this recorder for method chaining
+	 */
+	public RotatingRecorder setPacketTimeInterval(Duration interval) {
+		this.packetInterval = (interval == null) ? 0 : Math.max(1, interval.toSeconds());
+		return this;
+	}
+
+	/**
+	 * Sets a retention budget for finished files. Whenever a file is finished,
+	 * the oldest files are deleted until both limits are met.
+	 *
+	 * @param maxTotalBytes the maximum total size of finished files, or 0 for
+	 *                      unlimited
+	 * @param maxFiles      the maximum number of finished files, or 0 for
+	 *                      unlimited
+	 * @return this recorder for method chaining
+	 */
+	public RotatingRecorder setRetention(long maxTotalBytes, int maxFiles) {
+		this.retentionBytes = maxTotalBytes;
+		this.retentionFiles = maxFiles;
+		return this;
+	}
+
+	@Override
+	public String toString() {
+		return "RotatingRecorder[%s/%s-*%s, current=%s, rotations=%d, stalls=%d, deleted=%d, drops=%d]"
+				.formatted(directory, prefix, format.extension(), currentFile(), rotationCount(),
+						rotationStalls(), deletedFiles(), dropCount());
+	}
+}
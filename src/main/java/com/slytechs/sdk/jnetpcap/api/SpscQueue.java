@@ -0,0 +1,189 @@
+/*
+ * Copyright 2005-2025 Sly Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.slytechs.sdk.jnetpcap.api;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Objects;
+
+/**
+ * A bounded, lock-free, single-producer single-consumer queue.
+ *
+ * <p>
+ * Exactly one thread may call {@link #offer(Object)} and exactly one thread may
+ * call {@link #poll()}. Under that contract elements are delivered in FIFO
+ * order with no locks and no allocation. Queue depth and drop counters may be
+ * read from any thread.
+ * </p>
+ *
+ * @param <E> the element type
+ * @author Mark Bednarczyk [mark@slytechs.com]
+ * @author Sly Technologies Inc.
+ */
+public final class SpscQueue<E> {
+
+	private static final VarHandle HEAD;
+	private static final VarHandle TAIL;
+	private static final VarHandle DROPS;
+	private static final VarHandle SLOTS = MethodHandles.arrayElementVarHandle(Object[].class);
+
+	static {
+		try {
+			var lookup = MethodHandles.lookup();
+			HEAD = lookup.findVarHandle(SpscQueue.class, "head", long.class);
+			TAIL = lookup.findVarHandle(SpscQueue.class, "tail", long.class);
+			DROPS = lookup.findVarHandle(SpscQueue.class, "drops", long.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private final Object[] slots;
+	private final int mask;
+
+	/* Producer owned */
+	@SuppressWarnings("unused") // Accessed via VarHandle
+	private long head;
+	private long cachedTail;
+	@SuppressWarnings("unused") // Accessed via VarHandle
+	private long drops;
+
+	/* Consumer owned */
+	@SuppressWarnings("unused") // Accessed via VarHandle
+	private long tail;
+	private long cachedHead;
+
+	/**
+	 * Instantiates a new queue.
+	 *
+	 * @param capacity the minimum capacity, rounded up to a power of 2
+	 */
+	public SpscQueue(int capacity) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("capacity must be positive: " + capacity);
+
+		int size = (capacity == 1) ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+
+		this.slots = new Object[size];
+		this.mask = size - 1;
+	}
+
+	/**
+	 * Returns the queue capacity.
+	 *
+	 * @return the capacity
+	 */
+	public int capacity() {
+		return slots.length;
+	}
+
+	/**
+	 * Returns the number of elements rejected because the queue was full, as
+	 * recorded by {@link #offer(Object)}.
+	 *
+	 * @return the drop count
+	 */
+	public long drops() {
+		return (long) DROPS.getOpaque(this);
+	}
+
+	/**
+	 * Checks if the queue has no room for another element. Producer thread only.
+	 *
+	 * @return true if full
+	 */
+	public boolean isFull() {
+		long head = (long) HEAD.getOpaque(this);
+
+		if (head - cachedTail < slots.length)
+			return false;
+
+		cachedTail = (long) TAIL.getAcquire(this);
+
+		return head - cachedTail >= slots.length;
+	}
+
+	/**
+	 * Enqueues an element. Producer thread only.
+	 *
+	 * @param e the element
+	 * @return true if enqueued, false if the queue is full and the element was
+	 *         counted as dropped
+	 */
+	public boolean offer(E e) {
+		Objects.requireNonNull(e);
+
+		if (isFull()) {
+			recordDrop();
+			return false;
+		}
+
+		long head = (long) HEAD.getOpaque(this);
+		SLOTS.set(slots, (int) head & mask, e);
+		HEAD.setRelease(this, head + 1);
+
+		return true;
+	}
+
+	/**
+	 * Dequeues the next element. Consumer thread only.
+	 *
+	 * @return the element, or null if the queue is empty
+	 */
+	@SuppressWarnings("unchecked")
+	public E poll() {
+		long tail = (long) TAIL.getOpaque(this);
+
+		if (tail == cachedHead) {
+			cachedHead = (long) HEAD.getAcquire(this);
+
+			if (tail == cachedHead)
+				return null;
+		}
+
+		int index = (int) tail & mask;
+		E e = (E) SLOTS.get(slots, index);
+		SLOTS.set(slots, index, null);
+		TAIL.setRelease(this, tail + 1);
+
+		return e;
+	}
+
+	/**
+	 * Counts an element that the producer discarded without offering it, for
+	 * example because the queue was found full beforehand. Producer thread only.
+	 */
+	public void recordDrop() {
+		DROPS.setOpaque(this, (long) DROPS.getOpaque(this) + 1);
+	}
+
+	/**
+	 * Returns the approximate number of queued elements. May be called from any
+	 * thread.
+	 *
+	 * @return the queue depth
+	 */
+	public int size() {
+		long size = (long) HEAD.getAcquire(this) - (long) TAIL.getAcquire(this);
+
+		return (int) Math.max(0, Math.min(size, slots.length));
+	}
+
+	@Override
+	public String toString() {
+		return "SpscQueue[size=%d, capacity=%d, drops=%d]".formatted(size(), capacity(), drops());
+	}
+}
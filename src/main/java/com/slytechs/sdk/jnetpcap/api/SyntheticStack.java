@@ -0,0 +1,81 @@
+/*
+ * Copyright 2005-2025 Sly Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.slytechs.sdk.jnetpcap.api;
+
+/**
+ * Protocol stacks of the packets written by a {@link CaptureGenerator}. Every
+ * stack starts with an Ethernet II header.
+ *
+ * @author Mark Bednarczyk [mark@slytechs.com]
+ * @author Sly Technologies Inc.
+ * @see CaptureGenerator#addStack(SyntheticStack, int)
+ */
+public enum SyntheticStack {
+
+	/** Ethernet / IPv4 / TCP */
+	IP4_TCP(false, 0, 4, true),
+
+	/** Ethernet / IPv4 / UDP */
+	IP4_UDP(false, 0, 4, false),
+
+	/** Ethernet / IPv6 / TCP */
+	IP6_TCP(false, 0, 6, true),
+
+	/** Ethernet / IPv6 / UDP */
+	IP6_UDP(false, 0, 6, false),
+
+	/** Ethernet / 802.1Q VLAN / IPv4 / TCP */
+	VLAN_IP4_TCP(true, 0, 4, true),
+
+	/** Ethernet / 802.1Q VLAN / IPv6 / UDP */
+	VLAN_IP6_UDP(true, 0, 6, false),
+
+	/** Ethernet / IPv4 / GRE / IPv4 / TCP */
+	GRE_IP4_TCP(false, SyntheticStack.IPPROTO_GRE, 4, true),
+
+	/** Ethernet / IPv4 / IPv6 / UDP, a 6in4 tunnel */
+	SIT_IP6_UDP(false, SyntheticStack.IPPROTO_IPV6, 6, false);
+
+	static final int IPPROTO_GRE = 47;
+	static final int IPPROTO_IPV6 = 41;
+
+	final boolean vlan;
+	final int tunnelProtocol;
+	final int ipVersion;
+	final boolean tcp;
+	final int headerLength;
+
+	SyntheticStack(boolean vlan, int tunnelProtocol, int ipVersion, boolean tcp) {
+		this.vlan = vlan;
+		this.tunnelProtocol = tunnelProtocol;
+		this.ipVersion = ipVersion;
+		this.tcp = tcp;
+		this.headerLength = 14
+				+ (vlan ? 4 : 0)
+				+ (tunnelProtocol == IPPROTO_GRE ? 24 : tunnelProtocol == IPPROTO_IPV6 ? 20 : 0)
+				+ (ipVersion == 4 ? 20 : 40)
+				+ (tcp ? 20 : 8);
+	}
+
+	/**
+	 * Returns the length of all headers, the smallest frame of this stack.
+	 *
+	 * @return the header length in bytes
+	 */
+	public int headerLength() {
+		return headerLength;
+	}
+}
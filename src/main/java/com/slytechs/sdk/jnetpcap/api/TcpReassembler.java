@@ -0,0 +1,983 @@
+/*
+ * Copyright 2005-2025 Sly Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.slytechs.sdk.jnetpcap.api;
+
+import static com.slytechs.sdk.jnetpcap.api.HeaderIndex.*;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import com.slytechs.sdk.jnetpcap.api.PacketHandler.OfPacketConsumer;
+import com.slytechs.sdk.protocol.core.Packet;
+
+/**
+ * A pipeline stage which reconstructs the byte streams of TCP connections, in
+ * both directions, and delivers them in order to a stream handler.
+ *
+ * <p>
+ * Connections are keyed by addresses and ports, and bookkept in primitive
+ * arrays sized once for the connection capacity. Segments which continue a
+ * stream are delivered straight from the packet as a zero-copy view, so in
+ * order traffic is never copied. Segments which arrive ahead of a hole are
+ * copied into fixed size chunks of one off-heap pool and held, sorted by
+ * sequence number, until the hole fills. Retransmitted data is dropped, and
+ * where held segments overlap, the data received first is kept. No objects are
+ * allocated per segment.
+ * </p>
+ *
+ * <p>
+ * Memory is bounded by a global budget for held data and by a limit per
+ * stream. When a segment can not be held within either, the stream gives up
+ * waiting for the holes before it: held data is delivered with the holes
+ * reported as gaps, and the stream continues from the segment. Streams also
+ * give up on their holes when their connection closes. A connection closes
+ * when both sides' FINs are reached, on a RST, when idle for the timeout, by
+ * packet time, or oldest first when the table is full.
+ * </p>
+ *
+ * <pre>{@code
+ * try (TcpReassembler tcp = pcap.newTcpReassembler(1_000_000, 256 * 1024 * 1024, 1024 * 1024,
+ * 		Duration.ofMinutes(2), (connection, direction, data) -> parse(connection.id(), direction, data))) {
+ *
+ * 	pcap.loop(-1, tcp);
+ * }
+ * }</pre>
+ *
+ * <p>
+ * A connection's {@link Connection#id()} is stable while it is open, and may
+ * index the handler's own per-connection state. Not thread safe, a reassembler
+ * belongs to the capture thread which feeds it. Packet timestamps are in
+ * {@link #timestampUnit()}, the handle's timestamp precision when created by
+ * {@link NetPcap}.
+ * </p>
+ *
+ * @author Mark Bednarczyk [mark@slytechs.com]
+ * @author Sly Technologies Inc.
+ * @see NetPcap#newTcpReassembler(int, long, int, Duration, StreamHandler)
+ */
+public final class TcpReassembler implements OfPacketConsumer, AutoCloseable {
+
+	/**
+	 * Why a connection closed.
+	 */
+	public enum CloseReason {
+
+		/** Both sides sent a FIN and all data up to it was delivered. */
+		FIN,
+
+		/** Either side sent a RST. */
+		RESET,
+
+		/** No segment was seen for the idle timeout. */
+		IDLE_TIMEOUT,
+
+		/** The connection table was full and this was its oldest connection. */
+		EVICTED,
+
+		/** The reassembler was flushed or closed. */
+		FLUSHED
+	}
+
+	/**
+	 * The direction of a stream within its connection.
+	 */
+	public enum Direction {
+
+		/** Data sent by the client, the side which sent the first SYN. */
+		CLIENT_TO_SERVER,
+
+		/** Data sent by the server. */
+		SERVER_TO_CLIENT
+	}
+
+	/**
+	 * Receives the reconstructed streams. The handler must not feed the
+	 * reassembler from within its calls.
+	 */
+	@FunctionalInterface
+	public interface StreamHandler {
+
+		/**
+		 * Called when a stream is closed, after its remaining data was delivered.
+		 * The connection view is only valid for the duration of the call.
+		 *
+		 * @param connection the closed connection
+		 * @param reason     why the connection closed
+		 */
+		default void streamClosed(Connection connection, CloseReason reason) {}
+
+		/**
+		 * Called with the next bytes of a stream. The data is a view of the packet
+		 * or of the reassembler's buffers, valid only for the duration of the call;
+		 * copy out any bytes which must be kept.
+		 *
+		 * @param connection the connection
+		 * @param direction  the direction of the stream
+		 * @param data       the next contiguous bytes of the stream
+		 */
+		void streamData(Connection connection, Direction direction, MemorySegment data);
+
+		/**
+		 * Called when a stream skips bytes which were never received, before the
+		 * data following them is delivered.
+		 *
+		 * @param connection the connection
+		 * @param direction  the direction of the stream
+		 * @param length     the number of bytes skipped
+		 */
+		default void streamGap(Connection connection, Direction direction, int length) {}
+	}
+
+	/**
+	 * A view of one open connection.
+	 */
+	public final class Connection {
+
+		private int slot;
+
+		private Connection() {}
+
+		private byte[] address(long hi, long lo) {
+			if (version[slot] == 4)
+				return new byte[] { (byte) (lo >>> 24), (byte) (lo >>> 16), (byte) (lo >>> 8), (byte) lo };
+
+			final byte[] address = new byte[16];
+			for (int i = 0; i < 8; i++) {
+				address[i] = (byte) (hi >>> (56 - 8 * i));
+				address[i + 8] = (byte) (lo >>> (56 - 8 * i));
+			}
+
+			return address;
+		}
+
+		/**
+		 * Returns the number of bytes of a stream held out of order.
+		 *
+		 * @param direction the direction of the stream
+		 * @return the held byte count
+		 */
+		public int bufferedBytes(Direction direction) {
+			return buffered[stream(direction)];
+		}
+
+		/**
+		 * Returns the client's IP address.
+		 *
+		 * @return the address, 4 or 16 bytes
+		 */
+		public byte[] clientAddress() {
+			return address(clientHi[slot], clientLo[slot]);
+		}
+
+		/**
+		 * Returns the client's port.
+		 *
+		 * @return the port
+		 */
+		public int clientPort() {
+			return ports[slot] >>> 16;
+		}
+
+		/**
+		 * Returns the number of bytes of a stream delivered so far.
+		 *
+		 * @param direction the direction of the stream
+		 * @return the delivered byte count
+		 */
+		public long deliveredBytes(Direction direction) {
+			return delivered[stream(direction)];
+		}
+
+		/**
+		 * Returns the timestamp of the connection's first segment.
+		 *
+		 * @return the timestamp in the reassembler's timestamp unit
+		 */
+		public long firstTimestamp() {
+			return firstSeen[slot];
+		}
+
+		/**
+		 * Returns the connection's slot, unique among open connections and less
+		 * than the reassembler's capacity.
+		 *
+		 * @return the connection id
+		 */
+		public int id() {
+			return slot;
+		}
+
+		/**
+		 * Returns the timestamp of the connection's last segment.
+		 *
+		 * @return the timestamp in the reassembler's timestamp unit
+		 */
+		public long lastTimestamp() {
+			return lastSeen[slot];
+		}
+
+		/**
+		 * Returns the server's IP address.
+		 *
+		 * @return the address, 4 or 16 bytes
+		 */
+		public byte[] serverAddress() {
+			return address(serverHi[slot], serverLo[slot]);
+		}
+
+		/**
+		 * Returns the server's port.
+		 *
+		 * @return the port
+		 */
+		public int serverPort() {
+			return ports[slot] & 0xFFFF;
+		}
+
+		private int stream(Direction direction) {
+			return (slot << 1) | direction.ordinal();
+		}
+
+		@Override
+		public String toString() {
+			return "Connection[id=%d %s:%d > %s:%d, delivered=%d/%d, buffered=%d/%d]".formatted(
+					slot,
+					FlowTable.format(clientAddress()), clientPort(),
+					FlowTable.format(serverAddress()), serverPort(),
+					deliveredBytes(Direction.CLIENT_TO_SERVER), deliveredBytes(Direction.SERVER_TO_CLIENT),
+					bufferedBytes(Direction.CLIENT_TO_SERVER), bufferedBytes(Direction.SERVER_TO_CLIENT));
+		}
+
+		/**
+		 * Returns the IP version.
+		 *
+		 * @return 4 or 6
+		 */
+		public int version() {
+			return version[slot];
+		}
+	}
+
+	/** Size of a held segment data chunk in bytes. */
+	public static final int CHUNK_SIZE = 2048;
+
+	private static final int MAX_CONNECTIONS = 1 << 26;
+	private static final int NONE = -1;
+	private static final Direction[] DIRECTIONS = Direction.values();
+
+	/* TCP flags */
+	private static final int FIN = 0x01;
+	private static final int SYN = 0x02;
+	private static final int RST = 0x04;
+	private static final int ACK = 0x10;
+
+	/* Stream states */
+	private static final byte HAS_SEQ = 0x01;
+	private static final byte FIN_SEEN = 0x02;
+	private static final byte CLOSED = 0x04;
+
+	private final int capacity;
+	private final int streamLimit;
+	private final long idleTimeout;
+	private final TimeUnit timestampUnit;
+	private final int linkType;
+	private final StreamHandler handler;
+	private final HeaderIndex index = new HeaderIndex();
+	private final Connection connection = new Connection();
+
+	/* Off-heap pool of held segment data */
+	private final Arena arena;
+	private final MemorySegment chunks;
+
+	/* Per connection state, indexed by connection slot */
+	private final long[] clientHi;
+	private final long[] clientLo;
+	private final long[] serverHi;
+	private final long[] serverLo;
+	private final int[] ports;
+	private final byte[] version;
+	private final long[] firstSeen;
+	private final long[] lastSeen;
+	private final int[] bucketNext;
+	private final int[] olderNext;
+	private final int[] olderPrev;
+
+	/* Per stream state, indexed by connection slot * 2 + direction */
+	private final int[] nextSeq;
+	private final int[] finSeq;
+	private final int[] head;
+	private final int[] buffered;
+	private final byte[] state;
+	private final long[] delivered;
+
+	/* Per chunk state, held chunks are linked in sequence order per stream */
+	private final int[] chunkSeq;
+	private final int[] chunkLength;
+	private final int[] chunkNext;
+
+	private final int[] buckets;
+	private final int[] freeConnections;
+	private final int[] freeChunks;
+	private int freeConnectionCount;
+	private int freeChunkCount;
+	private int oldest = NONE;
+	private int newest = NONE;
+
+	private long createdCount;
+	private long closedCount;
+	private long evictedCount;
+	private long deliveredBytes;
+	private long gapCount;
+	private long outOfOrderCount;
+	private long retransmitCount;
+	private long untrackedCount;
+
+	/**
+	 * Reserves the connection table and the segment pool.
+	 *
+	 * @param capacity      the maximum number of concurrent connections
+	 * @param memoryBudget  the memory for out of order segment data in bytes
+	 * @param streamLimit   the maximum out of order data held per stream in bytes
+	 * @param idleTimeout   the time without segments after which a connection
+	 *                      closes
+	 * @param timestampUnit the unit of the packet timestamps
+	 * @param linkType      the pcap link type (DLT) of the packets
+	 * @param handler       receives the reconstructed streams
+	 */
+	TcpReassembler(int capacity, long memoryBudget, int streamLimit, Duration idleTimeout, TimeUnit timestampUnit,
+			int linkType, StreamHandler handler) {
+		if (capacity <= 0 || capacity > MAX_CONNECTIONS)
+			throw new IllegalArgumentException("capacity must be positive and at most %d: %d"
+					.formatted(MAX_CONNECTIONS, capacity));
+		if (memoryBudget < CHUNK_SIZE)
+			throw new IllegalArgumentException("memory budget must hold at least one %d byte chunk: %d"
+					.formatted(CHUNK_SIZE, memoryBudget));
+		if (streamLimit <= 0)
+			throw new IllegalArgumentException("stream limit must be positive: " + streamLimit);
+		if (idleTimeout.isNegative() || idleTimeout.isZero())
+			throw new IllegalArgumentException("idle timeout must be positive: " + idleTimeout);
+
+		final int chunkCount = (int) Math.min(memoryBudget / CHUNK_SIZE, Integer.MAX_VALUE - 8);
+		final int streams = capacity * 2;
+
+		this.capacity = capacity;
+		this.streamLimit = streamLimit;
+		this.timestampUnit = Objects.requireNonNull(timestampUnit, "timestampUnit");
+		this.idleTimeout = timestampUnit.convert(idleTimeout);
+		this.linkType = linkType;
+		this.handler = Objects.requireNonNull(handler, "handler");
+
+		this.arena = Arena.ofShared();
+		this.chunks = arena.allocate((long) chunkCount * CHUNK_SIZE, 64);
+
+		this.clientHi = new long[capacity];
+		this.clientLo = new long[capacity];
+		this.serverHi = new long[capacity];
+		this.serverLo = new long[capacity];
+		this.ports = new int[capacity];
+		this.version = new byte[capacity];
+		this.firstSeen = new long[capacity];
+		this.lastSeen = new long[capacity];
+		this.bucketNext = new int[capacity];
+		this.olderNext = new int[capacity];
+		this.olderPrev = new int[capacity];
+
+		this.nextSeq = new int[streams];
+		this.finSeq = new int[streams];
+		this.head = new int[streams];
+		this.buffered = new int[streams];
+		this.state = new byte[streams];
+		this.delivered = new long[streams];
+
+		this.chunkSeq = new int[chunkCount];
+		this.chunkLength = new int[chunkCount];
+		this.chunkNext = new int[chunkCount];
+
+		this.buckets = new int[Integer.highestOneBit(capacity * 2 - 1) << 1];
+		this.freeConnections = new int[capacity];
+		this.freeChunks = new int[chunkCount];
+
+		Arrays.fill(buckets, NONE);
+
+		for (int c = capacity - 1; c >= 0; c--)
+			freeConnections[freeConnectionCount++] = c;
+
+		for (int c = chunkCount - 1; c >= 0; c--)
+			freeChunks[freeChunkCount++] = c;
+	}
+
+	/**
+	 * Reassembles a packet if it is a TCP segment. Capture thread only.
+	 *
+	 * @param packet the packet
+	 */
+	@Override
+	public void accept(Packet packet) {
+		process(packet.view().segment(), packet.view().start(), packet.captureLength(), packet.timestamp());
+	}
+
+	private int allocateConnection() {
+		if (freeConnectionCount == 0) {
+			evictedCount++;
+			close(oldest, CloseReason.EVICTED);
+		}
+
+		return freeConnections[--freeConnectionCount];
+	}
+
+	private int bucket(long aHi, long aLo, int aPort, long bHi, long bLo, int bPort) {
+
+		/* Symmetric in the two endpoints, so both directions land in the same bucket */
+		final long h = FlowHash.mix(aHi ^ FlowHash.mix(aLo ^ aPort)) + FlowHash.mix(bHi ^ FlowHash.mix(bLo ^ bPort));
+
+		return (int) (h ^ (h >>> 32)) & (buckets.length - 1);
+	}
+
+	/**
+	 * Returns the number of bytes of out of order data held, counting whole
+	 * chunks.
+	 *
+	 * @return the bytes in use
+	 */
+	public long bytesInUse() {
+		return (long) (freeChunks.length - freeChunkCount) * CHUNK_SIZE;
+	}
+
+	/**
+	 * Returns the maximum number of concurrent connections.
+	 *
+	 * @return the capacity
+	 */
+	public int capacity() {
+		return capacity;
+	}
+
+	/**
+	 * Closes all connections and frees the segment pool.
+	 */
+	@Override
+	public void close() {
+		if (!arena.scope().isAlive())
+			return;
+
+		flush();
+		arena.close();
+	}
+
+	/**
+	 * Delivers the rest of a connection's streams, reports it closed and
+	 * releases its slot.
+	 */
+	private void close(int c, CloseReason reason) {
+		skipAll(c, c << 1);
+		skipAll(c, (c << 1) | 1);
+
+		closedCount++;
+		connection.slot = c;
+		handler.streamClosed(connection, reason);
+
+		/* Unlink from the hash chain */
+		final int b = bucket(clientHi[c], clientLo[c], ports[c] >>> 16, serverHi[c], serverLo[c], ports[c] & 0xFFFF);
+		if (buckets[b] == c) {
+			buckets[b] = bucketNext[c];
+		} else {
+			int p = buckets[b];
+			while (bucketNext[p] != c)
+				p = bucketNext[p];
+			bucketNext[p] = bucketNext[c];
+		}
+
+		unlinkAge(c);
+		freeConnections[freeConnectionCount++] = c;
+	}
+
+	/**
+	 * Returns the number of connections closed, including evicted ones.
+	 *
+	 * @return the closed connection count
+	 */
+	public long closedCount() {
+		return closedCount;
+	}
+
+	/**
+	 * Returns the number of connections currently open.
+	 *
+	 * @return the connection count
+	 */
+	public int connectionCount() {
+		return capacity - freeConnectionCount;
+	}
+
+	/**
+	 * Returns the number of connections opened.
+	 *
+	 * @return the created connection count
+	 */
+	public long createdCount() {
+		return createdCount;
+	}
+
+	private void deliver(int c, int s, MemorySegment data) {
+		delivered[s] += data.byteSize();
+		deliveredBytes += data.byteSize();
+
+		connection.slot = c;
+		handler.streamData(connection, DIRECTIONS[s & 1], data);
+	}
+
+	/**
+	 * Returns the number of stream bytes delivered.
+	 *
+	 * @return the delivered byte count
+	 */
+	public long deliveredBytes() {
+		return deliveredBytes;
+	}
+
+	/**
+	 * Delivers the held chunks which continue a stream, releasing them.
+	 */
+	private void drain(int c, int s) {
+		int chunk;
+		while ((chunk = head[s]) != NONE && chunkSeq[chunk] - nextSeq[s] <= 0) {
+			final int skip = nextSeq[s] - chunkSeq[chunk];
+			final int length = chunkLength[chunk];
+
+			head[s] = chunkNext[chunk];
+			buffered[s] -= length;
+
+			if (skip < length) {
+				nextSeq[s] = chunkSeq[chunk] + length;
+				deliver(c, s, chunks.asSlice((long) chunk * CHUNK_SIZE + skip, length - skip));
+			}
+
+			freeChunks[freeChunkCount++] = chunk;
+		}
+	}
+
+	/**
+	 * Returns the number of connections closed because the table was full.
+	 *
+	 * @return the evicted connection count
+	 */
+	public long evictedCount() {
+		return evictedCount;
+	}
+
+	/**
+	 * Closes all connections idle for the timeout at a point in time.
+	 *
+	 * @param now the current time in the timestamp unit
+	 * @return the number of connections closed
+	 */
+	public int expire(long now) {
+		int n = 0;
+		while (oldest != NONE && now - lastSeen[oldest] > idleTimeout) {
+			close(oldest, CloseReason.IDLE_TIMEOUT);
+			n++;
+		}
+
+		return n;
+	}
+
+	/**
+	 * Closes all connections, such as at the end of a capture.
+	 *
+	 * @return the number of connections closed
+	 */
+	public int flush() {
+		int n = 0;
+		while (oldest != NONE) {
+			close(oldest, CloseReason.FLUSHED);
+			n++;
+		}
+
+		return n;
+	}
+
+	private void gap(int c, int s, int length) {
+		gapCount++;
+		connection.slot = c;
+		handler.streamGap(connection, DIRECTIONS[s & 1], length);
+	}
+
+	/**
+	 * Returns the number of gaps skipped in streams.
+	 *
+	 * @return the gap count
+	 */
+	public long gapCount() {
+		return gapCount;
+	}
+
+	/**
+	 * Looks up the stream a segment belongs to.
+	 *
+	 * @return the stream, or -1 if the connection is not open
+	 */
+	private int lookup(int bucket, long sHi, long sLo, int sPort, long dHi, long dLo, int dPort) {
+		final int forward = (sPort << 16) | dPort;
+		final int backward = (dPort << 16) | sPort;
+
+		for (int c = buckets[bucket]; c != NONE; c = bucketNext[c]) {
+			if (ports[c] == forward && clientLo[c] == sLo && serverLo[c] == dLo
+					&& clientHi[c] == sHi && serverHi[c] == dHi)
+				return c << 1;
+
+			if (ports[c] == backward && clientLo[c] == dLo && serverLo[c] == sLo
+					&& clientHi[c] == dHi && serverHi[c] == sHi)
+				return (c << 1) | 1;
+		}
+
+		return NONE;
+	}
+
+	/**
+	 * Returns the size of the segment pool's off-heap memory.
+	 *
+	 * @return the memory size in bytes
+	 */
+	public long memorySize() {
+		return chunks.byteSize();
+	}
+
+	/**
+	 * Returns the number of segments which arrived ahead of a hole in their
+	 * stream.
+	 *
+	 * @return the out of order segment count
+	 */
+	public long outOfOrderCount() {
+		return outOfOrderCount;
+	}
+
+	/**
+	 * Reassembles a frame if it is a TCP segment.
+	 *
+	 * @param buffer        the buffer holding the frame
+	 * @param offset        the offset of the frame within the buffer
+	 * @param captureLength the number of frame bytes available
+	 * @param now           the frame timestamp in the timestamp unit
+	 * @return true if the segment was accounted to a connection
+	 */
+	boolean process(MemorySegment buffer, long offset, int captureLength, long now) {
+		expire(now);
+
+		index.index(buffer, offset, captureLength, linkType);
+		final int tcp = index.offset(TCP, 0);
+		if (tcp < 0) {
+			untrackedCount++;
+			return false;
+		}
+
+		/* The IP header carrying the segment is the nearest one before it */
+		int ip = NONE;
+		boolean v6 = false;
+		for (int i = 0; i < index.count(IP4); i++) {
+			final int o = index.offset(IP4, i);
+			if (o < tcp && o > ip)
+				ip = o;
+		}
+		for (int i = 0; i < index.count(IP6); i++) {
+			final int o = index.offset(IP6, i);
+			if (o < tcp && o > ip) {
+				ip = o;
+				v6 = true;
+			}
+		}
+
+		/* A zero IP length is left by segmentation offload, the segment then ends with the capture */
+		final int ipLength = v6 ? index.u16(ip + 4) : index.u16(ip + 2);
+		final int ipEnd = (ipLength == 0) ? captureLength : ip + ipLength + (v6 ? 40 : 0);
+		final int payloadStart = tcp + ((index.u8(tcp + 12) >>> 4) << 2);
+		if (payloadStart - tcp < 20 || payloadStart > ipEnd) {
+			untrackedCount++;
+			return false;
+		}
+
+		final int length = ipEnd - payloadStart;
+		final int captured = Math.max(0, Math.min(length, captureLength - payloadStart));
+		final int flags = index.u8(tcp + 13);
+		final int seq = (int) index.u32(tcp + 4);
+		final int sPort = index.u16(tcp);
+		final int dPort = index.u16(tcp + 2);
+		final long sHi = v6 ? index.u64(ip + 8) : 0;
+		final long sLo = v6 ? index.u64(ip + 16) : index.u32(ip + 12);
+		final long dHi = v6 ? index.u64(ip + 24) : 0;
+		final long dLo = v6 ? index.u64(ip + 32) : index.u32(ip + 16);
+
+		final int bucket = bucket(sHi, sLo, sPort, dHi, dLo, dPort);
+		int s = lookup(bucket, sHi, sLo, sPort, dHi, dLo, dPort);
+		int c;
+
+		if (s == NONE) {
+
+			/* Only a SYN or data opens a connection, not a stray ACK or RST */
+			if ((flags & RST) != 0 || ((flags & SYN) == 0 && length == 0)) {
+				untrackedCount++;
+				return false;
+			}
+
+			/* A SYN-ACK is sent by the server, anything else is taken as the client's */
+			final boolean fromServer = (flags & (SYN | ACK)) == (SYN | ACK);
+
+			c = allocateConnection();
+			clientHi[c] = fromServer ? dHi : sHi;
+			clientLo[c] = fromServer ? dLo : sLo;
+			serverHi[c] = fromServer ? sHi : dHi;
+			serverLo[c] = fromServer ? sLo : dLo;
+			ports[c] = fromServer ? (dPort << 16) | sPort : (sPort << 16) | dPort;
+			version[c] = (byte) (v6 ? 6 : 4);
+			firstSeen[c] = now;
+
+			for (int d = c << 1; d <= ((c << 1) | 1); d++) {
+				head[d] = NONE;
+				buffered[d] = 0;
+				state[d] = 0;
+				delivered[d] = 0;
+			}
+
+			bucketNext[c] = buckets[bucket];
+			buckets[bucket] = c;
+			createdCount++;
+
+			s = (c << 1) | (fromServer ? 1 : 0);
+
+		} else {
+			c = s >>> 1;
+			unlinkAge(c);
+		}
+
+		lastSeen[c] = now;
+		olderPrev[c] = newest;
+		olderNext[c] = NONE;
+		if (newest != NONE)
+			olderNext[newest] = c;
+		else
+			oldest = c;
+		newest = c;
+
+		if ((flags & RST) != 0) {
+			close(c, CloseReason.RESET);
+			return true;
+		}
+
+		/* Data follows the SYN's sequence number */
+		int dataSeq = seq;
+		if ((flags & SYN) != 0) {
+			dataSeq = seq + 1;
+			if ((state[s] & HAS_SEQ) == 0) {
+				nextSeq[s] = dataSeq;
+				state[s] |= HAS_SEQ;
+			}
+
+		} else if ((state[s] & HAS_SEQ) == 0) {
+			if (length == 0 && (flags & FIN) == 0)
+				return true;
+
+			nextSeq[s] = seq; // Picked up mid-stream
+			state[s] |= HAS_SEQ;
+		}
+
+		if ((flags & FIN) != 0 && (state[s] & FIN_SEEN) == 0) {
+			finSeq[s] = dataSeq + length;
+			state[s] |= FIN_SEEN;
+		}
+
+		if (captured > 0)
+			segment(c, s, buffer, offset + payloadStart, dataSeq, captured);
+
+		/* Bytes cut off by the snap length will never arrive, skip them once reached */
+		if (captured < length && nextSeq[s] - (dataSeq + captured) >= 0)
+			skipTo(c, s, dataSeq + length);
+
+		if ((state[s] & (FIN_SEEN | CLOSED)) == FIN_SEEN && nextSeq[s] - finSeq[s] >= 0) {
+			state[s] |= CLOSED;
+			if ((state[s ^ 1] & CLOSED) != 0)
+				close(c, CloseReason.FIN);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Returns the number of segments carrying only data already delivered.
+	 *
+	 * @return the retransmitted segment count
+	 */
+	public long retransmitCount() {
+		return retransmitCount;
+	}
+
+	/**
+	 * Delivers a segment's data if it continues its stream, or holds it until
+	 * the hole before it fills.
+	 */
+	private void segment(int c, int s, MemorySegment buffer, long at, int seq, int length) {
+		final int skip = nextSeq[s] - seq;
+
+		if (skip >= length) {
+			retransmitCount++;
+			return;
+		}
+
+		if (skip >= 0) {
+			nextSeq[s] = seq + length;
+			deliver(c, s, buffer.asSlice(at + skip, length - skip));
+			drain(c, s);
+			return;
+		}
+
+		outOfOrderCount++;
+		if (!store(s, buffer, at, seq, length)) {
+
+			/* Out of memory for this stream, give up on the holes before the segment */
+			skipTo(c, s, seq);
+			segment(c, s, buffer, at, seq, length);
+		}
+	}
+
+	/**
+	 * Delivers all held chunks of a stream, reporting the holes between them.
+	 */
+	private void skipAll(int c, int s) {
+		int chunk;
+		while ((chunk = head[s]) != NONE) {
+			if (chunkSeq[chunk] - nextSeq[s] > 0) {
+				gap(c, s, chunkSeq[chunk] - nextSeq[s]);
+				nextSeq[s] = chunkSeq[chunk];
+			}
+
+			drain(c, s);
+		}
+	}
+
+	/**
+	 * Advances a stream to a sequence number, delivering the held chunks before
+	 * it and reporting the holes between them.
+	 */
+	private void skipTo(int c, int s, int seq) {
+		int chunk;
+		while ((chunk = head[s]) != NONE && chunkSeq[chunk] - seq < 0) {
+			if (chunkSeq[chunk] - nextSeq[s] > 0) {
+				gap(c, s, chunkSeq[chunk] - nextSeq[s]);
+				nextSeq[s] = chunkSeq[chunk];
+			}
+
+			drain(c, s);
+		}
+
+		if (seq - nextSeq[s] > 0) {
+			gap(c, s, seq - nextSeq[s]);
+			nextSeq[s] = seq;
+			drain(c, s);
+		}
+	}
+
+	/**
+	 * Copies the parts of a segment not already held into chunks, in sequence
+	 * order.
+	 *
+	 * @return false if the stream limit or the pool ran out
+	 */
+	private boolean store(int s, MemorySegment buffer, long at, int seq, int length) {
+		int prev = NONE;
+		int next = head[s];
+		int pos = 0;
+
+		while (pos < length) {
+			final int from = seq + pos;
+
+			while (next != NONE && chunkSeq[next] + chunkLength[next] - from <= 0) {
+				prev = next;
+				next = chunkNext[next];
+			}
+
+			/* Held data wins over the same bytes received again */
+			if (next != NONE && chunkSeq[next] - from <= 0) {
+				pos += chunkSeq[next] + chunkLength[next] - from;
+				continue;
+			}
+
+			int n = Math.min(length - pos, CHUNK_SIZE);
+			if (next != NONE)
+				n = Math.min(n, chunkSeq[next] - from);
+
+			if (buffered[s] + n > streamLimit || freeChunkCount == 0)
+				return false;
+
+			final int chunk = freeChunks[--freeChunkCount];
+			MemorySegment.copy(buffer, at + pos, chunks, (long) chunk * CHUNK_SIZE, n);
+			chunkSeq[chunk] = from;
+			chunkLength[chunk] = n;
+			chunkNext[chunk] = next;
+
+			if (prev == NONE)
+				head[s] = chunk;
+			else
+				chunkNext[prev] = chunk;
+
+			prev = chunk;
+			buffered[s] += n;
+			pos += n;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Returns the unit of the packet timestamps.
+	 *
+	 * @return the timestamp unit
+	 */
+	public TimeUnit timestampUnit() {
+		return timestampUnit;
+	}
+
+	@Override
+	public String toString() {
+		return "TcpReassembler[connections=%d, capacity=%d, created=%d, closed=%d, evicted=%d, delivered=%d, gaps=%d, inUse=%d/%d]"
+				.formatted(connectionCount(), capacity, createdCount, closedCount, evictedCount, deliveredBytes,
+						gapCount, bytesInUse(), memorySize());
+	}
+
+	private void unlinkAge(int c) {
+		if (olderPrev[c] != NONE)
+			olderNext[olderPrev[c]] = olderNext[c];
+		else
+			oldest = olderNext[c];
+
+		if (olderNext[c] != NONE)
+			olderPrev[olderNext[c]] = olderPrev[c];
+		else
+			newest = olderPrev[c];
+	}
+
+	/**
+	 * Returns the number of packets not accounted to a connection, because they
+	 * carry no TCP segment or neither open nor belong to one.
+	 *
+	 * @return the untracked packet count
+	 */
+	public long untrackedCount() {
+		return untrackedCount;
+	}
+}
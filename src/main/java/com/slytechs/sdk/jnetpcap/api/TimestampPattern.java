@@ -0,0 +1,39 @@
+/*
+ * Copyright 2005-2025 Sly Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.slytechs.sdk.jnetpcap.api;
+
+/**
+ * Spacing of the timestamps written by a {@link CaptureGenerator}. Every
+ * pattern averages the configured packet rate.
+ *
+ * @author Mark Bednarczyk [mark@slytechs.com]
+ * @author Sly Technologies Inc.
+ * @see CaptureGenerator#setTimestampPattern(TimestampPattern)
+ */
+public enum TimestampPattern {
+
+	/** Packets are evenly spaced. This is the default. */
+	CONSTANT,
+
+	/** Gaps are exponentially distributed, as for independent arrivals. */
+	POISSON,
+
+	/**
+	 * Packets arrive in bursts at ten times the average rate, separated by idle
+	 * gaps.
+	 */
+	BURSTY;
+}
@@ -31,6 +31,8 @@ module com.slytechs.sdk.jnetpcap.api {
 	requires transitive com.slytechs.sdk.protocol.core;
 	requires transitive com.slytechs.sdk.protocol.tcpip;
 	requires transitive com.slytechs.sdk.common;
+	requires transitive java.management;
+	requires jdk.jfr;
 	requires lexactivator;
 
 }
\ No newline at end of file
@@ -18,23 +18,51 @@
 package com.slytechs.sdk.jnetpcap.api;
 
 import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.*;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import com.slytechs.sdk.common.time.TimestampUnit;
 import com.slytechs.sdk.jnetpcap.PcapException;
 import com.slytechs.sdk.jnetpcap.api.NetPcap;
+import com.slytechs.sdk.jnetpcap.constant.PcapDlt;
+import com.slytechs.sdk.jnetpcap.constant.PcapTStampPrecision;
 import com.slytechs.sdk.protocol.core.Packet;
 import com.slytechs.sdk.protocol.core.PacketSettings;
 import com.slytechs.sdk.protocol.core.descriptor.DescriptorType;
@@ -74,175 +102,2335 @@ class NetPcapTest {
     }
     
     @Nested
-    @DisplayName("OpenOffline Tests")
-    class OpenOfflineTests {
+    @DisplayName("OpenOffline Tests")
+    class OpenOfflineTests {
+        
+        @Test
+        @DisplayName("Open pcap file with default settings")
+        void openOffline_defaultSettings() throws PcapException {
+            pcap = NetPcap.openOffline(HTTP_PCAP);
+            
+            assertNotNull(pcap);
+            assertTrue(pcap.isActivated());
+        }
+        
+        @Test
+        @DisplayName("Open pcap file with eager dissection")
+        void openOffline_eagerDissection() throws PcapException {
+            PacketSettings settings = new PacketSettings().dissect();
+            pcap = NetPcap.openOffline(HTTP_PCAP, settings);
+            
+            assertNotNull(pcap);
+            assertTrue(pcap.isActivated());
+        }
+        
+        @Test
+        @DisplayName("Open pcap file with on-demand dissection")
+        void openOffline_onDemandDissection() throws PcapException {
+            PacketSettings settings = new PacketSettings().dissectOnDemand();
+            pcap = NetPcap.openOffline(HTTP_PCAP, settings);
+            
+            assertNotNull(pcap);
+            assertTrue(pcap.isActivated());
+        }
+        
+        @Test
+        @DisplayName("Open pcap file with no dissection")
+        void openOffline_noDissection() throws PcapException {
+            PacketSettings settings = new PacketSettings().noDissection();
+            pcap = NetPcap.openOffline(HTTP_PCAP, settings);
+            
+            assertNotNull(pcap);
+            assertTrue(pcap.isActivated());
+        }
+        
+        @Test
+        @DisplayName("Open pcap file using File object")
+        void openOffline_fileObject() throws PcapException {
+            File file = new File(HTTP_PCAP);
+            pcap = NetPcap.openOffline(file);
+            
+            assertNotNull(pcap);
+            assertTrue(pcap.isActivated());
+        }
+        
+        @Test
+        @DisplayName("Open non-existent file throws exception")
+        void openOffline_nonExistentFile() {
+            assertThrows(PcapException.class, () -> {
+                NetPcap.openOffline("non_existent_file.pcap");
+            });
+        }
+    }
+    
+    @Nested
+    @DisplayName("Dispatch Tests")
+    class DispatchTests {
+        
+        @BeforeEach
+        void setUp() throws PcapException {
+            pcap = NetPcap.openOffline(HTTP_PCAP, new PacketSettings().dissect());
+        }
+        
+        @Test
+        @DisplayName("Dispatch single packet")
+        void dispatch_singlePacket() throws PcapException {
+            AtomicInteger count = new AtomicInteger(0);
+            
+            int result = pcap.dispatch(1, packet -> {
+                count.incrementAndGet();
+                assertNotNull(packet);
+            });
+            
+            assertEquals(1, count.get());
+            assertTrue(result >= 0);
+        }
+        
+        @Test
+        @DisplayName("Dispatch multiple packets")
+        void dispatch_multiplePackets() throws PcapException {
+            AtomicInteger count = new AtomicInteger(0);
+            
+            int result = pcap.dispatch(10, packet -> {
+                count.incrementAndGet();
+                assertNotNull(packet);
+            });
+            
+            assertTrue(count.get() > 0);
+            assertTrue(count.get() <= 10);
+        }
+        
+        @Test
+        @DisplayName("Dispatch with user context")
+        void dispatch_withUserContext() throws PcapException {
+            List<Integer> captureLengths = new ArrayList<>();
+            
+            int result = pcap.dispatch(5, (list, packet) -> {
+                list.add(packet.captureLength());
+            }, captureLengths);
+            
+            assertFalse(captureLengths.isEmpty());
+            assertTrue(captureLengths.stream().allMatch(len -> len > 0));
+        }
+        
+        @Test
+        @DisplayName("Dispatch all packets (-1)")
+        void dispatch_allPackets() throws PcapException {
+            AtomicInteger count = new AtomicInteger(0);
+            
+            pcap.dispatch(-1, packet -> {
+                count.incrementAndGet();
+            });
+            
+            assertTrue(count.get() > 0, "Should have processed at least one packet");
+        }
+    }
+    
+    @Nested
+    @DisplayName("Loop Tests")
+    class LoopTests {
+        
+        @BeforeEach
+        void setUp() throws PcapException {
+            pcap = NetPcap.openOffline(HTTP_PCAP, new PacketSettings().dissect());
+        }
+        
+        @Test
+        @DisplayName("Loop single packet")
+        void loop_singlePacket() {
+            AtomicInteger count = new AtomicInteger(0);
+            
+            int result = pcap.loop(1, packet -> {
+                count.incrementAndGet();
+                assertNotNull(packet);
+            });
+            
+            assertEquals(1, count.get());
+        }
+        
+        @Test
+        @DisplayName("Loop multiple packets")
+        void loop_multiplePackets() {
+            AtomicInteger count = new AtomicInteger(0);
+            
+            int result = pcap.loop(5, packet -> {
+                count.incrementAndGet();
+            });
+            
+            assertEquals(5, count.get());
+        }
+        
+        @Test
+        @DisplayName("Loop with user context")
+        void loop_withUserContext() {
+            List<Long> timestamps = new ArrayList<>();
+            
+            pcap.loop(5, (list, packet) -> {
+                list.add(packet.timestamp());
+            }, timestamps);
+            
+            assertEquals(5, timestamps.size());
+            assertTrue(timestamps.stream().allMatch(ts -> ts > 0));
+        }
+    }
+    
+    @Nested
+    @DisplayName("Batch Dispatch Tests")
+    class BatchDispatchTests {
+        
+        @BeforeEach
+        void setUp() throws PcapException {
+            pcap = NetPcap.openOffline(HTTP_PCAP, new PacketSettings().dissect());
+        }
+        
+        @Test
+        @DisplayName("DispatchBatch delivers packets in one call")
+        void dispatchBatch_singleCall() throws PcapException {
+            AtomicInteger calls = new AtomicInteger(0);
+            AtomicInteger count = new AtomicInteger(0);
+            
+            int result = pcap.dispatchBatch(10, batch -> {
+                calls.incrementAndGet();
+                for (int i = 0; i < batch.size(); i++) {
+                    assertTrue(batch.get(i).captureLength() > 0);
+                    count.incrementAndGet();
+                }
+            });
+            
+            assertEquals(1, calls.get());
+            assertEquals(result, count.get());
+            assertTrue(count.get() > 0 && count.get() <= 10);
+        }
+        
+        @Test
+        @DisplayName("LoopBatch matches per-packet loop count")
+        void loopBatch_matchesLoop() throws PcapException {
+            AtomicInteger expected = new AtomicInteger(0);
+            try (NetPcap p = NetPcap.openOffline(HTTP_PCAP, new PacketSettings().dissect())) {
+                p.loop(-1, packet -> expected.incrementAndGet());
+            }
+            
+            AtomicInteger count = new AtomicInteger(0);
+            pcap.setBatchCapacity(7);
+            pcap.loopBatch(-1, batch -> {
+                assertTrue(batch.size() <= 7);
+                count.addAndGet(batch.size());
+            });
+            
+            assertEquals(expected.get(), count.get());
+        }
+    }
+    
+    @Nested
+    @DisplayName("Pull Dispatch Mode Tests")
+    class PullDispatchModeTests {
+        
+        private int countAll(DispatchMode mode) throws PcapException {
+            AtomicInteger count = new AtomicInteger(0);
+            try (NetPcap p = NetPcap.openOffline(HTTP_PCAP, new PacketSettings().dissect())) {
+                p.setDispatchMode(mode);
+                p.loop(-1, packet -> count.incrementAndGet());
+            }
+            
+            return count.get();
+        }
+        
+        @Test
+        @DisplayName("Pull loop delivers same packets as upcall loop")
+        void loop_pullMatchesUpcall() throws PcapException {
+            assertEquals(countAll(DispatchMode.UPCALL), countAll(DispatchMode.PULL));
+        }
+        
+        @Test
+        @DisplayName("Pull dispatch honors count")
+        void dispatch_pullHonorsCount() throws PcapException {
+            pcap = NetPcap.openOffline(HTTP_PCAP, new PacketSettings().dissect())
+                    .setDispatchMode(DispatchMode.PULL);
+            AtomicInteger count = new AtomicInteger(0);
+            
+            int result = pcap.dispatch(3, packet -> count.incrementAndGet());
+            
+            assertEquals(3, result);
+            assertEquals(3, count.get());
+        }
+        
+        @Test
+        @DisplayName("Pull loop returns -2 on breakloop")
+        void loop_pullBreakloop() throws PcapException {
+            pcap = NetPcap.openOffline(HTTP_PCAP, new PacketSettings().dissect())
+                    .setDispatchMode(DispatchMode.PULL);
+            AtomicInteger count = new AtomicInteger(0);
+            
+            int result = pcap.loop(-1, packet -> {
+                if (count.incrementAndGet() == 2)
+                    pcap.breakloop();
+            });
+            
+            assertEquals(-2, result);
+            assertEquals(2, count.get());
+        }
+        
+        @Test
+        @DisplayName("Pull dispatch of -1 reads a savefile to EOF like upcall dispatch")
+        void dispatch_pullAllMatchesUpcall() throws PcapException {
+            int total = countAll(DispatchMode.UPCALL);
+            pcap = NetPcap.openOffline(HTTP_PCAP, new PacketSettings().dissect())
+                    .setDispatchMode(DispatchMode.PULL);
+            AtomicInteger count = new AtomicInteger(0);
+            
+            assertEquals(total, pcap.dispatch(-1, packet -> count.incrementAndGet()));
+            assertEquals(total, count.get());
+            assertEquals(0, pcap.dispatch(-1, packet -> count.incrementAndGet()), "at EOF");
+        }
+        
+        @Test
+        @DisplayName("Pull break requested as a counted dispatch completes does not leak into later calls")
+        void dispatch_pullBreakClearedOnCount() throws PcapException {
+            int total = countAll(DispatchMode.UPCALL);
+            pcap = NetPcap.openOffline(HTTP_PCAP, new PacketSettings().dissect())
+                    .setDispatchMode(DispatchMode.PULL);
+            AtomicInteger count = new AtomicInteger(0);
+            
+            int result = pcap.dispatch(2, packet -> {
+                if (count.incrementAndGet() == 2)
+                    pcap.breakloop();
+            });
+            assertEquals(2, result);
+            
+            assertEquals(0, pcap.loop(-1, packet -> count.incrementAndGet()), "plain EOF after the break");
+            assertEquals(total, count.get());
+        }
+    }
+    
+    @Nested
+    @DisplayName("Bound Handler Tests")
+    class BoundHandlerTests {
+        
+        private final AtomicInteger count = new AtomicInteger(0);
+        
+        @BeforeEach
+        void setUp() throws PcapException {
+            pcap = NetPcap.openOffline(HTTP_PCAP, new PacketSettings().dissect());
+        }
+        
+        private static final Object[] NO_ARGS = {};
+        
+        private Object threadBean;
+        private Method allocatedBytesMethod;
+        
+        /** Resolves the per-thread allocation counter, false if not supported by the JVM. */
+        private boolean resolveAllocationCounter() {
+            try {
+                Class<?> factory = Class.forName("java.lang.management.ManagementFactory");
+                Class<?> ext = Class.forName("com.sun.management.ThreadMXBean");
+                threadBean = factory.getMethod("getThreadMXBean").invoke(null);
+                allocatedBytesMethod = ext.getMethod("getCurrentThreadAllocatedBytes");
+                
+                return ext.isInstance(threadBean);
+            } catch (ReflectiveOperationException | LinkageError e) {
+                return false;
+            }
+        }
+        
+        private long allocatedBytes() throws ReflectiveOperationException {
+            return (Long) allocatedBytesMethod.invoke(threadBean, NO_ARGS);
+        }
+        
+        @Test
+        @DisplayName("Bound handler receives all packets")
+        void bind_receivesAllPackets() throws PcapException {
+            BoundHandler bound = pcap.bind(packet -> count.incrementAndGet());
+            
+            int total = 0;
+            int n;
+            while ((n = bound.dispatch(4)) > 0)
+                total += n;
+            
+            assertTrue(total > 0);
+            assertEquals(total, count.get());
+        }
+        
+        @Test
+        @DisplayName("Bound dispatch cycles delivering packets allocate zero bytes")
+        void bind_zeroAllocationPerCycle(@TempDir Path dir) throws Exception {
+            assumeTrue(resolveAllocationCounter(), "thread allocation counters not supported");
+            
+            Path file = dir.resolve("cycles.pcap");
+            new CaptureGenerator()
+                    .addStack(SyntheticStack.IP4_TCP, 1)
+                    .setPacketSize(64)
+                    .generate(file, 200_000);
+            
+            pcap.close();
+            pcap = NetPcap.openOffline(file.toString(), new PacketSettings().dissect());
+            BoundHandler bound = pcap.bind((AtomicInteger c, Packet packet) -> c.incrementAndGet(), count);
+            
+            // Warm up the dispatch path on the first 64,000 packets, leaving enough
+            // of the file for the measured cycles to each deliver a full batch
+            for (int i = 0; i < 1_000; i++)
+                assertEquals(64, bound.dispatch(64));
+            
+            allocatedBytes(); // warm up the reflective accessor
+            int delivered = count.get();
+            long before = allocatedBytes();
+            
+            for (int i = 0; i < 1_000; i++)
+                bound.dispatch(64);
+            
+            long allocated = allocatedBytes() - before;
+            assertEquals(64_000, count.get() - delivered, "packets delivered by the measured cycles");
+            assertEquals(0, allocated, "bytes allocated by 1,000 bound dispatch cycles of 64 packets");
+        }
+    }
+    
+    @Nested
+    @DisplayName("Parallel Pipeline Tests")
+    class ParallelPipelineTests {
+        
+        @Test
+        @DisplayName("Workers process every captured packet")
+        void parallel_processesAllPackets() throws PcapException {
+            AtomicInteger expected = new AtomicInteger(0);
+            try (NetPcap p = NetPcap.openOffline(HTTP_PCAP, new PacketSettings().dissect())) {
+                p.loop(-1, packet -> expected.incrementAndGet());
+            }
+            
+            AtomicInteger count = new AtomicInteger(0);
+            pcap = NetPcap.openOffline(HTTP_PCAP, new PacketSettings().dissect());
+            
+            try (ParallelPipeline parallel = pcap.parallel(3, worker -> packet -> {
+                assertTrue(packet.captureLength() > 0);
+                count.incrementAndGet();
+            })) {
+                parallel.loop(-1);
+            }
+            
+            assertEquals(expected.get(), count.get());
+        }
+        
+        @Test
+        @DisplayName("Worker exceptions are rethrown on the capture thread")
+        void parallel_rethrowsWorkerException() throws PcapException {
+            pcap = NetPcap.openOffline(HTTP_PCAP, new PacketSettings());
+            
+            assertThrows(IllegalStateException.class, () -> {
+                try (ParallelPipeline parallel = pcap.parallel(2, worker -> packet -> {
+                    throw new IllegalStateException("worker " + worker);
+                })) {
+                    parallel.loop(-1);
+                }
+            });
+        }
+    }
+    
+    @Nested
+    @DisplayName("Flow Shard Router Tests")
+    class FlowShardRouterTests {
+        
+        @Test
+        @DisplayName("Every packet is routed to its flow's shard")
+        void shardRouter_routesAllPackets() throws PcapException {
+            pcap = NetPcap.openOffline(HTTP_PCAP, new PacketSettings().dissect());
+            int[] expected = {0};
+            pcap.loop(-1, packet -> expected[0]++);
+            pcap.close();
+            
+            pcap = NetPcap.openOffline(HTTP_PCAP, new PacketSettings().dissect());
+            
+            try (FlowShardRouter router = pcap.shardRouter(4, 1024 * 1024, true)) {
+                pcap.loop(-1, router);
+                
+                int total = 0;
+                for (int i = 0; i < router.shardCount(); i++) {
+                    Packet packet;
+                    while ((packet = router.shard(i).poll()) != null) {
+                        assertEquals(i, router.shardOf(packet));
+                        total++;
+                    }
+                    assertEquals(0, router.depth(i));
+                }
+                
+                assertEquals(expected[0], total);
+                assertEquals(0, router.dropCount());
+            }
+        }
+        
+        @Test
+        @DisplayName("Routed packets keep nanosecond timestamps")
+        void shardRouter_keepsNanoTimestamps() throws PcapException {
+            List<Long> expected = new ArrayList<>();
+            pcap = NetPcap.openOfflineWithTstampPrecision(HTTP_PCAP, PcapTStampPrecision.NANO, new PacketSettings());
+            pcap.loop(-1, packet -> expected.add(packet.timestamp()));
+            pcap.close();
+            
+            List<Long> actual = new ArrayList<>();
+            pcap = NetPcap.openOfflineWithTstampPrecision(HTTP_PCAP, PcapTStampPrecision.NANO, new PacketSettings());
+            
+            try (FlowShardRouter router = pcap.shardRouter(2, 1024 * 1024, false)) {
+                pcap.loop(-1, router);
+                
+                for (int i = 0; i < router.shardCount(); i++) {
+                    Packet packet;
+                    while ((packet = router.shard(i).poll()) != null)
+                        actual.add(packet.timestamp());
+                }
+            }
+            
+            Collections.sort(expected);
+            Collections.sort(actual);
+            assertFalse(expected.isEmpty());
+            assertEquals(expected, actual);
+        }
+    }
+    
+    @Nested
+    @DisplayName("Packet Slab Pool Tests")
+    class PacketSlabPoolTests {
+        
+        @Test
+        @DisplayName("Persisted packets outlive the handler until recycled")
+        void slabPool_persistsAndRecycles() throws Exception {
+            List<Long> expected = new ArrayList<>();
+            try (NetPcap p = NetPcap.openOffline(HTTP_PCAP, new PacketSettings().dissect())) {
+                p.loop(-1, packet -> expected.add(packet.timestamp() ^ ((long) packet.captureLength() << 48)));
+            }
+            
+            pcap = NetPcap.openOffline(HTTP_PCAP, new PacketSettings().dissect());
+            
+            try (PacketSlabPool pool = pcap.newSlabPool(16 * 1024 * 1024)) {
+                List<Packet> kept = new ArrayList<>();
+                pcap.bind(pool, packet -> kept.add(pool.persist(packet))).loop(-1);
+                
+                List<Long> actual = new ArrayList<>();
+                for (Packet packet : kept)
+                    actual.add(packet.timestamp() ^ ((long) packet.captureLength() << 48));
+                
+                assertEquals(expected, actual);
+                assertEquals(kept.size(), pool.inUse());
+                assertTrue(pool.occupancy() > 0);
+                
+                kept.forEach(pool::recycle);
+                
+                assertEquals(0, pool.inUse());
+                assertEquals(pool.persistCount(), pool.recycleCount());
+                assertThrows(IllegalStateException.class, () -> pool.recycle(kept.get(0)));
+            }
+        }
+        
+        @Test
+        @DisplayName("Exhausted pool delivers packets which can not be persisted")
+        void slabPool_countsExhaustion() throws Exception {
+            pcap = NetPcap.openOffline(HTTP_PCAP, new PacketSettings());
+            
+            try (PacketSlabPool pool = pcap.newSlabPool(7 * 1024)) {
+                AtomicInteger delivered = new AtomicInteger();
+                AtomicInteger persisted = new AtomicInteger();
+                
+                pcap.bind(pool, packet -> {
+                    delivered.incrementAndGet();
+                    if (pool.persist(packet) != null)
+                        persisted.incrementAndGet();
+                }).loop(-1);
+                
+                assertTrue(persisted.get() <= pool.slotCount());
+                assertTrue(pool.exhaustedCount() > 0);
+                assertEquals(delivered.get(), persisted.get() + pool.exhaustedCount());
+            }
+        }
+        
+        @Test
+        @DisplayName("Slots recycled on threads which exit return to the pool")
+        void slabPool_recyclesAcrossThreads() throws Exception {
+            pcap = NetPcap.openOffline(HTTP_PCAP, new PacketSettings());
+            
+            try (PacketSlabPool pool = pcap.newSlabPool(7 * 2 * (32 + 2048))) {
+                AtomicInteger delivered = new AtomicInteger();
+                
+                pcap.bind(pool, packet -> {
+                    delivered.incrementAndGet();
+                    
+                    Packet persisted = pool.persist(packet);
+                    assertNotNull(persisted);
+                    
+                    Thread consumer = Thread.ofPlatform().start(() -> pool.recycle(persisted));
+                    try {
+                        consumer.join();
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }).loop(-1);
+                
+                assertTrue(delivered.get() > pool.slotCount(3));
+                assertEquals(0, pool.exhaustedCount());
+                assertEquals(0, pool.inUse());
+            }
+        }
+        
+        @Test
+        @DisplayName("Persist outside of a bound handler is rejected")
+        void slabPool_rejectsForeignPackets() throws Exception {
+            pcap = NetPcap.openOffline(HTTP_PCAP, new PacketSettings());
+            
+            try (PacketSlabPool pool = pcap.newSlabPool(1024 * 1024)) {
+                Packet packet = pcap.next();
+                
+                assertNotNull(packet);
+                assertThrows(IllegalArgumentException.class, () -> pool.persist(packet));
+            }
+        }
+    }
+    
+    @Nested
+    @DisplayName("Capture Metrics Tests")
+    class CaptureMetricsTests {
+        
+        @Test
+        @DisplayName("Counts delivered packets, bytes and timing")
+        void metrics_countsPackets() throws PcapException {
+            pcap = NetPcap.openOffline(HTTP_PCAP, new PacketSettings().dissect());
+            pcap.metrics().setTimingEnabled(true);
+            
+            AtomicInteger count = new AtomicInteger();
+            AtomicInteger bytes = new AtomicInteger();
+            pcap.loop(-1, packet -> {
+                count.incrementAndGet();
+                bytes.addAndGet(packet.captureLength());
+            });
+            
+            CaptureMetrics metrics = pcap.metrics();
+            assertEquals(count.get(), metrics.getPacketCount());
+            assertEquals(bytes.get(), metrics.getByteCount());
+            assertTrue(metrics.getDissectionNanos() > 0);
+            assertTrue(metrics.getHandlerNanos() > 0);
+            assertEquals(0, metrics.getExceptionCount());
+        }
+        
+        @Test
+        @DisplayName("Packets dropped by the packet filter are not counted")
+        void metrics_skipsFilteredPackets() throws PcapException {
+            pcap = NetPcap.openOffline(HTTP_PCAP);
+            pcap.setPacketFilter(pcap.compileProgram("tcp[tcpflags] & tcp-syn != 0", true).interpreter());
+            
+            AtomicInteger count = new AtomicInteger();
+            pcap.loop(-1, packet -> count.incrementAndGet());
+            assertTrue(count.get() > 0);
+            assertEquals(count.get(), pcap.metrics().getPacketCount());
+            
+            AtomicInteger batched = new AtomicInteger();
+            try (NetPcap p = NetPcap.openOffline(HTTP_PCAP)) {
+                p.setPacketFilter(p.compileProgram("tcp[tcpflags] & tcp-syn != 0", true).interpreter());
+                p.loopBatch(-1, batch -> batched.addAndGet(batch.size()));
+                
+                assertEquals(count.get(), batched.get());
+                assertEquals(batched.get(), p.metrics().getPacketCount());
+            }
+        }
+        
+        @Test
+        @DisplayName("Counts handler exceptions")
+        void metrics_countsExceptions() throws PcapException {
+            pcap = NetPcap.openOffline(HTTP_PCAP);
+            
+            assertThrows(IllegalStateException.class, () -> pcap.dispatch(1, packet -> {
+                throw new IllegalStateException("handler failure");
+            }));
+            assertEquals(1, pcap.metrics().getExceptionCount());
+            
+            pcap.setDispatchMode(DispatchMode.PULL);
+            assertThrows(IllegalStateException.class, () -> pcap.loop(-1, packet -> {
+                throw new IllegalStateException("handler failure");
+            }));
+            assertEquals(2, pcap.metrics().getExceptionCount());
+            
+            assertEquals(1, pcap.dispatch(1, packet -> {}), "exception is rethrown only once");
+        }
+        
+        @Test
+        @DisplayName("Metrics are readable through JMX until the handle is closed")
+        void metrics_exportedViaJmx() throws Exception {
+            pcap = NetPcap.openOffline(HTTP_PCAP);
+            pcap.loop(10, packet -> {});
+            
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = pcap.metrics().registerMBean("metrics-test");
+            
+            assertEquals(10L, server.getAttribute(name, "PacketCount"));
+            
+            pcap.close();
+            pcap = null;
+            
+            assertFalse(server.isRegistered(name));
+        }
+    }
+    
+    @Nested
+    @DisplayName("Flight Recorder Tests")
+    class FlightRecorderTests {
+        
+        @FunctionalInterface
+        interface CaptureAction {
+            void run() throws Exception;
+        }
+        
+        private List<RecordedEvent> record(String eventName, Path dir, CaptureAction action) throws Exception {
+            Path file = dir.resolve("capture.jfr");
+            try (Recording recording = new Recording()) {
+                recording.enable(eventName).withThreshold(Duration.ZERO);
+                recording.start();
+                action.run();
+                recording.stop();
+                recording.dump(file);
+            }
+            
+            return RecordingFile.readAllEvents(file).stream()
+                    .filter(e -> e.getEventType().getName().equals(eventName))
+                    .toList();
+        }
+        
+        @Test
+        @DisplayName("Records one dispatch cycle event per loop call")
+        void jfr_dispatchCycle(@TempDir Path dir) throws Exception {
+            pcap = NetPcap.openOffline(HTTP_PCAP);
+            
+            List<RecordedEvent> events = record("com.slytechs.sdk.jnetpcap.DispatchCycle", dir,
+                    () -> pcap.loop(10, packet -> {}));
+            
+            assertEquals(1, events.size());
+            assertEquals(10L, events.get(0).getLong("packets"));
+            assertFalse(events.get(0).getBoolean("partial"));
+        }
+        
+        @Test
+        @DisplayName("Aggregates slow dissections per cycle")
+        void jfr_slowDissection(@TempDir Path dir) throws Exception {
+            pcap = NetPcap.openOffline(HTTP_PCAP, new PacketSettings().dissect());
+            pcap.setSlowDissectionThreshold(Duration.ZERO);
+            
+            List<RecordedEvent> events = record("com.slytechs.sdk.jnetpcap.SlowDissection", dir,
+                    () -> pcap.loop(10, packet -> {}));
+            
+            assertEquals(1, events.size());
+            assertTrue(events.get(0).getLong("slowPackets") > 0);
+        }
+        
+        @Test
+        @DisplayName("Records handler exceptions")
+        void jfr_handlerException(@TempDir Path dir) throws Exception {
+            pcap = NetPcap.openOffline(HTTP_PCAP);
+            
+            List<RecordedEvent> events = record("com.slytechs.sdk.jnetpcap.HandlerException", dir,
+                    () -> assertThrows(IllegalStateException.class, () -> pcap.dispatch(1, packet -> {
+                        throw new IllegalStateException("handler failure");
+                    })));
+            
+            assertEquals(1, events.size());
+            assertEquals("handler failure", events.get(0).getString("message"));
+            assertEquals(IllegalStateException.class.getName(),
+                    events.get(0).getClass("exceptionClass").getName());
+        }
+    }
+    
+    @Nested
+    @DisplayName("Capture Generator Tests")
+    class CaptureGeneratorTests {
+        
+        @Test
+        @DisplayName("Generated protocol mix dissects")
+        void generator_protocolMix(@TempDir Path dir) throws Exception {
+            Path file = dir.resolve("mix.pcap");
+            long written = new CaptureGenerator()
+                    .addStack(SyntheticStack.IP4_TCP, 4)
+                    .addStack(SyntheticStack.VLAN_IP6_UDP, 2)
+                    .addStack(SyntheticStack.GRE_IP4_TCP, 1)
+                    .addStack(SyntheticStack.SIT_IP6_UDP, 1)
+                    .setFlowCount(64)
+                    .setImix()
+                    .generate(file, 10_000);
+            
+            assertEquals(10_000, written);
+            
+            Ip4 ip4 = new Ip4();
+            Ip6 ip6 = new Ip6();
+            Tcp tcp = new Tcp();
+            int[] counts = new int[4];
+            pcap = NetPcap.openOffline(file.toString(), new PacketSettings().dissect());
+            pcap.loop(-1, packet -> {
+                counts[0]++;
+                if (packet.hasHeader(ip4))
+                    counts[1]++;
+                if (packet.hasHeader(ip6))
+                    counts[2]++;
+                if (packet.hasHeader(tcp))
+                    counts[3]++;
+            });
+            
+            assertEquals(10_000, counts[0]);
+            assertTrue(counts[1] > 0);
+            assertTrue(counts[2] > 0);
+            assertTrue(counts[3] > 0);
+        }
+        
+        @Test
+        @DisplayName("Same seed generates identical files")
+        void generator_deterministic(@TempDir Path dir) throws Exception {
+            CaptureGenerator generator = new CaptureGenerator()
+                    .addStack(SyntheticStack.IP4_UDP, 1)
+                    .addStack(SyntheticStack.IP6_TCP, 1)
+                    .setPacketSizes(64, 1514)
+                    .setTimestampPattern(TimestampPattern.POISSON)
+                    .setSeed(42);
+            
+            generator.generate(dir.resolve("a.pcap"), 5_000);
+            generator.generate(dir.resolve("b.pcap"), 5_000);
+            
+            assertEquals(-1, Files.mismatch(dir.resolve("a.pcap"), dir.resolve("b.pcap")));
+        }
+        
+        @Test
+        @DisplayName("Sizes pcap files without pcapng record padding")
+        void generator_pcapSize(@TempDir Path dir) throws Exception {
+            Path file = dir.resolve("sized.pcap");
+            long written = new CaptureGenerator()
+                    .setPacketSize(61)
+                    .generateSize(file, 100_000);
+            
+            assertEquals(1_299, written, "records of 16 + 61 bytes to reach 100,000 bytes");
+            assertEquals(24 + written * (16 + 61), Files.size(file));
+        }
+        
+        @Test
+        @DisplayName("Generates pcapng files of a requested size")
+        void generator_pcapngSize(@TempDir Path dir) throws Exception {
+            Path file = dir.resolve("sized.pcapng");
+            long written = new CaptureGenerator()
+                    .setFormat(CaptureFileFormat.PCAPNG)
+                    .setTimestampPattern(TimestampPattern.BURSTY)
+                    .generateSize(file, 4 * 1024 * 1024);
+            
+            assertTrue(Files.size(file) >= 4 * 1024 * 1024);
+            
+            try (MappedPcapNgReader reader = NetPcap.openMappedNg(file, new PacketSettings().dissect())) {
+                AtomicInteger count = new AtomicInteger();
+                reader.loop(-1, packet -> count.incrementAndGet());
+                assertEquals(written, count.get());
+            }
+        }
+    }
+    
+    @Nested
+    @DisplayName("In-JVM BPF Tests")
+    class BpfEngineTests {
+        
+        private static final String[] EXPRESSIONS = {
+                "tcp port 80",
+                "ip and greater 200",
+                "tcp[tcpflags] & (tcp-syn|tcp-fin) != 0",
+                "ip[6:2] & 0x1fff = 0 and ip[2:2] > 576",
+                "udp or icmp or ip6"
+        };
+        
+        /** Builds a program from {code, jt, jf, k} quadruples */
+        private BpfProgram program(int... fields) {
+            MemorySegment insns = MemorySegment.ofArray(new long[fields.length / 4]);
+            for (int i = 0; i < fields.length / 4; i++) {
+                insns.set(ValueLayout.JAVA_SHORT_UNALIGNED, i * 8L, (short) fields[i * 4]);
+                insns.set(ValueLayout.JAVA_BYTE, i * 8L + 2, (byte) fields[i * 4 + 1]);
+                insns.set(ValueLayout.JAVA_BYTE, i * 8L + 3, (byte) fields[i * 4 + 2]);
+                insns.set(ValueLayout.JAVA_INT_UNALIGNED, i * 8L + 4, fields[i * 4 + 3]);
+            }
+            
+            return BpfProgram.of(insns);
+        }
+        
+        private void assertRuns(int expected, BpfProgram program, byte[] packet) {
+            MemorySegment data = MemorySegment.ofArray(packet);
+            
+            assertEquals(expected, program.interpreter().run(data, packet.length), "interpreter");
+            assertEquals(expected, program.compile().run(data, packet.length), "compiled");
+        }
+        
+        private int countNative(String expression) throws PcapException {
+            AtomicInteger count = new AtomicInteger(0);
+            try (NetPcap p = NetPcap.openOffline(HTTP_PCAP)) {
+                p.setFilter(expression);
+                p.loop(-1, packet -> count.incrementAndGet());
+            }
+            
+            return count.get();
+        }
+        
+        private int countInJvm(String expression, boolean compiled) throws PcapException {
+            AtomicInteger count = new AtomicInteger(0);
+            try (NetPcap p = NetPcap.openOffline(HTTP_PCAP)) {
+                BpfProgram program = p.compileProgram(expression, true);
+                p.setPacketFilter(compiled ? program.compile() : program.interpreter());
+                p.loop(-1, packet -> count.incrementAndGet());
+            }
+            
+            return count.get();
+        }
+        
+        @Test
+        @DisplayName("Interpreted and compiled programs accept the same packets as libpcap")
+        void bpf_matchesNativeFilter() throws PcapException {
+            for (String expression : EXPRESSIONS) {
+                int expected = countNative(expression);
+                
+                assertEquals(expected, countInJvm(expression, false), "interpreter: " + expression);
+                assertEquals(expected, countInJvm(expression, true), "compiled: " + expression);
+            }
+        }
+        
+        @Test
+        @DisplayName("Mapped reader counts only accepted packets")
+        void bpf_mappedReaderFilter() throws Exception {
+            int expected = countNative("tcp port 80");
+            
+            try (NetPcap p = NetPcap.openOffline(HTTP_PCAP);
+                    MappedPcapReader reader = NetPcap.openMapped(HTTP_PCAP, new PacketSettings())) {
+                reader.setFilter(p.compileProgram("tcp port 80", true).compile());
+                
+                AtomicInteger count = new AtomicInteger(0);
+                assertEquals(expected, reader.dispatch(-1, packet -> count.incrementAndGet()));
+                assertEquals(expected, count.get());
+            }
+        }
+        
+        @Test
+        @DisplayName("Loads, unsigned compares and msh follow libpcap semantics")
+        void bpf_semantics() {
+            byte[] packet = new byte[14];
+            packet[0] = 0x45;
+            packet[12] = (byte) 0x86;
+            packet[13] = (byte) 0xDD;
+            
+            // ldh [12]; ret a
+            assertRuns(0x86DD, program(0x28, 0, 0, 12, 0x16, 0, 0, 0), packet);
+            
+            // ld [12] reads past the capture length, rejecting the packet
+            assertRuns(0, program(0x20, 0, 0, 12, 0x16, 0, 0, 0), packet);
+            
+            // ldxb 4*([0]&0xf); txa; ret a
+            assertRuns(20, program(0xB1, 0, 0, 0, 0x87, 0, 0, 0, 0x16, 0, 0, 0), packet);
+            
+            // ld #0xffffffff; jgt #1 is unsigned; ret #1; ret #0
+            assertRuns(1, program(0x00, 0, 0, -1, 0x25, 0, 1, 1, 0x06, 0, 0, 1, 0x06, 0, 0, 0), packet);
+            
+            // ldx #0; ld #10; div x rejects the packet
+            assertRuns(0, program(0x01, 0, 0, 0, 0x00, 0, 0, 10, 0x3C, 0, 0, 0, 0x16, 0, 0, 0), packet);
+            
+            // ld #1; ldx #32; lsh x gives 0 rather than wrapping
+            assertRuns(0, program(0x00, 0, 0, 1, 0x01, 0, 0, 32, 0x6C, 0, 0, 0, 0x16, 0, 0, 0), packet);
+        }
+        
+        @Test
+        @DisplayName("Scratch memory starts cleared on every run")
+        void bpf_scratchMemory() throws Exception {
+            byte[] packet = new byte[14];
+            
+            // ld #7; st M[3]; ld #0; ld M[3]; ret a
+            assertRuns(7, program(0x00, 0, 0, 7, 0x02, 0, 0, 3, 0x00, 0, 0, 0, 0x60, 0, 0, 3, 0x16, 0, 0, 0),
+                    packet);
+            
+            // ld M[3]; add #7; st M[3]; ret a, gives 7 on every run of the same interpreter
+            BpfExecutable accumulate = program(0x60, 0, 0, 3, 0x04, 0, 0, 7, 0x02, 0, 0, 3, 0x16, 0, 0, 0)
+                    .interpreter();
+            MemorySegment data = MemorySegment.ofArray(packet);
+            
+            assertEquals(7, accumulate.run(data, packet.length));
+            assertEquals(7, accumulate.run(data, packet.length));
+            
+            Thread other = Thread.ofPlatform().start(() -> assertEquals(7, accumulate.run(data, packet.length)));
+            other.join();
+        }
+        
+        @Test
+        @DisplayName("Invalid programs are rejected")
+        void bpf_validation() {
+            // No return
+            assertThrows(IllegalArgumentException.class, () -> program(0x28, 0, 0, 12));
+            
+            // Branch past the end
+            assertThrows(IllegalArgumentException.class,
+                    () -> program(0x15, 0, 2, 0x800, 0x06, 0, 0, 1));
+            
+            // Division by constant zero
+            assertThrows(IllegalArgumentException.class,
+                    () -> program(0x34, 0, 0, 0, 0x16, 0, 0, 0));
+            
+            // Scratch memory index out of range
+            assertThrows(IllegalArgumentException.class,
+                    () -> program(0x02, 0, 0, 16, 0x16, 0, 0, 0));
+            
+            // Empty program
+            assertThrows(IllegalArgumentException.class, () -> BpfProgram.of(new long[0]));
+        }
+    }
+    
+    @Nested
+    @DisplayName("Filter Demux Tests")
+    class FilterDemuxTests {
+        
+        private long countNative(String expression) throws PcapException {
+            AtomicInteger count = new AtomicInteger(0);
+            try (NetPcap p = NetPcap.openOffline(HTTP_PCAP)) {
+                p.setFilter(expression);
+                p.loop(-1, packet -> count.incrementAndGet());
+            }
+            
+            return count.get();
+        }
+        
+        @Test
+        @DisplayName("Each subscriber receives the packets its filter matches")
+        void demux_routesBySubscriberFilter() throws PcapException {
+            pcap = NetPcap.openOffline(HTTP_PCAP);
+            FilterDemux demux = pcap.demux();
+            
+            AtomicInteger webPackets = new AtomicInteger(0);
+            var web = demux.subscribe("tcp port 80", packet -> webPackets.incrementAndGet());
+            var webCopy = demux.subscribe("tcp port 80", packet -> {});
+            var tcp = demux.subscribe("tcp", packet -> {});
+            var udp = demux.subscribe("udp", packet -> {});
+            
+            assertEquals(3, demux.filterCount());
+            assertEquals(4, demux.subscriberCount());
+            assertEquals("(tcp port 80) or (tcp) or (udp)", demux.unionExpression());
+            
+            pcap.loop(-1, demux);
+            
+            assertEquals(countNative("tcp port 80"), web.packetCount());
+            assertEquals(web.packetCount(), webCopy.packetCount());
+            assertEquals(web.packetCount(), webPackets.get());
+            assertEquals(countNative("tcp"), tcp.packetCount());
+            assertEquals(countNative("udp"), udp.packetCount());
+        }
+        
+        @Test
+        @DisplayName("Filters share their common predicates")
+        void demux_sharesPredicates() throws PcapException {
+            pcap = NetPcap.openOffline(HTTP_PCAP);
+            FilterDemux demux = pcap.demux();
+            
+            demux.subscribe("tcp port 80", packet -> {});
+            var https = demux.subscribe("tcp port 443", packet -> {});
+            
+            assertTrue(demux.sharedPredicateCount() > 0, demux.toString());
+            assertTrue(demux.sharedPredicateCount() < demux.predicateCount(), demux.toString());
+            
+            https.close();
+            assertEquals(1, demux.filterCount());
+            assertEquals(0, demux.sharedPredicateCount());
+            assertEquals("(tcp port 80)", demux.unionExpression());
+        }
+        
+        @Test
+        @DisplayName("Invalid expression is rejected without changing subscriptions")
+        void demux_rejectsInvalidExpression() throws PcapException {
+            pcap = NetPcap.openOffline(HTTP_PCAP);
+            FilterDemux demux = pcap.demux();
+            
+            demux.subscribe("tcp", packet -> {});
+            assertThrows(PcapException.class, () -> demux.subscribe("not a filter !!!", packet -> {}));
+            
+            assertEquals(1, demux.subscriberCount());
+            assertEquals("(tcp)", demux.unionExpression());
+        }
+        
+        @Test
+        @DisplayName("Empty expression matches every packet")
+        void demux_emptyExpressionMatchesAll() throws PcapException {
+            pcap = NetPcap.openOffline(HTTP_PCAP);
+            FilterDemux demux = pcap.demux();
+            
+            var all = demux.subscribe("", packet -> {});
+            var web = demux.subscribe("tcp port 80", packet -> {});
+            assertEquals("", demux.unionExpression());
+            
+            pcap.loop(-1, demux);
+            
+            assertEquals(countNative("ip or not ip"), all.packetCount());
+            assertEquals(countNative("tcp port 80"), web.packetCount());
+        }
+        
+        @Test
+        @DisplayName("Native filter accepts every packet once the last subscriber leaves")
+        void demux_resetsNativeFilter() throws PcapException {
+            pcap = NetPcap.openOffline(HTTP_PCAP);
+            FilterDemux demux = pcap.demux();
+            
+            demux.subscribe("udp", packet -> {}).close();
+            assertNull(demux.unionExpression());
+            
+            demux.subscribe("udp", packet -> {});
+            demux.close();
+            
+            AtomicInteger count = new AtomicInteger(0);
+            pcap.loop(-1, packet -> count.incrementAndGet());
+            
+            assertEquals(countNative("ip or not ip"), count.get());
+        }
+    }
+    
+    @Nested
+    @DisplayName("Packet Predicate Tests")
+    class PacketPredicateTests {
+        
+        /** Ethernet, IPv4 10.0.0.1 > 10.0.0.2 carrying IP-in-IP, then IPv4 TTL 3, TCP SYN to port 80 with MSS 1460 */
+        private MemorySegment tunneledSyn() {
+            byte[] frame = new byte[14 + 20 + 20 + 24];
+            MemorySegment f = MemorySegment.ofArray(frame);
+            ValueLayout.OfShort u16 = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+            ValueLayout.OfInt u32 = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+            
+            f.set(u16, 12, (short) 0x0800);
+            
+            int outer = 14;
+            frame[outer] = 0x45;
+            frame[outer + 8] = 64;
+            frame[outer + 9] = 4; // IP-in-IP
+            f.set(u32, outer + 12, 0x0A000001);
+            f.set(u32, outer + 16, 0x0A000002);
+            
+            int inner = outer + 20;
+            frame[inner] = 0x45;
+            frame[inner + 8] = 3;
+            frame[inner + 9] = 6; // TCP
+            
+            int tcp = inner + 20;
+            f.set(u16, tcp, (short) 40000);
+            f.set(u16, tcp + 2, (short) 80);
+            frame[tcp + 12] = 0x60; // 24 byte header
+            frame[tcp + 13] = 0x02; // SYN
+            frame[tcp + 20] = 2; // MSS
+            frame[tcp + 21] = 4;
+            f.set(u16, tcp + 22, (short) 1460);
+            
+            return f;
+        }
+        
+        private long countFiltered(BpfExecutable filter) throws PcapException {
+            AtomicInteger count = new AtomicInteger(0);
+            try (NetPcap p = NetPcap.openOffline(HTTP_PCAP)) {
+                p.setPacketFilter(filter);
+                p.loop(-1, packet -> count.incrementAndGet());
+            }
+            
+            return count.get();
+        }
+        
+        @Test
+        @DisplayName("Predicates match the same packets as equivalent BPF filters")
+        void predicate_matchesBpfFilter() throws PcapException {
+            pcap = NetPcap.openOffline(HTTP_PCAP);
+            
+            String[][] pairs = {
+                    { "tcp", "tcp" },
+                    { "tcp.srcPort == 80 || tcp.dstPort == 80", "tcp port 80" },
+                    { "ip4.ttl < 64", "ip[8] < 64" },
+                    { "tcp.isSyn and not tcp.isAck", "tcp[tcpflags] & (tcp-syn|tcp-ack) == tcp-syn" }
+            };
+            
+            for (String[] pair : pairs) {
+                long expected = countFiltered(pcap.compileProgram(pair[1], true).compile());
+                
+                assertEquals(expected, countFiltered(pcap.compilePredicate(pair[0])), pair[0]);
+            }
+        }
+        
+        @Test
+        @DisplayName("Fields are read by protocol and tunnel depth")
+        void predicate_readsTunneledFields() {
+            MemorySegment frame = tunneledSyn();
+            
+            assertTrue(PacketPredicate.compile("ip4.ttl < 5 && tcp.isSyn && depth(ip4) == 1").accepts(frame));
+            assertTrue(PacketPredicate.compile("ip4.ttl == 64 && ip4[1].ttl == 3").accepts(frame));
+            assertTrue(PacketPredicate.compile("ip4.src == 10.0.0.1 and ip4.protocol == 4").accepts(frame));
+            assertTrue(PacketPredicate.compile("tcp.mss == 1460 && tcp.optionsLength == 4").accepts(frame));
+            assertTrue(PacketPredicate.compile("tcp.flags & 0x12 == 0x02 && !tcp.sackPermitted").accepts(frame));
+            assertTrue(PacketPredicate.compile("ip4[1] && !ip4[2] && !ip6 && depth(udp) == -1").accepts(frame));
+            
+            assertFalse(PacketPredicate.compile("ip4.ttl < 5").accepts(frame));
+            assertFalse(PacketPredicate.compile("tcp.dstPort != 80").accepts(frame));
+            assertFalse(PacketPredicate.compile("udp.dstPort != 53").accepts(frame), "absent header");
+            assertFalse(PacketPredicate.compile("tcp.wscale >= 0").accepts(frame), "absent option");
+        }
+        
+        @Test
+        @DisplayName("Compiled predicates agree with their tree")
+        void predicate_compiledMatchesTree() throws PcapException {
+            MemorySegment frame = tunneledSyn();
+            
+            String[] expressions = {
+                    "ip4.ttl < 5 && tcp.isSyn && depth(ip4) == 1",
+                    "ip4[1].protocol == 17 || (tcp.mss != 0 && tcp.mss < 536)",
+                    "not (tcp.wscale >= 0) and tcp.flags & 0x12",
+                    "ip4.dst > 10.0.0.1 or depth(ip6) >= 0 or !true"
+            };
+            
+            for (String expression : expressions) {
+                PacketPredicate compiled = PacketPredicate.compile(expression);
+                PacketPredicate tree = PacketPredicate.interpret(expression, compiled.linkType());
+                
+                assertTrue(compiled.isCompiled(), expression);
+                assertFalse(tree.isCompiled(), expression);
+                assertEquals(tree.accepts(frame), compiled.accepts(frame), expression);
+                assertEquals(countFiltered(tree), countFiltered(compiled), expression);
+            }
+        }
+        
+        @Test
+        @DisplayName("Invalid expressions are rejected")
+        void predicate_rejectsInvalidExpressions() {
+            String[] invalid = {
+                    "",
+                    "ip5.ttl < 5",
+                    "ip4.hops < 5",
+                    "ip4.ttl",
+                    "ip4.ttl < five",
+                    "ip4[9].ttl == 1",
+                    "(tcp",
+                    "tcp udp"
+            };
+            
+            for (String expression : invalid)
+                assertThrows(IllegalArgumentException.class, () -> PacketPredicate.compile(expression), expression);
+        }
+    }
+    
+    @Nested
+    @DisplayName("Flow Table Tests")
+    class FlowTableTests {
+        
+        /** Ethernet, IPv4 and UDP frame from 10.0.0.src:srcPort to 10.0.0.dst:dstPort */
+        private MemorySegment udpFrame(int src, int srcPort, int dst, int dstPort) {
+            MemorySegment f = MemorySegment.ofArray(new byte[14 + 20 + 8]);
+            ValueLayout.OfShort u16 = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+            ValueLayout.OfInt u32 = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+            
+            f.set(u16, 12, (short) 0x0800);
+            f.set(ValueLayout.JAVA_BYTE, 14, (byte) 0x45);
+            f.set(u16, 16, (short) 28);
+            f.set(ValueLayout.JAVA_BYTE, 14 + 8, (byte) 64);
+            f.set(ValueLayout.JAVA_BYTE, 14 + 9, (byte) 17);
+            f.set(u32, 14 + 12, 0x0A000000 | src);
+            f.set(u32, 14 + 16, 0x0A000000 | dst);
+            f.set(u16, 34, (short) srcPort);
+            f.set(u16, 36, (short) dstPort);
+            
+            return f;
+        }
+        
+        private boolean update(FlowTable table, MemorySegment frame, long seconds) {
+            return table.update(frame, 0, (int) frame.byteSize(), seconds);
+        }
+        
+        @Test
+        @DisplayName("Both directions share one flow, sourced by the initiator")
+        void flowTable_tracksBothDirections() {
+            List<String> ended = new ArrayList<>();
+            
+            try (FlowTable table = new FlowTable(100, Duration.ofSeconds(10), Duration.ofSeconds(60),
+                    TimeUnit.SECONDS, PcapDlt.EN10MB.getAsInt(),
+                    (flow, reason) -> ended.add("%s %d:%d %d/%d %d".formatted(reason, flow.srcPort(), flow.dstPort(),
+                            flow.packets(), flow.reversePackets(), flow.bytes())))) {
+                
+                assertTrue(update(table, udpFrame(2, 53, 1, 5000), 0));
+                assertTrue(update(table, udpFrame(1, 5000, 2, 53), 1));
+                assertTrue(update(table, udpFrame(2, 53, 1, 5000), 2));
+                
+                assertEquals(1, table.flowCount());
+                assertFalse(table.update(MemorySegment.ofArray(new byte[14]), 0, 14, 3));
+                assertEquals(1, table.untrackedCount());
+                
+                assertEquals(1, table.flush());
+                assertEquals(0, table.flowCount());
+            }
+            
+            assertEquals(List.of("FLUSHED 53:5000 2/1 56"), ended);
+        }
+        
+        @Test
+        @DisplayName("Flows end on idle and active timeouts of packet time")
+        void flowTable_expiresByPacketTime() {
+            List<FlowTable.EndReason> reasons = new ArrayList<>();
+            
+            try (FlowTable table = new FlowTable(100, Duration.ofSeconds(10), Duration.ofSeconds(20),
+                    TimeUnit.SECONDS, PcapDlt.EN10MB.getAsInt(), (flow, reason) -> reasons.add(reason))) {
+                
+                MemorySegment a = udpFrame(1, 1000, 2, 2000);
+                update(table, a, 0);
+                update(table, a, 15); // Idle for 15s, ends and starts a new flow
+                assertEquals(List.of(FlowTable.EndReason.IDLE_TIMEOUT), reasons);
+                
+                for (long t = 20; t <= 40; t += 5) // Active from 15s to 40s
+                    update(table, a, t);
+                assertEquals(FlowTable.EndReason.ACTIVE_TIMEOUT, reasons.get(1));
+                
+                update(table, udpFrame(3, 1000, 4, 2000), 41);
+                assertEquals(2, table.flowCount());
+                assertEquals(2, table.expire(100));
+                assertEquals(0, table.flowCount());
+                assertEquals(table.createdCount(), table.endedCount());
+            }
+        }
+        
+        @Test
+        @DisplayName("Flushed flows account for every IP packet of a capture")
+        void flowTable_countsCapture() throws PcapException {
+            AtomicInteger ipPackets = new AtomicInteger(0);
+            try (NetPcap p = NetPcap.openOffline(HTTP_PCAP)) {
+                p.setFilter("ip or ip6");
+                p.loop(-1, packet -> ipPackets.incrementAndGet());
+            }
+            
+            long[] packets = new long[1];
+            pcap = NetPcap.openOffline(HTTP_PCAP);
+            try (FlowTable table = pcap.flowTable(1000, Duration.ofSeconds(30), Duration.ofMinutes(5),
+                    (flow, reason) -> packets[0] += flow.packets() + flow.reversePackets())) {
+                
+                pcap.loop(-1, table);
+                assertTrue(table.flowCount() > 0, table.toString());
+            }
+            
+            assertEquals(ipPackets.get(), packets[0]);
+        }
+        
+        @Test
+        @DisplayName("Flow tables follow the handle's timestamp precision")
+        void flowTable_followsPrecision() throws PcapException {
+            pcap = NetPcap.openOffline(HTTP_PCAP);
+            try (FlowTable table = pcap.flowTable(10, Duration.ofSeconds(30), Duration.ofMinutes(5), (flow, reason) -> {})) {
+                assertEquals(TimeUnit.MICROSECONDS, table.timestampUnit());
+            }
+            pcap.close();
+            
+            pcap = NetPcap.openOfflineWithTstampPrecision(HTTP_PCAP, PcapTStampPrecision.NANO);
+            try (FlowTable table = pcap.flowTable(10, Duration.ofSeconds(30), Duration.ofMinutes(5), (flow, reason) -> {})) {
+                assertEquals(TimeUnit.NANOSECONDS, table.timestampUnit());
+            }
+        }
+    }
+    
+    @Nested
+    @DisplayName("IP Reassembly Tests")
+    class IpReassemblyTests {
+        
+        private static final ValueLayout.OfShort U16 = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+        
+        /** IPv4 datagram payload, a UDP header followed by a counting pattern */
+        private byte[] datagram(int length) {
+            byte[] payload = new byte[length];
+            for (int i = 8; i < length; i++)
+                payload[i] = (byte) i;
+            payload[0] = 0x13;
+            payload[1] = (byte) 0x88;
+            
+            return payload;
+        }
+        
+        /** Ethernet and IPv4 frame carrying one fragment of a datagram */
+        private MemorySegment fragment(byte[] payload, int id, int offset, int length, boolean more) {
+            MemorySegment f = MemorySegment.ofArray(new byte[14 + 20 + length]);
+            
+            f.set(U16, 12, (short) 0x0800);
+            f.set(ValueLayout.JAVA_BYTE, 14, (byte) 0x45);
+            f.set(U16, 16, (short) (20 + length));
+            f.set(U16, 18, (short) id);
+            f.set(U16, 20, (short) ((more ? 0x2000 : 0) | (offset >> 3)));
+            f.set(ValueLayout.JAVA_BYTE, 22, (byte) 64);
+            f.set(ValueLayout.JAVA_BYTE, 23, (byte) 17);
+            f.set(ValueLayout.JAVA_INT_UNALIGNED, 26, 0x0100000A);
+            f.set(ValueLayout.JAVA_INT_UNALIGNED, 30, 0x0200000A);
+            MemorySegment.copy(payload, offset, f, ValueLayout.JAVA_BYTE, 34, length);
+            
+            return f;
+        }
+        
+        private boolean process(IpReassembler reassembler, MemorySegment frame, long micros) {
+            return reassembler.process(frame, 0, (int) frame.byteSize(), micros);
+        }
+        
+        @Test
+        @DisplayName("Out of order and duplicate fragments reassemble into one datagram")
+        void reassembly_joinsFragments() throws PcapException {
+            pcap = NetPcap.openDead(PcapDlt.EN10MB, 65535);
+            byte[] payload = datagram(3000);
+            List<byte[]> delivered = new ArrayList<>();
+            
+            try (IpReassembler reassembler = pcap.newReassembler(1024 * 1024, Duration.ofSeconds(30),
+                    packet -> delivered.add(packet.view().segment()
+                            .asSlice(packet.view().start(), packet.captureLength())
+                            .toArray(ValueLayout.JAVA_BYTE)))) {
+                
+                assertTrue(process(reassembler, fragment(payload, 7, 2960, 40, false), 0));
+                assertTrue(process(reassembler, fragment(payload, 7, 0, 1480, true), 1));
+                assertTrue(process(reassembler, fragment(payload, 7, 0, 1480, true), 2));
+                assertEquals(1, reassembler.datagramCount());
+                assertTrue(delivered.isEmpty());
+                
+                assertTrue(process(reassembler, fragment(payload, 7, 1480, 1480, true), 3));
+                assertEquals(1, reassembler.reassembledCount());
+                assertEquals(0, reassembler.datagramCount());
+                assertEquals(0, reassembler.bytesInUse());
+                
+                assertFalse(process(reassembler, fragment(payload, 8, 0, 100, false), 4), "unfragmented");
+            }
+            
+            assertEquals(1, delivered.size());
+            byte[] frame = delivered.get(0);
+            MemorySegment f = MemorySegment.ofArray(frame);
+            
+            assertEquals(14 + 20 + 3000, frame.length);
+            assertEquals(20 + 3000, Short.toUnsignedInt(f.get(U16, 16)));
+            assertEquals(0, f.get(U16, 20), "flags and offset");
+            for (int i = 0; i < payload.length; i++)
+                assertEquals(payload[i], frame[34 + i], "payload byte " + i);
+        }
+        
+        @Test
+        @DisplayName("Incomplete datagrams time out and floods stay within the budget")
+        void reassembly_boundsMemory() throws PcapException {
+            pcap = NetPcap.openDead(PcapDlt.EN10MB, 65535);
+            byte[] payload = datagram(3000);
+            long budget = 64 * 1024;
+            
+            try (IpReassembler reassembler = pcap.newReassembler(budget, Duration.ofSeconds(30), packet -> {})) {
+                process(reassembler, fragment(payload, 1, 0, 1480, true), 0);
+                assertEquals(1, reassembler.datagramCount());
+                
+                assertEquals(1, reassembler.expire(31_000_000));
+                assertEquals(1, reassembler.timeoutCount());
+                assertEquals(0, reassembler.datagramCount());
+                
+                for (int id = 0; id < 1000; id++)
+                    process(reassembler, fragment(payload, id, 1480, 1480, true), 32_000_000 + id);
+                
+                assertTrue(reassembler.evictedCount() > 0, reassembler.toString());
+                assertTrue(reassembler.bytesInUse() <= budget, reassembler.toString());
+                assertEquals(1001, reassembler.fragmentCount());
+            }
+        }
+        
+        @Test
+        @DisplayName("Nanosecond handles time out and stamp datagrams in nanoseconds")
+        void reassembly_nanoPrecision() throws PcapException {
+            pcap = NetPcap.openDeadWithTstampPrecision(PcapDlt.EN10MB, 65535, PcapTStampPrecision.NANO);
+            byte[] payload = datagram(3000);
+            long base = 1_700_000_000_123_456_789L;
+            List<Long> timestamps = new ArrayList<>();
+            
+            try (IpReassembler reassembler = pcap.newReassembler(1024 * 1024, Duration.ofSeconds(30),
+                    packet -> timestamps.add(packet.timestamp()))) {
+                process(reassembler, fragment(payload, 1, 0, 1480, true), base);
+                assertEquals(0, reassembler.expire(base + 31_000_000), "31 ms is within the timeout");
+                assertEquals(1, reassembler.expire(base + 31_000_000_000L));
+                
+                process(reassembler, fragment(payload, 2, 0, 1480, true), base);
+                process(reassembler, fragment(payload, 2, 1480, 1480, true), base + 1);
+                process(reassembler, fragment(payload, 2, 2960, 40, false), base + 2);
+            }
+            
+            assertEquals(List.of(base + 2), timestamps);
+        }
+    }
+    
+    @Nested
+    @DisplayName("TCP Reassembly Tests")
+    class TcpReassemblyTests {
+        
+        private static final ValueLayout.OfShort U16 = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+        private static final ValueLayout.OfInt U32 = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+        
+        private static final int FIN = 0x01;
+        private static final int SYN = 0x02;
+        private static final int ACK = 0x10;
+        
+        /** Ethernet, IPv4 and TCP frame between 10.0.0.1:40000 and 10.0.0.2:80 */
+        private MemorySegment segment(int clientPort, boolean fromClient, int seq, int flags, String data) {
+            byte[] payload = data.getBytes(StandardCharsets.US_ASCII);
+            MemorySegment f = MemorySegment.ofArray(new byte[54 + payload.length]);
+            
+            f.set(U16, 12, (short) 0x0800);
+            f.set(ValueLayout.JAVA_BYTE, 14, (byte) 0x45);
+            f.set(U16, 16, (short) (40 + payload.length));
+            f.set(ValueLayout.JAVA_BYTE, 22, (byte) 64);
+            f.set(ValueLayout.JAVA_BYTE, 23, (byte) 6);
+            f.set(U32, fromClient ? 26 : 30, 0x0A000001);
+            f.set(U32, fromClient ? 30 : 26, 0x0A000002);
+            f.set(U16, fromClient ? 34 : 36, (short) clientPort);
+            f.set(U16, fromClient ? 36 : 34, (short) 80);
+            f.set(U32, 38, seq);
+            f.set(ValueLayout.JAVA_BYTE, 46, (byte) 0x50);
+            f.set(ValueLayout.JAVA_BYTE, 47, (byte) flags);
+            MemorySegment.copy(payload, 0, f, ValueLayout.JAVA_BYTE, 54, payload.length);
+            
+            return f;
+        }
+        
+        private boolean process(TcpReassembler tcp, MemorySegment frame, long micros) {
+            return tcp.process(frame, 0, (int) frame.byteSize(), micros);
+        }
+        
+        @Test
+        @DisplayName("Out of order, retransmitted and overlapping segments are delivered once in order")
+        void reassembly_ordersStreams() throws PcapException {
+            pcap = NetPcap.openDead(PcapDlt.EN10MB, 65535);
+            StringBuilder client = new StringBuilder();
+            StringBuilder server = new StringBuilder();
+            List<TcpReassembler.CloseReason> closed = new ArrayList<>();
+            
+            try (TcpReassembler tcp = pcap.newTcpReassembler(16, 1024 * 1024, 64 * 1024, Duration.ofMinutes(2),
+                    new TcpReassembler.StreamHandler() {
+                        
+                        @Override
+                        public void streamData(TcpReassembler.Connection connection,
+                                TcpReassembler.Direction direction, MemorySegment data) {
+                            String s = new String(data.toArray(ValueLayout.JAVA_BYTE), StandardCharsets.US_ASCII);
+                            (direction == TcpReassembler.Direction.CLIENT_TO_SERVER ? client : server).append(s);
+                        }
+                        
+                        @Override
+                        public void streamClosed(TcpReassembler.Connection connection,
+                                TcpReassembler.CloseReason reason) {
+                            assertEquals(40000, connection.clientPort());
+                            assertEquals(80, connection.serverPort());
+                            closed.add(reason);
+                        }
+                    })) {
+                
+                assertTrue(process(tcp, segment(40000, true, 1000, SYN, ""), 0));
+                assertTrue(process(tcp, segment(40000, false, 5000, SYN | ACK, ""), 1));
+                assertEquals(1, tcp.connectionCount());
+                
+                process(tcp, segment(40000, true, 1013, ACK, "!!!"), 2);
+                assertEquals(1, tcp.outOfOrderCount());
+                assertTrue(tcp.bytesInUse() > 0);
+                
+                process(tcp, segment(40000, true, 1001, ACK, "hello "), 3);
+                process(tcp, segment(40000, true, 1001, ACK, "hello "), 4);
+                assertEquals(1, tcp.retransmitCount());
+                
+                process(tcp, segment(40000, true, 1005, ACK, "o world "), 5);
+                process(tcp, segment(40000, false, 5001, ACK, "ok"), 6);
+                assertEquals("hello world !!!", client.toString());
+                assertEquals("ok", server.toString());
+                assertEquals(0, tcp.bytesInUse());
+                
+                process(tcp, segment(40000, true, 1016, FIN | ACK, ""), 7);
+                assertTrue(closed.isEmpty());
+                process(tcp, segment(40000, false, 5003, FIN | ACK, ""), 8);
+                
+                assertEquals(List.of(TcpReassembler.CloseReason.FIN), closed);
+                assertEquals(0, tcp.connectionCount());
+                assertEquals(0, tcp.gapCount());
+                assertFalse(process(tcp, segment(40000, true, 1017, ACK, ""), 9), "stray ACK");
+            }
+        }
+        
+        @Test
+        @DisplayName("Memory limits skip holes and a full table evicts the oldest connection")
+        void reassembly_boundsMemory() throws PcapException {
+            pcap = NetPcap.openDead(PcapDlt.EN10MB, 65535);
+            AtomicInteger gapBytes = new AtomicInteger();
+            List<TcpReassembler.CloseReason> closed = new ArrayList<>();
+            String block = "x".repeat(1000);
+            
+            try (TcpReassembler tcp = pcap.newTcpReassembler(2, 64 * 1024, 4096, Duration.ofSeconds(30),
+                    new TcpReassembler.StreamHandler() {
+                        
+                        @Override
+                        public void streamData(TcpReassembler.Connection connection,
+                                TcpReassembler.Direction direction, MemorySegment data) {}
+                        
+                        @Override
+                        public void streamGap(TcpReassembler.Connection connection,
+                                TcpReassembler.Direction direction, int length) {
+                            gapBytes.addAndGet(length);
+                        }
+                        
+                        @Override
+                        public void streamClosed(TcpReassembler.Connection connection,
+                                TcpReassembler.CloseReason reason) {
+                            closed.add(reason);
+                        }
+                    })) {
+                
+                process(tcp, segment(40000, true, 0, SYN, ""), 0);
+                for (int i = 0; i < 10; i++)
+                    process(tcp, segment(40000, true, 101 + i * 1000, ACK, block), 1 + i);
+                
+                assertEquals(1, tcp.gapCount(), tcp.toString());
+                assertEquals(100, gapBytes.get());
+                assertTrue(tcp.bytesInUse() <= 4 * TcpReassembler.CHUNK_SIZE, tcp.toString());
+                
+                process(tcp, segment(40001, true, 0, SYN, ""), 20);
+                process(tcp, segment(40002, true, 0, SYN, ""), 21);
+                assertEquals(1, tcp.evictedCount());
+                assertEquals(List.of(TcpReassembler.CloseReason.EVICTED), closed);
+                assertEquals(10_000, tcp.deliveredBytes());
+                
+                assertEquals(2, tcp.expire(31_000_000));
+                assertEquals(0, tcp.connectionCount());
+            }
+        }
+        
+        @Test
+        @DisplayName("Nanosecond handles time out idle connections in nanoseconds")
+        void reassembly_nanoPrecision() throws PcapException {
+            pcap = NetPcap.openDeadWithTstampPrecision(PcapDlt.EN10MB, 65535, PcapTStampPrecision.NANO);
+            
+            try (TcpReassembler tcp = pcap.newTcpReassembler(2, 64 * 1024, 4096, Duration.ofSeconds(30),
+                    (connection, direction, data) -> {})) {
+                assertEquals(TimeUnit.NANOSECONDS, tcp.timestampUnit());
+                
+                process(tcp, segment(40000, true, 0, SYN, ""), 0);
+                assertEquals(0, tcp.expire(31_000_000), "31 ms is within the timeout");
+                assertEquals(1, tcp.expire(31_000_000_000L));
+            }
+        }
+    }
+    
+    @Nested
+    @DisplayName("Deduplication Tests")
+    class DeduplicationTests {
+        
+        private static final ValueLayout.OfShort U16 = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+        private static final long MILLIS = 1_000_000;
+        
+        /** Ethernet, optional VLAN tag, IPv4 and UDP frame, in native memory */
+        private MemorySegment frame(int mac, boolean vlan, int ttl, int checksum, int payloadByte) {
+            int ip = vlan ? 18 : 14;
+            MemorySegment f = Arena.ofAuto().allocate(ip + 20 + 8 + 32);
+            
+            f.set(ValueLayout.JAVA_INT_UNALIGNED, 0, mac);
+            if (vlan) {
+                f.set(U16, 12, (short) 0x8100);
+                f.set(U16, 14, (short) 100);
+            }
+            f.set(U16, ip - 2, (short) 0x0800);
+            f.set(ValueLayout.JAVA_BYTE, ip, (byte) 0x45);
+            f.set(U16, ip + 2, (short) 60);
+            f.set(U16, ip + 4, (short) 1234);
+            f.set(ValueLayout.JAVA_BYTE, ip + 8, (byte) ttl);
+            f.set(ValueLayout.JAVA_BYTE, ip + 9, (byte) 17);
+            f.set(U16, ip + 10, (short) checksum);
+            f.set(ValueLayout.JAVA_INT_UNALIGNED, ip + 12, 0x0100000A);
+            f.set(ValueLayout.JAVA_INT_UNALIGNED, ip + 16, 0x0200000A);
+            f.set(U16, ip + 20, (short) 5000);
+            f.set(U16, ip + 22, (short) 53);
+            f.set(U16, ip + 24, (short) 40);
+            f.set(U16, ip + 26, (short) checksum);
+            f.asSlice(ip + 28).fill((byte) payloadByte);
+            
+            return f;
+        }
+        
+        private boolean duplicate(PacketDeduplicator dedup, MemorySegment frame, long nanos) {
+            return dedup.isDuplicate(frame, 0, (int) frame.byteSize(), nanos);
+        }
+        
+        @Test
+        @DisplayName("Mirror copies differing in link header, TTL and checksums are suppressed within the window")
+        void deduplicator_suppressesCopies() {
+            PacketDeduplicator dedup = new PacketDeduplicator(1024, Duration.ofMillis(50), PcapDlt.EN10MB.getAsInt(),
+                    0, PacketDeduplicator.DEFAULT_WINDOW_LENGTH);
+            
+            assertFalse(duplicate(dedup, frame(1, false, 64, 0x1111, 'a'), 0));
+            assertTrue(duplicate(dedup, frame(2, true, 63, 0x2222, 'a'), 1 * MILLIS), "mirror copy");
+            assertFalse(duplicate(dedup, frame(1, false, 64, 0x1111, 'b'), 2 * MILLIS), "different payload");
+            assertFalse(duplicate(dedup, frame(1, false, 64, 0x1111, 'a'), 1000 * MILLIS), "after the window");
+            
+            assertEquals(4, dedup.packetCount());
+            assertEquals(1, dedup.suppressedCount());
+            
+            dedup.clear();
+            assertFalse(duplicate(dedup, frame(1, false, 64, 0x1111, 'a'), 1000 * MILLIS));
+        }
+        
+        @Test
+        @DisplayName("Pipeline drops duplicates before binding")
+        void pipeline_dropsDuplicates() {
+            PacketDeduplicator dedup = new PacketDeduplicator(1024, Duration.ofMillis(50), PcapDlt.EN10MB.getAsInt(),
+                    0, PacketDeduplicator.DEFAULT_WINDOW_LENGTH);
+            PacketPipeline pipeline = new PacketPipeline(null, CaptureHeader.Packed.INSTANCE,
+                    DescriptorType.PCAP_PACKED, new PacketSettings().noDissection());
+            pipeline.setDeduplicator(dedup);
+            
+            MemorySegment frame = frame(1, false, 64, 0, 'a');
+            MemorySegment header = Arena.ofAuto().allocate(16);
+            header.set(ValueLayout.JAVA_INT_UNALIGNED, 0, 1);
+            header.set(ValueLayout.JAVA_INT_UNALIGNED, 8, (int) frame.byteSize());
+            header.set(ValueLayout.JAVA_INT_UNALIGNED, 12, (int) frame.byteSize());
+            
+            assertNotNull(pipeline.processPacket(header, frame, 0, frame.byteSize()));
+            assertNull(pipeline.processPacket(header, frame, 0, frame.byteSize()));
+            assertEquals(1, dedup.suppressedCount());
+            
+            pipeline.setDeduplicator(null);
+            assertNotNull(pipeline.processPacket(header, frame, 0, frame.byteSize()));
+        }
+    }
+    
+    @Nested
+    @DisplayName("Mapped Reader Tests")
+    class MappedReaderTests {
+        
+        @Test
+        @DisplayName("Mapped reader delivers the same packets as libpcap")
+        void mapped_matchesOffline() throws Exception {
+            List<Long> expected = new ArrayList<>();
+            try (NetPcap p = NetPcap.openOffline(HTTP_PCAP, new PacketSettings().dissect())) {
+                p.loop(-1, packet -> expected.add(packet.timestamp() ^ ((long) packet.captureLength() << 48)));
+            }
+            
+            List<Long> actual = new ArrayList<>();
+            try (MappedPcapReader reader = NetPcap.openMapped(HTTP_PCAP, new PacketSettings().dissect())) {
+                assertEquals(0, reader.loop(-1,
+                        packet -> actual.add(packet.timestamp() ^ ((long) packet.captureLength() << 48))));
+                assertFalse(reader.isTruncated());
+                assertEquals(reader.size(), reader.position());
+            }
+            
+            assertFalse(expected.isEmpty());
+            assertEquals(expected, actual);
+        }
+        
+        @Test
+        @DisplayName("Mapped reader dissects headers")
+        void mapped_dissectsHeaders() throws Exception {
+            Ip4 ip4 = new Ip4();
+            AtomicInteger count = new AtomicInteger(0);
+            
+            try (MappedPcapReader reader = NetPcap.openMapped(HTTP_PCAP, new PacketSettings().dissect())) {
+                reader.dispatch(-1, packet -> {
+                    if (packet.hasHeader(ip4))
+                        count.incrementAndGet();
+                });
+            }
+            
+            assertTrue(count.get() > 0);
+        }
+        
+        @Test
+        @DisplayName("Mapped reader dissects from the file's link type")
+        void mapped_dissectsRawLinkType(@TempDir Path dir) throws Exception {
+            Path file = dir.resolve("raw.pcap");
+            byte[] frame = MappedPcapNgReaderTests.rawIpv4Tcp();
+            
+            try (Arena arena = Arena.ofConfined();
+                    AsyncCaptureWriter writer = new AsyncCaptureWriter(file, CaptureFileFormat.PCAP,
+                            101, 65535, false, 4096, 2)) { // LINKTYPE_RAW
+                MemorySegment data = arena.allocate(frame.length);
+                data.copyFrom(MemorySegment.ofArray(frame));
+                assertTrue(writer.write(1_700_000_000L, 0, data, frame.length));
+            }
+            
+            Ethernet eth = new Ethernet();
+            Ip4 ip4 = new Ip4();
+            Tcp tcp = new Tcp();
+            List<String> bound = new ArrayList<>();
+            
+            try (MappedPcapReader reader = NetPcap.openMapped(file, new PacketSettings().dissect())) {
+                reader.loop(-1, packet -> bound.add(
+                        (packet.hasHeader(eth) ? "eth " : "") + (packet.hasHeader(ip4) ? "ip4 " : "")
+                                + (packet.hasHeader(tcp) ? "tcp" : "")));
+            }
+            
+            assertEquals(List.of("ip4 tcp"), bound);
+        }
+        
+        @Test
+        @DisplayName("Rejects files which are not pcap files")
+        void mapped_rejectsBadMagic(@TempDir Path dir) throws Exception {
+            Path bogus = dir.resolve("bogus.pcap");
+            Files.write(bogus, new byte[64]);
+            
+            assertThrows(IOException.class, () -> NetPcap.openMapped(bogus, new PacketSettings()));
+        }
+    }
+    
+    @Nested
+    @DisplayName("Parallel Offline Reader Tests")
+    class ParallelReaderTests {
+        
+        private List<Long> sequential() throws Exception {
+            List<Long> timestamps = new ArrayList<>();
+            try (MappedPcapReader reader = NetPcap.openMapped(HTTP_PCAP, new PacketSettings().dissect())) {
+                reader.loop(-1, packet -> timestamps.add(packet.timestamp()));
+            }
+            return timestamps;
+        }
+        
+        @Test
+        @DisplayName("Small chunks resync on record boundaries")
+        void parallel_collectMatchesSequential() throws Exception {
+            List<Long> expected = sequential();
+            
+            try (ParallelPcapReader reader = NetPcap.openOfflineParallel(HTTP_PCAP, new PacketSettings().dissect(), 4)) {
+                reader.setChunkSize(2048);
+                assertTrue(reader.chunkCount() > 1);
+                
+                List<Long> actual = reader.collect(
+                        ArrayList::new,
+                        (list, packet) -> list.add(packet.timestamp()),
+                        (a, b) -> { a.addAll(b); return a; });
+                
+                assertEquals(expected, actual);
+                assertEquals(0, reader.misalignedChunks());
+            }
+        }
+        
+        @Test
+        @DisplayName("Resync skips a zero-filled run of records")
+        void parallel_resyncSkipsZeroRun(@TempDir Path dir) throws Exception {
+            byte[] bytes = Files.readAllBytes(Path.of(HTTP_PCAP));
+            ByteBuffer in = ByteBuffer.wrap(bytes);
+            if (in.getInt(0) != 0xA1B2C3D4 && in.getInt(0) != 0xA1B23C4D)
+                in.order(ByteOrder.LITTLE_ENDIAN);
+            
+            /* Zero-fill the records spanning the middle of the file */
+            int zeroStart = 0;
+            int zeroEnd = 24;
+            while (zeroEnd < bytes.length / 2) {
+                zeroStart = zeroEnd;
+                zeroEnd += 16 + in.getInt(zeroEnd + 8);
+            }
+            for (int i = 0; i < 4 && zeroEnd + 16 <= bytes.length; i++)
+                zeroEnd += 16 + in.getInt(zeroEnd + 8);
+            
+            assertTrue(zeroEnd < bytes.length);
+            Arrays.fill(bytes, zeroStart, zeroEnd, (byte) 0);
+            
+            Path file = dir.resolve("zeroed.pcap");
+            Files.write(file, bytes);
+            
+            try (PcapFile pcapFile = PcapFile.map(file)) {
+                assertEquals(PcapFile.FILE_HEADER_LENGTH, pcapFile.resync(PcapFile.FILE_HEADER_LENGTH));
+                assertEquals(zeroEnd, pcapFile.resync(zeroStart));
+            }
+        }
+        
+        @Test
+        @DisplayName("Ordered merge delivers packets in file order")
+        void parallel_mapOrderedPreservesOrder() throws Exception {
+            List<Long> expected = sequential();
+            List<Long> actual = new ArrayList<>();
+            
+            try (ParallelPcapReader reader = NetPcap.openOfflineParallel(HTTP_PCAP, new PacketSettings().dissect(), 3)) {
+                reader.setChunkSize(1024);
+                reader.mapOrdered(Packet::timestamp, actual::add);
+            }
+            
+            assertEquals(expected, actual);
+        }
+    }
+    
+    @Nested
+    @DisplayName("Mapped PcapNg Reader Tests")
+    class MappedPcapNgReaderTests {
         
-        @Test
-        @DisplayName("Open pcap file with default settings")
-        void openOffline_defaultSettings() throws PcapException {
-            pcap = NetPcap.openOffline(HTTP_PCAP);
-            
-            assertNotNull(pcap);
-            assertTrue(pcap.isActivated());
+        private static final long TS_MICRO = 1_700_000_000_123_456L;
+        private static final long TS_NANO = 1_700_000_000_123_456_789L;
+        
+        private static void block(ByteArrayOutputStream out, ByteOrder order, int type, ByteBuffer body) {
+            body.flip();
+            int padded = (body.remaining() + 3) & ~3;
+            ByteBuffer b = ByteBuffer.allocate(12 + padded).order(order);
+            b.putInt(type).putInt(12 + padded).put(body);
+            b.position(8 + padded);
+            b.putInt(12 + padded);
+            out.writeBytes(b.array());
         }
         
-        @Test
-        @DisplayName("Open pcap file with eager dissection")
-        void openOffline_eagerDissection() throws PcapException {
-            PacketSettings settings = new PacketSettings().dissect();
-            pcap = NetPcap.openOffline(HTTP_PCAP, settings);
-            
-            assertNotNull(pcap);
-            assertTrue(pcap.isActivated());
+        private static ByteBuffer body(ByteOrder order) {
+            return ByteBuffer.allocate(256).order(order);
         }
         
-        @Test
-        @DisplayName("Open pcap file with on-demand dissection")
-        void openOffline_onDemandDissection() throws PcapException {
-            PacketSettings settings = new PacketSettings().dissectOnDemand();
-            pcap = NetPcap.openOffline(HTTP_PCAP, settings);
-            
-            assertNotNull(pcap);
-            assertTrue(pcap.isActivated());
+        private static void shb(ByteArrayOutputStream out, ByteOrder order) {
+            block(out, order, 0x0A0D0D0A, body(order).putInt(0x1A2B3C4D).putShort((short) 1).putShort((short) 0)
+                    .putLong(-1));
         }
         
-        @Test
-        @DisplayName("Open pcap file with no dissection")
-        void openOffline_noDissection() throws PcapException {
-            PacketSettings settings = new PacketSettings().noDissection();
-            pcap = NetPcap.openOffline(HTTP_PCAP, settings);
+        private static void idb(ByteArrayOutputStream out, ByteOrder order, int dlt, int tsresol, String name) {
+            ByteBuffer b = body(order).putShort((short) dlt).putShort((short) 0).putInt(65535);
+            if (tsresol >= 0)
+                b.putShort((short) 9).putShort((short) 1).put((byte) tsresol).put(new byte[3]);
+            if (name != null)
+                b.putShort((short) 2).putShort((short) name.length()).put(name.getBytes()).put(new byte[(4 - name.length() % 4) % 4]);
+            b.putShort((short) 0).putShort((short) 0);
+            block(out, order, 1, b);
+        }
+        
+        private static void epb(ByteArrayOutputStream out, ByteOrder order, int iface, long ts, int caplen) {
+            epb(out, order, iface, ts, new byte[caplen]);
+        }
+        
+        private static void epb(ByteArrayOutputStream out, ByteOrder order, int iface, long ts, byte[] data) {
+            block(out, order, 6, body(order).putInt(iface).putInt((int) (ts >>> 32)).putInt((int) ts)
+                    .putInt(data.length).putInt(data.length + 4).put(data));
+        }
+        
+        /** A 40 byte IPv4 TCP SYN, with no link layer header */
+        private static byte[] rawIpv4Tcp() {
+            return ByteBuffer.allocate(40)
+                    .put(new byte[] { 0x45, 0, 0, 40, 0, 1, 0x40, 0, 64, 6, 0, 0 })
+                    .put(new byte[] { 10, 0, 0, 1, 10, 0, 0, 2 })
+                    .putShort((short) 1234).putShort((short) 80).putInt(1).putInt(0)
+                    .put(new byte[] { 0x50, 0x02 }).putShort((short) 8192).putInt(0)
+                    .array();
+        }
+        
+        private Path generate(Path dir) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteOrder le = ByteOrder.LITTLE_ENDIAN;
+            ByteOrder be = ByteOrder.BIG_ENDIAN;
             
-            assertNotNull(pcap);
-            assertTrue(pcap.isActivated());
+            shb(out, le);
+            idb(out, le, 1, -1, null);
+            idb(out, le, 101, 9, "eth1");
+            epb(out, le, 0, TS_MICRO, 60);
+            epb(out, le, 1, TS_NANO, rawIpv4Tcp());
+            block(out, le, 0x00000BAD, body(le).putInt(42));
+            block(out, le, 3, body(le).putInt(64).put(new byte[64]));
+            
+            shb(out, be);
+            idb(out, be, 1, -1, null);
+            epb(out, be, 0, TS_MICRO, 70);
+            
+            Path file = dir.resolve("multi.pcapng");
+            Files.write(file, out.toByteArray());
+            return file;
         }
         
         @Test
-        @DisplayName("Open pcap file using File object")
-        void openOffline_fileObject() throws PcapException {
-            File file = new File(HTTP_PCAP);
-            pcap = NetPcap.openOffline(file);
+        @DisplayName("Decodes packets from multiple interfaces and sections")
+        void pcapng_multiInterface(@TempDir Path dir) throws Exception {
+            Path file = generate(dir);
+            List<Integer> linkTypes = new ArrayList<>();
+            List<Integer> lengths = new ArrayList<>();
+            List<Long> timestamps = new ArrayList<>();
             
-            assertNotNull(pcap);
-            assertTrue(pcap.isActivated());
+            try (MappedPcapNgReader reader = NetPcap.openMappedNg(file, new PacketSettings())) {
+                assertEquals(4, reader.countPackets());
+                
+                assertEquals(0, reader.loop(-1, packet -> {
+                    linkTypes.add(reader.currentInterface().linkType());
+                    lengths.add(packet.captureLength());
+                    timestamps.add(reader.currentTimestamp());
+                }));
+                
+                assertEquals(2, reader.sectionCount());
+                assertEquals(1, reader.skippedBlocks());
+                assertFalse(reader.isTruncated());
+            }
+            
+            assertEquals(List.of(1, 101, 1, 1), linkTypes);
+            assertEquals(List.of(60, 40, 64, 70), lengths);
+            assertEquals(TS_MICRO * 1000, timestamps.get(0));
+            assertEquals(TS_NANO, timestamps.get(1));
+            assertEquals(TS_MICRO * 1000, timestamps.get(3));
+            
+            Ethernet eth = new Ethernet();
+            Ip4 ip4 = new Ip4();
+            Tcp tcp = new Tcp();
+            List<String> bound = new ArrayList<>();
+            
+            try (MappedPcapNgReader reader = NetPcap.openMappedNg(file, new PacketSettings().dissect())) {
+                reader.loop(-1, packet -> {
+                    List<String> headers = new ArrayList<>();
+                    if (packet.hasHeader(eth))
+                        headers.add("eth");
+                    if (packet.hasHeader(ip4))
+                        headers.add("ip4");
+                    if (packet.hasHeader(tcp))
+                        headers.add("tcp");
+                    bound.add(String.join(" ", headers));
+                });
+            }
+            
+            /* The DLT_RAW interface's frame starts at the IPv4 header */
+            assertEquals(List.of("eth", "ip4 tcp", "eth", "eth"), bound);
         }
         
         @Test
-        @DisplayName("Open non-existent file throws exception")
-        void openOffline_nonExistentFile() {
-            assertThrows(PcapException.class, () -> {
-                NetPcap.openOffline("non_existent_file.pcap");
-            });
+        @DisplayName("Interface options are decoded")
+        void pcapng_interfaceOptions(@TempDir Path dir) throws Exception {
+            try (MappedPcapNgReader reader = NetPcap.openMappedNg(generate(dir), new PacketSettings())) {
+                assertNotNull(reader.next());
+                
+                PcapNgInterface eth1 = reader.interfaces().get(1);
+                assertEquals("eth1", eth1.name());
+                assertEquals(9, eth1.tsResolution());
+                assertTrue(eth1.isNanoTime());
+            }
         }
     }
     
     @Nested
-    @DisplayName("Dispatch Tests")
-    class DispatchTests {
+    @DisplayName("Async Capture Writer Tests")
+    class AsyncCaptureWriterTests {
         
-        @BeforeEach
-        void setUp() throws PcapException {
-            pcap = NetPcap.openOffline(HTTP_PCAP, new PacketSettings().dissect());
+        private int expectedCount() throws PcapException {
+            AtomicInteger count = new AtomicInteger(0);
+            try (NetPcap p = NetPcap.openOffline(HTTP_PCAP)) {
+                p.loop(-1, packet -> count.incrementAndGet());
+            }
+            return count.get();
         }
         
         @Test
-        @DisplayName("Dispatch single packet")
-        void dispatch_singlePacket() throws PcapException {
-            AtomicInteger count = new AtomicInteger(0);
+        @DisplayName("Recorded pcap file reads back every packet")
+        void writer_pcapRoundTrip(@TempDir Path dir) throws Exception {
+            Path out = dir.resolve("out.pcap");
             
-            int result = pcap.dispatch(1, packet -> {
-                count.incrementAndGet();
-                assertNotNull(packet);
-            });
+            pcap = NetPcap.openOffline(HTTP_PCAP);
+            try (AsyncCaptureWriter writer = pcap.openWriter(out, CaptureFileFormat.PCAP, 4096, 2)) {
+                writer.setBlocking(true);
+                pcap.bind(writer).loop(-1);
+                
+                assertEquals(0, writer.dropCount());
+            }
             
-            assertEquals(1, count.get());
-            assertTrue(result >= 0);
+            try (MappedPcapReader reader = NetPcap.openMapped(out, new PacketSettings())) {
+                assertEquals(expectedCount(), reader.dispatch(-1, packet -> {}));
+                assertFalse(reader.isTruncated());
+            }
         }
         
         @Test
-        @DisplayName("Dispatch multiple packets")
-        void dispatch_multiplePackets() throws PcapException {
-            AtomicInteger count = new AtomicInteger(0);
+        @DisplayName("Recorded pcapng file reads back every packet")
+        void writer_pcapngRoundTrip(@TempDir Path dir) throws Exception {
+            Path out = dir.resolve("out.pcapng");
             
-            int result = pcap.dispatch(10, packet -> {
-                count.incrementAndGet();
-                assertNotNull(packet);
-            });
+            pcap = NetPcap.openOffline(HTTP_PCAP);
+            try (AsyncCaptureWriter writer = pcap.openWriter(out, CaptureFileFormat.PCAPNG)) {
+                pcap.bind(writer).loop(-1);
+            }
             
-            assertTrue(count.get() > 0);
-            assertTrue(count.get() <= 10);
+            try (MappedPcapNgReader reader = NetPcap.openMappedNg(out, new PacketSettings())) {
+                assertEquals(expectedCount(), reader.countPackets());
+            }
         }
         
         @Test
-        @DisplayName("Dispatch with user context")
-        void dispatch_withUserContext() throws PcapException {
-            List<Integer> captureLengths = new ArrayList<>();
+        @DisplayName("Nanosecond timestamps survive a writer and recorder round trip")
+        void writer_nanoPrecisionRoundTrip(@TempDir Path dir) throws Exception {
+            long[] fractions = { 0, 123_456_789, 999_999_999 };
+            Path source = dir.resolve("nano.pcap");
             
-            int result = pcap.dispatch(5, (list, packet) -> {
-                list.add(packet.captureLength());
-            }, captureLengths);
+            try (Arena arena = Arena.ofConfined();
+                    AsyncCaptureWriter writer = new AsyncCaptureWriter(source, CaptureFileFormat.PCAP,
+                            PcapDlt.EN10MB.getAsInt(), 65535, true, 4096, 2)) {
+                MemorySegment data = arena.allocate(60);
+                for (long fraction : fractions)
+                    assertTrue(writer.write(1_700_000_000L, fraction, data, 60));
+            }
             
-            assertFalse(captureLengths.isEmpty());
-            assertTrue(captureLengths.stream().allMatch(len -> len > 0));
+            Path written = dir.resolve("written.pcap");
+            pcap = NetPcap.openOfflineWithTstampPrecision(source.toString(), PcapTStampPrecision.NANO);
+            try (AsyncCaptureWriter writer = pcap.openWriter(written, CaptureFileFormat.PCAP)) {
+                assertTrue(writer.isNanoTime());
+                pcap.bind(writer).loop(-1);
+            }
+            pcap.close();
+            
+            Path recorded = dir.resolve("recorded");
+            Files.createDirectory(recorded);
+            pcap = NetPcap.openOfflineWithTstampPrecision(source.toString(), PcapTStampPrecision.NANO);
+            try (RotatingRecorder recorder = pcap.openRecorder(recorded, "nano", CaptureFileFormat.PCAP)) {
+                assertTrue(recorder.isNanoTime());
+                pcap.bind(recorder).loop(-1);
+            }
+            
+            Path recordedFile;
+            try (var stream = Files.list(recorded)) {
+                recordedFile = stream.filter(f -> {
+                    try {
+                        return Files.size(f) > 24;
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }).findFirst().orElseThrow();
+            }
+            
+            for (Path file : List.of(written, recordedFile)) {
+                ByteBuffer b = ByteBuffer.wrap(Files.readAllBytes(file)).order(ByteOrder.nativeOrder());
+                
+                assertEquals(PcapFile.MAGIC_NANO, b.getInt(0), file.toString());
+                for (int i = 0; i < fractions.length; i++) {
+                    int record = 24 + i * (16 + 60);
+                    assertEquals(1_700_000_000, b.getInt(record), file.toString());
+                    assertEquals(fractions[i], b.getInt(record + 4), file.toString());
+                }
+            }
+        }
+    }
+    
+    @Nested
+    @DisplayName("Rotating Recorder Tests")
+    class RotatingRecorderTests {
+        
+        @Test
+        @DisplayName("Rotates by packet count and applies retention")
+        void recorder_rotatesByCount(@TempDir Path dir) throws Exception {
+            AtomicInteger total = new AtomicInteger(0);
+            try (NetPcap p = NetPcap.openOffline(HTTP_PCAP)) {
+                p.loop(-1, packet -> total.incrementAndGet());
+            }
+            
+            int perFile = 5;
+            int expectedFiles = (total.get() + perFile - 1) / perFile;
+            assumeTrue(expectedFiles > 2);
+            
+            pcap = NetPcap.openOffline(HTTP_PCAP);
+            try (RotatingRecorder recorder = pcap.openRecorder(dir, "test", CaptureFileFormat.PCAP)) {
+                recorder.setMaxPacketCount(perFile).setRetention(0, 2);
+                pcap.bind(recorder).loop(-1);
+                
+                assertEquals(expectedFiles - 1, recorder.rotationCount());
+            }
+            
+            List<Path> files;
+            try (var stream = Files.list(dir)) {
+                files = stream.sorted().toList();
+            }
+            
+            assertEquals(2, files.size());
+            
+            int remaining = 0;
+            for (Path file : files) {
+                try (MappedPcapReader reader = NetPcap.openMapped(file, new PacketSettings())) {
+                    remaining += reader.dispatch(-1, packet -> {});
+                }
+            }
+            
+            int lastFile = total.get() - (expectedFiles - 1) * perFile;
+            assertEquals(perFile + lastFile, remaining);
         }
         
         @Test
-        @DisplayName("Dispatch all packets (-1)")
-        void dispatch_allPackets() throws PcapException {
-            AtomicInteger count = new AtomicInteger(0);
+        @DisplayName("Packets of nanosecond handles carry nanosecond timestamps")
+        void pipeline_nanoPrecisionTimestamps(@TempDir Path dir) throws Exception {
+            Path source = dir.resolve("nano.pcap");
             
-            pcap.dispatch(-1, packet -> {
-                count.incrementAndGet();
-            });
+            try (Arena arena = Arena.ofConfined();
+                    AsyncCaptureWriter writer = new AsyncCaptureWriter(source, CaptureFileFormat.PCAP,
+                            PcapDlt.EN10MB.getAsInt(), 65535, true, 4096, 2)) {
+                MemorySegment data = arena.allocate(60);
+                assertTrue(writer.write(1_700_000_000L, 0, data, 60));
+                assertTrue(writer.write(1_700_000_001L, 0, data, 60));
+                assertTrue(writer.write(1_700_000_001L, 500_000, data, 60));
+            }
             
-            assertTrue(count.get() > 0, "Should have processed at least one packet");
+            pcap = NetPcap.openOfflineWithTstampPrecision(source.toString(), PcapTStampPrecision.NANO,
+                    new PacketSettings().dissect());
+            pcap.setDeduplicator(pcap.newDeduplicator(1024, Duration.ofMillis(1)));
+            
+            List<Long> timestamps = new ArrayList<>();
+            pcap.loop(-1, packet -> timestamps.add(packet.timestamp()));
+            
+            assertEquals(2, timestamps.size(), "copy 500us later is a duplicate");
+            assertEquals(TimestampUnit.EPOCH_NANO.ofSecond(1_700_000_001L, 0),
+                    timestamps.get(1) - timestamps.get(0) + TimestampUnit.EPOCH_NANO.ofSecond(1_700_000_000L, 0));
+        }
+        
+        @Test
+        @DisplayName("Rotates by file size counting pcap record headers")
+        void recorder_rotatesBySize(@TempDir Path dir) throws Exception {
+            List<Integer> lengths = new ArrayList<>();
+            try (NetPcap p = NetPcap.openOffline(HTTP_PCAP)) {
+                p.loop(-1, packet -> lengths.add(packet.captureLength()));
+            }
+            
+            long maxRecords = 2048;
+            int expectedFiles = 1;
+            long fileBytes = 0;
+            for (int caplen : lengths) {
+                if (fileBytes > 0 && fileBytes + 16 + caplen > maxRecords) {
+                    expectedFiles++;
+                    fileBytes = 0;
+                }
+                fileBytes += 16 + caplen;
+            }
+            assumeTrue(expectedFiles > 2);
+            
+            pcap = NetPcap.openOffline(HTTP_PCAP);
+            try (RotatingRecorder recorder = pcap.openRecorder(dir, "size", CaptureFileFormat.PCAP)) {
+                recorder.setMaxFileSize(maxRecords);
+                pcap.bind(recorder).loop(-1);
+                
+                assertEquals(expectedFiles - 1, recorder.rotationCount());
+            }
+            
+            try (var stream = Files.list(dir)) {
+                for (Path file : stream.toList())
+                    assertTrue(Files.size(file) - 24 <= maxRecords, file.toString());
+            }
         }
     }
     
     @Nested
-    @DisplayName("Loop Tests")
-    class LoopTests {
+    @DisplayName("Merged Reader Tests")
+    class MergedReaderTests {
         
-        @BeforeEach
-        void setUp() throws PcapException {
-            pcap = NetPcap.openOffline(HTTP_PCAP, new PacketSettings().dissect());
+        /** Splits a pcap file into two files holding alternate records */
+        private List<Path> split(Path dir) throws IOException {
+            byte[] bytes = Files.readAllBytes(Path.of(HTTP_PCAP));
+            ByteBuffer in = ByteBuffer.wrap(bytes);
+            if (in.getInt(0) != 0xA1B2C3D4 && in.getInt(0) != 0xA1B23C4D)
+                in.order(ByteOrder.LITTLE_ENDIAN);
+            
+            ByteArrayOutputStream[] out = { new ByteArrayOutputStream(), new ByteArrayOutputStream() };
+            out[0].write(bytes, 0, 24);
+            out[1].write(bytes, 0, 24);
+            
+            int offset = 24;
+            for (int i = 0; offset + 16 <= bytes.length; i++) {
+                int length = 16 + in.getInt(offset + 8);
+                out[i & 1].write(bytes, offset, length);
+                offset += length;
+            }
+            
+            List<Path> files = List.of(dir.resolve("even.pcap"), dir.resolve("odd.pcap"));
+            Files.write(files.get(0), out[0].toByteArray());
+            Files.write(files.get(1), out[1].toByteArray());
+            
+            return files;
         }
         
         @Test
-        @DisplayName("Loop single packet")
-        void loop_singlePacket() {
-            AtomicInteger count = new AtomicInteger(0);
+        @DisplayName("Merging a split capture restores the original order")
+        void merged_restoresSplitCapture(@TempDir Path dir) throws Exception {
+            List<Long> expected = new ArrayList<>();
+            try (MappedPcapReader reader = NetPcap.openMapped(HTTP_PCAP, new PacketSettings())) {
+                reader.loop(-1, packet -> expected.add(packet.timestamp()));
+            }
             
-            int result = pcap.loop(1, packet -> {
-                count.incrementAndGet();
-                assertNotNull(packet);
-            });
+            List<Long> actual = new ArrayList<>();
+            List<Integer> sources = new ArrayList<>();
+            try (MergedPcapReader merged = NetPcap.openMerged(split(dir), new PacketSettings())) {
+                assertEquals(2, merged.sourceCount());
+                assertEquals(0, merged.loop(-1, (source, packet) -> {
+                    actual.add(packet.timestamp());
+                    sources.add(source);
+                }));
+                assertEquals(0, merged.activeSources());
+            }
             
-            assertEquals(1, count.get());
+            assertFalse(expected.isEmpty());
+            assertEquals(expected, actual);
+            assertTrue(sources.contains(0) && sources.contains(1));
         }
         
         @Test
-        @DisplayName("Loop multiple packets")
-        void loop_multiplePackets() {
-            AtomicInteger count = new AtomicInteger(0);
+        @DisplayName("Each merged input is dissected from its own link type")
+        void merged_dissectsEachLinkType(@TempDir Path dir) throws Exception {
+            Path raw = dir.resolve("raw.pcap");
+            byte[] frame = MappedPcapNgReaderTests.rawIpv4Tcp();
             
-            int result = pcap.loop(5, packet -> {
-                count.incrementAndGet();
-            });
+            try (Arena arena = Arena.ofConfined();
+                    AsyncCaptureWriter writer = new AsyncCaptureWriter(raw, CaptureFileFormat.PCAP,
+                            101, 65535, false, 4096, 2)) { // LINKTYPE_RAW
+                MemorySegment data = arena.allocate(frame.length);
+                data.copyFrom(MemorySegment.ofArray(frame));
+                assertTrue(writer.write(1_700_000_000L, 0, data, frame.length));
+            }
             
-            assertEquals(5, count.get());
+            Ethernet eth = new Ethernet();
+            Ip4 ip4 = new Ip4();
+            List<String> rawBound = new ArrayList<>();
+            AtomicInteger ethernet = new AtomicInteger();
+            
+            try (MergedPcapReader merged = NetPcap.openMerged(List.of(Path.of(HTTP_PCAP), raw),
+                    new PacketSettings().dissect())) {
+                merged.loop(-1, (source, packet) -> {
+                    if (source == 1)
+                        rawBound.add((packet.hasHeader(eth) ? "eth " : "") + (packet.hasHeader(ip4) ? "ip4" : ""));
+                    else if (packet.hasHeader(eth))
+                        ethernet.incrementAndGet();
+                });
+            }
+            
+            assertEquals(List.of("ip4"), rawBound);
+            assertTrue(ethernet.get() > 0);
         }
         
         @Test
-        @DisplayName("Loop with user context")
-        void loop_withUserContext() {
-            List<Long> timestamps = new ArrayList<>();
+        @DisplayName("Merged stream is in timestamp order with ties in source order")
+        void merged_ordersByTimestamp() throws Exception {
+            Path file = Path.of(HTTP_PCAP);
             
-            pcap.loop(5, (list, packet) -> {
-                list.add(packet.timestamp());
-            }, timestamps);
+            int single;
+            try (MappedPcapReader reader = NetPcap.openMapped(HTTP_PCAP, new PacketSettings())) {
+                single = reader.dispatch(-1, _ -> {});
+            }
             
-            assertEquals(5, timestamps.size());
-            assertTrue(timestamps.stream().allMatch(ts -> ts > 0));
+            try (MergedPcapReader merged = NetPcap.openMerged(List.of(file, file), new PacketSettings())) {
+                long last = Long.MIN_VALUE;
+                int count = 0;
+                
+                for (Packet packet = merged.next(); packet != null; packet = merged.next()) {
+                    assertTrue(packet.timestamp() >= last);
+                    assertEquals(count & 1, merged.currentSource());
+                    last = packet.timestamp();
+                    count++;
+                }
+                
+                assertEquals(single * 2, count);
+                
+                merged.rewind();
+                assertEquals(3, merged.dispatch(3, _ -> {}));
+            }
+        }
+    }
+    
+    @Nested
+    @DisplayName("Replay Engine Tests")
+    class ReplayEngineTests {
+        
+        @Test
+        @DisplayName("Replay source must be an offline capture")
+        void replay_requiresOfflineSource() throws PcapException {
+            try (NetPcap dead = NetPcap.openDead(PcapDlt.EN10MB, 65535)) {
+                pcap = NetPcap.openOffline(HTTP_PCAP);
+                
+                assertThrows(IllegalStateException.class, () -> dead.replayTo(pcap));
+            }
+        }
+        
+        @Test
+        @DisplayName("Transmit failures end the replay with an exception")
+        void replay_reportsTransmitFailure() throws PcapException {
+            try (NetPcap dead = NetPcap.openDead(PcapDlt.EN10MB, 65535)) {
+                pcap = NetPcap.openOffline(HTTP_PCAP);
+                ReplayEngine replay = pcap.replayTo(dead).setPacketRate(1000);
+                
+                assertThrows(PcapException.class, () -> replay.replay(-1));
+                assertEquals(0, replay.packetCount());
+            }
+        }
+        
+        @Test
+        @DisplayName("Fixed packet rate paces transmissions on loopback")
+        void replay_pacesPacketRate() throws PcapException {
+            NetPcap lo;
+            try {
+                lo = NetPcap.openLive("lo", 65535, false, Duration.ofMillis(100));
+            } catch (PcapException e) {
+                assumeTrue(false, "loopback capture not permitted: " + e.getMessage());
+                return;
+            }
+            
+            try (lo) {
+                pcap = NetPcap.openOffline(HTTP_PCAP);
+                ReplayEngine replay = pcap.replayTo(lo).setPacketRate(2000);
+                
+                assertEquals(0, replay.replay(20));
+                assertEquals(20, replay.packetCount());
+                assertTrue(replay.elapsedNanos() >= 19 * 500_000L);
+                assertTrue(replay.achievedPacketRate() <= 2200);
+            }
         }
     }
     
@@ -549,6 +2737,52 @@ class NetPcapTest {
                 pcap.setFilter("invalid filter expression !!!");
             });
         }
+        
+        @Test
+        @DisplayName("Filter cache compiles once per key")
+        void filterCache_hitsAcrossHandles() throws PcapException {
+            try (BpFilterCache cache = new BpFilterCache(8);
+                    NetPcap other = NetPcap.openOffline(HTTP_PCAP)) {
+                
+                pcap = NetPcap.openOffline(HTTP_PCAP).setFilterCache(cache);
+                other.setFilterCache(cache);
+                
+                pcap.setFilter("tcp port 80");
+                other.setFilter("tcp port 80");
+                pcap.setFilter("tcp port 80");
+                
+                assertEquals(1, cache.missCount());
+                assertEquals(2, cache.hitCount());
+                assertEquals(1, cache.size());
+                
+                pcap.setFilter("tcp port 80", false);
+                assertEquals(2, cache.size());
+                
+                assertEquals(2, cache.invalidate("tcp port 80"));
+                assertEquals(0, cache.size());
+            }
+        }
+        
+        @Test
+        @DisplayName("Filter cache evicts least recently used programs")
+        void filterCache_evictsLru() throws PcapException {
+            try (BpFilterCache cache = new BpFilterCache(2)) {
+                pcap = NetPcap.openOffline(HTTP_PCAP).setFilterCache(cache);
+                
+                pcap.setFilter("tcp");
+                pcap.setFilter("udp");
+                pcap.setFilter("tcp");
+                pcap.setFilter("icmp");
+                pcap.setFilter("tcp");
+                
+                assertEquals(2, cache.size());
+                assertEquals(1, cache.evictionCount());
+                assertEquals(2, cache.hitCount());
+                
+                Packet packet = pcap.next();
+                assertNotNull(packet);
+            }
+        }
     }
     
     @Nested